@@ -55,7 +55,7 @@ import android.view.inputmethod.InputMethodManager;
 import android.widget.AdapterView;
 import android.widget.AdapterView.OnItemSelectedListener;
 import android.widget.ArrayAdapter;
-import android.widget.CursorAdapter;
+import android.widget.BaseAdapter;
 import android.widget.EditText;
 import android.widget.ListView;
 import android.widget.Spinner;
@@ -64,6 +64,8 @@ import android.widget.Toast;
 
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.List;
 
 public class AddBookmarkPage extends Activity
         implements View.OnClickListener, TextView.OnEditorActionListener,
@@ -87,7 +89,6 @@ public class AddBookmarkPage extends Activity
 
     // IDs for the CursorLoaders that are used.
     private final int LOADER_ID_ACCOUNTS = 0;
-    private final int LOADER_ID_FOLDER_CONTENTS = 1;
     private final int LOADER_ID_EDIT_INFO = 2;
 
     private EditText    mTitle;
@@ -122,6 +123,7 @@ public class AddBookmarkPage extends Activity
     private View mFakeTitleHolder;
     private FolderSpinnerAdapter mFolderAdapter;
     private Spinner mAccountSpinner;
+    private BookmarkFolderTree mFolderTree;
     private ArrayAdapter<BookmarkAccount> mAccountAdapter;
 
     private static class Folder {
@@ -144,27 +146,95 @@ public class AddBookmarkPage extends Activity
         return (InputMethodManager) getSystemService(INPUT_METHOD_SERVICE);
     }
 
-    private Uri getUriForFolder(long folder) {
-        BookmarkAccount account =
-                (BookmarkAccount) mAccountSpinner.getSelectedItem();
-        if (folder == mRootFolder && account != null) {
-            return BookmarksLoader.addAccount(
-                    BrowserContract.Bookmarks.CONTENT_URI_DEFAULT_FOLDER,
-                    account.accountType, account.accountName);
+    private BookmarkFolderTree.OnFolderTreeChangedListener mFolderTreeListener =
+            new BookmarkFolderTree.OnFolderTreeChangedListener() {
+        @Override
+        public void onFolderTreeChanged(BookmarkFolderTree tree) {
+            if (tree != mFolderTree) {
+                return;
+            }
+            Object data = mCrumbs.getTopData();
+            long top = data != null ? ((Folder) data).Id : mRootFolder;
+            if (top != mRootFolder && tree.getFolder(top) == null) {
+                // The folder being shown was deleted
+                setupCrumbsForFolder(mRootFolder);
+            } else if (top == mRootFolder && mCurrentFolder != mRootFolder
+                    && mFolderSelector.getVisibility() != View.VISIBLE) {
+                // The tree was not loaded yet when the current folder was set
+                setupCrumbsForFolder(mCurrentFolder);
+            } else {
+                refreshFolderList();
+            }
+        }
+    };
+
+    /**
+     * Uses the folder tree of the given account, loading it if needed.
+     */
+    private void setFolderTree(BookmarkAccount account) {
+        BookmarkFolderTree tree = BookmarkFolderTree.getInstance(this,
+                account.accountType, account.accountName);
+        if (tree != mFolderTree) {
+            if (mFolderTree != null) {
+                mFolderTree.removeListener(mFolderTreeListener);
+            }
+            mFolderTree = tree;
+            mFolderTree.addListener(mFolderTreeListener);
         }
-        return BrowserContract.Bookmarks.buildFolderUri(folder);
+    }
+
+    /**
+     * Shows the sub folders of the folder at the top of the crumbs.
+     */
+    private void refreshFolderList() {
+        Object data = mCrumbs.getTopData();
+        long folder = data != null ? ((Folder) data).Id : mRootFolder;
+        if (mFolderTree == null || !mFolderTree.isLoaded()) {
+            mAdapter.setFolders(null);
+            return;
+        }
+        List<BookmarkFolderTree.Folder> children = mFolderTree.getChildren(folder);
+        if (mEditingFolder) {
+            // A folder cannot be moved into itself
+            long editing = mMap.getLong(BrowserContract.Bookmarks._ID);
+            ArrayList<BookmarkFolderTree.Folder> filtered =
+                    new ArrayList<BookmarkFolderTree.Folder>(children.size());
+            for (BookmarkFolderTree.Folder child : children) {
+                if (child.getId() != editing) {
+                    filtered.add(child);
+                }
+            }
+            children = filtered;
+        }
+        mAdapter.setFolders(children);
+    }
+
+    /**
+     * Sets the crumbs to the path from the root folder to folder, and shows
+     * its sub folders.
+     */
+    private void setupCrumbsForFolder(long folder) {
+        setupTopCrumb();
+        if (folder != mRootFolder && mFolderTree != null && mFolderTree.isLoaded()) {
+            List<BookmarkFolderTree.Folder> path = mFolderTree.getPath(folder, mRootFolder);
+            if (path != null) {
+                ArrayList<String> names = new ArrayList<String>(path.size());
+                ArrayList<Object> data = new ArrayList<Object>(path.size());
+                for (BookmarkFolderTree.Folder f : path) {
+                    names.add(f.getTitle());
+                    data.add(new Folder(f.getTitle(), f.getId()));
+                }
+                mCrumbs.pushPath(names, data);
+            }
+        }
+        setShowBookmarkIcon(mCrumbs.size() == 1);
+        refreshFolderList();
     }
 
     @Override
     public void onTop(BreadCrumbView view, int level, Object data) {
         if (null == data) return;
-        Folder folderData = (Folder) data;
-        long folder = folderData.Id;
-        LoaderManager manager = getLoaderManager();
-        CursorLoader loader = (CursorLoader) ((Loader<?>) manager.getLoader(
-                LOADER_ID_FOLDER_CONTENTS));
-        loader.setUri(getUriForFolder(folder));
-        loader.forceLoad();
+        refreshFolderList();
         if (mIsFolderNamerShowing) {
             completeOrCancelFolderNaming(true);
         }
@@ -233,11 +303,8 @@ public class AddBookmarkPage extends Activity
                         mFolderAdapter.setOtherFolderDisplayText(((Folder) data).Name);
                     } else {
                         // We are not showing the correct folder hierarchy.
-                        // Clear the Crumbs and find the proper folder
-                        setupTopCrumb();
-                        LoaderManager manager = getLoaderManager();
-                        manager.restartLoader(LOADER_ID_FOLDER_CONTENTS, null, this);
-
+                        // Rebuild the Crumbs from the folder tree
+                        setupCrumbsForFolder(mCurrentFolder);
                     }
                 }
             }
@@ -316,8 +383,7 @@ public class AddBookmarkPage extends Activity
                 // In case the user decides to select OTHER_FOLDER
                 // and choose a different one, so that we will start from
                 // the correct place.
-                LoaderManager manager = getLoaderManager();
-                manager.restartLoader(LOADER_ID_FOLDER_CONTENTS, null, this);
+                setupCrumbsForFolder(mCurrentFolder);
                 break;
             default:
                 break;
@@ -453,36 +519,9 @@ public class AddBookmarkPage extends Activity
 
     @Override
     public Loader<Cursor> onCreateLoader(int id, Bundle args) {
-        String[] projection;
         switch (id) {
             case LOADER_ID_ACCOUNTS:
                 return new AccountsLoader(this);
-            case LOADER_ID_FOLDER_CONTENTS:
-                projection = new String[] {
-                        BrowserContract.Bookmarks._ID,
-                        BrowserContract.Bookmarks.TITLE,
-                        BrowserContract.Bookmarks.IS_FOLDER
-                };
-                String where = BrowserContract.Bookmarks.IS_FOLDER + " != 0";
-                String whereArgs[] = null;
-                if (mEditingFolder) {
-                    where += " AND " + BrowserContract.Bookmarks._ID + " != ?";
-                    whereArgs = new String[] { Long.toString(mMap.getLong(
-                            BrowserContract.Bookmarks._ID)) };
-                }
-                long currentFolder;
-                Object data = mCrumbs.getTopData();
-                if (data != null) {
-                    currentFolder = ((Folder) data).Id;
-                } else {
-                    currentFolder = mRootFolder;
-                }
-                return new CursorLoader(this,
-                        getUriForFolder(currentFolder),
-                        projection,
-                        where,
-                        whereArgs,
-                        BrowserContract.Bookmarks._ID + " ASC");
             default:
                 throw new AssertionError("Asking for nonexistant loader!");
         }
@@ -500,41 +539,11 @@ public class AddBookmarkPage extends Activity
                 getLoaderManager().restartLoader(LOADER_ID_EDIT_INFO, null,
                         mEditInfoLoaderCallbacks);
                 break;
-            case LOADER_ID_FOLDER_CONTENTS:
-                mAdapter.changeCursor(cursor);
-                break;
         }
     }
 
     public void onLoaderReset(Loader<Cursor> loader) {
-        switch (loader.getId()) {
-            case LOADER_ID_FOLDER_CONTENTS:
-                mAdapter.changeCursor(null);
-                break;
-        }
-    }
-
-    /**
-     * Move cursor to the position that has folderToFind as its "_id".
-     * @param cursor Cursor containing folders in the bookmarks database
-     * @param folderToFind "_id" of the folder to move to.
-     * @param idIndex Index in cursor of "_id"
-     * @throws AssertionError if cursor is empty or there is no row with folderToFind
-     *      as its "_id".
-     */
-    void moveCursorToFolder(Cursor cursor, long folderToFind, int idIndex)
-            throws AssertionError {
-        if (!cursor.moveToFirst()) {
-            throw new AssertionError("No folders in the database!");
-        }
-        long folder;
-        do {
-            folder = cursor.getLong(idIndex);
-        } while (folder != folderToFind && cursor.moveToNext());
-        if (cursor.isAfterLast()) {
-            throw new AssertionError("Folder(id=" + folderToFind
-                    + ") holding this bookmark does not exist!");
-        }
+        // Don't care
     }
 
     @Override
@@ -566,24 +575,50 @@ public class AddBookmarkPage extends Activity
     /**
      * Shows a list of names of folders.
      */
-    private class FolderAdapter extends CursorAdapter {
+    private class FolderAdapter extends BaseAdapter {
+        private final Context mContext;
+        private List<BookmarkFolderTree.Folder> mFolders;
+
         public FolderAdapter(Context context) {
-            super(context, null);
+            mContext = context;
+        }
+
+        public void setFolders(List<BookmarkFolderTree.Folder> folders) {
+            mFolders = folders;
+            notifyDataSetChanged();
         }
 
         @Override
-        public void bindView(View view, Context context, Cursor cursor) {
-            ((TextView) view.findViewById(android.R.id.text1)).setText(
-                    cursor.getString(cursor.getColumnIndexOrThrow(
-                    BrowserContract.Bookmarks.TITLE)));
+        public int getCount() {
+            return mFolders != null ? mFolders.size() : 0;
         }
 
         @Override
-        public View newView(Context context, Cursor cursor, ViewGroup parent) {
-            View view = LayoutInflater.from(context).inflate(
-                    R.layout.folder_list_item, null);
-            view.setBackgroundDrawable(context.getResources().
-                    getDrawable(android.R.drawable.list_selector_background));
+        public BookmarkFolderTree.Folder getItem(int position) {
+            return mFolders.get(position);
+        }
+
+        @Override
+        public long getItemId(int position) {
+            return mFolders.get(position).getId();
+        }
+
+        @Override
+        public boolean hasStableIds() {
+            return true;
+        }
+
+        @Override
+        public View getView(int position, View convertView, ViewGroup parent) {
+            View view = convertView;
+            if (view == null) {
+                view = LayoutInflater.from(mContext).inflate(
+                        R.layout.folder_list_item, null);
+                view.setBackgroundDrawable(mContext.getResources().
+                        getDrawable(android.R.drawable.list_selector_background));
+            }
+            ((TextView) view.findViewById(android.R.id.text1)).setText(
+                    getItem(position).getTitle());
             return view;
         }
 
@@ -699,6 +734,15 @@ public class AddBookmarkPage extends Activity
         getLoaderManager().restartLoader(LOADER_ID_ACCOUNTS, null, this);
     }
 
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        if (mFolderTree != null) {
+            mFolderTree.removeListener(mFolderTreeListener);
+            mFolderTree = null;
+        }
+    }
+
     private void showRemoveButton() {
         findViewById(R.id.remove_divider).setVisibility(View.VISIBLE);
         mRemoveLink = findViewById(R.id.remove);
@@ -708,6 +752,10 @@ public class AddBookmarkPage extends Activity
 
     // Called once we have determined which folder is the root folder
     private void onRootFolderFound(long root) {
+        BookmarkAccount account = (BookmarkAccount) mAccountSpinner.getSelectedItem();
+        if (account != null) {
+            setFolderTree(account);
+        }
         mRootFolder = root;
         mCurrentFolder = mRootFolder;
         setupTopCrumb();
@@ -724,7 +772,6 @@ public class AddBookmarkPage extends Activity
     }
 
     private void onCurrentFolderFound() {
-        LoaderManager manager = getLoaderManager();
         if (mCurrentFolder != mRootFolder) {
             // Since we're not in the root folder, change the selection to other
             // folder now.  The text will get changed once we select the correct
@@ -739,8 +786,9 @@ public class AddBookmarkPage extends Activity
                 mFolder.setSelectionIgnoringSelectionChange(FolderSpinnerAdapter.ROOT_FOLDER);
             }
         }
-        // Find the contents of the current folder
-        manager.restartLoader(LOADER_ID_FOLDER_CONTENTS, null, this);
+        // Show the current folder, if the folder tree is not loaded yet this
+        // is done again once it is.
+        setupCrumbsForFolder(mCurrentFolder);
     }
 
     /**
@@ -766,11 +814,10 @@ public class AddBookmarkPage extends Activity
 
             // Save to the bookmarks DB.
             try {
-                final ContentResolver cr = getContentResolver();
                 Bookmarks.addBookmark(AddBookmarkPage.this, false, url,
                         title, thumbnail, mCurrentFolder);
                 if (touchIconUrl != null) {
-                    new DownloadTouchIcon(cr, url).execute(mTouchIconUrl);
+                    new DownloadTouchIcon(AddBookmarkPage.this, url).execute(mTouchIconUrl);
                 }
                 mMessage.arg1 = 1;
             } catch (IllegalStateException e) {
@@ -937,7 +984,7 @@ public class AddBookmarkPage extends Activity
                     Message msg = Message.obtain(mHandler,
                             TOUCH_ICON_DOWNLOADED);
                     msg.setData(bundle);
-                    DownloadTouchIcon icon = new DownloadTouchIcon(msg,
+                    DownloadTouchIcon icon = new DownloadTouchIcon(this, msg,
                             mMap.getString(USER_AGENT));
                     icon.execute(mTouchIconUrl);
                 } else {
@@ -0,0 +1,408 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.browser;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.provider.BrowserContract.Bookmarks;
+import android.text.TextUtils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * In memory tree of the bookmark folders of one account. It is built from a
+ * single query and then kept up to date from the provider's notifications,
+ * refreshing only the changed rows when the notification names one.
+ *
+ * Children, folder and path lookups are answered from memory, so folder
+ * pickers and bread crumbs don't need to query the provider while the user
+ * navigates. The tree is only maintained while it has listeners. All methods
+ * must be called on the UI thread.
+ */
+public class BookmarkFolderTree {
+
+    public interface OnFolderTreeChangedListener {
+        void onFolderTreeChanged(BookmarkFolderTree tree);
+    }
+
+    public static class Folder {
+        final long mId;
+        long mParentId;
+        String mTitle;
+        final ArrayList<Folder> mChildren = new ArrayList<Folder>();
+
+        Folder(long id, long parentId, String title) {
+            mId = id;
+            mParentId = parentId;
+            mTitle = title;
+        }
+
+        public long getId() {
+            return mId;
+        }
+
+        public long getParentId() {
+            return mParentId;
+        }
+
+        public String getTitle() {
+            return mTitle;
+        }
+    }
+
+    private static final String[] PROJECTION = new String[] {
+            Bookmarks._ID, // 0
+            Bookmarks.PARENT, // 1
+            Bookmarks.TITLE, // 2
+            Bookmarks.IS_FOLDER, // 3
+    };
+
+    private static final HashMap<String, BookmarkFolderTree> sTrees =
+            new HashMap<String, BookmarkFolderTree>();
+
+    /**
+     * Returns the shared tree for the given account, the local account if
+     * both are null.
+     */
+    public static BookmarkFolderTree getInstance(Context context,
+            String accountType, String accountName) {
+        String key = accountType + "/" + accountName;
+        BookmarkFolderTree tree = sTrees.get(key);
+        if (tree == null) {
+            tree = new BookmarkFolderTree(context.getApplicationContext(),
+                    accountType, accountName);
+            sTrees.put(key, tree);
+        }
+        return tree;
+    }
+
+    private final ContentResolver mResolver;
+    private final Uri mUri;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    // Queries run here, in order, so their results are applied in order
+    private final Handler mLoadHandler = new Handler(BackgroundHandler.getLooper());
+    private final ArrayList<OnFolderTreeChangedListener> mListeners =
+            new ArrayList<OnFolderTreeChangedListener>();
+    private HashMap<Long, Folder> mFolders = new HashMap<Long, Folder>();
+    private boolean mLoaded;
+    // Incremented when the tree stops, so results of older queries are dropped
+    private volatile int mGeneration;
+    private final AtomicBoolean mReloadScheduled = new AtomicBoolean();
+
+    // Rows waiting to be refreshed, guarded by mPendingIds
+    private final HashSet<Long> mPendingIds = new HashSet<Long>();
+    private boolean mRefreshScheduled;
+
+    private final ContentObserver mObserver = new ContentObserver(mMainHandler) {
+        @Override
+        public void onChange(boolean selfChange) {
+            onChange(selfChange, null);
+        }
+
+        @Override
+        public void onChange(boolean selfChange, Uri uri) {
+            onBookmarksChanged(uri);
+        }
+    };
+
+    private BookmarkFolderTree(Context context, String accountType, String accountName) {
+        mResolver = context.getContentResolver();
+        mUri = BookmarksLoader.addAccount(Bookmarks.CONTENT_URI, accountType, accountName);
+    }
+
+    /**
+     * Adds a listener, loading the tree if it is the first one.
+     */
+    public void addListener(OnFolderTreeChangedListener listener) {
+        mListeners.add(listener);
+        if (mListeners.size() == 1) {
+            mResolver.registerContentObserver(Bookmarks.CONTENT_URI, true, mObserver);
+            reload();
+        }
+    }
+
+    /**
+     * Removes a listener, the tree is dropped when there are none left.
+     */
+    public void removeListener(OnFolderTreeChangedListener listener) {
+        if (mListeners.remove(listener) && mListeners.isEmpty()) {
+            mResolver.unregisterContentObserver(mObserver);
+            mGeneration++;
+            mLoaded = false;
+            mFolders = new HashMap<Long, Folder>();
+        }
+    }
+
+    public boolean isLoaded() {
+        return mLoaded;
+    }
+
+    public Folder getFolder(long id) {
+        return mFolders.get(id);
+    }
+
+    /**
+     * @return The sub folders of the given folder, ordered by id
+     */
+    public List<Folder> getChildren(long id) {
+        Folder folder = mFolders.get(id);
+        if (folder == null) {
+            return Collections.emptyList();
+        }
+        return Collections.unmodifiableList(folder.mChildren);
+    }
+
+    /**
+     * Returns the folders from below root down to and including id, or null
+     * if id is not a descendant of root.
+     */
+    public List<Folder> getPath(long id, long root) {
+        ArrayList<Folder> path = new ArrayList<Folder>();
+        long current = id;
+        while (current != root) {
+            Folder folder = mFolders.get(current);
+            if (folder == null || path.size() > mFolders.size()) {
+                return null;
+            }
+            path.add(folder);
+            current = folder.mParentId;
+        }
+        Collections.reverse(path);
+        return path;
+    }
+
+    private void onBookmarksChanged(Uri uri) {
+        long id = -1;
+        if (uri != null && uri.getPathSegments().size() == 2) {
+            try {
+                id = ContentUris.parseId(uri);
+            } catch (NumberFormatException e) {
+                // Not a single row, e.g. bookmarks/folder
+            }
+        }
+        if (id < 0) {
+            reload();
+            return;
+        }
+        synchronized (mPendingIds) {
+            mPendingIds.add(id);
+            if (mRefreshScheduled) {
+                return;
+            }
+            mRefreshScheduled = true;
+        }
+        final int generation = mGeneration;
+        mLoadHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                final long[] ids;
+                synchronized (mPendingIds) {
+                    ids = new long[mPendingIds.size()];
+                    int i = 0;
+                    for (Long pending : mPendingIds) {
+                        ids[i++] = pending;
+                    }
+                    mPendingIds.clear();
+                    mRefreshScheduled = false;
+                }
+                final ArrayList<Folder> rows = queryRows(ids);
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (generation == mGeneration) {
+                            applyRows(ids, rows);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    private void reload() {
+        if (!mReloadScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        mLoadHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mReloadScheduled.set(false);
+                final int generation = mGeneration;
+                final HashMap<Long, Folder> folders = queryAll();
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (generation == mGeneration) {
+                            mFolders = folders;
+                            mLoaded = true;
+                            notifyListeners();
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    private HashMap<Long, Folder> queryAll() {
+        HashMap<Long, Folder> folders = new HashMap<Long, Folder>();
+        ArrayList<Folder> ordered = new ArrayList<Folder>();
+        Cursor c = mResolver.query(mUri, PROJECTION, Bookmarks.IS_FOLDER + "!=0",
+                null, Bookmarks._ID + " ASC");
+        if (c == null) {
+            return folders;
+        }
+        try {
+            while (c.moveToNext()) {
+                Folder folder = new Folder(c.getLong(0), c.getLong(1), c.getString(2));
+                folders.put(folder.mId, folder);
+                ordered.add(folder);
+            }
+        } finally {
+            c.close();
+        }
+        // Rows are ordered by id, so children end up ordered by id as well
+        for (Folder folder : ordered) {
+            Folder parent = folders.get(folder.mParentId);
+            if (parent != null) {
+                parent.mChildren.add(folder);
+            }
+        }
+        return folders;
+    }
+
+    /**
+     * @return The rows of ids that are folders, the others have been
+     *         deleted or are bookmarks
+     */
+    private ArrayList<Folder> queryRows(long[] ids) {
+        ArrayList<Folder> rows = new ArrayList<Folder>();
+        StringBuilder where = new StringBuilder(Bookmarks._ID).append(" IN (");
+        for (int i = 0; i < ids.length; i++) {
+            if (i > 0) {
+                where.append(',');
+            }
+            where.append(ids[i]);
+        }
+        where.append(')');
+        Cursor c = mResolver.query(mUri, PROJECTION, where.toString(), null, null);
+        if (c == null) {
+            return rows;
+        }
+        try {
+            while (c.moveToNext()) {
+                if (c.getInt(3) != 0) {
+                    rows.add(new Folder(c.getLong(0), c.getLong(1), c.getString(2)));
+                }
+            }
+        } finally {
+            c.close();
+        }
+        return rows;
+    }
+
+    private void applyRows(long[] ids, ArrayList<Folder> rows) {
+        boolean changed = false;
+        HashSet<Long> found = new HashSet<Long>();
+        // Folders are added and unlinked from their old parents before any
+        // are linked, as a row can be moved into a folder that comes later
+        // in the same batch.
+        ArrayList<Folder> toLink = new ArrayList<Folder>();
+        for (Folder row : rows) {
+            found.add(row.mId);
+            Folder folder = mFolders.get(row.mId);
+            if (folder == null) {
+                folder = row;
+                mFolders.put(folder.mId, folder);
+                toLink.add(folder);
+                changed = true;
+            } else {
+                if (folder.mParentId != row.mParentId) {
+                    unlink(folder);
+                    folder.mParentId = row.mParentId;
+                    toLink.add(folder);
+                    changed = true;
+                }
+                if (!TextUtils.equals(folder.mTitle, row.mTitle)) {
+                    folder.mTitle = row.mTitle;
+                    changed = true;
+                }
+            }
+        }
+        for (Folder folder : toLink) {
+            link(folder);
+        }
+        for (long id : ids) {
+            if (!found.contains(id)) {
+                Folder folder = mFolders.get(id);
+                if (folder != null) {
+                    unlink(folder);
+                    removeSubtree(folder);
+                    changed = true;
+                }
+            }
+        }
+        if (changed) {
+            notifyListeners();
+        }
+    }
+
+    private void link(Folder folder) {
+        Folder parent = mFolders.get(folder.mParentId);
+        if (parent == null) {
+            return;
+        }
+        // Keep children ordered by id
+        ArrayList<Folder> children = parent.mChildren;
+        int index = children.size();
+        while (index > 0 && children.get(index - 1).mId > folder.mId) {
+            index--;
+        }
+        children.add(index, folder);
+    }
+
+    private void unlink(Folder folder) {
+        Folder parent = mFolders.get(folder.mParentId);
+        if (parent != null) {
+            parent.mChildren.remove(folder);
+        }
+    }
+
+    private void removeSubtree(Folder folder) {
+        mFolders.remove(folder.mId);
+        for (Folder child : folder.mChildren) {
+            removeSubtree(child);
+        }
+    }
+
+    private void notifyListeners() {
+        // Copy, listeners may remove themselves
+        for (OnFolderTreeChangedListener l
+                : new ArrayList<OnFolderTreeChangedListener>(mListeners)) {
+            l.onFolderTreeChanged(this);
+        }
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.browser;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.database.Cursor;
+import android.graphics.Bitmap;
+import android.provider.BrowserContract.Bookmarks;
+import android.util.LruCache;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Looks up the images of bookmarks by id. Bookmark lists only query the
+ * scalar columns, see {@link BookmarksLoader#PROJECTION}, and fetch the
+ * images through here when they are needed.
+ *
+ * An instance caches the encoded thumbnails of the rows it was asked for.
+ * A miss fetches the thumbnails of a whole batch of ids with one query, the
+ * caller passes the ids around the one it needs, so that scrolling through
+ * a grid costs a query per batch of rows rather than per row.
+ */
+public class BookmarkImages {
+
+    public static final int COLUMN_INDEX_ID = 0;
+    public static final int COLUMN_INDEX_FAVICON = 1;
+    public static final int COLUMN_INDEX_THUMBNAIL = 2;
+    public static final int COLUMN_INDEX_TOUCH_ICON = 3;
+
+    public static final String[] PROJECTION = new String[] {
+        Bookmarks._ID, // 0
+        Bookmarks.FAVICON, // 1
+        Bookmarks.THUMBNAIL, // 2
+        Bookmarks.TOUCH_ICON, // 3
+    };
+
+    private static final String[] THUMBNAIL_PROJECTION = new String[] {
+        Bookmarks._ID, // 0
+        Bookmarks.THUMBNAIL, // 1
+    };
+
+    // Cache size in bytes of encoded thumbnails
+    private static final int CACHE_SIZE = 1024 * 1024;
+    // Cached for rows without a thumbnail
+    private static final byte[] NO_THUMBNAIL = new byte[0];
+
+    /**
+     * Queries all the images of a single bookmark.
+     * @return A cursor with {@link #PROJECTION} positioned on the row, or
+     *         null if the bookmark does not exist.
+     */
+    public static Cursor query(ContentResolver cr, long id) {
+        Cursor c = cr.query(ContentUris.withAppendedId(Bookmarks.CONTENT_URI, id),
+                PROJECTION, null, null, null);
+        if (c != null && !c.moveToFirst()) {
+            c.close();
+            return null;
+        }
+        return c;
+    }
+
+    /**
+     * Decodes one image of a single bookmark, see {@link #query}.
+     */
+    public static Bitmap getBitmap(ContentResolver cr, long id, int columnIndex) {
+        Cursor c = query(cr, id);
+        if (c == null) {
+            return null;
+        }
+        try {
+            return BrowserBookmarksPage.getBitmap(c, columnIndex);
+        } finally {
+            c.close();
+        }
+    }
+
+    private final ContentResolver mResolver;
+    private final LruCache<Long, byte[]> mThumbnails = new LruCache<Long, byte[]>(CACHE_SIZE) {
+        @Override
+        protected int sizeOf(Long key, byte[] value) {
+            // Count empty entries too, so the number of entries is bounded
+            return value.length + 16;
+        }
+    };
+
+    // Held while fetching, so that concurrent misses share one query
+    private final Object mFetchLock = new Object();
+    // Incremented by clear(), results of fetches started before are dropped.
+    // Guarded by mThumbnails, which is only held briefly.
+    private int mGeneration;
+
+    public BookmarkImages(ContentResolver cr) {
+        mResolver = cr;
+    }
+
+    /**
+     * Returns the encoded thumbnail of a bookmark, or null if it has none.
+     * May query the provider, so must not be called on the UI thread.
+     * @param batch Ids that are likely to be needed next, fetched along with
+     *        id if they are not cached yet.
+     */
+    public byte[] getThumbnail(long id, long[] batch) {
+        byte[] data = mThumbnails.get(id);
+        if (data == null) {
+            synchronized (mFetchLock) {
+                // Another thread may have fetched it while we waited
+                data = mThumbnails.get(id);
+                if (data == null) {
+                    data = fetchThumbnails(id, batch);
+                }
+            }
+        }
+        return data == null || data == NO_THUMBNAIL ? null : data;
+    }
+
+    /**
+     * Drops the cached thumbnails, for example after the bookmarks changed.
+     * Does not wait for a fetch in progress, its results are not cached.
+     */
+    public void clear() {
+        synchronized (mThumbnails) {
+            mGeneration++;
+            mThumbnails.evictAll();
+        }
+    }
+
+    /**
+     * @return The thumbnail of id, {@link #NO_THUMBNAIL} if it has none or
+     *         null if the query failed
+     */
+    private byte[] fetchThumbnails(long id, long[] batch) {
+        int generation;
+        synchronized (mThumbnails) {
+            generation = mGeneration;
+        }
+        ArrayList<Long> ids = new ArrayList<Long>();
+        ids.add(id);
+        if (batch != null) {
+            for (long other : batch) {
+                if (other != id && mThumbnails.get(other) == null) {
+                    ids.add(other);
+                }
+            }
+        }
+        StringBuilder where = new StringBuilder(Bookmarks._ID).append(" IN (");
+        for (int i = 0; i < ids.size(); i++) {
+            if (i > 0) {
+                where.append(',');
+            }
+            where.append(ids.get(i));
+        }
+        where.append(')');
+        Cursor c = mResolver.query(Bookmarks.CONTENT_URI, THUMBNAIL_PROJECTION,
+                where.toString(), null, null);
+        if (c == null) {
+            return null;
+        }
+        HashMap<Long, byte[]> fetched = new HashMap<Long, byte[]>();
+        try {
+            while (c.moveToNext()) {
+                byte[] data = c.getBlob(1);
+                fetched.put(c.getLong(0), data != null ? data : NO_THUMBNAIL);
+            }
+        } finally {
+            c.close();
+        }
+        // Rows that are gone don't have a thumbnail either
+        for (Long missing : ids) {
+            if (!fetched.containsKey(missing)) {
+                fetched.put(missing, NO_THUMBNAIL);
+            }
+        }
+        synchronized (mThumbnails) {
+            if (generation == mGeneration) {
+                for (Map.Entry<Long, byte[]> entry : fetched.entrySet()) {
+                    mThumbnails.put(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+        return fetched.get(id);
+    }
+}
@@ -0,0 +1,321 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.browser;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.OperationApplicationException;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteException;
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.provider.BrowserContract;
+import android.provider.BrowserContract.Combined;
+import android.provider.BrowserContract.Images;
+import android.util.Log;
+import android.util.LruCache;
+import android.webkit.WebView;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+
+/**
+ * Writes the screenshots of visited and bookmarked pages to the images
+ * table.
+ *
+ * Captures are rendered into a small pool of thumbnail sized bitmaps and
+ * written in batches from the background thread: the history and bookmark
+ * rows matching all the captured urls are found with a single query,
+ * each capture is compressed once and the rows are updated in one
+ * transaction. A capture whose perceptual hash is close to the last one
+ * written for its url is dropped, and each url is captured at most once per
+ * {@link #MIN_CAPTURE_INTERVAL}.
+ */
+public class BookmarkThumbnailUpdater {
+
+    private static final String LOGTAG = "BookmarkThumbnailUpdater";
+
+    // Captures arriving within this delay are written together
+    private static final long BATCH_DELAY = 1000;
+    // Minimum time between two captures of the same url
+    private static final long MIN_CAPTURE_INTERVAL = 60 * 1000;
+    // Number of thumbnail bitmaps captures can be rendered into
+    private static final int POOL_SIZE = 4;
+    // Number of urls whose last capture is remembered
+    private static final int HISTORY_SIZE = 64;
+    // Hashes that differ in fewer bits are considered the same picture
+    private static final int MAX_HASH_DISTANCE = 4;
+    private static final int JPEG_QUALITY = 85;
+
+    // The hash is computed from a HASH_GRID_WIDTH x HASH_GRID_HEIGHT grid of
+    // average luminances, one bit per horizontally adjacent pair
+    private static final int HASH_GRID_WIDTH = 9;
+    private static final int HASH_GRID_HEIGHT = 8;
+
+    private static class Capture {
+        final String mUrl;
+        final String mOriginalUrl;
+        final Bitmap mBitmap;
+
+        Capture(String url, String originalUrl, Bitmap bitmap) {
+            mUrl = url;
+            mOriginalUrl = originalUrl != null ? originalUrl : url;
+            mBitmap = bitmap;
+        }
+    }
+
+    // Written on the UI thread (time) and the background thread (hash)
+    private static class Written {
+        volatile long mTime;
+        volatile long mHash;
+        volatile boolean mHasHash;
+    }
+
+    private final Context mContext;
+    private final ContentResolver mResolver;
+    private final Handler mHandler;
+
+    // Guarded by mLock
+    private final Object mLock = new Object();
+    private final ArrayList<Bitmap> mPool = new ArrayList<Bitmap>(POOL_SIZE);
+    private int mAllocated;
+    private final HashMap<String, Capture> mPending = new HashMap<String, Capture>();
+    private boolean mFlushScheduled;
+
+    // Last capture per url, LruCache is thread safe
+    private final LruCache<String, Written> mWritten =
+            new LruCache<String, Written>(HISTORY_SIZE);
+
+    // Only used on the background thread
+    private final ByteArrayOutputStream mEncodeBuffer = new ByteArrayOutputStream();
+    private int[] mPixels;
+
+    private final Runnable mFlush = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    public BookmarkThumbnailUpdater(Context context) {
+        mContext = context.getApplicationContext();
+        mResolver = mContext.getContentResolver();
+        mHandler = new Handler(BackgroundHandler.getLooper());
+    }
+
+    /**
+     * Captures the given view as the thumbnail of url, unless it was
+     * captured recently. Must be called on the UI thread.
+     */
+    public void capture(WebView view, String url, String originalUrl) {
+        Written written = mWritten.get(url);
+        long now = SystemClock.uptimeMillis();
+        if (written != null && now - written.mTime < MIN_CAPTURE_INTERVAL) {
+            return;
+        }
+        Bitmap bitmap;
+        synchronized (mLock) {
+            // A capture of the same url that is still waiting is replaced,
+            // its bitmap is not being read as long as it is pending.
+            Capture pending = mPending.remove(url);
+            bitmap = pending != null ? pending.mBitmap : obtainBitmap();
+        }
+        if (bitmap == null) {
+            // All the bitmaps are waiting to be written, skip this one
+            return;
+        }
+        if (!Controller.drawScreenshot(view, bitmap)) {
+            synchronized (mLock) {
+                mPool.add(bitmap);
+            }
+            return;
+        }
+        synchronized (mLock) {
+            mPending.put(url, new Capture(url, originalUrl, bitmap));
+            if (!mFlushScheduled) {
+                mFlushScheduled = true;
+                mHandler.postDelayed(mFlush, BATCH_DELAY);
+            }
+        }
+        if (written == null) {
+            written = new Written();
+            mWritten.put(url, written);
+        }
+        written.mTime = now;
+    }
+
+    // Called with mLock held
+    private Bitmap obtainBitmap() {
+        int size = mPool.size();
+        if (size > 0) {
+            return mPool.remove(size - 1);
+        }
+        if (mAllocated == POOL_SIZE) {
+            return null;
+        }
+        mAllocated++;
+        return Bitmap.createBitmap(Controller.getDesiredThumbnailWidth(mContext),
+                Controller.getDesiredThumbnailHeight(mContext), Bitmap.Config.RGB_565);
+    }
+
+    private void flush() {
+        ArrayList<Capture> captures;
+        synchronized (mLock) {
+            captures = new ArrayList<Capture>(mPending.values());
+            mPending.clear();
+            mFlushScheduled = false;
+        }
+        if (captures.isEmpty()) {
+            return;
+        }
+        try {
+            HashSet<String> known = queryKnownUrls(captures);
+            ArrayList<ContentProviderOperation> ops =
+                    new ArrayList<ContentProviderOperation>();
+            for (Capture capture : captures) {
+                boolean hasUrl = known.contains(capture.mUrl);
+                boolean hasOriginalUrl = !capture.mOriginalUrl.equals(capture.mUrl)
+                        && known.contains(capture.mOriginalUrl);
+                if (!hasUrl && !hasOriginalUrl) {
+                    continue;
+                }
+                long hash = computeHash(capture.mBitmap);
+                Written written = mWritten.get(capture.mUrl);
+                if (written != null && written.mHasHash
+                        && Long.bitCount(written.mHash ^ hash) <= MAX_HASH_DISTANCE) {
+                    // Nothing visible changed since the last capture
+                    continue;
+                }
+                mEncodeBuffer.reset();
+                capture.mBitmap.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY,
+                        mEncodeBuffer);
+                byte[] data = mEncodeBuffer.toByteArray();
+                if (hasUrl) {
+                    ops.add(newUpdate(capture.mUrl, data));
+                }
+                if (hasOriginalUrl) {
+                    ops.add(newUpdate(capture.mOriginalUrl, data));
+                }
+                if (written != null) {
+                    written.mHash = hash;
+                    written.mHasHash = true;
+                }
+            }
+            if (!ops.isEmpty()) {
+                mResolver.applyBatch(BrowserContract.AUTHORITY, ops);
+            }
+        } catch (IllegalStateException e) {
+            // Ignore
+        } catch (SQLiteException e) {
+            // The bookmark may have been removed while it was being updated
+            Log.w(LOGTAG, "Failed to update thumbnails", e);
+        } catch (RemoteException e) {
+            Log.w(LOGTAG, "Failed to update thumbnails", e);
+        } catch (OperationApplicationException e) {
+            Log.w(LOGTAG, "Failed to update thumbnails", e);
+        } finally {
+            synchronized (mLock) {
+                for (Capture capture : captures) {
+                    mPool.add(capture.mBitmap);
+                }
+            }
+        }
+    }
+
+    private static ContentProviderOperation newUpdate(String url, byte[] thumbnail) {
+        return ContentProviderOperation.newUpdate(Images.CONTENT_URI)
+                .withValue(Images.URL, url)
+                .withValue(Images.THUMBNAIL, thumbnail)
+                .build();
+    }
+
+    /**
+     * @return Those of the urls and original urls of the captures that are
+     *         in the history or bookmarks, see
+     *         {@link Bookmarks#queryCombinedForUrl}
+     */
+    private HashSet<String> queryKnownUrls(ArrayList<Capture> captures) {
+        HashSet<String> urls = new HashSet<String>();
+        for (Capture capture : captures) {
+            urls.add(capture.mUrl);
+            urls.add(capture.mOriginalUrl);
+        }
+        StringBuilder where = new StringBuilder(Combined.URL).append(" IN (");
+        for (int i = 0; i < urls.size(); i++) {
+            where.append(i == 0 ? "?" : ",?");
+        }
+        where.append(')');
+        String[] args = urls.toArray(new String[urls.size()]);
+        HashSet<String> known = new HashSet<String>();
+        Cursor c = mResolver.query(Combined.CONTENT_URI,
+                new String[] { Combined.URL }, where.toString(), args, null);
+        if (c == null) {
+            return known;
+        }
+        try {
+            while (c.moveToNext()) {
+                known.add(c.getString(0));
+            }
+        } finally {
+            c.close();
+        }
+        return known;
+    }
+
+    /**
+     * Computes a difference hash of the bitmap: the average luminance of
+     * each cell of a small grid is compared with its right neighbour.
+     * Pictures that look alike have hashes that differ in few bits.
+     */
+    private long computeHash(Bitmap bitmap) {
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        if (mPixels == null || mPixels.length < width * height) {
+            mPixels = new int[width * height];
+        }
+        bitmap.getPixels(mPixels, 0, width, 0, 0, width, height);
+        long[] sums = new long[HASH_GRID_WIDTH * HASH_GRID_HEIGHT];
+        int[] counts = new int[HASH_GRID_WIDTH * HASH_GRID_HEIGHT];
+        for (int y = 0; y < height; y++) {
+            int row = y * HASH_GRID_HEIGHT / height * HASH_GRID_WIDTH;
+            int offset = y * width;
+            for (int x = 0; x < width; x++) {
+                int cell = row + x * HASH_GRID_WIDTH / width;
+                int color = mPixels[offset + x];
+                // Integer approximation of the luma weights
+                sums[cell] += ((color >> 16) & 0xff) * 77 + ((color >> 8) & 0xff) * 150
+                        + (color & 0xff) * 29;
+                counts[cell]++;
+            }
+        }
+        long hash = 0;
+        for (int y = 0; y < HASH_GRID_HEIGHT; y++) {
+            for (int x = 0; x < HASH_GRID_WIDTH - 1; x++) {
+                int cell = y * HASH_GRID_WIDTH + x;
+                long left = counts[cell] > 0 ? sums[cell] / counts[cell] : 0;
+                long right = counts[cell + 1] > 0 ? sums[cell + 1] / counts[cell + 1] : 0;
+                hash = (hash << 1) | (left > right ? 1 : 0);
+            }
+        }
+        return hash;
+    }
+}
@@ -28,24 +28,20 @@ public class BookmarksLoader extends CursorLoader {
     public static final int COLUMN_INDEX_ID = 0;
     public static final int COLUMN_INDEX_URL = 1;
     public static final int COLUMN_INDEX_TITLE = 2;
-    public static final int COLUMN_INDEX_FAVICON = 3;
-    public static final int COLUMN_INDEX_THUMBNAIL = 4;
-    public static final int COLUMN_INDEX_TOUCH_ICON = 5;
-    public static final int COLUMN_INDEX_IS_FOLDER = 6;
-    public static final int COLUMN_INDEX_PARENT = 8;
-    public static final int COLUMN_INDEX_TYPE = 9;
+    public static final int COLUMN_INDEX_IS_FOLDER = 3;
+    public static final int COLUMN_INDEX_PARENT = 5;
+    public static final int COLUMN_INDEX_TYPE = 6;
 
+    // Only scalar columns, so that the cursor stays small however large the
+    // folder is. Images are looked up by id through BookmarkImages.
     public static final String[] PROJECTION = new String[] {
         Bookmarks._ID, // 0
         Bookmarks.URL, // 1
         Bookmarks.TITLE, // 2
-        Bookmarks.FAVICON, // 3
-        Bookmarks.THUMBNAIL, // 4
-        Bookmarks.TOUCH_ICON, // 5
-        Bookmarks.IS_FOLDER, // 6
-        Bookmarks.POSITION, // 7
-        Bookmarks.PARENT, // 8
-        Bookmarks.TYPE, // 9
+        Bookmarks.IS_FOLDER, // 3
+        Bookmarks.POSITION, // 4
+        Bookmarks.PARENT, // 5
+        Bookmarks.TYPE, // 6
     };
 
     String mAccountType;
@@ -49,12 +49,16 @@ public class BreadCrumbView extends LinearLayout implements OnClickListener {
     private ImageButton mBackButton;
     private Controller mController;
     private List<Crumb> mCrumbs;
+    private List<View> mSeparators;
     private boolean mUseBackButton;
     private Drawable mSeparatorDrawable;
     private float mDividerPadding;
     private int mMaxVisible = -1;
     private Context mContext;
     private int mCrumbPadding;
+    // The crumbs from mFirstShown up to mEndShown have views in the layout
+    private int mFirstShown;
+    private int mEndShown;
 
     /**
      * @param context
@@ -88,6 +92,7 @@ public class BreadCrumbView extends LinearLayout implements OnClickListener {
         setFocusable(true);
         mUseBackButton = false;
         mCrumbs = new ArrayList<Crumb>();
+        mSeparators = new ArrayList<View>();
         TypedArray a = mContext.obtainStyledAttributes(com.android.internal.R.styleable.Theme);
         mSeparatorDrawable = a.getDrawable(com.android.internal.R.styleable.Theme_dividerVertical);
         a.recycle();
@@ -131,6 +136,13 @@ public class BreadCrumbView extends LinearLayout implements OnClickListener {
         return mCrumbs.size();
     }
 
+    /**
+     * @return The data of the crumb at the given level, 0 being the bottom
+     */
+    public Object getData(int level) {
+        return mCrumbs.get(level).data;
+    }
+
     public void clear() {
         while (mCrumbs.size() > 1) {
             pop(false);
@@ -155,7 +167,7 @@ public class BreadCrumbView extends LinearLayout implements OnClickListener {
     public View pushView(String name, boolean canGoBack, Object data) {
         Crumb crumb = new Crumb(name, canGoBack, data);
         pushCrumb(crumb);
-        return crumb.crumbView;
+        return crumb.getView();
     }
 
     public void pushView(View view, Object data) {
@@ -163,10 +175,31 @@ public class BreadCrumbView extends LinearLayout implements OnClickListener {
         pushCrumb(crumb);
     }
 
+    /**
+     * Pushes several crumbs at once, for example the path to a folder. Views
+     * are only created for the crumbs that are visible.
+     */
+    public void pushPath(List<String> names, List<Object> data) {
+        for (int i = 0; i < names.size(); i++) {
+            mCrumbs.add(new Crumb(names.get(i), true, data.get(i)));
+        }
+        updateVisible();
+    }
+
     public void popView() {
         pop(true);
     }
 
+    /**
+     * Pops crumbs until count are left, notifying the controller once.
+     */
+    public void popTo(int count) {
+        while (mCrumbs.size() > count) {
+            pop(false);
+        }
+        notifyController();
+    }
+
     private void addBackButton() {
         mBackButton = new ImageButton(mContext);
         mBackButton.setImageResource(R.drawable.ic_back_hierarchy_holo_dark);
@@ -185,19 +218,17 @@ public class BreadCrumbView extends LinearLayout implements OnClickListener {
     }
 
     private void pushCrumb(Crumb crumb) {
-        if (mCrumbs.size() > 0) {
-            addSeparator();
-        }
         mCrumbs.add(crumb);
-        addView(crumb.crumbView);
         updateVisible();
-        crumb.crumbView.setOnClickListener(this);
     }
 
-    private void addSeparator() {
-        View sep = makeDividerView();
-        sep.setLayoutParams(makeDividerLayoutParams());
-        addView(sep);
+    private View getSeparator(int index) {
+        while (mSeparators.size() <= index) {
+            View sep = makeDividerView();
+            sep.setLayoutParams(makeDividerLayoutParams());
+            mSeparators.add(sep);
+        }
+        return mSeparators.get(index);
     }
 
     private ImageView makeDividerView() {
@@ -218,20 +249,7 @@ public class BreadCrumbView extends LinearLayout implements OnClickListener {
     private void pop(boolean notify) {
         int n = mCrumbs.size();
         if (n > 0) {
-            removeLastView();
-            if (!mUseBackButton || (n > 1)) {
-                // remove separator
-                removeLastView();
-            }
             mCrumbs.remove(n - 1);
-            if (mUseBackButton) {
-                Crumb top = getTopCrumb();
-                if (top != null && top.canGoBack) {
-                    mBackButton.setVisibility(View.VISIBLE);
-                } else {
-                    mBackButton.setVisibility(View.GONE);
-                }
-            }
             updateVisible();
             if (notify) {
                 notifyController();
@@ -239,39 +257,33 @@ public class BreadCrumbView extends LinearLayout implements OnClickListener {
         }
     }
 
+    /**
+     * Updates the children to show the visible crumbs. Crumbs hidden by
+     * {@link #setMaxVisible(int)} have no views, so deep paths stay cheap.
+     */
     private void updateVisible() {
-        // start at index 1 (0 == back button)
-        int childIndex = 1;
+        int first = 0;
         if (mMaxVisible >= 0) {
-            int invisibleCrumbs = size() - mMaxVisible;
-            if (invisibleCrumbs > 0) {
-                int crumbIndex = 0;
-                while (crumbIndex < invisibleCrumbs) {
-                    // Set the crumb to GONE.
-                    getChildAt(childIndex).setVisibility(View.GONE);
-                    childIndex++;
-                    // Each crumb is followed by a separator (except the last
-                    // one).  Also make it GONE
-                    if (getChildAt(childIndex) != null) {
-                        getChildAt(childIndex).setVisibility(View.GONE);
-                    }
-                    childIndex++;
-                    // Move to the next crumb.
-                    crumbIndex++;
-                }
-            }
-            // Make sure the last two are visible.
-            int childCount = getChildCount();
-            while (childIndex < childCount) {
-                getChildAt(childIndex).setVisibility(View.VISIBLE);
-                childIndex++;
-            }
-        } else {
-            int count = getChildCount();
-            for (int i = childIndex; i < count ; i++) {
-                getChildAt(i).setVisibility(View.VISIBLE);
+            first = Math.max(0, size() - mMaxVisible);
+        }
+        int end = size();
+        // Crumbs are only pushed and popped at the top, so while the first
+        // visible crumb is the same only the views above the lower of the
+        // old and new tops change.
+        int keep = first == mFirstShown ? Math.min(mEndShown, end) : first;
+        // The back button, at index 0, is always kept
+        int keepChildren = 1 + Math.max(0, 2 * (keep - first) - 1);
+        if (getChildCount() > keepChildren) {
+            removeViews(keepChildren, getChildCount() - keepChildren);
+        }
+        for (int i = keep; i < end; i++) {
+            if (i > first) {
+                addView(getSeparator(i - first - 1));
             }
+            addView(mCrumbs.get(i).getView());
         }
+        mFirstShown = first;
+        mEndShown = end;
         if (mUseBackButton) {
             boolean canGoBack = getTopCrumb() != null ? getTopCrumb().canGoBack : false;
             mBackButton.setVisibility(canGoBack ? View.VISIBLE : View.GONE);
@@ -280,13 +292,6 @@ public class BreadCrumbView extends LinearLayout implements OnClickListener {
         }
     }
 
-    private void removeLastView() {
-        int ix = getChildCount();
-        if (ix > 0) {
-            removeViewAt(ix-1);
-        }
-    }
-
     Crumb getTopCrumb() {
         Crumb crumb = null;
         if (mCrumbs.size() > 0) {
@@ -347,13 +352,16 @@ public class BreadCrumbView extends LinearLayout implements OnClickListener {
         public View crumbView;
         public boolean canGoBack;
         public Object data;
+        private String mTitle;
 
         public Crumb(String title, boolean backEnabled, Object tag) {
-            init(makeCrumbView(title), backEnabled, tag);
+            mTitle = title;
+            init(null, backEnabled, tag);
         }
 
         public Crumb(View view, boolean backEnabled, Object tag) {
             init(view, backEnabled, tag);
+            view.setOnClickListener(BreadCrumbView.this);
         }
 
         private void init(View view, boolean back, Object tag) {
@@ -362,6 +370,17 @@ public class BreadCrumbView extends LinearLayout implements OnClickListener {
             data = tag;
         }
 
+        /**
+         * Returns the crumb's view, creating it the first time it is shown.
+         */
+        View getView() {
+            if (crumbView == null) {
+                crumbView = makeCrumbView(mTitle);
+                crumbView.setOnClickListener(BreadCrumbView.this);
+            }
+            return crumbView;
+        }
+
         private TextView makeCrumbView(String name) {
             TextView tv = new TextView(mContext);
             tv.setTextAppearance(mContext, android.R.style.TextAppearance_Medium);
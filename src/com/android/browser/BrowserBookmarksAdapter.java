@@ -31,11 +31,57 @@ import android.widget.TextView;
 import com.android.browser.util.ThreadedCursorAdapter;
 import com.android.browser.view.BookmarkContainer;
 
+import java.util.HashMap;
+
 public class BrowserBookmarksAdapter extends
         ThreadedCursorAdapter<BrowserBookmarksAdapterItem> {
 
+    // Number of thumbnails fetched together, around the row being loaded
+    private static final int THUMBNAIL_BATCH = 12;
+
     LayoutInflater mInflater;
     Context mContext;
+    BookmarkImages mImages;
+    // Ids of the bookmarks (not folders) of the current cursor, read by the
+    // loader threads to build thumbnail batches
+    volatile BookmarkIds mBookmarkIds;
+
+    private static class BookmarkIds {
+        final long[] mIds;
+        final HashMap<Long, Integer> mIndex;
+
+        BookmarkIds(Cursor c) {
+            long[] ids = new long[c.getCount()];
+            int count = 0;
+            mIndex = new HashMap<Long, Integer>();
+            if (c.moveToFirst()) {
+                do {
+                    if (c.getInt(BookmarksLoader.COLUMN_INDEX_IS_FOLDER) == 0) {
+                        long id = c.getLong(BookmarksLoader.COLUMN_INDEX_ID);
+                        mIndex.put(id, count);
+                        ids[count++] = id;
+                    }
+                } while (c.moveToNext());
+            }
+            mIds = new long[count];
+            System.arraycopy(ids, 0, mIds, 0, count);
+        }
+
+        /**
+         * @return The ids of the bookmarks around id
+         */
+        long[] getBatch(long id) {
+            Integer index = mIndex.get(id);
+            if (index == null) {
+                return null;
+            }
+            int start = Math.max(0, index - THUMBNAIL_BATCH / 2);
+            int end = Math.min(mIds.length, start + THUMBNAIL_BATCH);
+            long[] batch = new long[end - start];
+            System.arraycopy(mIds, start, batch, 0, batch.length);
+            return batch;
+        }
+    }
 
     /**
      *  Create a new BrowserBookmarksAdapter.
@@ -46,6 +92,16 @@ public class BrowserBookmarksAdapter extends
         super(context, null);
         mInflater = LayoutInflater.from(context);
         mContext = context;
+        mImages = new BookmarkImages(context.getContentResolver());
+    }
+
+    @Override
+    public void changeCursor(Cursor cursor) {
+        // The cursor is not shared with the loader threads yet
+        mBookmarkIds = cursor != null ? new BookmarkIds(cursor) : null;
+        // Thumbnails may have changed along with the bookmarks
+        mImages.clear();
+        super.changeCursor(cursor);
     }
 
     @Override
@@ -108,15 +164,20 @@ public class BrowserBookmarksAdapter extends
         if (item == null) {
             item = new BrowserBookmarksAdapterItem();
         }
-        Bitmap thumbnail = item.thumbnail != null ? item.thumbnail.getBitmap() : null;
-        thumbnail = BrowserBookmarksPage.getBitmap(c,
-                BookmarksLoader.COLUMN_INDEX_THUMBNAIL, thumbnail);
+        item.is_folder = c.getInt(BookmarksLoader.COLUMN_INDEX_IS_FOLDER) != 0;
+        Bitmap thumbnail = null;
+        if (!item.is_folder) {
+            long id = c.getLong(BookmarksLoader.COLUMN_INDEX_ID);
+            BookmarkIds ids = mBookmarkIds;
+            byte[] data = mImages.getThumbnail(id, ids != null ? ids.getBatch(id) : null);
+            thumbnail = item.thumbnail != null ? item.thumbnail.getBitmap() : null;
+            thumbnail = BrowserBookmarksPage.getBitmap(data, thumbnail);
+        }
         item.has_thumbnail = thumbnail != null;
         if (thumbnail != null
                 && (item.thumbnail == null || item.thumbnail.getBitmap() != thumbnail)) {
             item.thumbnail = new BitmapDrawable(mContext.getResources(), thumbnail);
         }
-        item.is_folder = c.getInt(BookmarksLoader.COLUMN_INDEX_IS_FOLDER) != 0;
         item.title = getTitle(c);
         item.url = c.getString(BookmarksLoader.COLUMN_INDEX_URL);
         return item;
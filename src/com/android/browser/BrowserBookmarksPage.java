@@ -21,6 +21,7 @@ import android.app.Fragment;
 import android.app.LoaderManager;
 import android.content.ClipData;
 import android.content.ClipboardManager;
+import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.Context;
 import android.content.CursorLoader;
@@ -57,6 +58,7 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.util.HashMap;
+import java.util.Map;
 
 interface BookmarksPageCallbacks {
     // Return true if handled
@@ -96,8 +98,22 @@ public class BrowserBookmarksPage extends Fragment implements View.OnCreateConte
     View mEmptyView;
     View mHeader;
     HashMap<Integer, BrowserBookmarksAdapter> mBookmarkAdapters = new HashMap<Integer, BrowserBookmarksAdapter>();
+    // Folder trees of the accounts, by group position
+    HashMap<Integer, BookmarkFolderTree> mFolderTrees = new HashMap<Integer, BookmarkFolderTree>();
     JSONObject mState;
 
+    private BookmarkFolderTree.OnFolderTreeChangedListener mFolderTreeListener =
+            new BookmarkFolderTree.OnFolderTreeChangedListener() {
+        @Override
+        public void onFolderTreeChanged(BookmarkFolderTree tree) {
+            for (Map.Entry<Integer, BookmarkFolderTree> entry : mFolderTrees.entrySet()) {
+                if (entry.getValue() == tree) {
+                    syncBreadCrumbs(entry.getKey(), tree);
+                }
+            }
+        }
+    };
+
     @Override
     public Loader<Cursor> onCreateLoader(int id, Bundle args) {
         if (id == LOADER_ACCOUNTS) {
@@ -133,6 +149,10 @@ public class BrowserBookmarksPage extends Fragment implements View.OnCreateConte
                             : BookmarkExpandableView.LOCAL_ACCOUNT_NAME);
                 } catch (JSONException e) {} // no state for accountName
                 mGrid.addAccount(accountName, adapter, expand);
+                BookmarkFolderTree tree = BookmarkFolderTree.getInstance(
+                        getActivity(), accountType, accountName);
+                tree.addListener(mFolderTreeListener);
+                mFolderTrees.put(id - LOADER_BOOKMARKS, tree);
                 lm.restartLoader(id, args, this);
                 id++;
             }
@@ -189,7 +209,12 @@ public class BrowserBookmarksPage extends Fragment implements View.OnCreateConte
             break;
         case R.id.shortcut_context_menu_id:
             Cursor c = adapter.getItem(childPosition);
-            activity.sendBroadcast(createShortcutIntent(getActivity(), c));
+            createShortcutIntent(activity, c, new ShortcutIntentListener() {
+                @Override
+                public void onShortcutIntentCreated(Intent intent) {
+                    activity.sendBroadcast(intent);
+                }
+            });
             break;
         case R.id.delete_context_menu_id:
             displayRemoveBookmarkDialog(adapter, childPosition);
@@ -199,11 +224,17 @@ public class BrowserBookmarksPage extends Fragment implements View.OnCreateConte
             break;
         case R.id.share_link_context_menu_id: {
             Cursor cursor = adapter.getItem(childPosition);
-            Controller.sharePage(activity,
-                    cursor.getString(BookmarksLoader.COLUMN_INDEX_TITLE),
-                    cursor.getString(BookmarksLoader.COLUMN_INDEX_URL),
-                    getBitmap(cursor, BookmarksLoader.COLUMN_INDEX_FAVICON),
-                    getBitmap(cursor, BookmarksLoader.COLUMN_INDEX_THUMBNAIL));
+            final String title = cursor.getString(BookmarksLoader.COLUMN_INDEX_TITLE);
+            final String url = cursor.getString(BookmarksLoader.COLUMN_INDEX_URL);
+            new LookupBookmarkImages(activity,
+                    cursor.getLong(BookmarksLoader.COLUMN_INDEX_ID),
+                    BookmarkImages.COLUMN_INDEX_FAVICON,
+                    BookmarkImages.COLUMN_INDEX_THUMBNAIL) {
+                @Override
+                void onImagesLoaded(Bitmap[] images) {
+                    Controller.sharePage(activity, title, url, images[0], images[1]);
+                }
+            }.execute();
             break;
         }
         case R.id.copy_url_context_menu_id:
@@ -241,7 +272,10 @@ public class BrowserBookmarksPage extends Fragment implements View.OnCreateConte
         };
     };
     static Bitmap getBitmap(Cursor cursor, int columnIndex, Bitmap inBitmap) {
-        byte[] data = cursor.getBlob(columnIndex);
+        return getBitmap(cursor.getBlob(columnIndex), inBitmap);
+    }
+
+    static Bitmap getBitmap(byte[] data, Bitmap inBitmap) {
         if (data == null) {
             return null;
         }
@@ -316,8 +350,9 @@ public class BrowserBookmarksPage extends Fragment implements View.OnCreateConte
         } else {
             String url = cursor.getString(BookmarksLoader.COLUMN_INDEX_URL);
             item.setUrl(url);
-            Bitmap bitmap = getBitmap(cursor, BookmarksLoader.COLUMN_INDEX_FAVICON);
-            item.setFavicon(bitmap);
+            item.setFavicon(null);
+            new LookupBookmarkFavicon(getActivity(), item)
+                    .execute(cursor.getLong(BookmarksLoader.COLUMN_INDEX_ID));
         }
     }
 
@@ -414,6 +449,10 @@ public class BrowserBookmarksPage extends Fragment implements View.OnCreateConte
             lm.destroyLoader(id);
         }
         mBookmarkAdapters.clear();
+        for (BookmarkFolderTree tree : mFolderTrees.values()) {
+            tree.removeListener(mFolderTreeListener);
+        }
+        mFolderTrees.clear();
     }
 
     private BrowserBookmarksAdapter getChildAdapter(int groupPosition) {
@@ -450,12 +489,29 @@ public class BrowserBookmarksPage extends Fragment implements View.OnCreateConte
         return true;
     }
 
-    /* package */ static Intent createShortcutIntent(Context context, Cursor cursor) {
-        String url = cursor.getString(BookmarksLoader.COLUMN_INDEX_URL);
-        String title = cursor.getString(BookmarksLoader.COLUMN_INDEX_TITLE);
-        Bitmap touchIcon = getBitmap(cursor, BookmarksLoader.COLUMN_INDEX_TOUCH_ICON);
-        Bitmap favicon = getBitmap(cursor, BookmarksLoader.COLUMN_INDEX_FAVICON);
-        return BookmarkUtils.createAddToHomeIntent(context, url, title, touchIcon, favicon);
+    /* package */ interface ShortcutIntentListener {
+        void onShortcutIntentCreated(Intent intent);
+    }
+
+    /**
+     * Creates the intent that adds a home screen shortcut to the bookmark at
+     * the cursor's position. The icons are loaded off the UI thread, the
+     * listener is called on the UI thread once they are.
+     */
+    /* package */ static void createShortcutIntent(final Context context, Cursor cursor,
+            final ShortcutIntentListener listener) {
+        final String url = cursor.getString(BookmarksLoader.COLUMN_INDEX_URL);
+        final String title = cursor.getString(BookmarksLoader.COLUMN_INDEX_TITLE);
+        new LookupBookmarkImages(context,
+                cursor.getLong(BookmarksLoader.COLUMN_INDEX_ID),
+                BookmarkImages.COLUMN_INDEX_TOUCH_ICON,
+                BookmarkImages.COLUMN_INDEX_FAVICON) {
+            @Override
+            void onImagesLoaded(Bitmap[] images) {
+                listener.onShortcutIntentCreated(BookmarkUtils.createAddToHomeIntent(
+                        context, url, title, images[0], images[1]));
+            }
+        }.execute();
     }
 
     private void loadUrl(BrowserBookmarksAdapter adapter, int position) {
@@ -507,26 +563,34 @@ public class BrowserBookmarksPage extends Fragment implements View.OnCreateConte
     }
 
     private void editBookmark(BrowserBookmarksAdapter adapter, int position) {
-        Intent intent = new Intent(getActivity(), AddBookmarkPage.class);
+        final Intent intent = new Intent(getActivity(), AddBookmarkPage.class);
         Cursor cursor = adapter.getItem(position);
-        Bundle item = new Bundle();
+        final Bundle item = new Bundle();
         item.putString(BrowserContract.Bookmarks.TITLE,
                 cursor.getString(BookmarksLoader.COLUMN_INDEX_TITLE));
         item.putString(BrowserContract.Bookmarks.URL,
                 cursor.getString(BookmarksLoader.COLUMN_INDEX_URL));
-        byte[] data = cursor.getBlob(BookmarksLoader.COLUMN_INDEX_FAVICON);
-        if (data != null) {
-            item.putParcelable(BrowserContract.Bookmarks.FAVICON,
-                    BitmapFactory.decodeByteArray(data, 0, data.length));
-        }
         item.putLong(BrowserContract.Bookmarks._ID,
                 cursor.getLong(BookmarksLoader.COLUMN_INDEX_ID));
         item.putLong(BrowserContract.Bookmarks.PARENT,
                 cursor.getLong(BookmarksLoader.COLUMN_INDEX_PARENT));
-        intent.putExtra(AddBookmarkPage.EXTRA_EDIT_BOOKMARK, item);
         intent.putExtra(AddBookmarkPage.EXTRA_IS_FOLDER,
                 cursor.getInt(BookmarksLoader.COLUMN_INDEX_IS_FOLDER) == 1);
-        startActivity(intent);
+        new LookupBookmarkImages(getActivity(),
+                cursor.getLong(BookmarksLoader.COLUMN_INDEX_ID),
+                BookmarkImages.COLUMN_INDEX_FAVICON) {
+            @Override
+            void onImagesLoaded(Bitmap[] images) {
+                if (getActivity() == null) {
+                    return;
+                }
+                if (images[0] != null) {
+                    item.putParcelable(BrowserContract.Bookmarks.FAVICON, images[0]);
+                }
+                intent.putExtra(AddBookmarkPage.EXTRA_EDIT_BOOKMARK, item);
+                startActivity(intent);
+            }
+        }.execute();
     }
 
     private void displayRemoveBookmarkDialog(BrowserBookmarksAdapter adapter,
@@ -584,7 +648,35 @@ public class BrowserBookmarksPage extends Fragment implements View.OnCreateConte
     }
 
     /**
-     * @param uri
+     * Pops the crumbs of folders that were deleted, or moved out of the
+     * folder below them, and shows the deepest folder that is left.
+     */
+    private void syncBreadCrumbs(int groupPosition, BookmarkFolderTree tree) {
+        BreadCrumbView crumbs = getBreadCrumbs(groupPosition);
+        if (crumbs == null || !tree.isLoaded()) {
+            return;
+        }
+        // Level 0 is the account's default folder, which is always there
+        int level = 1;
+        long parent = -1;
+        while (level < crumbs.size()) {
+            long id = ContentUris.parseId((Uri) crumbs.getData(level));
+            BookmarkFolderTree.Folder folder = tree.getFolder(id);
+            if (folder == null || (parent != -1 && folder.getParentId() != parent)) {
+                break;
+            }
+            parent = id;
+            level++;
+        }
+        if (level < crumbs.size()) {
+            crumbs.popTo(level);
+        }
+    }
+
+    /**
+     * Shows the contents of a folder. The folder tree only holds folders,
+     * and a folder's bookmarks and sub folders are ordered together by
+     * position, so the contents are still queried.
      */
     private void loadFolder(int groupPosition, Uri uri) {
         LoaderManager manager = getLoaderManager();
@@ -651,6 +743,69 @@ public class BrowserBookmarksPage extends Fragment implements View.OnCreateConte
         }
     }
 
+    private static class LookupBookmarkFavicon extends AsyncTask<Long, Void, Bitmap> {
+        Context mContext;
+        BookmarkItem mHeader;
+
+        public LookupBookmarkFavicon(Context context, BookmarkItem header) {
+            mContext = context.getApplicationContext();
+            mHeader = header;
+        }
+
+        @Override
+        protected Bitmap doInBackground(Long... params) {
+            if (params.length != 1) {
+                throw new IllegalArgumentException("Missing bookmark id!");
+            }
+            return BookmarkImages.getBitmap(mContext.getContentResolver(), params[0],
+                    BookmarkImages.COLUMN_INDEX_FAVICON);
+        }
+
+        @Override
+        protected void onPostExecute(Bitmap result) {
+            mHeader.setFavicon(result);
+        }
+    }
+
+    /**
+     * Decodes images of a bookmark off the UI thread, in the order of the
+     * given {@link BookmarkImages} columns. A missing image is null.
+     */
+    abstract static class LookupBookmarkImages extends AsyncTask<Void, Void, Bitmap[]> {
+        ContentResolver mResolver;
+        long mId;
+        int[] mColumns;
+
+        LookupBookmarkImages(Context context, long id, int... columns) {
+            mResolver = context.getContentResolver();
+            mId = id;
+            mColumns = columns;
+        }
+
+        @Override
+        protected Bitmap[] doInBackground(Void... params) {
+            Bitmap[] images = new Bitmap[mColumns.length];
+            Cursor c = BookmarkImages.query(mResolver, mId);
+            if (c != null) {
+                try {
+                    for (int i = 0; i < mColumns.length; i++) {
+                        images[i] = getBitmap(c, mColumns[i]);
+                    }
+                } finally {
+                    c.close();
+                }
+            }
+            return images;
+        }
+
+        @Override
+        protected void onPostExecute(Bitmap[] result) {
+            onImagesLoaded(result);
+        }
+
+        abstract void onImagesLoaded(Bitmap[] images);
+    }
+
     static class AccountsLoader extends CursorLoader {
 
         static String[] ACCOUNTS_PROJECTION = new String[] {
@@ -0,0 +1,577 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.browser;
+
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.OperationApplicationException;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.RemoteException;
+import android.provider.BrowserContract;
+import android.provider.BrowserContract.Bookmarks;
+import android.provider.BrowserContract.History;
+import android.provider.BrowserContract.Images;
+import android.provider.BrowserContract.Searches;
+
+import com.android.browser.provider.BrowserProvider2;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Exports and imports the browser's local profile (bookmarks and their
+ * folders, history, searches and images) as a single compressed stream.
+ *
+ * The stream starts with an uncompressed magic number and version, followed
+ * by deflated chunks of at most {@link #CHUNK_ROWS} rows. Each chunk is a
+ * section id, a row count and the rows, and a zero section id ends the
+ * stream. Numbers are written as zigzag varints and strings as length
+ * prefixed UTF-8, so rows are compact and strings have no length limit.
+ *
+ * Export reads straight from provider cursors and import applies each chunk
+ * in one provider transaction, so memory use does not depend on the number
+ * of rows. Only bookmark folders are held in memory, to write them parents
+ * first and to map their ids on import. Imported rows are added to the
+ * existing data, folders keep their structure under the local root.
+ */
+public class BrowserDataTransfer {
+
+    public static final int SECTION_FOLDERS = 1;
+    public static final int SECTION_BOOKMARKS = 2;
+    public static final int SECTION_HISTORY = 3;
+    public static final int SECTION_SEARCHES = 4;
+    public static final int SECTION_IMAGES = 5;
+    private static final int SECTION_END = 0;
+
+    static final int MAGIC = 0x42525844; // "BRXD"
+    static final int VERSION = 1;
+    static final int CHUNK_ROWS = 500;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Reports progress after each chunk has been written or imported.
+     */
+    public interface ProgressListener {
+        /**
+         * @param section One of the SECTION_ constants
+         * @param rows Rows of that section processed so far
+         */
+        void onProgress(int section, long rows);
+    }
+
+    private static final String[] FOLDER_PROJECTION = new String[] {
+            Bookmarks._ID, // 0
+            Bookmarks.PARENT, // 1
+            Bookmarks.TITLE, // 2
+            Bookmarks.POSITION, // 3
+            Bookmarks.DATE_CREATED, // 4
+            Bookmarks.DATE_MODIFIED, // 5
+    };
+
+    private static final String[] BOOKMARK_PROJECTION = new String[] {
+            Bookmarks.PARENT, // 0
+            Bookmarks.TITLE, // 1
+            Bookmarks.URL, // 2
+            Bookmarks.POSITION, // 3
+            Bookmarks.DATE_CREATED, // 4
+            Bookmarks.DATE_MODIFIED, // 5
+    };
+
+    private static final String[] HISTORY_PROJECTION = new String[] {
+            History.URL, // 0
+            History.TITLE, // 1
+            History.DATE_CREATED, // 2
+            History.DATE_LAST_VISITED, // 3
+            History.VISITS, // 4
+            History.USER_ENTERED, // 5
+    };
+
+    private static final String[] SEARCHES_PROJECTION = new String[] {
+            Searches.SEARCH, // 0
+            Searches.DATE, // 1
+    };
+
+    private static final String[] IMAGES_PROJECTION = new String[] {
+            Images.URL, // 0
+            Images.FAVICON, // 1
+            Images.THUMBNAIL, // 2
+            Images.TOUCH_ICON, // 3
+    };
+
+    private static class Folder {
+        long mId;
+        long mParent;
+        String mTitle;
+        long mPosition;
+        long mCreated;
+        long mModified;
+    }
+
+    private final ContentResolver mResolver;
+    private ProgressListener mListener;
+    private byte[] mReadBuffer = new byte[256];
+
+    public BrowserDataTransfer(ContentResolver resolver) {
+        mResolver = resolver;
+    }
+
+    public void setProgressListener(ProgressListener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Writes the profile to out. Blocks, must not be called on the UI
+     * thread. The caller owns and closes out.
+     * @return The number of rows written
+     */
+    public long exportTo(OutputStream out) throws IOException {
+        DataOutputStream header = new DataOutputStream(out);
+        header.writeInt(MAGIC);
+        header.writeInt(VERSION);
+        header.flush();
+
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            DeflaterOutputStream zip = new DeflaterOutputStream(out, deflater, BUFFER_SIZE);
+            DataOutputStream data = new DataOutputStream(
+                    new BufferedOutputStream(zip, BUFFER_SIZE));
+            long rows = 0;
+            rows += exportFolders(data);
+            rows += exportCursor(data, SECTION_BOOKMARKS, mResolver.query(
+                    localBookmarksUri(), BOOKMARK_PROJECTION,
+                    Bookmarks.IS_FOLDER + "=0", null, Bookmarks._ID));
+            rows += exportCursor(data, SECTION_HISTORY, mResolver.query(
+                    History.CONTENT_URI, HISTORY_PROJECTION, null, null, History._ID));
+            rows += exportCursor(data, SECTION_SEARCHES, mResolver.query(
+                    Searches.CONTENT_URI, SEARCHES_PROJECTION, null, null, null));
+            // Images last, so their urls exist when they are imported
+            rows += exportCursor(data, SECTION_IMAGES, mResolver.query(
+                    Images.CONTENT_URI, IMAGES_PROJECTION, null, null, null));
+            data.writeByte(SECTION_END);
+            data.flush();
+            zip.finish();
+            return rows;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Bookmarks that belong to a sync account are restored by syncing, so
+     * only the ones without an account are exported.
+     */
+    private static Uri localBookmarksUri() {
+        return BookmarksLoader.addAccount(Bookmarks.CONTENT_URI, null, null);
+    }
+
+    private int exportFolders(DataOutputStream data) throws IOException {
+        // Folders are written parents first, so that the importer always
+        // knows the new id of a folder's parent.
+        ArrayList<Folder> folders = new ArrayList<Folder>();
+        HashMap<Long, ArrayList<Folder>> children = new HashMap<Long, ArrayList<Folder>>();
+        Cursor c = mResolver.query(localBookmarksUri(), FOLDER_PROJECTION,
+                Bookmarks.IS_FOLDER + "=1 AND " + Bookmarks._ID + "!=?",
+                new String[] { Long.toString(BrowserProvider2.FIXED_ID_ROOT) },
+                Bookmarks._ID);
+        if (c == null) {
+            return 0;
+        }
+        try {
+            while (c.moveToNext()) {
+                Folder f = new Folder();
+                f.mId = c.getLong(0);
+                f.mParent = c.getLong(1);
+                f.mTitle = c.getString(2);
+                f.mPosition = c.getLong(3);
+                f.mCreated = c.getLong(4);
+                f.mModified = c.getLong(5);
+                folders.add(f);
+                ArrayList<Folder> siblings = children.get(f.mParent);
+                if (siblings == null) {
+                    siblings = new ArrayList<Folder>();
+                    children.put(f.mParent, siblings);
+                }
+                siblings.add(f);
+            }
+        } finally {
+            c.close();
+        }
+
+        HashMap<Long, Folder> byId = new HashMap<Long, Folder>(folders.size());
+        for (Folder f : folders) {
+            byId.put(f.mId, f);
+        }
+        ArrayList<Folder> ordered = new ArrayList<Folder>(folders.size());
+        for (Folder f : folders) {
+            if (!byId.containsKey(f.mParent)) {
+                ordered.add(f);
+            }
+        }
+        for (int i = 0; i < ordered.size(); i++) {
+            ArrayList<Folder> kids = children.get(ordered.get(i).mId);
+            if (kids != null) {
+                ordered.addAll(kids);
+            }
+        }
+
+        int written = 0;
+        while (written < ordered.size()) {
+            int count = Math.min(CHUNK_ROWS, ordered.size() - written);
+            data.writeByte(SECTION_FOLDERS);
+            writeVarLong(data, count);
+            for (int i = 0; i < count; i++) {
+                Folder f = ordered.get(written + i);
+                writeVarLong(data, f.mId);
+                writeVarLong(data, f.mParent);
+                writeString(data, f.mTitle);
+                writeVarLong(data, f.mPosition);
+                writeVarLong(data, f.mCreated);
+                writeVarLong(data, f.mModified);
+            }
+            written += count;
+            reportProgress(SECTION_FOLDERS, written);
+        }
+        return written;
+    }
+
+    private int exportCursor(DataOutputStream data, int section, Cursor c)
+            throws IOException {
+        if (c == null) {
+            return 0;
+        }
+        try {
+            int total = c.getCount();
+            int written = 0;
+            while (written < total) {
+                int count = Math.min(CHUNK_ROWS, total - written);
+                data.writeByte(section);
+                writeVarLong(data, count);
+                for (int i = 0; i < count; i++) {
+                    if (!c.moveToNext()) {
+                        throw new IOException("Cursor ended early");
+                    }
+                    writeRow(data, section, c);
+                }
+                written += count;
+                reportProgress(section, written);
+            }
+            return written;
+        } finally {
+            c.close();
+        }
+    }
+
+    private static void writeRow(DataOutputStream data, int section, Cursor c)
+            throws IOException {
+        switch (section) {
+            case SECTION_BOOKMARKS:
+                writeVarLong(data, c.getLong(0));
+                writeString(data, c.getString(1));
+                writeString(data, c.getString(2));
+                writeVarLong(data, c.getLong(3));
+                writeVarLong(data, c.getLong(4));
+                writeVarLong(data, c.getLong(5));
+                break;
+            case SECTION_HISTORY:
+                writeString(data, c.getString(0));
+                writeString(data, c.getString(1));
+                writeVarLong(data, c.getLong(2));
+                writeVarLong(data, c.getLong(3));
+                writeVarLong(data, c.getLong(4));
+                writeVarLong(data, c.getLong(5));
+                break;
+            case SECTION_SEARCHES:
+                writeString(data, c.getString(0));
+                writeVarLong(data, c.getLong(1));
+                break;
+            case SECTION_IMAGES:
+                writeString(data, c.getString(0));
+                writeBlob(data, c.getBlob(1));
+                writeBlob(data, c.getBlob(2));
+                writeBlob(data, c.getBlob(3));
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown section " + section);
+        }
+    }
+
+    /**
+     * Reads a stream written by {@link #exportTo(OutputStream)} and adds its
+     * rows to the profile. Blocks, must not be called on the UI thread. The
+     * caller owns and closes in. Chunks imported before an error are kept.
+     * @return The number of rows imported
+     */
+    public long importFrom(InputStream in) throws IOException {
+        DataInputStream header = new DataInputStream(in);
+        if (header.readInt() != MAGIC) {
+            throw new IOException("Not a browser data stream");
+        }
+        int version = header.readInt();
+        if (version > VERSION) {
+            throw new IOException("Unsupported version " + version);
+        }
+
+        Inflater inflater = new Inflater();
+        try {
+            DataInputStream data = new DataInputStream(new BufferedInputStream(
+                    new InflaterInputStream(in, inflater, BUFFER_SIZE), BUFFER_SIZE));
+            // Maps exported folder ids to the ids of the imported folders
+            HashMap<Long, Long> folderIds = new HashMap<Long, Long>();
+            long[] sectionRows = new long[SECTION_IMAGES + 1];
+            long rows = 0;
+            int section;
+            while ((section = data.readByte()) != SECTION_END) {
+                if (section < 0 || section > SECTION_IMAGES) {
+                    throw new IOException("Unknown section " + section);
+                }
+                int count = (int) readVarLong(data);
+                if (count < 0 || count > CHUNK_ROWS) {
+                    throw new IOException("Bad chunk size " + count);
+                }
+                if (section == SECTION_FOLDERS) {
+                    importFolders(data, count, folderIds);
+                } else {
+                    importChunk(data, section, count, folderIds);
+                }
+                rows += count;
+                sectionRows[section] += count;
+                reportProgress(section, sectionRows[section]);
+            }
+            return rows;
+        } catch (EOFException e) {
+            throw new IOException("Truncated browser data stream");
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private void importFolders(DataInputStream data, int count,
+            HashMap<Long, Long> folderIds) throws IOException {
+        Uri uri = asSyncAdapter(Bookmarks.CONTENT_URI);
+        ArrayList<ContentProviderOperation> ops =
+                new ArrayList<ContentProviderOperation>(count);
+        long[] oldIds = new long[count];
+        // Folders created in this chunk, by exported id, to their operation
+        HashMap<Long, Integer> chunkIndex = new HashMap<Long, Integer>();
+        for (int i = 0; i < count; i++) {
+            long id = readVarLong(data);
+            long parent = readVarLong(data);
+            ContentValues values = new ContentValues();
+            values.put(Bookmarks.IS_FOLDER, 1);
+            values.put(Bookmarks.TITLE, readString(data));
+            values.put(Bookmarks.POSITION, readVarLong(data));
+            values.put(Bookmarks.DATE_CREATED, readVarLong(data));
+            values.put(Bookmarks.DATE_MODIFIED, readVarLong(data));
+            values.put(Bookmarks.DIRTY, 1);
+            ContentProviderOperation.Builder op =
+                    ContentProviderOperation.newInsert(uri);
+            Integer index = chunkIndex.get(parent);
+            if (index != null) {
+                op.withValues(values).withValueBackReference(Bookmarks.PARENT, index);
+            } else {
+                values.put(Bookmarks.PARENT, mapParent(parent, folderIds));
+                op.withValues(values);
+            }
+            ops.add(op.build());
+            oldIds[i] = id;
+            chunkIndex.put(id, i);
+        }
+        ContentProviderResult[] results = applyBatch(ops);
+        for (int i = 0; i < count; i++) {
+            folderIds.put(oldIds[i], ContentUris.parseId(results[i].uri));
+        }
+    }
+
+    private void importChunk(DataInputStream data, int section, int count,
+            HashMap<Long, Long> folderIds) throws IOException {
+        if (section == SECTION_IMAGES) {
+            // Images can only be written through updates
+            ArrayList<ContentProviderOperation> ops =
+                    new ArrayList<ContentProviderOperation>(count);
+            for (int i = 0; i < count; i++) {
+                ContentValues values = new ContentValues();
+                values.put(Images.URL, readString(data));
+                values.put(Images.FAVICON, readBlob(data));
+                values.put(Images.THUMBNAIL, readBlob(data));
+                values.put(Images.TOUCH_ICON, readBlob(data));
+                ops.add(ContentProviderOperation.newUpdate(Images.CONTENT_URI)
+                        .withValues(values).build());
+            }
+            applyBatch(ops);
+            return;
+        }
+
+        Uri uri;
+        ContentValues[] rows = new ContentValues[count];
+        for (int i = 0; i < count; i++) {
+            ContentValues values = new ContentValues();
+            switch (section) {
+                case SECTION_BOOKMARKS:
+                    values.put(Bookmarks.PARENT, mapParent(readVarLong(data), folderIds));
+                    values.put(Bookmarks.TITLE, readString(data));
+                    values.put(Bookmarks.URL, readString(data));
+                    values.put(Bookmarks.POSITION, readVarLong(data));
+                    values.put(Bookmarks.DATE_CREATED, readVarLong(data));
+                    values.put(Bookmarks.DATE_MODIFIED, readVarLong(data));
+                    values.put(Bookmarks.IS_FOLDER, 0);
+                    values.put(Bookmarks.DIRTY, 1);
+                    break;
+                case SECTION_HISTORY:
+                    values.put(History.URL, readString(data));
+                    values.put(History.TITLE, readString(data));
+                    values.put(History.DATE_CREATED, readVarLong(data));
+                    values.put(History.DATE_LAST_VISITED, readVarLong(data));
+                    values.put(History.VISITS, readVarLong(data));
+                    values.put(History.USER_ENTERED, readVarLong(data));
+                    break;
+                case SECTION_SEARCHES:
+                    values.put(Searches.SEARCH, readString(data));
+                    values.put(Searches.DATE, readVarLong(data));
+                    break;
+            }
+            rows[i] = values;
+        }
+        switch (section) {
+            case SECTION_BOOKMARKS:
+                // Insert as a sync adapter so the exported dates, parent and
+                // position are kept as they are.
+                uri = asSyncAdapter(Bookmarks.CONTENT_URI);
+                break;
+            case SECTION_HISTORY:
+                uri = History.CONTENT_URI;
+                break;
+            default:
+                uri = Searches.CONTENT_URI;
+                break;
+        }
+        // bulkInsert runs the whole chunk in a single transaction
+        mResolver.bulkInsert(uri, rows);
+    }
+
+    private static long mapParent(long parent, HashMap<Long, Long> folderIds) {
+        Long id = folderIds.get(parent);
+        return id != null ? id : BrowserProvider2.FIXED_ID_ROOT;
+    }
+
+    private static Uri asSyncAdapter(Uri uri) {
+        return uri.buildUpon()
+                .appendQueryParameter(BrowserContract.CALLER_IS_SYNCADAPTER, "true")
+                .build();
+    }
+
+    private ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> ops)
+            throws IOException {
+        try {
+            return mResolver.applyBatch(BrowserContract.AUTHORITY, ops);
+        } catch (RemoteException e) {
+            throw new IOException("Failed to import chunk: " + e);
+        } catch (OperationApplicationException e) {
+            throw new IOException("Failed to import chunk: " + e);
+        }
+    }
+
+    private void reportProgress(int section, long rows) {
+        if (mListener != null) {
+            mListener.onProgress(section, rows);
+        }
+    }
+
+    static void writeVarLong(DataOutputStream out, long value) throws IOException {
+        // zigzag, so small negative values stay small
+        long v = (value << 1) ^ (value >> 63);
+        while ((v & ~0x7FL) != 0) {
+            out.writeByte((int) ((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        out.writeByte((int) v);
+    }
+
+    static long readVarLong(DataInputStream in) throws IOException {
+        long v = 0;
+        int shift = 0;
+        int b;
+        do {
+            if (shift > 63) {
+                throw new IOException("Malformed varint");
+            }
+            b = in.readUnsignedByte();
+            v |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        writeBlob(out, s != null ? s.getBytes("UTF-8") : null);
+    }
+
+    private static void writeBlob(DataOutputStream out, byte[] b) throws IOException {
+        // 0 is null, otherwise the length plus one
+        if (b == null) {
+            writeVarLong(out, 0);
+            return;
+        }
+        writeVarLong(out, b.length + 1);
+        out.write(b);
+    }
+
+    private String readString(DataInputStream in) throws IOException {
+        int length = readLength(in);
+        if (length < 0) {
+            return null;
+        }
+        if (length > mReadBuffer.length) {
+            mReadBuffer = new byte[Math.max(length, mReadBuffer.length * 2)];
+        }
+        in.readFully(mReadBuffer, 0, length);
+        return new String(mReadBuffer, 0, length, "UTF-8");
+    }
+
+    private static byte[] readBlob(DataInputStream in) throws IOException {
+        int length = readLength(in);
+        if (length < 0) {
+            return null;
+        }
+        byte[] b = new byte[length];
+        in.readFully(b);
+        return b;
+    }
+
+    private static int readLength(DataInputStream in) throws IOException {
+        long length = readVarLong(in) - 1;
+        if (length < -1 || length > Integer.MAX_VALUE) {
+            throw new IOException("Bad length " + length);
+        }
+        return (int) length;
+    }
+}
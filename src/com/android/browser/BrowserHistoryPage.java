@@ -39,7 +39,9 @@ import android.net.Uri;
 import android.os.Bundle;
 import android.provider.Browser;
 import android.provider.BrowserContract;
-import android.provider.BrowserContract.Combined;
+import android.provider.BrowserContract.Bookmarks;
+import android.provider.BrowserContract.History;
+import android.text.TextUtils;
 import android.view.ContextMenu;
 import android.view.ContextMenu.ContextMenuInfo;
 import android.view.LayoutInflater;
@@ -61,6 +63,8 @@ import android.widget.ListView;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import com.android.browser.provider.BrowserProvider2;
+
 /**
  * Activity for displaying the browser's history, divided into
  * days of viewing.
@@ -85,16 +89,22 @@ public class BrowserHistoryPage extends Fragment
     private View mRoot;
 
     static interface HistoryQuery {
+        // Queried against the history table rather than the combined view,
+        // so that the date and visits indices can be used
         static final String[] PROJECTION = new String[] {
-                Combined._ID, // 0
-                Combined.DATE_LAST_VISITED, // 1
-                Combined.TITLE, // 2
-                Combined.URL, // 3
-                Combined.FAVICON, // 4
-                Combined.VISITS, // 5
-                Combined.IS_BOOKMARK, // 6
+                History._ID, // 0
+                History.DATE_LAST_VISITED, // 1
+                History.TITLE, // 2
+                History.URL, // 3
+                History.FAVICON, // 4
+                History.VISITS, // 5
+                "EXISTS (SELECT 1 FROM bookmarks WHERE bookmarks." + Bookmarks.URL
+                        + " = history." + History.URL + " AND " + Bookmarks.IS_DELETED
+                        + " = 0) AS bookmark", // 6
         };
 
+        static final String WHERE = History.VISITS + " > 0";
+
         static final int INDEX_ID = 0;
         static final int INDEX_DATE_LAST_VISITED = 1;
         static final int INDEX_TITE = 2;
@@ -112,24 +122,33 @@ public class BrowserHistoryPage extends Fragment
 
     @Override
     public Loader<Cursor> onCreateLoader(int id, Bundle args) {
-        Uri.Builder combinedBuilder = Combined.CONTENT_URI.buildUpon();
+        Uri.Builder historyBuilder = History.CONTENT_URI.buildUpon();
 
         switch (id) {
             case LOADER_HISTORY: {
-                String sort = Combined.DATE_LAST_VISITED + " DESC";
-                String where = Combined.VISITS + " > 0";
-                CursorLoader loader = new CursorLoader(getActivity(), combinedBuilder.build(),
-                        HistoryQuery.PROJECTION, where, null, sort);
+                // Only the number of items in each date bin, the rows
+                // themselves are paged in by the adapter
+                Uri uri = historyBuilder
+                        .appendQueryParameter(BrowserProvider2.PARAM_GROUP_BY,
+                                HistoryAdapter.COLUMN_BIN)
+                        .build();
+                String[] projection = new String[] {
+                        mAdapter.getBinSelection(History.DATE_LAST_VISITED)
+                                + " AS " + HistoryAdapter.COLUMN_BIN,
+                        "count(*) AS " + HistoryAdapter.COLUMN_COUNT,
+                };
+                CursorLoader loader = new CursorLoader(getActivity(), uri,
+                        projection, HistoryQuery.WHERE, null, HistoryAdapter.COLUMN_BIN);
                 return loader;
             }
 
             case LOADER_MOST_VISITED: {
-                Uri uri = combinedBuilder
+                Uri uri = historyBuilder
                         .appendQueryParameter(BrowserContract.PARAM_LIMIT, mMostVisitsLimit)
                         .build();
-                String where = Combined.VISITS + " > 0";
                 CursorLoader loader = new CursorLoader(getActivity(), uri,
-                        HistoryQuery.PROJECTION, where, null, Combined.VISITS + " DESC");
+                        HistoryQuery.PROJECTION, HistoryQuery.WHERE, null,
+                        History.VISITS + " DESC");
                 return loader;
             }
 
@@ -146,7 +165,7 @@ public class BrowserHistoryPage extends Fragment
     }
 
     void checkIfEmpty() {
-        if (mAdapter.mMostVisited != null && mAdapter.mHistoryCursor != null) {
+        if (mAdapter.mMostVisited != null && mAdapter.mHistoryLoaded) {
             // Both cursors have loaded - check to see if we have data
             if (mAdapter.isEmpty()) {
                 mRoot.findViewById(R.id.history).setVisibility(View.GONE);
@@ -162,7 +181,7 @@ public class BrowserHistoryPage extends Fragment
     public void onLoadFinished(Loader<Cursor> loader, Cursor data) {
         switch (loader.getId()) {
             case LOADER_HISTORY: {
-                mAdapter.changeCursor(data);
+                mAdapter.changeBinCounts(data);
                 if (!mAdapter.isEmpty() && mGroupList != null
                         && mGroupList.getCheckedItemPosition() == ListView.INVALID_POSITION) {
                     selectGroup(0);
@@ -280,6 +299,10 @@ public class BrowserHistoryPage extends Fragment
         super.onDestroy();
         getLoaderManager().destroyLoader(LOADER_HISTORY);
         getLoaderManager().destroyLoader(LOADER_MOST_VISITED);
+        if (mAdapter != null) {
+            // Close any pages the adapter still holds
+            mAdapter.changeBinCounts(null);
+        }
     }
 
     @Override
@@ -347,6 +370,10 @@ public class BrowserHistoryPage extends Fragment
             return;
         }
         HistoryItem historyItem = (HistoryItem) targetView;
+        if (TextUtils.isEmpty(historyItem.getUrl())) {
+            // The row hasn't been paged in yet
+            return;
+        }
 
         // Inflate the menu
         Activity parent = getActivity();
@@ -510,6 +537,16 @@ public class BrowserHistoryPage extends Fragment
             return position;
         }
 
+        @Override
+        public boolean areAllItemsEnabled() {
+            return false;
+        }
+
+        @Override
+        public boolean isEnabled(int position) {
+            return mAdapter.isChildSelectable(mSelectedGroup, position);
+        }
+
         @Override
         public View getView(int position, View convertView, ViewGroup parent) {
             return mAdapter.getChildView(mSelectedGroup, position,
@@ -518,46 +555,48 @@ public class BrowserHistoryPage extends Fragment
 
     }
 
-    private class HistoryAdapter extends DateSortedExpandableListAdapter {
+    private static class HistoryAdapter extends DateSortedExpandableListAdapter {
 
-        private Cursor mMostVisited, mHistoryCursor;
+        private Cursor mMostVisited;
+        boolean mHistoryLoaded;
         Drawable mFaviconBackground;
+        private final ContentResolver mResolver;
 
         HistoryAdapter(Context context) {
-            super(context, HistoryQuery.INDEX_DATE_LAST_VISITED);
+            super(context);
+            mResolver = context.getContentResolver();
             mFaviconBackground = BookmarkUtils.createListFaviconBackground(context);
         }
 
         @Override
-        public void changeCursor(Cursor cursor) {
-            mHistoryCursor = cursor;
-            super.changeCursor(cursor);
+        public void changeBinCounts(Cursor counts) {
+            mHistoryLoaded = counts != null;
+            super.changeBinCounts(counts);
+        }
+
+        @Override
+        protected String getDateColumn() {
+            return History.DATE_LAST_VISITED;
+        }
+
+        @Override
+        protected Cursor queryPage(String selection, int offset, int count) {
+            Uri uri = History.CONTENT_URI.buildUpon()
+                    .appendQueryParameter(BrowserContract.PARAM_LIMIT, offset + "," + count)
+                    .build();
+            return mResolver.query(uri, HistoryQuery.PROJECTION,
+                    HistoryQuery.WHERE + " AND " + selection, null,
+                    History.DATE_LAST_VISITED + " DESC");
         }
 
         void changeMostVisitedCursor(Cursor cursor) {
             if (mMostVisited == cursor) {
                 return;
             }
-            if (mMostVisited != null) {
-                mMostVisited.unregisterDataSetObserver(mDataSetObserver);
-                mMostVisited.close();
-            }
             mMostVisited = cursor;
-            if (mMostVisited != null) {
-                mMostVisited.registerDataSetObserver(mDataSetObserver);
-            }
             notifyDataSetChanged();
         }
 
-        @Override
-        public long getChildId(int groupPosition, int childPosition) {
-            if (moveCursorToChildPosition(groupPosition, childPosition)) {
-                Cursor cursor = getCursor(groupPosition);
-                return cursor.getLong(HistoryQuery.INDEX_ID);
-            }
-            return 0;
-        }
-
         @Override
         public int getGroupCount() {
             return super.getGroupCount() + (!isMostVisitedEmpty() ? 1 : 0);
@@ -588,11 +627,12 @@ public class BrowserHistoryPage extends Fragment
                     || mMostVisited.getCount() == 0;
         }
 
+        @Override
         Cursor getCursor(int groupPosition) {
             if (groupPosition >= super.getGroupCount()) {
                 return mMostVisited;
             }
-            return mHistoryCursor;
+            return getCursor();
         }
 
         @Override
@@ -628,6 +668,14 @@ public class BrowserHistoryPage extends Fragment
             return super.moveCursorToChildPosition(groupPosition, childPosition);
         }
 
+        @Override
+        boolean isChildLoaded(int groupPosition, int childPosition) {
+            if (groupPosition >= super.getGroupCount()) {
+                return mMostVisited != null && !mMostVisited.isClosed();
+            }
+            return super.isChildLoaded(groupPosition, childPosition);
+        }
+
         @Override
         public View getChildView(int groupPosition, int childPosition, boolean isLastChild,
                 View convertView, ViewGroup parent) {
@@ -645,8 +693,12 @@ public class BrowserHistoryPage extends Fragment
                 item = (HistoryItem) convertView;
             }
 
-            // Bail early if the Cursor is closed.
+            // The row hasn't been paged in yet, we'll be notified once it is.
             if (!moveCursorToChildPosition(groupPosition, childPosition)) {
+                item.setName("");
+                item.setUrl("");
+                item.setFavicon(null);
+                item.setIsBookmark(false);
                 return item;
             }
 
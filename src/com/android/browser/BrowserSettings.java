@@ -25,11 +25,15 @@ import android.content.SharedPreferences.OnSharedPreferenceChangeListener;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
 import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
 import android.os.Message;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
 import android.provider.Browser;
 import android.provider.Settings;
 import android.util.DisplayMetrics;
+import android.view.Choreographer;
 import android.webkit.CookieManager;
 import android.webkit.GeolocationPermissions;
 import android.webkit.WebIconDatabase;
@@ -48,6 +52,8 @@ import com.android.browser.search.SearchEngine;
 import com.android.browser.search.SearchEngines;
 
 import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.WeakHashMap;
@@ -122,10 +128,23 @@ public class BrowserSettings implements OnSharedPreferenceChangeListener,
     private String mAppCachePath;
 
     // Cached settings
-    private SearchEngine mSearchEngine;
+    // Also loaded on a startup thread, see Controller
+    private volatile SearchEngine mSearchEngine;
 
     private static String sFactoryResetUrl;
 
+    // Preferences written for the browser's own bookkeeping, these never
+    // affect WebSettings so changing them doesn't trigger a sync.
+    private static final HashSet<String> BOOKKEEPING_KEYS = new HashSet<String>(
+            Arrays.asList(KEY_LAST_RECOVERED, KEY_LAST_RUN_PAUSED,
+                    GoogleAccountLogin.PREF_AUTOLOGIN_TIME,
+                    BrowserBookmarksPage.PREF_GROUP_STATE));
+
+    // The values last pushed to the managed WebSettings, UI thread only
+    private SettingsSnapshot mAppliedSnapshot;
+    private boolean mSyncScheduled;
+    private final Handler mUiHandler = new Handler(Looper.getMainLooper());
+
     public static void initialize(final Context context) {
         sInstance = new BrowserSettings(context);
     }
@@ -155,11 +174,15 @@ public class BrowserSettings implements OnSharedPreferenceChangeListener,
             syncSharedSettings();
         }
 
+        SettingsSnapshot snapshot = new SettingsSnapshot(this);
         synchronized (mManagedSettings) {
             syncStaticSettings(settings);
-            syncSetting(settings);
+            snapshot.apply(settings, SettingsSnapshot.ALL, mCustomUserAgents.get(settings));
             mManagedSettings.add(new WeakReference<WebSettings>(settings));
         }
+        if (mAppliedSnapshot == null) {
+            mAppliedSnapshot = snapshot;
+        }
     }
 
     public void stopManagingSettings(WebSettings settings) {
@@ -177,6 +200,7 @@ public class BrowserSettings implements OnSharedPreferenceChangeListener,
 
         @Override
         public void run() {
+            long start = SystemClock.uptimeMillis();
             DisplayMetrics metrics = mContext.getResources().getDisplayMetrics();
             mFontSizeMult = metrics.scaledDensity / metrics.density;
             // the cost of one cached page is ~3M (measured using nytimes.com). For
@@ -230,47 +254,187 @@ public class BrowserSettings implements OnSharedPreferenceChangeListener,
                 sInitialized = true;
                 BrowserSettings.class.notifyAll();
             }
+            Performance.recordStartupPhase("settings_init", start,
+                    SystemClock.uptimeMillis());
         }
     };
 
     private static void requireInitialization() {
         synchronized (BrowserSettings.class) {
-            while (!sInitialized) {
-                try {
-                    BrowserSettings.class.wait();
-                } catch (InterruptedException e) {
+            if (!sInitialized) {
+                long start = SystemClock.uptimeMillis();
+                while (!sInitialized) {
+                    try {
+                        BrowserSettings.class.wait();
+                    } catch (InterruptedException e) {
+                    }
                 }
+                Performance.recordStartupPhase("settings_wait", start,
+                        SystemClock.uptimeMillis());
             }
         }
     }
 
     /**
-     * Syncs all the settings that have a Preference UI
+     * A typed copy of every setting with a Preference UI, so that a change
+     * can be reduced to the properties that actually differ.
      */
-    private void syncSetting(WebSettings settings) {
-        settings.setGeolocationEnabled(enableGeolocation());
-        settings.setJavaScriptEnabled(enableJavascript());
-        settings.setLightTouchEnabled(enableLightTouch());
-        settings.setNavDump(enableNavDump());
-        settings.setDefaultTextEncodingName(getDefaultTextEncoding());
-        settings.setDefaultZoom(getDefaultZoom());
-        settings.setMinimumFontSize(getMinimumFontSize());
-        settings.setMinimumLogicalFontSize(getMinimumFontSize());
-        settings.setPluginState(getPluginState());
-        settings.setTextZoom(getTextZoom());
-        settings.setLayoutAlgorithm(getLayoutAlgorithm());
-        settings.setJavaScriptCanOpenWindowsAutomatically(!blockPopupWindows());
-        settings.setLoadsImagesAutomatically(loadImages());
-        settings.setLoadWithOverviewMode(loadPageInOverviewMode());
-        settings.setSavePassword(rememberPasswords());
-        settings.setSaveFormData(saveFormdata());
-        settings.setUseWideViewPort(isWideViewport());
-
-        String ua = mCustomUserAgents.get(settings);
-        if (ua != null) {
-            settings.setUserAgentString(ua);
-        } else {
-            settings.setUserAgentString(USER_AGENTS[getUserAgent()]);
+    private static class SettingsSnapshot {
+        static final int GEOLOCATION = 1 << 0;
+        static final int JAVASCRIPT = 1 << 1;
+        static final int LIGHT_TOUCH = 1 << 2;
+        static final int NAV_DUMP = 1 << 3;
+        static final int TEXT_ENCODING = 1 << 4;
+        static final int DEFAULT_ZOOM = 1 << 5;
+        static final int MIN_FONT_SIZE = 1 << 6;
+        static final int PLUGIN_STATE = 1 << 7;
+        static final int TEXT_ZOOM = 1 << 8;
+        static final int LAYOUT = 1 << 9;
+        static final int POPUPS = 1 << 10;
+        static final int LOAD_IMAGES = 1 << 11;
+        static final int OVERVIEW_MODE = 1 << 12;
+        static final int SAVE_PASSWORD = 1 << 13;
+        static final int SAVE_FORM_DATA = 1 << 14;
+        static final int WIDE_VIEWPORT = 1 << 15;
+        static final int USER_AGENT = 1 << 16;
+        // Shared settings, not applied per WebSettings
+        static final int ACCEPT_COOKIES = 1 << 17;
+        static final int JAVASCRIPT_CONSOLE = 1 << 18;
+
+        static final int SHARED = ACCEPT_COOKIES | JAVASCRIPT_CONSOLE;
+        static final int ALL = (1 << 19) - 1;
+
+        final boolean mGeolocation;
+        final boolean mJavaScript;
+        final boolean mLightTouch;
+        final boolean mNavDump;
+        final String mTextEncoding;
+        final ZoomDensity mDefaultZoom;
+        final int mMinFontSize;
+        final PluginState mPluginState;
+        final int mTextZoom;
+        final LayoutAlgorithm mLayout;
+        final boolean mBlockPopups;
+        final boolean mLoadImages;
+        final boolean mOverviewMode;
+        final boolean mSavePassword;
+        final boolean mSaveFormData;
+        final boolean mWideViewport;
+        final String mUserAgent;
+        final boolean mAcceptCookies;
+        final boolean mJavaScriptConsole;
+
+        SettingsSnapshot(BrowserSettings s) {
+            mGeolocation = s.enableGeolocation();
+            mJavaScript = s.enableJavascript();
+            mLightTouch = s.enableLightTouch();
+            mNavDump = s.enableNavDump();
+            mTextEncoding = s.getDefaultTextEncoding();
+            mDefaultZoom = s.getDefaultZoom();
+            mMinFontSize = s.getMinimumFontSize();
+            mPluginState = s.getPluginState();
+            mTextZoom = s.getTextZoom();
+            mLayout = s.getLayoutAlgorithm();
+            mBlockPopups = s.blockPopupWindows();
+            mLoadImages = s.loadImages();
+            mOverviewMode = s.loadPageInOverviewMode();
+            mSavePassword = s.rememberPasswords();
+            mSaveFormData = s.saveFormdata();
+            mWideViewport = s.isWideViewport();
+            mUserAgent = USER_AGENTS[s.getUserAgent()];
+            mAcceptCookies = s.acceptCookies();
+            mJavaScriptConsole = s.enableJavascriptConsole();
+        }
+
+        /**
+         * Returns the mask of properties that differ between this and other.
+         */
+        int diff(SettingsSnapshot o) {
+            int changed = 0;
+            if (mGeolocation != o.mGeolocation) changed |= GEOLOCATION;
+            if (mJavaScript != o.mJavaScript) changed |= JAVASCRIPT;
+            if (mLightTouch != o.mLightTouch) changed |= LIGHT_TOUCH;
+            if (mNavDump != o.mNavDump) changed |= NAV_DUMP;
+            if (!equals(mTextEncoding, o.mTextEncoding)) changed |= TEXT_ENCODING;
+            if (mDefaultZoom != o.mDefaultZoom) changed |= DEFAULT_ZOOM;
+            if (mMinFontSize != o.mMinFontSize) changed |= MIN_FONT_SIZE;
+            if (mPluginState != o.mPluginState) changed |= PLUGIN_STATE;
+            if (mTextZoom != o.mTextZoom) changed |= TEXT_ZOOM;
+            if (mLayout != o.mLayout) changed |= LAYOUT;
+            if (mBlockPopups != o.mBlockPopups) changed |= POPUPS;
+            if (mLoadImages != o.mLoadImages) changed |= LOAD_IMAGES;
+            if (mOverviewMode != o.mOverviewMode) changed |= OVERVIEW_MODE;
+            if (mSavePassword != o.mSavePassword) changed |= SAVE_PASSWORD;
+            if (mSaveFormData != o.mSaveFormData) changed |= SAVE_FORM_DATA;
+            if (mWideViewport != o.mWideViewport) changed |= WIDE_VIEWPORT;
+            if (!equals(mUserAgent, o.mUserAgent)) changed |= USER_AGENT;
+            if (mAcceptCookies != o.mAcceptCookies) changed |= ACCEPT_COOKIES;
+            if (mJavaScriptConsole != o.mJavaScriptConsole) changed |= JAVASCRIPT_CONSOLE;
+            return changed;
+        }
+
+        private static boolean equals(String a, String b) {
+            return a == null ? b == null : a.equals(b);
+        }
+
+        /**
+         * Applies the properties in mask to settings.
+         * @param customUserAgent The tab's own user agent, if it has one
+         */
+        void apply(WebSettings settings, int mask, String customUserAgent) {
+            if ((mask & GEOLOCATION) != 0) {
+                settings.setGeolocationEnabled(mGeolocation);
+            }
+            if ((mask & JAVASCRIPT) != 0) {
+                settings.setJavaScriptEnabled(mJavaScript);
+            }
+            if ((mask & LIGHT_TOUCH) != 0) {
+                settings.setLightTouchEnabled(mLightTouch);
+            }
+            if ((mask & NAV_DUMP) != 0) {
+                settings.setNavDump(mNavDump);
+            }
+            if ((mask & TEXT_ENCODING) != 0) {
+                settings.setDefaultTextEncodingName(mTextEncoding);
+            }
+            if ((mask & DEFAULT_ZOOM) != 0) {
+                settings.setDefaultZoom(mDefaultZoom);
+            }
+            if ((mask & MIN_FONT_SIZE) != 0) {
+                settings.setMinimumFontSize(mMinFontSize);
+                settings.setMinimumLogicalFontSize(mMinFontSize);
+            }
+            if ((mask & PLUGIN_STATE) != 0) {
+                settings.setPluginState(mPluginState);
+            }
+            if ((mask & TEXT_ZOOM) != 0) {
+                settings.setTextZoom(mTextZoom);
+            }
+            if ((mask & LAYOUT) != 0) {
+                settings.setLayoutAlgorithm(mLayout);
+            }
+            if ((mask & POPUPS) != 0) {
+                settings.setJavaScriptCanOpenWindowsAutomatically(!mBlockPopups);
+            }
+            if ((mask & LOAD_IMAGES) != 0) {
+                settings.setLoadsImagesAutomatically(mLoadImages);
+            }
+            if ((mask & OVERVIEW_MODE) != 0) {
+                settings.setLoadWithOverviewMode(mOverviewMode);
+            }
+            if ((mask & SAVE_PASSWORD) != 0) {
+                settings.setSavePassword(mSavePassword);
+            }
+            if ((mask & SAVE_FORM_DATA) != 0) {
+                settings.setSaveFormData(mSaveFormData);
+            }
+            if ((mask & WIDE_VIEWPORT) != 0) {
+                settings.setUseWideViewPort(mWideViewport);
+            }
+            if ((mask & USER_AGENT) != 0) {
+                settings.setUserAgentString(customUserAgent != null
+                        ? customUserAgent : mUserAgent);
+            }
         }
     }
 
@@ -318,8 +482,55 @@ public class BrowserSettings implements OnSharedPreferenceChangeListener,
         }
     }
 
+    /**
+     * Schedules the changed settings to be pushed to every managed
+     * WebSettings. Multiple requests within a frame are applied once.
+     */
     private void syncManagedSettings() {
-        syncSharedSettings();
+        if (Looper.myLooper() != Looper.getMainLooper()) {
+            mUiHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    syncManagedSettings();
+                }
+            });
+            return;
+        }
+        if (!mSyncScheduled) {
+            mSyncScheduled = true;
+            Choreographer.getInstance().postFrameCallback(mSyncFrameCallback);
+        }
+    }
+
+    private final Choreographer.FrameCallback mSyncFrameCallback =
+            new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            mSyncScheduled = false;
+            applyChangedSettings();
+        }
+    };
+
+    private void applyChangedSettings() {
+        SettingsSnapshot snapshot = new SettingsSnapshot(this);
+        int changed = mAppliedSnapshot == null
+                ? SettingsSnapshot.ALL : mAppliedSnapshot.diff(snapshot);
+        mAppliedSnapshot = snapshot;
+        if ((changed & SettingsSnapshot.ACCEPT_COOKIES) != 0) {
+            CookieManager.getInstance().setAcceptCookie(snapshot.mAcceptCookies);
+            if (mController != null) {
+                for (Tab tab : mController.getTabs()) {
+                    tab.setAcceptThirdPartyCookies(snapshot.mAcceptCookies);
+                }
+            }
+        }
+        if ((changed & SettingsSnapshot.JAVASCRIPT_CONSOLE) != 0 && mController != null) {
+            mController.setShouldShowErrorConsole(snapshot.mJavaScriptConsole);
+        }
+        int perSettings = changed & ~SettingsSnapshot.SHARED;
+        if (perSettings == 0) {
+            return;
+        }
         synchronized (mManagedSettings) {
             Iterator<WeakReference<WebSettings>> iter = mManagedSettings.iterator();
             while (iter.hasNext()) {
@@ -329,7 +540,7 @@ public class BrowserSettings implements OnSharedPreferenceChangeListener,
                     iter.remove();
                     continue;
                 }
-                syncSetting(settings);
+                snapshot.apply(settings, perSettings, mCustomUserAgents.get(settings));
             }
         }
     }
@@ -337,6 +548,9 @@ public class BrowserSettings implements OnSharedPreferenceChangeListener,
     @Override
     public void onSharedPreferenceChanged(
             SharedPreferences sharedPreferences, String key) {
+        if (BOOKKEEPING_KEYS.contains(key)) {
+            return;
+        }
         syncManagedSettings();
         if (PREF_SEARCH_ENGINE.equals(key)) {
             updateSearchEngine(false);
@@ -401,6 +615,17 @@ public class BrowserSettings implements OnSharedPreferenceChangeListener,
          }
     }
 
+    /**
+     * Reloads the search engine registry, whose data depends on the locale
+     * and carrier.
+     */
+    public void onConfigurationChanged() {
+        SearchEngines.invalidate();
+        if (mSearchEngine != null) {
+            updateSearchEngine(true);
+        }
+    }
+
     public SearchEngine getSearchEngine() {
         if (mSearchEngine == null) {
             updateSearchEngine(false);
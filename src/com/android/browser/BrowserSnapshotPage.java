@@ -30,7 +30,9 @@ import android.database.Cursor;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.Bundle;
+import android.util.LruCache;
 import android.view.ContextMenu;
 import android.view.ContextMenu.ContextMenuInfo;
 import android.view.LayoutInflater;
@@ -47,10 +49,14 @@ import android.widget.ImageView;
 import android.widget.ResourceCursorAdapter;
 import android.widget.TextView;
 
+import com.android.browser.provider.SnapshotProvider;
 import com.android.browser.provider.SnapshotProvider.Snapshots;
 
+import java.io.IOException;
+import java.io.InputStream;
 import java.text.DateFormat;
 import java.util.Date;
+import java.util.HashSet;
 
 public class BrowserSnapshotPage extends Fragment implements
         LoaderCallbacks<Cursor>, OnItemClickListener {
@@ -58,22 +64,20 @@ public class BrowserSnapshotPage extends Fragment implements
     public static final String EXTRA_ANIMATE_ID = "animate_id";
 
     private static final int LOADER_SNAPSHOTS = 1;
+    // Only scalar columns, thumbnails are streamed from the provider's
+    // files as they are bound and favicons are looked up on demand.
     private static final String[] PROJECTION = new String[] {
         Snapshots._ID,
         Snapshots.TITLE,
         Snapshots.VIEWSTATE_SIZE,
-        Snapshots.THUMBNAIL,
-        Snapshots.FAVICON,
         Snapshots.URL,
         Snapshots.DATE_CREATED,
     };
     private static final int SNAPSHOT_ID = 0;
     private static final int SNAPSHOT_TITLE = 1;
     private static final int SNAPSHOT_VIEWSTATE_SIZE = 2;
-    private static final int SNAPSHOT_THUMBNAIL = 3;
-    private static final int SNAPSHOT_FAVICON = 4;
-    private static final int SNAPSHOT_URL = 5;
-    private static final int SNAPSHOT_DATE_CREATED = 6;
+    private static final int SNAPSHOT_URL = 3;
+    private static final int SNAPSHOT_DATE_CREATED = 4;
 
     GridView mGrid;
     View mEmpty;
@@ -169,7 +173,45 @@ public class BrowserSnapshotPage extends Fragment implements
     private void populateBookmarkItem(Cursor cursor, BookmarkItem item) {
         item.setName(cursor.getString(SNAPSHOT_TITLE));
         item.setUrl(cursor.getString(SNAPSHOT_URL));
-        item.setFavicon(getBitmap(cursor, SNAPSHOT_FAVICON));
+        new LoadFaviconTask(getActivity().getContentResolver(), item,
+                cursor.getLong(SNAPSHOT_ID)).execute();
+    }
+
+    /**
+     * Fills in the favicon of the context menu header once it is read.
+     */
+    private static class LoadFaviconTask extends AsyncTask<Void, Void, Bitmap> {
+        private final ContentResolver mContentResolver;
+        private final BookmarkItem mHeader;
+        private final long mId;
+
+        LoadFaviconTask(ContentResolver cr, BookmarkItem header, long id) {
+            mContentResolver = cr;
+            mHeader = header;
+            mId = id;
+        }
+
+        @Override
+        protected Bitmap doInBackground(Void... params) {
+            Uri uri = ContentUris.withAppendedId(Snapshots.CONTENT_URI, mId);
+            Cursor c = mContentResolver.query(uri,
+                    new String[] { Snapshots.FAVICON }, null, null, null);
+            if (c == null) {
+                return null;
+            }
+            try {
+                return c.moveToFirst() ? getBitmap(c, 0) : null;
+            } finally {
+                c.close();
+            }
+        }
+
+        @Override
+        protected void onPostExecute(Bitmap result) {
+            if (result != null) {
+                mHeader.setFavicon(result);
+            }
+        }
     }
 
     static Bitmap getBitmap(Cursor cursor, int columnIndex) {
@@ -209,12 +251,20 @@ public class BrowserSnapshotPage extends Fragment implements
     }
 
     private static class SnapshotAdapter extends ResourceCursorAdapter {
+        private static final int THUMBNAIL_CACHE_SIZE = 32;
+
         private long mAnimateId;
         private AnimatorSet mAnimation;
         private View mAnimationTarget;
+        private final ContentResolver mContentResolver;
+        private final LruCache<Long, Bitmap> mThumbnails =
+                new LruCache<Long, Bitmap>(THUMBNAIL_CACHE_SIZE);
+        // Snapshots known to have no thumbnail, so they aren't read again
+        private final HashSet<Long> mNoThumbnail = new HashSet<Long>();
 
         public SnapshotAdapter(Context context, Cursor c) {
             super(context, R.layout.snapshot_item, c, 0);
+            mContentResolver = context.getContentResolver();
             mAnimation = new AnimatorSet();
             mAnimation.playTogether(
                     ObjectAnimator.ofFloat(null, View.SCALE_X, 0f, 1f),
@@ -269,13 +319,25 @@ public class BrowserSnapshotPage extends Fragment implements
 
             }
             ImageView thumbnail = (ImageView) view.findViewById(R.id.thumb);
-            byte[] thumbBlob = cursor.getBlob(SNAPSHOT_THUMBNAIL);
-            if (thumbBlob == null) {
-                thumbnail.setImageResource(R.drawable.browser_thumbnail);
-            } else {
-                Bitmap thumbBitmap = BitmapFactory.decodeByteArray(
-                        thumbBlob, 0, thumbBlob.length);
-                thumbnail.setImageBitmap(thumbBitmap);
+            // The tag is the pending load of the view, if any. There is at
+            // most one, for the snapshot the view is bound to.
+            LoadThumbnailTask task = (LoadThumbnailTask) thumbnail.getTag();
+            if (task == null || task.mId != id) {
+                if (task != null) {
+                    task.cancel(false);
+                    thumbnail.setTag(null);
+                }
+                Bitmap thumbBitmap = mThumbnails.get(id);
+                if (thumbBitmap != null) {
+                    thumbnail.setImageBitmap(thumbBitmap);
+                } else {
+                    thumbnail.setImageResource(R.drawable.browser_thumbnail);
+                    if (!mNoThumbnail.contains(id)) {
+                        task = new LoadThumbnailTask(thumbnail, id);
+                        thumbnail.setTag(task);
+                        task.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+                    }
+                }
             }
             TextView title = (TextView) view.findViewById(R.id.title);
             title.setText(cursor.getString(SNAPSHOT_TITLE));
@@ -294,6 +356,54 @@ public class BrowserSnapshotPage extends Fragment implements
         public Cursor getItem(int position) {
             return (Cursor) super.getItem(position);
         }
+
+        private class LoadThumbnailTask extends AsyncTask<Void, Void, Bitmap> {
+            private final ImageView mTarget;
+            private final long mId;
+
+            LoadThumbnailTask(ImageView target, long id) {
+                mTarget = target;
+                mId = id;
+            }
+
+            @Override
+            protected Bitmap doInBackground(Void... params) {
+                if (isCancelled()) {
+                    return null;
+                }
+                InputStream in = null;
+                try {
+                    in = mContentResolver.openInputStream(
+                            SnapshotProvider.getThumbnailUri(mId));
+                    return BitmapFactory.decodeStream(in);
+                } catch (IOException e) {
+                    // No thumbnail for this snapshot
+                    return null;
+                } finally {
+                    if (in != null) {
+                        try {
+                            in.close();
+                        } catch (IOException e) {}
+                    }
+                }
+            }
+
+            @Override
+            protected void onPostExecute(Bitmap result) {
+                if (result == null) {
+                    mNoThumbnail.add(mId);
+                } else {
+                    mThumbnails.put(mId, result);
+                }
+                // The view may have been rebound while we were loading
+                if (mTarget.getTag() == this) {
+                    mTarget.setTag(null);
+                    if (result != null) {
+                        mTarget.setImageBitmap(result);
+                    }
+                }
+            }
+        }
     }
 
 }
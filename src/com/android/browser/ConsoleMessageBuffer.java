@@ -0,0 +1,261 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.browser;
+
+import android.os.SystemClock;
+import android.util.Log;
+import android.webkit.ConsoleMessage;
+import android.webkit.ConsoleMessage.MessageLevel;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.HashMap;
+
+/**
+ * A fixed size ring buffer of console messages for a single tab. Messages
+ * are kept in their raw form and only formatted when they are displayed or
+ * exported, so a page that logs in a tight loop costs a constant amount of
+ * memory. Repeated messages from the same source line are rate limited.
+ *
+ * This class is not thread safe and must only be modified on the UI thread,
+ * which is where WebChromeClient delivers console messages.
+ */
+public class ConsoleMessageBuffer {
+
+    private static final String LOGTAG = "ConsoleMessageBuffer";
+
+    static final int DEFAULT_CAPACITY = 500;
+
+    // Each source line may log at most RATE_LIMIT_MAX messages per
+    // RATE_LIMIT_WINDOW_MS, anything beyond that is counted as dropped.
+    static final int RATE_LIMIT_MAX = 20;
+    static final long RATE_LIMIT_WINDOW_MS = 1000;
+
+    // Bound the size of the rate limiting table so that pages generating
+    // unique source ids cannot grow it without limit.
+    private static final int MAX_TRACKED_SOURCES = 256;
+
+    private static final MessageLevel[] LEVELS = MessageLevel.values();
+
+    public interface ExportCallback {
+        void onExportFinished(File file, boolean success);
+    }
+
+    private final Entry[] mEntries;
+    private int mStart;
+    private int mSize;
+    private final int[] mLevelCounts = new int[LEVELS.length];
+    private int mDropped;
+    private final HashMap<String, RateWindow> mRateWindows =
+            new HashMap<String, RateWindow>();
+
+    static class Entry {
+        final MessageLevel mLevel;
+        final String mMessage;
+        final String mSourceId;
+        final int mLineNumber;
+
+        Entry(MessageLevel level, String message, String sourceId, int line) {
+            mLevel = level;
+            mMessage = message;
+            mSourceId = sourceId;
+            mLineNumber = line;
+        }
+
+        MessageLevel getLevel() {
+            return mLevel;
+        }
+
+        String getMessage() {
+            return mMessage;
+        }
+
+        String getSource() {
+            return mSourceId + ":" + mLineNumber;
+        }
+
+        void writeTo(Writer out) throws IOException {
+            out.write(mLevel.name());
+            out.write(' ');
+            out.write(String.valueOf(mSourceId));
+            out.write(':');
+            out.write(Integer.toString(mLineNumber));
+            out.write(' ');
+            out.write(String.valueOf(mMessage));
+            out.write('\n');
+        }
+    }
+
+    private static class RateWindow {
+        long mWindowStart;
+        int mCount;
+    }
+
+    public ConsoleMessageBuffer() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public ConsoleMessageBuffer(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        mEntries = new Entry[capacity];
+    }
+
+    /**
+     * Adds a message to the buffer, evicting the oldest message if the
+     * buffer is full.
+     * @return true if the message was recorded, false if it was dropped by
+     *         the per source line rate limit.
+     */
+    public boolean add(ConsoleMessage msg) {
+        return add(msg.messageLevel(), msg.message(), msg.sourceId(),
+                msg.lineNumber(), SystemClock.uptimeMillis());
+    }
+
+    boolean add(MessageLevel level, String message, String sourceId,
+            int line, long now) {
+        if (isRateLimited(sourceId, line, now)) {
+            mDropped++;
+            return false;
+        }
+        Entry entry = new Entry(level, message, sourceId, line);
+        int capacity = mEntries.length;
+        if (mSize == capacity) {
+            mLevelCounts[mEntries[mStart].mLevel.ordinal()]--;
+            mEntries[mStart] = entry;
+            mStart = (mStart + 1) % capacity;
+        } else {
+            mEntries[(mStart + mSize) % capacity] = entry;
+            mSize++;
+        }
+        mLevelCounts[level.ordinal()]++;
+        return true;
+    }
+
+    private boolean isRateLimited(String sourceId, int line, long now) {
+        String key = sourceId + ":" + line;
+        RateWindow window = mRateWindows.get(key);
+        if (window == null) {
+            if (mRateWindows.size() >= MAX_TRACKED_SOURCES) {
+                mRateWindows.clear();
+            }
+            window = new RateWindow();
+            window.mWindowStart = now;
+            mRateWindows.put(key, window);
+        } else if (now - window.mWindowStart >= RATE_LIMIT_WINDOW_MS) {
+            window.mWindowStart = now;
+            window.mCount = 0;
+        }
+        return ++window.mCount > RATE_LIMIT_MAX;
+    }
+
+    /**
+     * Returns the message at position, where 0 is the oldest message still
+     * held by the buffer.
+     */
+    Entry get(int position) {
+        if (position < 0 || position >= mSize) {
+            throw new IndexOutOfBoundsException("position " + position
+                    + " size " + mSize);
+        }
+        return mEntries[(mStart + position) % mEntries.length];
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public int getCapacity() {
+        return mEntries.length;
+    }
+
+    /**
+     * Returns the number of buffered messages with the given level.
+     */
+    public int getCount(MessageLevel level) {
+        return mLevelCounts[level.ordinal()];
+    }
+
+    /**
+     * Returns the number of messages dropped by the rate limit since the
+     * buffer was last cleared.
+     */
+    public int getDroppedCount() {
+        return mDropped;
+    }
+
+    public void clear() {
+        for (int i = 0; i < mEntries.length; i++) {
+            mEntries[i] = null;
+        }
+        mStart = 0;
+        mSize = 0;
+        mDropped = 0;
+        for (int i = 0; i < mLevelCounts.length; i++) {
+            mLevelCounts[i] = 0;
+        }
+        mRateWindows.clear();
+    }
+
+    /**
+     * Writes the current contents of the buffer to file. The entries are
+     * captured on the calling thread, formatting and file IO happen on the
+     * background thread pool. The callback, if any, is invoked on the
+     * background thread.
+     */
+    public void exportTo(final File file, final ExportCallback callback) {
+        final Entry[] snapshot = new Entry[mSize];
+        for (int i = 0; i < mSize; i++) {
+            snapshot[i] = get(i);
+        }
+        final int dropped = mDropped;
+        BackgroundHandler.execute(new Runnable() {
+            @Override
+            public void run() {
+                boolean success = false;
+                Writer out = null;
+                try {
+                    out = new BufferedWriter(new FileWriter(file));
+                    for (Entry e : snapshot) {
+                        e.writeTo(out);
+                    }
+                    if (dropped > 0) {
+                        out.write("(" + dropped + " messages dropped)\n");
+                    }
+                    success = true;
+                } catch (IOException e) {
+                    Log.w(LOGTAG, "Failed to export console messages", e);
+                } finally {
+                    if (out != null) {
+                        try {
+                            out.close();
+                        } catch (IOException e) {
+                            success = false;
+                        }
+                    }
+                }
+                if (callback != null) {
+                    callback.onExportFinished(file, success);
+                }
+            }
+        });
+    }
+}
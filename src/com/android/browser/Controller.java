@@ -23,7 +23,6 @@ import android.app.ProgressDialog;
 import android.content.ClipboardManager;
 import android.content.ContentResolver;
 import android.content.ContentUris;
-import android.content.ContentValues;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.content.DialogInterface.OnCancelListener;
@@ -32,12 +31,11 @@ import android.content.pm.PackageManager;
 import android.content.pm.ResolveInfo;
 import android.content.res.Configuration;
 import android.content.res.TypedArray;
-import android.database.ContentObserver;
-import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
-import android.database.sqlite.SQLiteException;
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
 import android.net.Uri;
 import android.net.http.SslError;
 import android.os.AsyncTask;
@@ -47,10 +45,10 @@ import android.os.Handler;
 import android.os.Message;
 import android.os.PowerManager;
 import android.os.PowerManager.WakeLock;
+import android.os.SystemClock;
 import android.preference.PreferenceActivity;
 import android.provider.Browser;
 import android.provider.BrowserContract;
-import android.provider.BrowserContract.Images;
 import android.provider.ContactsContract;
 import android.provider.ContactsContract.Intents.Insert;
 import android.speech.RecognizerIntent;
@@ -86,7 +84,6 @@ import com.android.browser.UI.ComboViews;
 import com.android.browser.provider.BrowserProvider2.Thumbnails;
 import com.android.browser.provider.SnapshotProvider.Snapshots;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
@@ -160,12 +157,15 @@ public class Controller
 
     // A bitmap that is re-used in createScreenshot as scratch space
     private static Bitmap sThumbnailBitmap;
+    // Paint used to filter the scratch bitmap down to the thumbnail size
+    private static final Paint sThumbnailPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
 
     private Activity mActivity;
     private UI mUi;
     private TabControl mTabControl;
     private BrowserSettings mSettings;
     private WebViewFactory mFactory;
+    private BookmarkThumbnailUpdater mThumbnailUpdater;
 
     private WakeLock mWakeLock;
 
@@ -181,6 +181,12 @@ public class Controller
 
     private SystemAllowGeolocationOrigins mSystemAllowGeolocationOrigins;
 
+    // Startup work run off the main thread, see StartupTasks.
+    private static final String STARTUP_CRASH_STATE = "crash_state";
+    private static final String STARTUP_SEARCH_ENGINE = "search_engine";
+    private final StartupTasks mStartupTasks = new StartupTasks();
+    private long mPreloginStart;
+
     // FIXME, temp address onPrepareMenu performance problem.
     // When we move everything out of view, we should rewrite this.
     private int mCurrentMenuState = 0;
@@ -219,9 +225,9 @@ public class Controller
     private boolean mLoadStopped;
 
     private Handler mHandler;
-    // Checks to see when the bookmarks database has changed, and updates the
-    // Tabs' notion of whether they represent bookmarked sites.
-    private ContentObserver mBookmarksObserver;
+    // Notified once per batch of bookmark changes, updates the Tabs' notion
+    // of whether they represent bookmarked sites.
+    private DataController.OnBookmarksChangedListener mBookmarksListener;
     private CrashRecoveryHandler mCrashRecoveryHandler;
 
     private boolean mBlockEvents;
@@ -229,31 +235,31 @@ public class Controller
     private String mVoiceResult;
 
     public Controller(Activity browser) {
+        long start = SystemClock.uptimeMillis();
         mActivity = browser;
         mSettings = BrowserSettings.getInstance();
         mTabControl = new TabControl(this);
         mSettings.setController(this);
         mCrashRecoveryHandler = CrashRecoveryHandler.initialize(this);
-        mCrashRecoveryHandler.preloadCrashState();
         mFactory = new BrowserWebViewFactory(browser);
+        mThumbnailUpdater = new BookmarkThumbnailUpdater(browser);
 
         mUrlHandler = new UrlHandler(this);
         mIntentHandler = new IntentHandler(mActivity, this);
         mPageDialogsHandler = new PageDialogsHandler(mActivity, this);
 
         startHandler();
-        mBookmarksObserver = new ContentObserver(mHandler) {
+        mBookmarksListener = new DataController.OnBookmarksChangedListener() {
             @Override
-            public void onChange(boolean selfChange) {
+            public void onBookmarksChanged() {
                 int size = mTabControl.getTabCount();
                 for (int i = 0; i < size; i++) {
                     mTabControl.getTab(i).updateBookmarkedStatus();
                 }
             }
-
         };
-        browser.getContentResolver().registerContentObserver(
-                BrowserContract.Bookmarks.CONTENT_URI, true, mBookmarksObserver);
+        DataController.getInstance(browser).addOnBookmarksChangedListener(
+                mBookmarksListener);
 
         mNetworkHandler = new NetworkStateHandler(mActivity, this);
         // Start watching the default geolocation permissions
@@ -262,11 +268,35 @@ public class Controller
         mSystemAllowGeolocationOrigins.start();
 
         openIconDatabase();
+
+        // Reading the saved state and loading the search engine are
+        // independent of each other and of the rest of the setup, so they
+        // run in parallel on the startup pool. start() waits for the state.
+        // The rest of the constructor creates views and webkit objects,
+        // which must happen on the main thread.
+        mStartupTasks.add(STARTUP_CRASH_STATE, new Runnable() {
+            @Override
+            public void run() {
+                mCrashRecoveryHandler.preloadCrashState();
+            }
+        });
+        mStartupTasks.add(STARTUP_SEARCH_ENGINE, new Runnable() {
+            @Override
+            public void run() {
+                // So the first search or suggestion query doesn't have to
+                // parse it
+                mSettings.getSearchEngine();
+            }
+        });
+        mStartupTasks.start();
+        Performance.recordStartupPhase("controller_init", start,
+                SystemClock.uptimeMillis());
     }
 
     @Override
     public void start(final Intent intent) {
         // mCrashRecoverHandler has any previously saved state.
+        mStartupTasks.await(STARTUP_CRASH_STATE);
         mCrashRecoveryHandler.startRecovery(intent);
     }
 
@@ -295,9 +325,12 @@ public class Controller
             CookieManager.getInstance().removeSessionCookie();
         }
 
+        mPreloginStart = SystemClock.uptimeMillis();
         GoogleAccountLogin.startLoginIfNeeded(mActivity,
                 new Runnable() {
                     @Override public void run() {
+                        Performance.recordStartupPhase("prelogin", mPreloginStart,
+                                SystemClock.uptimeMillis());
                         onPreloginFinished(icicle, intent, currentTabId,
                                 restoreIncognitoTabs);
                     }
@@ -306,6 +339,7 @@ public class Controller
 
     private void onPreloginFinished(Bundle icicle, Intent intent, long currentTabId,
             boolean restoreIncognitoTabs) {
+        long start = SystemClock.uptimeMillis();
         if (currentTabId == -1) {
             BackgroundHandler.execute(new PruneThumbnails(mActivity, null));
             if (intent == null) {
@@ -365,6 +399,8 @@ public class Controller
                 && BrowserActivity.ACTION_SHOW_BOOKMARKS.equals(intent.getAction())) {
             bookmarksOrHistoryPicker(ComboViews.Bookmarks);
         }
+        Performance.recordStartupPhase("first_tab", start,
+                SystemClock.uptimeMillis());
     }
 
     private static class PruneThumbnails implements Runnable {
@@ -615,6 +651,7 @@ public class Controller
         mConfigChanged = true;
         // update the menu in case of a locale change
         mActivity.invalidateOptionsMenu();
+        mSettings.onConfigurationChanged();
         if (mPageDialogsHandler != null) {
             mPageDialogsHandler.onConfigurationChanged(config);
         }
@@ -680,12 +717,15 @@ public class Controller
      * @return Bundle containing the current state of all tabs.
      */
     /* package */ Bundle createSaveState() {
+        long start = SystemClock.uptimeMillis();
         Bundle saveState = new Bundle();
-        mTabControl.saveState(saveState);
+        int captured = mTabControl.saveState(saveState);
         if (!saveState.isEmpty()) {
             // Save time so that we know how old incognito tabs (if any) are.
             saveState.putSerializable("lastActiveDate", Calendar.getInstance());
         }
+        Performance.recordSaveState(SystemClock.uptimeMillis() - start,
+                captured, mTabControl.getTabCount());
         return saveState;
     }
 
@@ -764,11 +804,13 @@ public class Controller
             dismissSubWindow(t);
             removeTab(t);
         }
-        mActivity.getContentResolver().unregisterContentObserver(mBookmarksObserver);
+        DataController.getInstance(mActivity).removeOnBookmarksChangedListener(
+                mBookmarksListener);
         // Destroy all the tabs
         mTabControl.destroy();
         WebIconDatabase.getInstance().close();
         // Stop watching the default geolocation permissions
+        mStartupTasks.cancel();
         mSystemAllowGeolocationOrigins.stop();
         mSystemAllowGeolocationOrigins = null;
     }
@@ -1979,6 +2021,22 @@ public class Controller
                 || view.getContentWidth() == 0) {
             return null;
         }
+        Bitmap ret = Bitmap.createBitmap(width, height, Bitmap.Config.RGB_565);
+        drawScreenshot(view, ret);
+        return ret;
+    }
+
+    /**
+     * Draws a screenshot of the view scaled down to the size of target.
+     * @return false if the view has no content to draw.
+     */
+    static boolean drawScreenshot(WebView view, Bitmap target) {
+        if (view == null || view.getContentHeight() == 0
+                || view.getContentWidth() == 0) {
+            return false;
+        }
+        int width = target.getWidth();
+        int height = target.getHeight();
         // We render to a bitmap 2x the desired size so that we can then
         // re-scale it with filtering since canvas.scale doesn't filter
         // This helps reduce aliasing at the cost of being slightly blurry
@@ -2009,10 +2067,12 @@ public class Controller
         } else {
             view.draw(canvas);
         }
-        Bitmap ret = Bitmap.createScaledBitmap(sThumbnailBitmap,
-                width, height, true);
         canvas.setBitmap(null);
-        return ret;
+        canvas = new Canvas(target);
+        canvas.drawBitmap(sThumbnailBitmap, null, new Rect(0, 0, width, height),
+                sThumbnailPaint);
+        canvas.setBitmap(null);
+        return true;
     }
 
     private void updateScreenshot(Tab tab) {
@@ -2039,45 +2099,7 @@ public class Controller
             return;
         }
 
-        final Bitmap bm = createScreenshot(view, getDesiredThumbnailWidth(mActivity),
-                getDesiredThumbnailHeight(mActivity));
-        if (bm == null) {
-            return;
-        }
-
-        final ContentResolver cr = mActivity.getContentResolver();
-        new AsyncTask<Void, Void, Void>() {
-            @Override
-            protected Void doInBackground(Void... unused) {
-                Cursor cursor = null;
-                try {
-                    // TODO: Clean this up
-                    cursor = Bookmarks.queryCombinedForUrl(cr, originalUrl, url);
-                    if (cursor != null && cursor.moveToFirst()) {
-                        final ByteArrayOutputStream os =
-                                new ByteArrayOutputStream();
-                        bm.compress(Bitmap.CompressFormat.PNG, 100, os);
-
-                        ContentValues values = new ContentValues();
-                        values.put(Images.THUMBNAIL, os.toByteArray());
-
-                        do {
-                            values.put(Images.URL, cursor.getString(0));
-                            cr.update(Images.CONTENT_URI, values, null, null);
-                        } while (cursor.moveToNext());
-                    }
-                } catch (IllegalStateException e) {
-                    // Ignore
-                } catch (SQLiteException s) {
-                    // Added for possible error when user tries to remove the same bookmark
-                    // that is being updated with a screen shot
-                    Log.w(LOGTAG, "Error when running updateScreenshot ", s);
-                } finally {
-                    if (cursor != null) cursor.close();
-                }
-                return null;
-            }
-        }.execute();
+        mThumbnailUpdater.capture(view, url, originalUrl);
     }
 
     private class Copy implements OnMenuItemClickListener {
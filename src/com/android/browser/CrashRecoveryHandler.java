@@ -48,7 +48,6 @@ public class CrashRecoveryHandler {
 
     private static final int MSG_WRITE_STATE = 1;
     private static final int MSG_CLEAR_STATE = 2;
-    private static final int MSG_PRELOAD_STATE = 3;
 
     private static CrashRecoveryHandler sInstance;
 
@@ -56,7 +55,6 @@ public class CrashRecoveryHandler {
     private Context mContext;
     private Handler mForegroundHandler;
     private Handler mBackgroundHandler;
-    private boolean mIsPreloading = false;
     private boolean mDidPreload = false;
     private Bundle mRecoveryState = null;
 
@@ -95,14 +93,6 @@ public class CrashRecoveryHandler {
                         state.delete();
                     }
                     break;
-                case MSG_PRELOAD_STATE:
-                    mRecoveryState = loadCrashState();
-                    synchronized (CrashRecoveryHandler.this) {
-                        mIsPreloading = false;
-                        mDidPreload = true;
-                        CrashRecoveryHandler.this.notifyAll();
-                    }
-                    break;
                 }
             }
         };
@@ -118,6 +108,8 @@ public class CrashRecoveryHandler {
         public void run() {
             try {
                 final Bundle state = mController.createSaveState();
+                // Only the newest state needs to be written
+                mBackgroundHandler.removeMessages(MSG_WRITE_STATE);
                 Message.obtain(mBackgroundHandler, MSG_WRITE_STATE, state)
                         .sendToTarget();
                 // Remove any queued up saves
@@ -189,30 +181,27 @@ public class CrashRecoveryHandler {
     }
 
     public void startRecovery(Intent intent) {
+        Bundle state;
         synchronized (CrashRecoveryHandler.this) {
-            while (mIsPreloading) {
-                try {
-                    CrashRecoveryHandler.this.wait();
-                } catch (InterruptedException e) {}
-            }
-        }
-        if (!mDidPreload) {
-            mRecoveryState = loadCrashState();
+            state = mDidPreload ? mRecoveryState : loadCrashState();
+            mDidPreload = false;
+            mRecoveryState = null;
         }
-        updateLastRecovered(mRecoveryState != null
+        updateLastRecovered(state != null
                 ? System.currentTimeMillis() : 0);
-        mController.doStart(mRecoveryState, intent);
-        mRecoveryState = null;
+        mController.doStart(state, intent);
     }
 
+    /**
+     * Reads the saved state ahead of {@link #startRecovery(Intent)}. This
+     * does file IO, so it must not be called on the UI thread.
+     */
     public void preloadCrashState() {
+        Bundle state = loadCrashState();
         synchronized (CrashRecoveryHandler.this) {
-            if (mIsPreloading) {
-                return;
-            }
-            mIsPreloading = true;
+            mRecoveryState = state;
+            mDidPreload = true;
         }
-        mBackgroundHandler.sendEmptyMessage(MSG_PRELOAD_STATE);
     }
 
     /**
@@ -21,6 +21,7 @@ import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
+import android.database.ContentObserver;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteException;
 import android.graphics.Bitmap;
@@ -34,8 +35,11 @@ import android.util.Log;
 import com.android.browser.provider.BrowserProvider2.Thumbnails;
 
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class DataController {
     private static final String LOGTAG = "DataController";
@@ -46,6 +50,9 @@ public class DataController {
     private static final int TAB_LOAD_THUMBNAIL = 201;
     private static final int TAB_SAVE_THUMBNAIL = 202;
     private static final int TAB_DELETE_THUMBNAIL = 203;
+    private static final int BOOKMARKS_RELOAD = 300;
+    private static final int BOOKMARKS_ROW_CHANGED = 301;
+    private static final int BOOKMARKS_CHANGED = 302;
     private static DataController sInstance;
 
     private Context mContext;
@@ -53,9 +60,32 @@ public class DataController {
     private Handler mCbHandler; // To respond on the UI thread
     private ByteBuffer mBuffer; // to capture thumbnails
 
+    // In memory copy of the bookmarked urls, so that bookmark status can be
+    // answered without a query. Guarded by mBookmarksLock. Populated on the
+    // DataControllerHandler thread, and kept up to date from provider change
+    // notifications.
+    private final Object mBookmarksLock = new Object();
+    private final HashMap<Long, String> mBookmarkUrlsById = new HashMap<Long, String>();
+    private final HashMap<String, Integer> mBookmarkedUrls = new HashMap<String, Integer>();
+    private boolean mBookmarksLoaded;
+    // Status queries made before the first load completed
+    private final ArrayList<DCMessage> mPendingBookmarkQueries = new ArrayList<DCMessage>();
+    private final AtomicBoolean mBookmarksReloadPending = new AtomicBoolean();
+    private final ArrayList<OnBookmarksChangedListener> mBookmarksListeners =
+            new ArrayList<OnBookmarksChangedListener>();
+    private final AtomicBoolean mBookmarksChangedPending = new AtomicBoolean();
+
     /* package */ static interface OnQueryUrlIsBookmark {
         void onQueryUrlIsBookmark(String url, boolean isBookmark);
     }
+
+    /* package */ static interface OnBookmarksChangedListener {
+        /**
+         * Called on the UI thread, at most once per batch of bookmark
+         * changes, after the bookmarked url set has been updated.
+         */
+        void onBookmarksChanged();
+    }
     private static class CallbackContainer {
         Object replyTo;
         Object[] args;
@@ -94,9 +124,69 @@ public class DataController {
                         cb.onQueryUrlIsBookmark(url, isBookmark);
                         break;
                     }
+                    case BOOKMARKS_CHANGED: {
+                        mBookmarksChangedPending.set(false);
+                        for (OnBookmarksChangedListener l
+                                : new ArrayList<OnBookmarksChangedListener>(mBookmarksListeners)) {
+                            l.onBookmarksChanged();
+                        }
+                        break;
+                    }
                 }
             }
         };
+        mContext.getContentResolver().registerContentObserver(
+                BookmarkUtils.getBookmarksUri(mContext), true,
+                new ContentObserver(mCbHandler) {
+                    @Override
+                    public void onChange(boolean selfChange) {
+                        onChange(selfChange, null);
+                    }
+
+                    @Override
+                    public void onChange(boolean selfChange, Uri uri) {
+                        onBookmarksUriChanged(uri);
+                    }
+                });
+        mDataHandler.sendMessage(BOOKMARKS_RELOAD, null);
+    }
+
+    private void onBookmarksUriChanged(Uri uri) {
+        long id = -1;
+        if (uri != null && uri.getPathSegments().size() == 2) {
+            try {
+                id = ContentUris.parseId(uri);
+            } catch (NumberFormatException e) {
+                // Not a single row, e.g. bookmarks/folder
+            }
+        }
+        if (id >= 0) {
+            mDataHandler.sendMessage(BOOKMARKS_ROW_CHANGED, id);
+        } else if (mBookmarksReloadPending.compareAndSet(false, true)) {
+            // A reload already queued covers this change as well
+            mDataHandler.sendMessage(BOOKMARKS_RELOAD, null);
+        }
+    }
+
+    /**
+     * Register for a single, batched callback on the UI thread whenever the
+     * set of bookmarked urls may have changed.
+     */
+    public void addOnBookmarksChangedListener(OnBookmarksChangedListener l) {
+        if (!mBookmarksListeners.contains(l)) {
+            mBookmarksListeners.add(l);
+        }
+    }
+
+    public void removeOnBookmarksChangedListener(OnBookmarksChangedListener l) {
+        mBookmarksListeners.remove(l);
+    }
+
+    private void postBookmarksChanged() {
+        // Coalesce a burst of row changes into a single callback
+        if (mBookmarksChangedPending.compareAndSet(false, true)) {
+            mCbHandler.sendEmptyMessage(BOOKMARKS_CHANGED);
+        }
     }
 
     public void updateVisitedHistory(String url) {
@@ -113,7 +203,24 @@ public class DataController {
             replyTo.onQueryUrlIsBookmark(url, false);
             return;
         }
-        mDataHandler.sendMessage(QUERY_URL_IS_BOOKMARK, url.trim(), replyTo);
+        url = url.trim();
+        synchronized (mBookmarksLock) {
+            if (mBookmarksLoaded) {
+                // Answered from the cache, but still from a posted callback
+                // like a query would be
+                replyBookmarkStatus(url, mBookmarkedUrls.containsKey(url), replyTo);
+                return;
+            }
+        }
+        // Answered once the bookmarked urls have been loaded
+        mDataHandler.sendMessage(QUERY_URL_IS_BOOKMARK, url, replyTo);
+    }
+
+    private void replyBookmarkStatus(String url, boolean isBookmark, Object replyTo) {
+        CallbackContainer cc = new CallbackContainer();
+        cc.replyTo = replyTo;
+        cc.args = new Object[] { url, isBookmark };
+        mCbHandler.obtainMessage(QUERY_URL_IS_BOOKMARK, cc).sendToTarget();
     }
 
     public void loadThumbnail(Tab tab) {
@@ -171,11 +278,15 @@ public class DataController {
                 doUpdateHistoryTitle(args[0], args[1]);
                 break;
             case QUERY_URL_IS_BOOKMARK:
-                // TODO: Look for identical messages in the queue and remove them
-                // TODO: Also, look for partial matches and merge them (such as
-                //       multiple callbacks querying the same URL)
                 doQueryBookmarkStatus((String) msg.obj, msg.replyTo);
                 break;
+            case BOOKMARKS_RELOAD:
+                mBookmarksReloadPending.set(false);
+                doReloadBookmarks();
+                break;
+            case BOOKMARKS_ROW_CHANGED:
+                doUpdateBookmarkRow((Long) msg.obj);
+                break;
             case TAB_LOAD_THUMBNAIL:
                 doLoadThumbnail((Tab) msg.obj);
                 break;
@@ -269,26 +380,103 @@ public class DataController {
         }
 
         private void doQueryBookmarkStatus(String url, Object replyTo) {
-            // Check to see if the site is bookmarked
+            boolean isBookmark;
+            synchronized (mBookmarksLock) {
+                if (!mBookmarksLoaded) {
+                    // The initial load failed, try again on the next change
+                    DCMessage m = new DCMessage(QUERY_URL_IS_BOOKMARK, url);
+                    m.replyTo = replyTo;
+                    mPendingBookmarkQueries.add(m);
+                    return;
+                }
+                isBookmark = mBookmarkedUrls.containsKey(url);
+            }
+            replyBookmarkStatus(url, isBookmark, replyTo);
+        }
+
+        private void doReloadBookmarks() {
+            HashMap<Long, String> urls = new HashMap<Long, String>();
             Cursor cursor = null;
-            boolean isBookmark = false;
             try {
                 cursor = mContext.getContentResolver().query(
                         BookmarkUtils.getBookmarksUri(mContext),
+                        new String[] { BrowserContract.Bookmarks._ID,
+                                BrowserContract.Bookmarks.URL },
+                        BrowserContract.Bookmarks.URL + " IS NOT NULL",
+                        null, null);
+                while (cursor.moveToNext()) {
+                    urls.put(cursor.getLong(0), cursor.getString(1));
+                }
+            } catch (SQLiteException e) {
+                Log.e(LOGTAG, "Error loading bookmarks: " + e);
+                return;
+            } finally {
+                if (cursor != null) cursor.close();
+            }
+            ArrayList<DCMessage> pending;
+            synchronized (mBookmarksLock) {
+                mBookmarkUrlsById.clear();
+                mBookmarkedUrls.clear();
+                for (HashMap.Entry<Long, String> e : urls.entrySet()) {
+                    putBookmarkLocked(e.getKey(), e.getValue());
+                }
+                mBookmarksLoaded = true;
+                pending = new ArrayList<DCMessage>(mPendingBookmarkQueries);
+                mPendingBookmarkQueries.clear();
+            }
+            for (DCMessage m : pending) {
+                doQueryBookmarkStatus((String) m.obj, m.replyTo);
+            }
+            postBookmarksChanged();
+        }
+
+        private void doUpdateBookmarkRow(long id) {
+            String url = null;
+            Cursor cursor = null;
+            try {
+                cursor = mContext.getContentResolver().query(
+                        ContentUris.withAppendedId(BookmarkUtils.getBookmarksUri(mContext), id),
                         new String[] { BrowserContract.Bookmarks.URL },
-                        BrowserContract.Bookmarks.URL + " == ?",
-                        new String[] { url },
-                        null);
-                isBookmark = cursor.moveToFirst();
+                        null, null, null);
+                if (cursor.moveToFirst()) {
+                    url = cursor.getString(0);
+                }
             } catch (SQLiteException e) {
-                Log.e(LOGTAG, "Error checking for bookmark: " + e);
+                Log.e(LOGTAG, "Error checking bookmark " + id + ": " + e);
+                return;
             } finally {
                 if (cursor != null) cursor.close();
             }
-            CallbackContainer cc = new CallbackContainer();
-            cc.replyTo = replyTo;
-            cc.args = new Object[] { url, isBookmark };
-            mCbHandler.obtainMessage(QUERY_URL_IS_BOOKMARK, cc).sendToTarget();
+            synchronized (mBookmarksLock) {
+                if (!mBookmarksLoaded) {
+                    // Will be picked up by the initial load
+                    return;
+                }
+                removeBookmarkLocked(id);
+                if (url != null) {
+                    putBookmarkLocked(id, url);
+                }
+            }
+            postBookmarksChanged();
+        }
+
+        private void putBookmarkLocked(long id, String url) {
+            mBookmarkUrlsById.put(id, url);
+            Integer count = mBookmarkedUrls.get(url);
+            mBookmarkedUrls.put(url, count == null ? 1 : count + 1);
+        }
+
+        private void removeBookmarkLocked(long id) {
+            String url = mBookmarkUrlsById.remove(id);
+            if (url == null) {
+                return;
+            }
+            Integer count = mBookmarkedUrls.get(url);
+            if (count == null || count <= 1) {
+                mBookmarkedUrls.remove(url);
+            } else {
+                mBookmarkedUrls.put(url, count - 1);
+            }
         }
 
         private void doUpdateHistoryTitle(String url, String title) {
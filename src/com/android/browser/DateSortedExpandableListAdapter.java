@@ -18,7 +18,9 @@ package com.android.browser;
 
 import android.content.Context;
 import android.database.Cursor;
-import android.database.DataSetObserver;
+import android.os.AsyncTask;
+import android.provider.BaseColumns;
+import android.util.LruCache;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -27,93 +29,111 @@ import android.widget.BaseExpandableListAdapter;
 import android.widget.ExpandableListView;
 import android.widget.TextView;
 
+import java.util.HashSet;
+
 /**
  * ExpandableListAdapter which separates data into categories based on date.
- * Used for History and Downloads.
+ * Used for History.
+ *
+ * The adapter never holds the whole data set. The number of items in each
+ * {@link DateSorter} bin comes from a single aggregate query (see
+ * {@link #getBinSelection(String)}), and the rows of a bin are loaded lazily
+ * in pages of {@link #PAGE_SIZE} as they are displayed. Only the most
+ * recently used pages are kept open, so memory stays constant no matter
+ * how large the underlying table is.
  */
-public class DateSortedExpandableListAdapter extends BaseExpandableListAdapter {
+public abstract class DateSortedExpandableListAdapter extends BaseExpandableListAdapter {
+
+    static final int PAGE_SIZE = 50;
+    private static final int MAX_CACHED_PAGES = 8;
+
+    /**
+     * Column name of the bin index in the cursor passed to
+     * {@link #changeBinCounts(Cursor)}.
+     */
+    public static final String COLUMN_BIN = "bin";
+    public static final String COLUMN_COUNT = "count";
+
     // Array for each of our bins.  Each entry represents how many items are
     // in that bin.
     private int mItemMap[];
     // This is our GroupCount.  We will have at most DateSorter.DAY_COUNT
     // bins, less if the user has no items in one or more bins.
     private int mNumberOfBins;
-    private Cursor mCursor;
+    private int mTotalCount;
     private DateSorter mDateSorter;
-    private int mDateIndex;
-    private int mIdIndex;
     private Context mContext;
-
-    boolean mDataValid;
-
-    DataSetObserver mDataSetObserver = new DataSetObserver() {
-        @Override
-        public void onChanged() {
-            mDataValid = true;
-            notifyDataSetChanged();
-        }
-
+    // The page the last successful moveCursorToChildPosition landed on
+    private Cursor mCursor;
+    // Whether mCursor was dropped from mPages, in which case it is ours to
+    // close once it stops being mCursor
+    private boolean mCursorEvicted;
+    // Bumped every time the counts change, so that pages loaded against
+    // old data are discarded
+    private int mGeneration;
+    private final HashSet<Long> mPendingPages = new HashSet<Long>();
+    private final LruCache<Long, Cursor> mPages =
+            new LruCache<Long, Cursor>(MAX_CACHED_PAGES) {
         @Override
-        public void onInvalidated() {
-            mDataValid = false;
-            notifyDataSetInvalidated();
+        protected void entryRemoved(boolean evicted, Long key, Cursor oldValue,
+                Cursor newValue) {
+            if (oldValue != mCursor) {
+                oldValue.close();
+            } else {
+                mCursorEvicted = true;
+            }
         }
     };
-    
-    public DateSortedExpandableListAdapter(Context context, int dateIndex) {
+
+    boolean mDataValid;
+
+    public DateSortedExpandableListAdapter(Context context) {
         mContext = context;
         mDateSorter = new DateSorter(context);
-        mDateIndex = dateIndex;
         mDataValid = false;
-        mIdIndex = -1;
+        mItemMap = new int[DateSorter.DAY_COUNT];
     }
 
     /**
-     * Set up the bins for determining which items belong to which groups.
+     * Query one page of the rows in a date range, sorted by date descending.
+     * Called on a background thread.
+     * @param selection Restricts the rows to a single bin, see
+     *        {@link #getBinRangeSelection(int, String)}.
+     * @param offset Number of rows in the bin to skip.
+     * @param count Maximum number of rows to return.
      */
-    private void buildMap() {
-        // The cursor is sorted by date
-        // The ItemMap will store the number of items in each bin.
-        int array[] = new int[DateSorter.DAY_COUNT];
-        // Zero out the array.
-        for (int j = 0; j < DateSorter.DAY_COUNT; j++) {
-            array[j] = 0;
-        }
-        mNumberOfBins = 0;
-        int dateIndex = -1;
-        if (mCursor.moveToFirst() && mCursor.getCount() > 0) {
-            while (!mCursor.isAfterLast()) {
-                long date = getLong(mDateIndex);
-                int index = mDateSorter.getIndex(date);
-                if (index > dateIndex) {
-                    mNumberOfBins++;
-                    if (index == DateSorter.DAY_COUNT - 1) {
-                        // We are already in the last bin, so it will
-                        // include all the remaining items
-                        array[index] = mCursor.getCount()
-                                - mCursor.getPosition();
-                        break;
-                    }
-                    dateIndex = index;
-                }
-                array[dateIndex]++;
-                mCursor.moveToNext();
-            }
+    protected abstract Cursor queryPage(String selection, int offset, int count);
+
+    /**
+     * Returns an SQL expression that evaluates to the DateSorter bin of the
+     * given date column. Group by this expression to get the bin counts.
+     */
+    String getBinSelection(String dateColumn) {
+        StringBuilder sb = new StringBuilder("CASE");
+        for (int i = 0; i < DateSorter.DAY_COUNT - 1; i++) {
+            sb.append(" WHEN ").append(dateColumn).append(" > ")
+                    .append(mDateSorter.getBoundary(i))
+                    .append(" THEN ").append(i);
         }
-        mItemMap = array;
+        sb.append(" ELSE ").append(DateSorter.DAY_COUNT - 1).append(" END");
+        return sb.toString();
     }
 
     /**
-     * Get the byte array at cursorIndex from the Cursor.  Assumes the Cursor
-     * has already been moved to the correct position.  Along with
-     * {@link #getInt} and {@link #getString}, these are provided so the client
-     * does not need to access the Cursor directly
-     * @param cursorIndex Index to query the Cursor.
-     * @return corresponding byte array from the Cursor.
+     * Returns a selection on dateColumn that matches the rows in one bin.
      */
-    /* package */ byte[] getBlob(int cursorIndex) {
-        if (!mDataValid) return null; 
-        return mCursor.getBlob(cursorIndex);
+    String getBinRangeSelection(int bin, String dateColumn) {
+        StringBuilder sb = new StringBuilder();
+        if (bin < DateSorter.DAY_COUNT - 1) {
+            sb.append(dateColumn).append(" > ").append(mDateSorter.getBoundary(bin));
+        }
+        if (bin > 0) {
+            if (sb.length() > 0) {
+                sb.append(" AND ");
+            }
+            sb.append(dateColumn).append(" <= ").append(mDateSorter.getBoundary(bin - 1));
+        }
+        return sb.toString();
     }
 
     /* package */ Context getContext() {
@@ -123,13 +143,13 @@ public class DateSortedExpandableListAdapter extends BaseExpandableListAdapter {
     /**
      * Get the integer at cursorIndex from the Cursor.  Assumes the Cursor has
      * already been moved to the correct position.  Along with
-     * {@link #getBlob} and {@link #getString}, these are provided so the client
+     * {@link #getString}, these are provided so the client
      * does not need to access the Cursor directly
      * @param cursorIndex Index to query the Cursor.
      * @return corresponding integer from the Cursor.
      */
     /* package */ int getInt(int cursorIndex) {
-        if (!mDataValid) return 0; 
+        if (!mDataValid || mCursor == null) return 0;
         return mCursor.getInt(cursorIndex);
     }
 
@@ -138,50 +158,57 @@ public class DateSortedExpandableListAdapter extends BaseExpandableListAdapter {
      * already been moved to the correct position.
      */
     /* package */ long getLong(int cursorIndex) {
-        if (!mDataValid) return 0; 
+        if (!mDataValid || mCursor == null) return 0;
         return mCursor.getLong(cursorIndex);
     }
 
     /**
      * Get the String at cursorIndex from the Cursor.  Assumes the Cursor has
      * already been moved to the correct position.  Along with
-     * {@link #getInt} and {@link #getInt}, these are provided so the client
+     * {@link #getInt}, these are provided so the client
      * does not need to access the Cursor directly
      * @param cursorIndex Index to query the Cursor.
      * @return corresponding String from the Cursor.
      */
     /* package */ String getString(int cursorIndex) {
-        if (!mDataValid) return null; 
+        if (!mDataValid || mCursor == null) return null;
         return mCursor.getString(cursorIndex);
     }
 
     /**
-     * Determine which group an item belongs to.
-     * @param childId ID of the child view in question.
-     * @return int Group position of the containing group.
-    /* package */ int groupFromChildId(long childId) {
-        if (!mDataValid) return -1; 
-        int group = -1;
-        for (mCursor.moveToFirst(); !mCursor.isAfterLast();
-                mCursor.moveToNext()) {
-            if (getLong(mIdIndex) == childId) {
-                int bin = mDateSorter.getIndex(getLong(mDateIndex));
-                // bin is the same as the group if the number of bins is the
-                // same as DateSorter
-                if (DateSorter.DAY_COUNT == mNumberOfBins) {
-                    return bin;
-                }
-                // There are some empty bins.  Find the corresponding group.
-                group = 0;
-                for (int i = 0; i < bin; i++) {
-                    if (mItemMap[i] != 0) {
-                        group++;
-                    }
-                }
-                break;
+     * Get the byte array at cursorIndex from the Cursor.  Assumes the Cursor
+     * has already been moved to the correct position.
+     */
+    /* package */ byte[] getBlob(int cursorIndex) {
+        if (!mDataValid || mCursor == null) return null;
+        return mCursor.getBlob(cursorIndex);
+    }
+
+    /**
+     * Returns the cursor positioned by the last successful call to
+     * {@link #moveCursorToChildPosition(int, int)}.
+     */
+    Cursor getCursor() {
+        return mCursor;
+    }
+
+    /**
+     * Returns the cursor positioned by the last successful call to
+     * {@link #moveCursorToChildPosition(int, int)} for a child of
+     * groupPosition.
+     */
+    Cursor getCursor(int groupPosition) {
+        return mCursor;
+    }
+
+    private void setCursor(Cursor cursor) {
+        if (mCursor != cursor) {
+            if (mCursorEvicted) {
+                mCursor.close();
             }
+            mCursor = cursor;
+            mCursorEvicted = false;
         }
-        return group;
     }
 
     /**
@@ -192,7 +219,7 @@ public class DateSortedExpandableListAdapter extends BaseExpandableListAdapter {
      * @return The corresponding bin that holds that group.
      */
     private int groupPositionToBin(int groupPosition) {
-        if (!mDataValid) return -1; 
+        if (!mDataValid) return -1;
         if (groupPosition < 0 || groupPosition >= DateSorter.DAY_COUNT) {
             throw new AssertionError("group position out of range");
         }
@@ -233,45 +260,138 @@ public class DateSortedExpandableListAdapter extends BaseExpandableListAdapter {
     }
 
     /**
-     * Move the cursor the the position indicated.
+     * Move the cursor the the position indicated. If the page containing
+     * the position has not been loaded yet, a load is started and the
+     * adapter notifies its observers once it is available.
      * @param groupPosition Index of the group containing the desired item.
      * @param childPosition Index of the item within the specified group.
-     * @return boolean False if the cursor is closed, so the Cursor was not
-     *      moved.  True on success.
+     * @return boolean False if the row is not loaded yet, so the Cursor was
+     *      not moved.  True on success.
      */
     /* package */ boolean moveCursorToChildPosition(int groupPosition,
             int childPosition) {
-        if (!mDataValid || mCursor.isClosed()) {
+        if (!mDataValid) {
+            return false;
+        }
+        int bin = groupPositionToBin(groupPosition);
+        int page = childPosition / PAGE_SIZE;
+        Cursor cursor = mPages.get(pageKey(bin, page));
+        if (cursor == null || cursor.isClosed()) {
+            loadPage(bin, page);
+            return false;
+        }
+        // Prefetch the next page when we get close to the end of this one
+        if (childPosition % PAGE_SIZE >= PAGE_SIZE - PAGE_SIZE / 4
+                && (page + 1) * PAGE_SIZE < mItemMap[bin]) {
+            loadPage(bin, page + 1);
+        }
+        if (!cursor.moveToPosition(childPosition % PAGE_SIZE)) {
             return false;
         }
-        groupPosition = groupPositionToBin(groupPosition);
-        int index = childPosition;
-        for (int i = 0; i < groupPosition; i++) {
-            index += mItemMap[i];
+        setCursor(cursor);
+        return true;
+    }
+
+    /**
+     * Whether the row at the position has been paged in. Unlike
+     * {@link #moveCursorToChildPosition(int, int)}, this neither moves the
+     * cursor nor starts a load.
+     */
+    /* package */ boolean isChildLoaded(int groupPosition, int childPosition) {
+        if (!mDataValid) {
+            return false;
         }
-        return mCursor.moveToPosition(index);
+        int bin = groupPositionToBin(groupPosition);
+        Cursor cursor = mPages.get(pageKey(bin, childPosition / PAGE_SIZE));
+        return cursor != null && !cursor.isClosed()
+                && childPosition % PAGE_SIZE < cursor.getCount();
+    }
+
+    private static long pageKey(int bin, int page) {
+        return ((long) bin << 32) | page;
     }
 
-    public void changeCursor(Cursor cursor) {
-        if (cursor == mCursor) {
+    private void loadPage(final int bin, final int page) {
+        final long key = pageKey(bin, page);
+        if (mPages.get(key) != null || !mPendingPages.add(key)) {
             return;
         }
-        if (mCursor != null) {
-            mCursor.unregisterDataSetObserver(mDataSetObserver);
-            mCursor.close();
+        final int generation = mGeneration;
+        new AsyncTask<Void, Void, Cursor>() {
+            @Override
+            protected Cursor doInBackground(Void... params) {
+                Cursor c = queryPage(getBinRangeSelection(bin, getDateColumn()),
+                        page * PAGE_SIZE, PAGE_SIZE);
+                if (c != null) {
+                    // Fill the window off the UI thread
+                    c.getCount();
+                }
+                return c;
+            }
+
+            @Override
+            protected void onPostExecute(Cursor result) {
+                if (generation != mGeneration) {
+                    // Loaded against stale counts, the pending set has
+                    // already been reset
+                    if (result != null) result.close();
+                    return;
+                }
+                mPendingPages.remove(key);
+                if (result == null) {
+                    return;
+                }
+                mPages.put(key, result);
+                notifyDataSetChanged();
+            }
+        }.execute();
+    }
+
+    /**
+     * Returns the name of the date column bins are computed from.
+     */
+    protected abstract String getDateColumn();
+
+    /**
+     * Replaces the bin counts. The cursor must have the {@link #COLUMN_BIN}
+     * and {@link #COLUMN_COUNT} columns, one row per non empty bin. It is
+     * read immediately and not retained. All loaded pages are dropped, and
+     * reloaded on demand as rows are displayed. Passing null releases all
+     * loaded pages and invalidates the adapter.
+     */
+    public void changeBinCounts(Cursor counts) {
+        int array[] = new int[DateSorter.DAY_COUNT];
+        int numberOfBins = 0;
+        int total = 0;
+        if (counts != null) {
+            int binIndex = counts.getColumnIndexOrThrow(COLUMN_BIN);
+            int countIndex = counts.getColumnIndexOrThrow(COLUMN_COUNT);
+            counts.moveToPosition(-1);
+            while (counts.moveToNext()) {
+                int bin = counts.getInt(binIndex);
+                int count = counts.getInt(countIndex);
+                if (bin < 0 || bin >= DateSorter.DAY_COUNT || count <= 0) {
+                    continue;
+                }
+                if (array[bin] == 0) {
+                    numberOfBins++;
+                }
+                array[bin] += count;
+                total += count;
+            }
         }
-        mCursor = cursor;
-        if (cursor != null) {
-            cursor.registerDataSetObserver(mDataSetObserver);
-            mIdIndex = cursor.getColumnIndexOrThrow("_id");
-            mDataValid = true;
-            buildMap();
-            // notify the observers about the new cursor
+        mGeneration++;
+        mPendingPages.clear();
+        mPages.evictAll();
+        // No page is cached anymore, so this closes the current one too
+        setCursor(null);
+        mItemMap = array;
+        mNumberOfBins = numberOfBins;
+        mTotalCount = total;
+        mDataValid = counts != null;
+        if (mDataValid) {
             notifyDataSetChanged();
         } else {
-            mIdIndex = -1;
-            mDataValid = false;
-            // notify the observers about the lack of a data set
             notifyDataSetInvalidated();
         }
     }
@@ -279,7 +399,7 @@ public class DateSortedExpandableListAdapter extends BaseExpandableListAdapter {
     @Override
     public View getGroupView(int groupPosition, boolean isExpanded,
             View convertView, ViewGroup parent) {
-        if (!mDataValid) throw new IllegalStateException("Data is not valid"); 
+        if (!mDataValid) throw new IllegalStateException("Data is not valid");
         TextView item;
         if (null == convertView || !(convertView instanceof TextView)) {
             LayoutInflater factory = LayoutInflater.from(mContext);
@@ -295,18 +415,22 @@ public class DateSortedExpandableListAdapter extends BaseExpandableListAdapter {
     @Override
     public View getChildView(int groupPosition, int childPosition,
             boolean isLastChild, View convertView, ViewGroup parent) {
-        if (!mDataValid) throw new IllegalStateException("Data is not valid"); 
+        if (!mDataValid) throw new IllegalStateException("Data is not valid");
         return null;
     }
 
     @Override
     public boolean areAllItemsEnabled() {
-        return true;
+        return false;
     }
 
+    /**
+     * Rows that haven't been paged in yet are shown empty and can't be
+     * clicked until they are.
+     */
     @Override
     public boolean isChildSelectable(int groupPosition, int childPosition) {
-        return true;
+        return isChildLoaded(groupPosition, childPosition);
     }
 
     @Override
@@ -333,22 +457,29 @@ public class DateSortedExpandableListAdapter extends BaseExpandableListAdapter {
 
     @Override
     public long getGroupId(int groupPosition) {
-        if (!mDataValid) return 0; 
+        if (!mDataValid) return 0;
         return groupPosition;
     }
 
     @Override
     public long getChildId(int groupPosition, int childPosition) {
-        if (!mDataValid) return 0; 
+        if (!mDataValid) return 0;
         if (moveCursorToChildPosition(groupPosition, childPosition)) {
-            return getLong(mIdIndex);
+            Cursor cursor = getCursor(groupPosition);
+            return cursor.getLong(cursor.getColumnIndexOrThrow(BaseColumns._ID));
         }
-        return 0;
+        // Not paged in yet. Packed child positions are negative, so this
+        // can't collide with the id of a loaded row.
+        return ExpandableListView.getPackedPositionForChild(groupPosition, childPosition);
     }
 
+    /**
+     * The id of a row changes from a placeholder to its _id when its page
+     * is loaded, so ids are not stable.
+     */
     @Override
     public boolean hasStableIds() {
-        return true;
+        return false;
     }
 
     @Override
@@ -361,18 +492,18 @@ public class DateSortedExpandableListAdapter extends BaseExpandableListAdapter {
 
     @Override
     public long getCombinedChildId(long groupId, long childId) {
-        if (!mDataValid) return 0; 
+        if (!mDataValid) return 0;
         return childId;
     }
 
     @Override
     public long getCombinedGroupId(long groupId) {
-        if (!mDataValid) return 0; 
+        if (!mDataValid) return 0;
         return groupId;
     }
 
     @Override
     public boolean isEmpty() {
-        return !mDataValid || mCursor == null || mCursor.isClosed() || mCursor.getCount() == 0;
+        return !mDataValid || mTotalCount == 0;
     }
 }
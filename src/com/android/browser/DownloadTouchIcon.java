@@ -16,10 +16,7 @@
 
 package com.android.browser;
 
-import java.io.IOException;
-import java.net.HttpURLConnection;
-import java.net.URL;
-
+import android.app.ActivityManager;
 import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
@@ -29,20 +26,74 @@ import android.graphics.BitmapFactory;
 import android.os.AsyncTask;
 import android.os.Bundle;
 import android.os.Message;
+import android.os.SystemClock;
 import android.provider.BrowserContract;
 import android.provider.BrowserContract.Images;
+import android.util.LruCache;
 import android.webkit.WebView;
 
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.zip.CRC32;
 
+/**
+ * Downloads a touch icon and stores it in the images table, or hands it to
+ * a Message.
+ *
+ * The validators and a checksum of the last icon stored for a page are kept
+ * in memory. While they are fresh and the icon is still stored, visiting the
+ * page doesn't fetch the icon again; after that the fetch is a conditional
+ * request. An icon whose bytes haven't changed is not decoded or written.
+ * Responses are bounded by {@link #MAX_ICON_BYTES} and decoded no larger
+ * than needed for the launcher icon size.
+ */
 class DownloadTouchIcon extends AsyncTask<String, Void, Void> {
 
+    // Icons stored less than this long ago are not fetched again
+    private static final long FRESH_TIME = 24 * 60 * 60 * 1000;
+    // Larger responses are dropped
+    /* package */ static final int MAX_ICON_BYTES = 256 * 1024;
+    // Number of pages whose last icon is remembered
+    private static final int ICON_STATES_SIZE = 32;
+
+    private static final String[] IMAGES_PROJECTION = new String[] { Images.URL };
+    private static final String STORED_ICON_WHERE = "(" + Images.URL + "=? OR "
+            + Images.URL + "=?) AND " + Images.TOUCH_ICON + " IS NOT NULL";
+
+    /**
+     * The result of a touch icon request.
+     */
+    /* package */ static class FetchResult {
+        int mResponseCode;
+        String mEtag;
+        String mLastModified;
+        // The body of a 200 response
+        byte[] mData;
+    }
+
+    // What was last stored for a page
+    private static class IconState {
+        String mIconUrl;
+        String mEtag;
+        String mLastModified;
+        long mTime;
+        long mChecksum;
+    }
+
+    private static final LruCache<String, IconState> sIconStates =
+            new LruCache<String, IconState>(ICON_STATES_SIZE);
+
     private final ContentResolver mContentResolver;
     private Cursor mCursor;
     private final String mOriginalUrl;
     private final String mUrl;
     private final String mUserAgent; // Sites may serve a different icon to different UAs
+    private final int mIconSize;
+    // Ignore the remembered state, the page was just bookmarked
+    private final boolean mForce;
     private Message mMessage;
 
     /* package */ Tab mTab;
@@ -52,13 +103,15 @@ class DownloadTouchIcon extends AsyncTask<String, Void, Void> {
      * the originalUrl so we take account of redirects. Used when the user
      * bookmarks a page from outside the bookmarks activity.
      */
-    public DownloadTouchIcon(Tab tab, ContentResolver cr, WebView view) {
+    public DownloadTouchIcon(Tab tab, Context context, WebView view) {
         mTab = tab;
-        mContentResolver = cr;
+        mContentResolver = context.getContentResolver();
         // Store these in case they change.
         mOriginalUrl = view.getOriginalUrl();
         mUrl = view.getUrl();
         mUserAgent = view.getSettings().getUserAgentString();
+        mIconSize = getIconSize(context);
+        mForce = false;
     }
 
     /**
@@ -68,12 +121,14 @@ class DownloadTouchIcon extends AsyncTask<String, Void, Void> {
      * TODO: Would be nice to set the user agent here so that there is no
      * potential for the three different ctors here to return different icons.
      */
-    public DownloadTouchIcon(ContentResolver cr, String url) {
+    public DownloadTouchIcon(Context context, String url) {
         mTab = null;
-        mContentResolver = cr;
+        mContentResolver = context.getContentResolver();
         mOriginalUrl = null;
         mUrl = url;
         mUserAgent = null;
+        mIconSize = getIconSize(context);
+        mForce = true;
     }
 
     /**
@@ -81,16 +136,40 @@ class DownloadTouchIcon extends AsyncTask<String, Void, Void> {
      * the passed Message's data bundle with the key
      * {@link BrowserContract.Bookmarks#TOUCH_ICON} and then send the message.
      */
-    public DownloadTouchIcon(Message msg, String userAgent) {
+    public DownloadTouchIcon(Context context, Message msg, String userAgent) {
         mMessage = msg;
         mContentResolver = null;
         mOriginalUrl = null;
         mUrl = null;
         mUserAgent = userAgent;
+        mIconSize = getIconSize(context);
+        mForce = true;
+    }
+
+    private static int getIconSize(Context context) {
+        ActivityManager am = (ActivityManager) context
+                .getSystemService(Context.ACTIVITY_SERVICE);
+        return am.getLauncherLargeIconSize();
     }
 
     @Override
     public Void doInBackground(String... values) {
+        String iconUrl = values[0];
+        IconState state = null;
+        boolean stored = false;
+        if (mContentResolver != null && !mForce) {
+            state = sIconStates.get(mUrl);
+            if (state != null && !state.mIconUrl.equals(iconUrl)) {
+                state = null;
+            }
+            // The validators only apply while the icon they describe is stored
+            stored = state != null && hasStoredIcon();
+            if (stored && SystemClock.elapsedRealtime() - state.mTime < FRESH_TIME) {
+                storeIcon(null);
+                return null;
+            }
+        }
+
         if (mContentResolver != null) {
             mCursor = Bookmarks.queryCombinedForUrl(mContentResolver,
                     mOriginalUrl, mUrl);
@@ -99,39 +178,35 @@ class DownloadTouchIcon extends AsyncTask<String, Void, Void> {
         boolean inDatabase = mCursor != null && mCursor.getCount() > 0;
 
         if (inDatabase || mMessage != null) {
-            HttpURLConnection connection = null;
-            try {
-                URL url = new URL(values[0]);
-                connection = (HttpURLConnection) url.openConnection();
-                if (mUserAgent != null) {
-                    connection.addRequestProperty("User-Agent", mUserAgent);
-                }
-
-                if (connection.getResponseCode() == 200) {
-                    InputStream content = connection.getInputStream();
-                    Bitmap icon = null;
-                    try {
-                        icon = BitmapFactory.decodeStream(
-                                content, null, null);
-                    } finally {
-                        try {
-                            content.close();
-                        } catch (IOException ignored) {
-                        }
-                    }
-
+            FetchResult result = fetch(iconUrl, mUserAgent,
+                    stored ? state.mEtag : null, stored ? state.mLastModified : null);
+            if (result != null && result.mResponseCode == HttpURLConnection.HTTP_NOT_MODIFIED
+                    && stored) {
+                updateState(state, result);
+                storeIcon(null);
+            } else if (result != null && result.mResponseCode == HttpURLConnection.HTTP_OK) {
+                long checksum = getChecksum(result.mData);
+                if (inDatabase && stored && state.mChecksum == checksum) {
+                    // Same bytes as the stored icon, don't decode or write them
+                    updateState(state, result);
+                    storeIcon(null);
+                } else {
+                    Bitmap icon = decodeIcon(result.mData, mIconSize);
                     if (inDatabase) {
-                        storeIcon(icon);
+                        if (storeIcon(getIconBytes(result.mData, icon))) {
+                            IconState newState = new IconState();
+                            newState.mIconUrl = iconUrl;
+                            newState.mChecksum = checksum;
+                            updateState(newState, result);
+                            sIconStates.put(mUrl, newState);
+                        }
                     } else if (mMessage != null) {
                         Bundle b = mMessage.getData();
                         b.putParcelable(BrowserContract.Bookmarks.TOUCH_ICON, icon);
                     }
                 }
-            } catch (IOException ignored) {
-            } finally {
-                if (connection != null) {
-                    connection.disconnect();
-                }
+            } else if (inDatabase) {
+                storeIcon(null);
             }
         }
 
@@ -153,7 +228,146 @@ class DownloadTouchIcon extends AsyncTask<String, Void, Void> {
         }
     }
 
-    private void storeIcon(Bitmap icon) {
+    private static void updateState(IconState state, FetchResult result) {
+        // A 304 may leave the validators out, a 200 without them has none
+        if (result.mResponseCode == HttpURLConnection.HTTP_OK
+                || result.mEtag != null || result.mLastModified != null) {
+            state.mEtag = result.mEtag;
+            state.mLastModified = result.mLastModified;
+        }
+        state.mTime = SystemClock.elapsedRealtime();
+    }
+
+    private boolean hasStoredIcon() {
+        String originalUrl = mOriginalUrl != null ? mOriginalUrl : mUrl;
+        Cursor c = mContentResolver.query(Images.CONTENT_URI, IMAGES_PROJECTION,
+                STORED_ICON_WHERE, new String[] { originalUrl, mUrl }, null);
+        if (c == null) {
+            return false;
+        }
+        try {
+            return c.getCount() > 0;
+        } finally {
+            c.close();
+        }
+    }
+
+    /**
+     * Requests a touch icon, conditionally if a validator is given.
+     * @return The response, or null if the request failed or the icon is
+     *         larger than {@link #MAX_ICON_BYTES}.
+     */
+    /* package */ static FetchResult fetch(String iconUrl, String userAgent,
+            String etag, String lastModified) {
+        HttpURLConnection connection = null;
+        try {
+            URL url = new URL(iconUrl);
+            connection = (HttpURLConnection) url.openConnection();
+            if (userAgent != null) {
+                connection.addRequestProperty("User-Agent", userAgent);
+            }
+            if (etag != null) {
+                connection.addRequestProperty("If-None-Match", etag);
+            }
+            if (lastModified != null) {
+                connection.addRequestProperty("If-Modified-Since", lastModified);
+            }
+
+            FetchResult result = new FetchResult();
+            result.mResponseCode = connection.getResponseCode();
+            result.mEtag = connection.getHeaderField("ETag");
+            result.mLastModified = connection.getHeaderField("Last-Modified");
+            if (result.mResponseCode == HttpURLConnection.HTTP_OK) {
+                if (connection.getContentLength() > MAX_ICON_BYTES) {
+                    return null;
+                }
+                InputStream content = connection.getInputStream();
+                try {
+                    result.mData = readBounded(content);
+                } finally {
+                    try {
+                        content.close();
+                    } catch (IOException ignored) {
+                    }
+                }
+                if (result.mData == null) {
+                    return null;
+                }
+            }
+            return result;
+        } catch (IOException ignored) {
+            return null;
+        } finally {
+            if (connection != null) {
+                connection.disconnect();
+            }
+        }
+    }
+
+    // Returns null if there are more than MAX_ICON_BYTES to read
+    private static byte[] readBounded(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[4096];
+        int read;
+        while ((read = in.read(buf)) != -1) {
+            if (out.size() + read > MAX_ICON_BYTES) {
+                return null;
+            }
+            out.write(buf, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Decodes an icon, subsampled as far as it stays at least size pixels
+     * on its shorter side.
+     */
+    /* package */ static Bitmap decodeIcon(byte[] data, int size) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        int shorter = Math.min(options.outWidth, options.outHeight);
+        if (shorter <= 0) {
+            return null;
+        }
+        int sampleSize = 1;
+        while (size > 0 && shorter / (sampleSize * 2) >= size) {
+            sampleSize *= 2;
+        }
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = sampleSize;
+        return BitmapFactory.decodeByteArray(data, 0, data.length, options);
+    }
+
+    /**
+     * Returns what to store for a decoded icon: the downloaded bytes if it
+     * wasn't subsampled, otherwise the smaller bitmap encoded as PNG.
+     */
+    /* package */ static byte[] getIconBytes(byte[] data, Bitmap icon) {
+        if (icon == null) {
+            return null;
+        }
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        if (icon.getWidth() == options.outWidth && icon.getHeight() == options.outHeight) {
+            return data;
+        }
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        icon.compress(Bitmap.CompressFormat.PNG, 100, os);
+        return os.toByteArray();
+    }
+
+    private static long getChecksum(byte[] data) {
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        return crc.getValue() ^ ((long) data.length << 32);
+    }
+
+    /**
+     * @return Whether the icon was written
+     */
+    private boolean storeIcon(byte[] icon) {
         // Do this first in case the download failed.
         if (mTab != null) {
             // Remove the touch icon loader from the BrowserActivity.
@@ -161,20 +375,19 @@ class DownloadTouchIcon extends AsyncTask<String, Void, Void> {
         }
 
         if (icon == null || mCursor == null || isCancelled()) {
-            return;
+            return false;
         }
 
         if (mCursor.moveToFirst()) {
-            final ByteArrayOutputStream os = new ByteArrayOutputStream();
-            icon.compress(Bitmap.CompressFormat.PNG, 100, os);
-
             ContentValues values = new ContentValues();
-            values.put(Images.TOUCH_ICON, os.toByteArray());
+            values.put(Images.TOUCH_ICON, icon);
 
             do {
                 values.put(Images.URL, mCursor.getString(0));
                 mContentResolver.update(Images.CONTENT_URI, values, null, null);
             } while (mCursor.moveToNext());
+            return true;
         }
+        return false;
     }
 }
@@ -31,9 +31,10 @@ import android.widget.EditText;
 import android.widget.LinearLayout;
 import android.widget.ListView;
 import android.widget.TextView;
+import android.widget.Toast;
 import android.widget.TwoLineListItem;
 
-import java.util.Vector;
+import java.io.File;
 
 /* package */ class ErrorConsoleView extends LinearLayout {
 
@@ -49,15 +50,26 @@ import java.util.Vector;
     private LinearLayout mEvalJsViewGroup;
     private EditText mEvalEditText;
     private Button mEvalButton;
+    private Button mExportButton;
     private WebView mWebView;
     private int mCurrentShowState = SHOW_NONE;
 
     private boolean mSetupComplete = false;
 
-    // Before we've been asked to display the console, cache any messages that should
-    // be added to the console. Then when we do display the console, add them to the view
-    // then.
-    private Vector<ConsoleMessage> mErrorMessageCache;
+    private boolean mHeaderUpdatePending;
+    private final Runnable mUpdateHeader = new Runnable() {
+        @Override
+        public void run() {
+            mHeaderUpdatePending = false;
+            if (mCurrentShowState == SHOW_MAXIMIZED) {
+                updateHeaderCounts();
+            }
+        }
+    };
+
+    // Messages are kept in a bounded buffer whether or not the console has been
+    // displayed, and are only formatted when the list is shown.
+    private final ConsoleMessageBuffer mMessages = new ConsoleMessageBuffer();
 
     public ErrorConsoleView(Context context) {
         super(context);
@@ -82,6 +94,7 @@ import java.util.Vector;
         mEvalJsViewGroup = (LinearLayout) findViewById(R.id.error_console_eval_view_group_id);
         mEvalEditText = (EditText) findViewById(R.id.error_console_eval_text_id);
         mEvalButton = (Button) findViewById(R.id.error_console_eval_button_id);
+        mExportButton = (Button) findViewById(R.id.error_console_export_button_id);
 
         mEvalButton.setOnClickListener(new OnClickListener() {
             public void onClick(View v) {
@@ -97,6 +110,12 @@ import java.util.Vector;
             }
         });
 
+        mExportButton.setOnClickListener(new OnClickListener() {
+            public void onClick(View v) {
+                exportMessages();
+            }
+        });
+
         // Make clicking on the console title bar min/maximse it.
         mConsoleHeader.setOnClickListener(new OnClickListener() {
             public void onClick(View v) {
@@ -108,13 +127,8 @@ import java.util.Vector;
             }
         });
 
-        // Add any cached messages to the list now that we've assembled the view.
-        if (mErrorMessageCache != null) {
-            for (ConsoleMessage msg : mErrorMessageCache) {
-                mErrorList.addErrorMessage(msg);
-            }
-            mErrorMessageCache.clear();
-        }
+        // Point the list at the messages buffered before we assembled the view.
+        mErrorList.setMessages(mMessages);
 
         mSetupComplete = true;
     }
@@ -123,36 +137,78 @@ import java.util.Vector;
      * Adds a message to the set of messages the console uses.
      */
     public void addErrorMessage(ConsoleMessage consoleMessage) {
-        if (mSetupComplete) {
-            mErrorList.addErrorMessage(consoleMessage);
-        } else {
-            if (mErrorMessageCache == null) {
-                mErrorMessageCache = new Vector<ConsoleMessage>();
-            }
-            mErrorMessageCache.add(consoleMessage);
+        if (mMessages.add(consoleMessage) && mSetupComplete
+                && mErrorList.getVisibility() == View.VISIBLE) {
+            mErrorList.scheduleUpdate();
+        }
+        if (mCurrentShowState == SHOW_MAXIMIZED && !mHeaderUpdatePending) {
+            // Coalesce bursts of messages into one header update
+            mHeaderUpdatePending = true;
+            postOnAnimation(mUpdateHeader);
         }
     }
 
+    /**
+     * Shows the number of errors, warnings and rate limited messages in the
+     * header of the maximized console.
+     */
+    private void updateHeaderCounts() {
+        if (mHeaderUpdatePending) {
+            removeCallbacks(mUpdateHeader);
+            mHeaderUpdatePending = false;
+        }
+        mConsoleHeader.setText(getContext().getString(
+                R.string.error_console_header_text_counts,
+                mMessages.getCount(ConsoleMessage.MessageLevel.ERROR),
+                mMessages.getCount(ConsoleMessage.MessageLevel.WARNING),
+                mMessages.getDroppedCount()));
+    }
+
+    /**
+     * Writes the buffered messages to a file in the app's external files
+     * directory, off the UI thread, and reports where it went in a toast.
+     */
+    private void exportMessages() {
+        File dir = getContext().getExternalFilesDir(null);
+        if (dir == null) {
+            dir = getContext().getFilesDir();
+        }
+        File file = new File(dir, "console-" + System.currentTimeMillis() + ".txt");
+        mMessages.exportTo(file, new ConsoleMessageBuffer.ExportCallback() {
+            @Override
+            public void onExportFinished(final File file, final boolean success) {
+                post(new Runnable() {
+                    @Override
+                    public void run() {
+                        String text = success
+                                ? getContext().getString(R.string.error_console_export_done,
+                                        file.getPath())
+                                : getContext().getString(R.string.error_console_export_failed);
+                        Toast.makeText(getContext(), text, Toast.LENGTH_SHORT).show();
+                    }
+                });
+            }
+        });
+    }
+
     /**
      * Removes all error messages from the console.
      */
     public void clearErrorMessages() {
+        mMessages.clear();
         if (mSetupComplete) {
-            mErrorList.clearErrorMessages();
-        } else if (mErrorMessageCache != null) {
-            mErrorMessageCache.clear();
+            mErrorList.onMessagesChanged();
+        }
+        if (mCurrentShowState == SHOW_MAXIMIZED) {
+            updateHeaderCounts();
         }
     }
 
     /**
-     * Returns the current number of errors displayed in the console.
+     * Returns the current number of errors held by the console.
      */
     public int numberOfErrors() {
-        if (mSetupComplete) {
-            return mErrorList.getCount();
-        } else {
-            return (mErrorMessageCache == null) ? 0 : mErrorMessageCache.size();
-        }
+        return mMessages.size();
     }
 
     /**
@@ -178,9 +234,12 @@ import java.util.Vector;
 
             case SHOW_MAXIMIZED:
                 mConsoleHeader.setVisibility(View.VISIBLE);
-                mConsoleHeader.setText(R.string.error_console_header_text_maximized);
+                updateHeaderCounts();
                 mErrorList.setVisibility(View.VISIBLE);
                 mEvalJsViewGroup.setVisibility(View.VISIBLE);
+                // Messages added while the list was hidden were not pushed
+                // to it, catch up now.
+                mErrorList.onMessagesChanged();
                 break;
 
             case SHOW_NONE:
@@ -210,6 +269,15 @@ import java.util.Vector;
     private static class ErrorConsoleListView extends ListView {
         // An adapter for this View that contains a list of error messages.
         private ErrorConsoleMessageList mConsoleMessages;
+        private boolean mUpdatePending;
+
+        private final Runnable mUpdate = new Runnable() {
+            @Override
+            public void run() {
+                mUpdatePending = false;
+                onMessagesChanged();
+            }
+        };
 
         public ErrorConsoleListView(Context context, AttributeSet attributes) {
             super(context, attributes);
@@ -217,13 +285,27 @@ import java.util.Vector;
             setAdapter(mConsoleMessages);
         }
 
-        public void addErrorMessage(ConsoleMessage consoleMessage) {
-            mConsoleMessages.add(consoleMessage);
-            setSelection(mConsoleMessages.getCount());
+        public void setMessages(ConsoleMessageBuffer messages) {
+            mConsoleMessages.setMessages(messages);
+        }
+
+        /**
+         * Coalesces bursts of new messages into a single list update.
+         */
+        public void scheduleUpdate() {
+            if (!mUpdatePending) {
+                mUpdatePending = true;
+                postOnAnimation(mUpdate);
+            }
         }
 
-        public void clearErrorMessages() {
-            mConsoleMessages.clear();
+        public void onMessagesChanged() {
+            if (mUpdatePending) {
+                removeCallbacks(mUpdate);
+                mUpdatePending = false;
+            }
+            mConsoleMessages.notifyDataSetChanged();
+            setSelection(mConsoleMessages.getCount());
         }
 
         /**
@@ -233,28 +315,16 @@ import java.util.Vector;
         private static class ErrorConsoleMessageList extends android.widget.BaseAdapter
                 implements android.widget.ListAdapter {
 
-            private Vector<ConsoleMessage> mMessages;
+            private ConsoleMessageBuffer mMessages;
             private LayoutInflater mInflater;
 
             public ErrorConsoleMessageList(Context context) {
-                mMessages = new Vector<ConsoleMessage>();
                 mInflater = (LayoutInflater)context.getSystemService(
                         Context.LAYOUT_INFLATER_SERVICE);
             }
 
-            /**
-             * Add a new message to the list and update the View.
-             */
-            public void add(ConsoleMessage consoleMessage) {
-                mMessages.add(consoleMessage);
-                notifyDataSetChanged();
-            }
-
-            /**
-             * Remove all messages from the list and update the view.
-             */
-            public void clear() {
-                mMessages.clear();
+            public void setMessages(ConsoleMessageBuffer messages) {
+                mMessages = messages;
                 notifyDataSetChanged();
             }
 
@@ -277,12 +347,13 @@ import java.util.Vector;
             }
 
             public int getCount() {
-                return mMessages.size();
+                return (mMessages == null) ? 0 : mMessages.size();
             }
 
             @Override
             public boolean hasStableIds() {
-                return true;
+                // Positions shift as the ring buffer evicts old messages.
+                return false;
             }
 
             /**
@@ -290,7 +361,7 @@ import java.util.Vector;
              */
             public View getView(int position, View convertView, ViewGroup parent) {
                 View view;
-                ConsoleMessage error = mMessages.get(position);
+                ConsoleMessageBuffer.Entry error = mMessages.get(position);
 
                 if (error == null) {
                     return null;
@@ -304,9 +375,9 @@ import java.util.Vector;
 
                 TextView headline = (TextView) view.findViewById(android.R.id.text1);
                 TextView subText = (TextView) view.findViewById(android.R.id.text2);
-                headline.setText(error.sourceId() + ":" + error.lineNumber());
-                subText.setText(error.message());
-                switch (error.messageLevel()) {
+                headline.setText(error.getSource());
+                subText.setText(error.getMessage());
+                switch (error.getLevel()) {
                     case ERROR:
                         subText.setTextColor(Color.RED);
                         break;
@@ -22,11 +22,22 @@ import java.net.URL;
 import android.app.DownloadManager;
 import android.content.Context;
 import android.os.Environment;
+import android.os.Process;
+import android.os.SystemClock;
 import android.util.Log;
+import android.util.LruCache;
 import android.webkit.MimeTypeMap;
 import android.webkit.URLUtil;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * This class is used to pull down the http headers of a given URL so that
@@ -37,44 +48,185 @@ import java.io.IOException;
  * do the same steps of correcting the mimetype down in
  * android.os.webkit.LoadListener rather than handling it here.
  *
+ * HEAD requests run on a small shared pool rather than a thread per
+ * download, are subject to a timeout, and leave their connection open for
+ * reuse. Results are cached per url and user agent for a short time, except
+ * for requests with cookies, as the response may depend on them. Requests
+ * are handed to the download manager in batches from a single thread.
  */
-class FetchUrlMimeType extends Thread {
+class FetchUrlMimeType {
 
     private final static String LOGTAG = "FetchUrlMimeType";
 
-    private Context mContext;
-    private DownloadManager.Request mRequest;
-    private String mUri;
-    private String mCookies;
-    private String mUserAgent;
-
-    public FetchUrlMimeType(Context context, DownloadManager.Request request,
-            String uri, String cookies, String userAgent) {
-        mContext = context.getApplicationContext();
-        mRequest = request;
-        mUri = uri;
-        mCookies = cookies;
-        mUserAgent = userAgent;
+    private static final int POOL_SIZE = 2;
+    private static final long POOL_KEEP_ALIVE_SECONDS = 10;
+    private static final int HEAD_CACHE_SIZE = 32;
+    private static final long HEAD_CACHE_TTL_MS = 60 * 1000;
+    private static final int DEFAULT_TIMEOUT_MS = 10 * 1000;
+
+    private static volatile int sTimeoutMs = DEFAULT_TIMEOUT_MS;
+
+    private static final ThreadPoolExecutor sProbeExecutor = new ThreadPoolExecutor(
+            POOL_SIZE, POOL_SIZE, POOL_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                private int mCount;
+
+                @Override
+                public Thread newThread(final Runnable r) {
+                    return new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                            r.run();
+                        }
+                    }, "Download preflight #" + ++mCount);
+                }
+            });
+    static {
+        sProbeExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    private static final ExecutorService sEnqueueExecutor =
+            Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    return new Thread(r, "Browser download");
+                }
+            });
+
+    private static final LruCache<String, HeadResult> sHeadCache =
+            new LruCache<String, HeadResult>(HEAD_CACHE_SIZE);
+
+    // Requests waiting for the enqueue thread, guarded by sPendingRequests
+    private static final ArrayList<PendingRequest> sPendingRequests =
+            new ArrayList<PendingRequest>();
+    private static boolean sEnqueueScheduled;
+
+    // Pre-flight metrics, guarded by FetchUrlMimeType.class
+    private static int sProbeCount;
+    private static int sCacheHits;
+    private static int sProbeFailures;
+    private static long sTotalLatencyMs;
+    private static long sMaxLatencyMs;
+
+    /**
+     * The parts of a HEAD response used to correct a download.
+     */
+    static class HeadResult {
+        final String mMimeType;
+        final String mContentDisposition;
+        final long mTime;
+
+        HeadResult(String mimeType, String contentDisposition, long time) {
+            mMimeType = mimeType;
+            mContentDisposition = contentDisposition;
+            mTime = time;
+        }
+    }
+
+    private static class PendingRequest {
+        final Context mContext;
+        final DownloadManager.Request mRequest;
+
+        PendingRequest(Context context, DownloadManager.Request request) {
+            mContext = context;
+            mRequest = request;
+        }
+    }
+
+    private FetchUrlMimeType() {}
+
+    /**
+     * Queues a HEAD request for uri, corrects the mimetype and filename of
+     * request from the response, and then hands it to the download manager.
+     */
+    static void start(Context context, final DownloadManager.Request request,
+            final String uri, final String cookies, final String userAgent) {
+        final Context appContext = context.getApplicationContext();
+        sProbeExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                HeadResult result = probe(uri, cookies, userAgent);
+                applyHeadResult(request, uri, result);
+                enqueue(appContext, request);
+            }
+        });
+    }
+
+    /**
+     * Hands request to the download manager. Requests submitted close
+     * together are enqueued in a single pass on the download thread.
+     */
+    static void enqueue(Context context, DownloadManager.Request request) {
+        synchronized (sPendingRequests) {
+            sPendingRequests.add(new PendingRequest(
+                    context.getApplicationContext(), request));
+            if (sEnqueueScheduled) {
+                return;
+            }
+            sEnqueueScheduled = true;
+        }
+        sEnqueueExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                ArrayList<PendingRequest> batch;
+                synchronized (sPendingRequests) {
+                    batch = new ArrayList<PendingRequest>(sPendingRequests);
+                    sPendingRequests.clear();
+                    sEnqueueScheduled = false;
+                }
+                DownloadManager manager = null;
+                for (PendingRequest pending : batch) {
+                    if (manager == null) {
+                        manager = (DownloadManager) pending.mContext.getSystemService(
+                                Context.DOWNLOAD_SERVICE);
+                    }
+                    try {
+                        manager.enqueue(pending.mRequest);
+                    } catch (RuntimeException e) {
+                        Log.e(LOGTAG, "Failed to enqueue download", e);
+                    }
+                }
+            }
+        });
     }
 
-    @Override
-    public void run() {
-        String mimeType = null;
-        String contentDisposition = null;
+    /**
+     * Issues a HEAD request for uri, or returns a recent cached response.
+     * Blocks, must not be called on the UI thread.
+     * @return The response, or null if the request failed
+     */
+    static HeadResult probe(String uri, String cookies, String userAgent) {
+        long now = SystemClock.uptimeMillis();
+        boolean hasCookies = cookies != null && cookies.length() > 0;
+        String cacheKey = hasCookies ? null : uri + '\n' + userAgent;
+        HeadResult cached = cacheKey != null ? sHeadCache.get(cacheKey) : null;
+        if (cached != null && now - cached.mTime < HEAD_CACHE_TTL_MS) {
+            synchronized (FetchUrlMimeType.class) {
+                sCacheHits++;
+            }
+            return cached;
+        }
+
+        HeadResult result = null;
         HttpURLConnection connection = null;
         try {
-            URL url = new URL(mUri);
+            URL url = new URL(uri);
             connection = (HttpURLConnection) url.openConnection();
             connection.setRequestMethod("HEAD");
+            connection.setConnectTimeout(sTimeoutMs);
+            connection.setReadTimeout(sTimeoutMs);
 
-            if (mUserAgent != null) {
-                connection.addRequestProperty("User-Agent", mUserAgent);
+            if (userAgent != null) {
+                connection.addRequestProperty("User-Agent", userAgent);
             }
 
-            if (mCookies != null && mCookies.length() > 0) {
-                connection.addRequestProperty("Cookie", mCookies);
+            if (hasCookies) {
+                connection.addRequestProperty("Cookie", cookies);
             }
 
+            String mimeType = null;
+            String contentDisposition = null;
             if (connection.getResponseCode() == 200) {
                 mimeType = connection.getContentType();
                 if (mimeType != null) {
@@ -86,34 +238,100 @@ class FetchUrlMimeType extends Thread {
 
                 contentDisposition = connection.getHeaderField("Content-Disposition");
             }
+            result = new HeadResult(mimeType, contentDisposition, SystemClock.uptimeMillis());
+            if (cacheKey != null) {
+                sHeadCache.put(cacheKey, result);
+            }
+            // Release rather than disconnect, so the connection can be
+            // reused by the next request to the same host.
+            release(connection);
         } catch (IOException ioe) {
-            Log.e(LOGTAG,"Download failed: " + ioe);
-        } finally {
+            Log.e(LOGTAG, "Download failed: " + ioe);
+            if (connection != null) {
+                connection.disconnect();
+            }
+        } catch (RuntimeException e) {
+            // Malformed urls can surface as runtime exceptions
+            Log.e(LOGTAG, "Download failed: " + e);
             if (connection != null) {
                 connection.disconnect();
             }
         }
+        recordProbe(SystemClock.uptimeMillis() - now, result != null);
+        return result;
+    }
 
+    private static void release(HttpURLConnection connection) throws IOException {
+        InputStream in = connection.getResponseCode() >= 400
+                ? connection.getErrorStream() : connection.getInputStream();
+        if (in != null) {
+            in.close();
+        }
+    }
+
+    /**
+     * Corrects the mimetype and destination of request from a HEAD response.
+     */
+    static void applyHeadResult(DownloadManager.Request request, String uri,
+            HeadResult result) {
+        String mimeType = result != null ? result.mMimeType : null;
         if (mimeType != null) {
             if (mimeType.equalsIgnoreCase("text/plain") ||
                     mimeType.equalsIgnoreCase("application/octet-stream")) {
                 String newMimeType =
                         MimeTypeMap.getSingleton().getMimeTypeFromExtension(
-                                MimeTypeMap.getFileExtensionFromUrl(mUri));
+                                MimeTypeMap.getFileExtensionFromUrl(uri));
                 if (newMimeType != null) {
                     mimeType = newMimeType;
-                    mRequest.setMimeType(newMimeType);
+                    request.setMimeType(newMimeType);
                 }
             }
-            String filename = URLUtil.guessFileName(mUri, contentDisposition,
+            String filename = URLUtil.guessFileName(uri, result.mContentDisposition,
                     mimeType);
-            mRequest.setDestinationInExternalPublicDir(Environment.DIRECTORY_DOWNLOADS, filename);
+            request.setDestinationInExternalPublicDir(Environment.DIRECTORY_DOWNLOADS, filename);
+        }
+    }
+
+    private static synchronized void recordProbe(long latencyMs, boolean success) {
+        sProbeCount++;
+        if (!success) {
+            sProbeFailures++;
         }
+        sTotalLatencyMs += latencyMs;
+        if (latencyMs > sMaxLatencyMs) {
+            sMaxLatencyMs = latencyMs;
+        }
+    }
+
+    /** Number of HEAD requests issued, not counting cache hits. */
+    static synchronized int getProbeCount() {
+        return sProbeCount;
+    }
+
+    static synchronized int getCacheHits() {
+        return sCacheHits;
+    }
+
+    static synchronized int getProbeFailures() {
+        return sProbeFailures;
+    }
+
+    static synchronized long getAverageLatencyMs() {
+        return sProbeCount == 0 ? 0 : sTotalLatencyMs / sProbeCount;
+    }
+
+    static synchronized long getMaxLatencyMs() {
+        return sMaxLatencyMs;
+    }
 
-        // Start the download
-        DownloadManager manager = (DownloadManager) mContext.getSystemService(
-                Context.DOWNLOAD_SERVICE);
-        manager.enqueue(mRequest);
+    static synchronized void resetForTesting(int timeoutMs) {
+        sTimeoutMs = timeoutMs > 0 ? timeoutMs : DEFAULT_TIMEOUT_MS;
+        sHeadCache.evictAll();
+        sProbeCount = 0;
+        sCacheHits = 0;
+        sProbeFailures = 0;
+        sTotalLatencyMs = 0;
+        sMaxLatencyMs = 0;
     }
 
 }
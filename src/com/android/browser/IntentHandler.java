@@ -30,7 +30,6 @@ import android.provider.Browser;
 import android.provider.MediaStore;
 import android.text.TextUtils;
 import android.util.Log;
-import android.util.Patterns;
 
 import com.android.browser.UI.ComboViews;
 import com.android.browser.search.SearchEngine;
@@ -288,8 +287,7 @@ public class IntentHandler {
 
         // URLs are handled by the regular flow of control, so
         // return early.
-        if (Patterns.WEB_URL.matcher(url).matches()
-                || UrlUtils.ACCEPTED_URI_SCHEMA.matcher(url).matches()) {
+        if (UrlUtils.isWebUrl(url) || UrlUtils.isAcceptedUri(url)) {
             return false;
         }
 
@@ -41,8 +41,6 @@ import com.android.browser.NavTabScroller.OnRemoveListener;
 import com.android.browser.TabControl.OnThumbnailUpdatedListener;
 import com.android.browser.UI.ComboViews;
 
-import java.util.HashMap;
-
 public class NavScreen extends RelativeLayout
         implements OnClickListener, OnMenuItemClickListener, OnThumbnailUpdatedListener {
 
@@ -67,7 +65,6 @@ public class NavScreen extends RelativeLayout
     TabAdapter mAdapter;
     int mOrientation;
     boolean mNeedsMenu;
-    HashMap<Tab, View> mTabViews;
 
     public NavScreen(Activity activity, UiController ctl, PhoneUi ui) {
         super(activity);
@@ -125,7 +122,6 @@ public class NavScreen extends RelativeLayout
         mMore.setOnClickListener(this);
         mScroller = (NavTabScroller) findViewById(R.id.scroller);
         TabControl tc = mUiController.getTabControl();
-        mTabViews = new HashMap<Tab, View>(tc.getTabCount());
         mAdapter = new TabAdapter(mContext, tc);
         mScroller.setOrientation(mOrientation == Configuration.ORIENTATION_LANDSCAPE
                 ? LinearLayout.HORIZONTAL : LinearLayout.VERTICAL);
@@ -162,7 +158,6 @@ public class NavScreen extends RelativeLayout
             } else {
                 mUiController.closeTab(tab);
             }
-            mTabViews.remove(tab);
         }
     }
 
@@ -225,43 +220,69 @@ public class NavScreen extends RelativeLayout
             return tabControl.getTab(position);
         }
 
+        @Override
         public long getItemId(int position) {
-            return position;
+            Tab tab = getItem(position);
+            return tab != null ? tab.getId() : position;
         }
 
         @Override
-        public View getView(final int position, View convertView, ViewGroup parent) {
-            final NavTabView tabview = new NavTabView(mActivity);
-            final Tab tab = getItem(position);
-            tabview.setWebView(tab);
-            mTabViews.put(tab, tabview.mImage);
-            tabview.setOnClickListener(new OnClickListener() {
-                @Override
-                public void onClick(View v) {
-                    if (tabview.isClose(v)) {
-                        mScroller.animateOut(tabview);
-                        mTabViews.remove(tab);
-                    } else if (tabview.isTitle(v)) {
-                        switchToTab(tab);
-                        mUi.getTitleBar().setSkipTitleBarAnimations(true);
-                        close(position, false);
-                        mUi.editUrl(false, true);
-                        mUi.getTitleBar().setSkipTitleBarAnimations(false);
-                    } else if (tabview.isWebView(v)) {
-                        close(position);
-                    }
-                }
-            });
+        public boolean hasStableIds() {
+            return true;
+        }
+
+        @Override
+        public View getView(int position, View convertView, ViewGroup parent) {
+            NavTabView tabview;
+            if (convertView instanceof NavTabView) {
+                tabview = (NavTabView) convertView;
+            } else {
+                tabview = new NavTabView(mActivity);
+                tabview.setOnClickListener(new TabClickListener(tabview));
+            }
+            tabview.setWebView(getItem(position));
             return tabview;
         }
 
     }
 
+    /**
+     * Handles the clicks of one NavTabView, for whichever tab it is bound to.
+     */
+    private class TabClickListener implements OnClickListener {
+
+        private final NavTabView mTabView;
+
+        TabClickListener(NavTabView tabview) {
+            mTabView = tabview;
+        }
+
+        @Override
+        public void onClick(View v) {
+            Tab tab = mTabView.getTab();
+            int position = mUiController.getTabControl().getTabPosition(tab);
+            if (tab == null || position < 0) return;
+            if (mTabView.isClose(v)) {
+                mScroller.animateOut(mTabView);
+            } else if (mTabView.isTitle(v)) {
+                switchToTab(tab);
+                mUi.getTitleBar().setSkipTitleBarAnimations(true);
+                close(position, false);
+                mUi.editUrl(false, true);
+                mUi.getTitleBar().setSkipTitleBarAnimations(false);
+            } else if (mTabView.isWebView(v)) {
+                close(position);
+            }
+        }
+
+    }
+
     @Override
     public void onThumbnailUpdated(Tab t) {
-        View v = mTabViews.get(t);
-        if (v != null) {
-            v.invalidate();
+        int position = mUiController.getTabControl().getTabPosition(t);
+        NavTabView tabview = position < 0 ? null : getTabView(position);
+        if (tabview != null && tabview.getTab() == t) {
+            tabview.mImage.invalidate();
         }
     }
 
@@ -34,13 +34,23 @@ import android.widget.LinearLayout;
 
 import com.android.browser.view.ScrollerView;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+
 /**
  * custom view for displaying tabs in the nav screen
+ *
+ * Every item of the adapter has a child, but only the items in view and a
+ * few on each side are bound, the others are held by empty placeholders of
+ * the same size. Views that leave that range are kept by item id and handed
+ * back to the adapter when an item is bound again.
  */
 public class NavTabScroller extends ScrollerView {
 
     static final int INVALID_POSITION = -1;
     static final float[] PULL_FACTOR = { 2.5f, 0.9f };
+    // items bound on each side of the visible ones
+    static final int BIND_MARGIN = 2;
 
     interface OnRemoveListener {
         public void onRemovePosition(int position);
@@ -51,6 +61,13 @@ public class NavTabScroller extends ScrollerView {
     }
 
     private ContentLayout mContentView;
+    // Ids of the items shown by the children of mContentView, in order
+    private ArrayList<Long> mItemIds = new ArrayList<Long>();
+    // Unbound item views, by the id of the item they showed last
+    private HashMap<Long, View> mScrapViews = new HashMap<Long, View>();
+    // Size of a bound item, 0 until one has been measured
+    private int mItemWidth;
+    private int mItemHeight;
     private BaseAdapter mAdapter;
     private OnRemoveListener mRemoveListener;
     private OnLayoutListener mLayoutListener;
@@ -109,7 +126,8 @@ public class NavTabScroller extends ScrollerView {
     }
 
     protected NavTabView getTabView(int pos) {
-        return (NavTabView) mContentView.getChildAt(pos);
+        View v = mContentView.getChildAt(pos);
+        return (v instanceof NavTabView) ? (NavTabView) v : null;
     }
 
     protected boolean isHorizontal() {
@@ -117,6 +135,8 @@ public class NavTabScroller extends ScrollerView {
     }
 
     public void setOrientation(int orientation) {
+        mItemWidth = 0;
+        mItemHeight = 0;
         mContentView.setOrientation(orientation);
         if (orientation == LinearLayout.HORIZONTAL) {
             mContentView.setLayoutParams(
@@ -195,19 +215,55 @@ public class NavTabScroller extends ScrollerView {
         if (mGapAnimator != null) {
             mGapAnimator.cancel();
         }
+        // The views of items that are still there are handed back to the
+        // adapter to be rebound instead of inflated again
+        ArrayList<View> placeholders = new ArrayList<View>();
+        for (int i = 0; i < mContentView.getChildCount(); i++) {
+            View child = mContentView.getChildAt(i);
+            if (child instanceof Placeholder) {
+                placeholders.add(child);
+            } else if (i < mItemIds.size()) {
+                mScrapViews.put(mItemIds.get(i), child);
+            }
+        }
+        mItemIds.clear();
         mContentView.removeAllViews();
-        for (int i = 0; i < mAdapter.getCount(); i++) {
-            View v = mAdapter.getView(i, null, mContentView);
-            LinearLayout.LayoutParams lp = new LinearLayout.LayoutParams(
-                    LayoutParams.WRAP_CONTENT, LayoutParams.WRAP_CONTENT);
-            lp.gravity = (mHorizontal ? Gravity.CENTER_VERTICAL : Gravity.CENTER_HORIZONTAL);
-            mContentView.addView(v, lp);
+        final int count = mAdapter.getCount();
+        for (int i = 0; i < count; i++) {
+            mItemIds.add(mAdapter.getItemId(i));
+        }
+        if (count == 0) {
+            mScrapViews.clear();
+            setScrollValue(scroll);
+            return;
+        }
+        int center = (newscroll > INVALID_POSITION)
+                ? Math.min(count - 1, newscroll)
+                : getCenterPosition(scroll, count);
+        int half = getVisibleCount() / 2 + BIND_MARGIN;
+        int first = Math.max(0, center - half);
+        int last = Math.min(count - 1, center + half);
+        // Bind first, placeholders need the size of a bound item
+        View[] bound = new View[last - first + 1];
+        for (int i = first; i <= last; i++) {
+            bound[i - first] = obtainView(i);
+        }
+        for (int i = 0; i < count; i++) {
+            View v;
+            if (i >= first && i <= last) {
+                v = bound[i - first];
+            } else if (placeholders.isEmpty()) {
+                v = new Placeholder(getContext());
+            } else {
+                v = placeholders.remove(placeholders.size() - 1);
+            }
+            mContentView.addView(v, generateItemParams(v));
             if (mGapPosition > INVALID_POSITION){
                 adjustViewGap(v, i);
             }
         }
         if (newscroll > INVALID_POSITION) {
-            newscroll = Math.min(mAdapter.getCount() - 1, newscroll);
+            newscroll = Math.min(count - 1, newscroll);
             mNeedsScroll = true;
             mScrollPosition = newscroll;
             requestLayout();
@@ -216,6 +272,119 @@ public class NavTabScroller extends ScrollerView {
         }
     }
 
+    // Binds the item at position, reusing the view it had last if possible
+    private View obtainView(int position) {
+        View convertView = mScrapViews.remove(mItemIds.get(position));
+        if (convertView == null && !mScrapViews.isEmpty()) {
+            Long id = mScrapViews.keySet().iterator().next();
+            convertView = mScrapViews.remove(id);
+        }
+        if (convertView != null) {
+            resetView(convertView);
+        }
+        View v = mAdapter.getView(position, convertView, mContentView);
+        if (mItemWidth == 0) {
+            int spec = MeasureSpec.makeMeasureSpec(0, MeasureSpec.UNSPECIFIED);
+            v.measure(spec, spec);
+            mItemWidth = v.getMeasuredWidth();
+            mItemHeight = v.getMeasuredHeight();
+        }
+        return v;
+    }
+
+    private LinearLayout.LayoutParams generateItemParams(View v) {
+        LinearLayout.LayoutParams lp = (v instanceof Placeholder)
+                ? new LinearLayout.LayoutParams(mItemWidth, mItemHeight)
+                : new LinearLayout.LayoutParams(
+                        LayoutParams.WRAP_CONTENT, LayoutParams.WRAP_CONTENT);
+        lp.gravity = (mHorizontal ? Gravity.CENTER_VERTICAL : Gravity.CENTER_HORIZONTAL);
+        return lp;
+    }
+
+    private int getItemExtent() {
+        return mHorizontal ? mItemWidth : mItemHeight;
+    }
+
+    private int getViewportExtent() {
+        return mHorizontal ? getWidth() : getHeight();
+    }
+
+    private int getContentPadding() {
+        return mHorizontal ? mContentView.getPaddingLeft() : mContentView.getPaddingTop();
+    }
+
+    // Number of items that fit on screen, 1 before the first layout
+    private int getVisibleCount() {
+        int extent = getItemExtent();
+        int viewport = getViewportExtent();
+        if (extent <= 0 || viewport <= 0) {
+            return 1;
+        }
+        return viewport / extent + 1;
+    }
+
+    private int getCenterPosition(int scroll, int count) {
+        int extent = getItemExtent();
+        if (extent <= 0) {
+            return 0;
+        }
+        int pos = (scroll + getViewportExtent() / 2 - getContentPadding()) / extent;
+        return Math.max(0, Math.min(count - 1, pos));
+    }
+
+    /**
+     * Binds the items that scrolled into view and replaces the ones that
+     * left it with placeholders
+     */
+    private void updateVisibleRange() {
+        final int count = mContentView.getChildCount();
+        final int extent = getItemExtent();
+        if (count == 0 || extent <= 0) return;
+        int start = getScrollValue() - getContentPadding();
+        int first = Math.max(0, start / extent - BIND_MARGIN);
+        int last = Math.min(count - 1, (start + getViewportExtent()) / extent + BIND_MARGIN);
+        // dragged, pulled or animating views keep their state until done
+        boolean canUnbind = (mAnimator == null) && (mPullValue == 0)
+                && (mGapPosition == INVALID_POSITION);
+        for (int i = 0; i < count && i < mItemIds.size(); i++) {
+            View child = mContentView.getChildAt(i);
+            boolean isBound = !(child instanceof Placeholder);
+            if (i >= first && i <= last) {
+                if (!isBound) {
+                    View v = obtainView(i);
+                    replaceChild(i, child, v);
+                }
+            } else if (isBound && canUnbind && !mIsOrthoDragged) {
+                mScrapViews.put(mItemIds.get(i), child);
+                replaceChild(i, child, new Placeholder(getContext()));
+            }
+        }
+    }
+
+    // Swaps a child without a new layout pass, the sizes are the same
+    private void replaceChild(int index, View old, View v) {
+        int left = old.getLeft();
+        int top = old.getTop();
+        int width = old.getWidth();
+        int height = old.getHeight();
+        mContentView.removeViewInLayout(old);
+        mContentView.addViewInLayout(v, index, generateItemParams(v), true);
+        if (width > 0 && height > 0) {
+            v.measure(MeasureSpec.makeMeasureSpec(width, MeasureSpec.EXACTLY),
+                    MeasureSpec.makeMeasureSpec(height, MeasureSpec.EXACTLY));
+            v.layout(left, top, left + width, top + height);
+            mContentView.invalidate();
+        } else {
+            mContentView.requestLayout();
+        }
+    }
+
+    @Override
+    protected void onScrollChanged(int l, int t, int oldl, int oldt) {
+        super.onScrollChanged(l, t, oldl, oldt);
+        updateVisibleRange();
+    }
+
     protected void finishScroller() {
         mScroller.forceFinished(true);
     }
@@ -228,6 +397,7 @@ public class NavTabScroller extends ScrollerView {
             snapToSelected(mScrollPosition, false);
             mNeedsScroll = false;
         }
+        updateVisibleRange();
         if (mLayoutListener != null) {
             mLayoutListener.onLayout(l, t, r, b);
             mLayoutListener = null;
@@ -236,6 +406,16 @@ public class NavTabScroller extends ScrollerView {
 
     void clearTabs() {
         mContentView.removeAllViews();
+        mItemIds.clear();
+        mScrapViews.clear();
+    }
+
+    // Children must only be removed here, so mItemIds stays in step
+    private void removeTabView(int position) {
+        mContentView.removeViewAt(position);
+        if (position < mItemIds.size()) {
+            mItemIds.remove(position);
+        }
     }
 
     void snapToSelected(int pos, boolean smooth) {
@@ -347,6 +527,8 @@ public class NavTabScroller extends ScrollerView {
         mAnimator.addListener(new AnimatorListenerAdapter() {
             public void onAnimationEnd(Animator a) {
                 if (mRemoveListener !=  null) {
+                    // The view is gone with its tab, don't recycle it
+                    removeTabView(position);
                     mRemoveListener.onRemovePosition(position);
                     mAnimator = null;
                     mGapPosition = INVALID_POSITION;
@@ -537,6 +719,16 @@ public class NavTabScroller extends ScrollerView {
         }
     }
 
+    // Stands in for an item that is out of view
+    static class Placeholder extends View {
+
+        public Placeholder(Context context) {
+            super(context);
+            setVisibility(View.INVISIBLE);
+        }
+
+    }
+
     static class ContentLayout extends LinearLayout {
 
         NavTabScroller mScroller;
@@ -113,12 +113,18 @@ public class NavTabView extends LinearLayout {
         Bitmap image = tab.getScreenshot();
         if (image != null) {
             mImage.setImageBitmap(image);
-            if (tab != null) {
-                mImage.setContentDescription(tab.getTitle());
-            }
+            mImage.setContentDescription(tab.getTitle());
+        } else {
+            // The view may have been bound to another tab before
+            mImage.setImageResource(R.drawable.ic_stop_holo_dark);
+            mImage.setContentDescription(null);
         }
     }
 
+    protected Tab getTab() {
+        return mTab;
+    }
+
     @Override
     public void setOnClickListener(OnClickListener listener) {
         mClickListener = listener;
@@ -17,6 +17,7 @@
 package com.android.browser;
 
 import android.net.WebAddress;
+import android.os.Bundle;
 import android.os.Debug;
 import android.os.Process;
 import android.os.SystemClock;
@@ -55,6 +56,84 @@ public class Performance {
 
     private static long mUiStart;
 
+    // Startup phases, in the order they completed
+    private static final Bundle sStartupPhases = new Bundle();
+    private static long sStartupBase = -1;
+
+    // Main thread cost of saving the tab state
+    private static int sSaveStateCount;
+    private static long sSaveStateTotalMs;
+    private static long sSaveStateMaxMs;
+    private static long sSaveStateLastMs;
+    private static int sTabsCaptured;
+    private static int sTabsReused;
+
+    /**
+     * Marks the start of the process, subsequent startup phases are
+     * reported relative to this time.
+     */
+    static synchronized void onStartupBegin() {
+        sStartupPhases.clear();
+        sStartupBase = SystemClock.uptimeMillis();
+    }
+
+    /**
+     * Records the duration of a startup phase, and when it finished
+     * relative to {@link #onStartupBegin()}. Times are uptime millis.
+     */
+    static synchronized void recordStartupPhase(String phase, long start, long end) {
+        sStartupPhases.putLong(phase + "_ms", end - start);
+        if (sStartupBase >= 0) {
+            sStartupPhases.putLong(phase + "_end_ms", end - sStartupBase);
+        }
+        if (LOGD_ENABLED) {
+            Log.d(LOGTAG, "startup " + phase + " took " + (end - start) + " ms");
+        }
+    }
+
+    /**
+     * Returns the startup phases recorded since the last cold start, keyed
+     * by phase name with "_ms" (duration) and "_end_ms" (completion time)
+     * suffixes.
+     */
+    public static synchronized Bundle getStartupPhases() {
+        return new Bundle(sStartupPhases);
+    }
+
+    /**
+     * Records the main thread time spent capturing the tab state for crash
+     * recovery, and how many of the tabs had to capture their WebView state.
+     */
+    static synchronized void recordSaveState(long durationMs, int captured, int total) {
+        sSaveStateCount++;
+        sSaveStateTotalMs += durationMs;
+        sSaveStateLastMs = durationMs;
+        if (durationMs > sSaveStateMaxMs) {
+            sSaveStateMaxMs = durationMs;
+        }
+        sTabsCaptured += captured;
+        sTabsReused += total - captured;
+        if (LOGD_ENABLED) {
+            Log.d(LOGTAG, "save state took " + durationMs + " ms, captured "
+                    + captured + " of " + total + " tabs");
+        }
+    }
+
+    /**
+     * Returns the main thread cost of the state saves done so far: "count",
+     * "total_ms", "max_ms", "last_ms", "tabs_captured" and "tabs_reused".
+     */
+    public static synchronized Bundle getSaveStateStats() {
+        Bundle stats = new Bundle();
+        stats.putInt("count", sSaveStateCount);
+        stats.putLong("total_ms", sSaveStateTotalMs);
+        stats.putLong("max_ms", sSaveStateMaxMs);
+        stats.putLong("last_ms", sSaveStateLastMs);
+        stats.putInt("tabs_captured", sTabsCaptured);
+        stats.putInt("tabs_reused", sTabsReused);
+        return stats;
+    }
+
     static void tracePageStart(String url) {
         if (BrowserSettings.getInstance().isTracing()) {
             String host;
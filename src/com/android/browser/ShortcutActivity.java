@@ -50,9 +50,17 @@ public class ShortcutActivity extends Activity
         if (isFolder) {
             return false;
         }
-        Intent intent = BrowserBookmarksPage.createShortcutIntent(this, c);
-        setResult(RESULT_OK, intent);
-        finish();
+        BrowserBookmarksPage.createShortcutIntent(this, c,
+                new BrowserBookmarksPage.ShortcutIntentListener() {
+            @Override
+            public void onShortcutIntentCreated(Intent intent) {
+                if (isFinishing()) {
+                    return;
+                }
+                setResult(RESULT_OK, intent);
+                finish();
+            }
+        });
         return true;
     }
 
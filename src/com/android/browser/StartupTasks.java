@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.browser;
+
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Work done when the browser starts that is independent of the rest of
+ * startup. Each task runs on a small shared pool as soon as
+ * {@link #start()} is called, so independent tasks run in parallel with
+ * each other and with the main thread. {@link #await(String)} lets the
+ * main thread block on a result it cannot proceed without.
+ *
+ * The time each task spends running is recorded with
+ * {@link Performance#recordStartupPhase(String, long, long)}.
+ */
+public class StartupTasks {
+
+    private static final String LOGTAG = "StartupTasks";
+
+    private static final int POOL_SIZE = 2;
+    private static final long POOL_KEEP_ALIVE_SECONDS = 5;
+
+    private static ThreadPoolExecutor sPool;
+
+    private static synchronized ThreadPoolExecutor getPool() {
+        if (sPool == null) {
+            sPool = new ThreadPoolExecutor(POOL_SIZE, POOL_SIZE,
+                    POOL_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                        private int mCount;
+
+                        @Override
+                        public Thread newThread(final Runnable r) {
+                            return new Thread(new Runnable() {
+                                @Override
+                                public void run() {
+                                    Process.setThreadPriority(
+                                            Process.THREAD_PRIORITY_BACKGROUND);
+                                    r.run();
+                                }
+                            }, "BrowserStartup #" + ++mCount);
+                        }
+                    });
+            sPool.allowCoreThreadTimeOut(true);
+        }
+        return sPool;
+    }
+
+    private static class Task implements Runnable {
+        final String mName;
+        final Runnable mRunnable;
+        boolean mDone;
+        StartupTasks mOwner;
+
+        Task(String name, Runnable runnable) {
+            mName = name;
+            mRunnable = runnable;
+        }
+
+        @Override
+        public void run() {
+            try {
+                if (mOwner.isCancelled()) {
+                    return;
+                }
+                long start = SystemClock.uptimeMillis();
+                mRunnable.run();
+                Performance.recordStartupPhase(mName, start, SystemClock.uptimeMillis());
+            } catch (RuntimeException e) {
+                // Callers fall back to doing the work themselves
+                Log.e(LOGTAG, "Startup task " + mName + " failed", e);
+            } finally {
+                // Always completes, so await() never waits forever
+                mOwner.onTaskDone(this);
+            }
+        }
+    }
+
+    private final HashMap<String, Task> mTasks = new HashMap<String, Task>();
+    private boolean mStarted;
+    private boolean mCancelled;
+
+    /**
+     * Declares a task. Must be called before {@link #start()}.
+     * @param name Unique name of the task, also used for its timing
+     * @param runnable The work to run
+     */
+    public synchronized void add(String name, Runnable runnable) {
+        if (mStarted) {
+            throw new IllegalStateException("Tasks already started");
+        }
+        if (mTasks.containsKey(name)) {
+            throw new IllegalArgumentException("Duplicate task " + name);
+        }
+        Task task = new Task(name, runnable);
+        task.mOwner = this;
+        mTasks.put(name, task);
+    }
+
+    /**
+     * Starts every task on the startup pool.
+     */
+    public synchronized void start() {
+        if (mStarted) {
+            return;
+        }
+        mStarted = true;
+        if (mCancelled) {
+            return;
+        }
+        ThreadPoolExecutor pool = getPool();
+        for (Task task : mTasks.values()) {
+            pool.execute(task);
+        }
+    }
+
+    /**
+     * Blocks until the named task has completed, or failed. Only use this
+     * for work the caller cannot proceed without.
+     */
+    public synchronized void await(String name) {
+        Task task = mTasks.get(name);
+        if (task == null) {
+            throw new IllegalArgumentException("Unknown task " + name);
+        }
+        long start = SystemClock.uptimeMillis();
+        while (!task.mDone && !mCancelled) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+            }
+        }
+        Performance.recordStartupPhase(name + "_wait", start, SystemClock.uptimeMillis());
+    }
+
+    /**
+     * Prevents tasks which have not yet started from running, for example
+     * when the activity is destroyed during startup.
+     */
+    public synchronized void cancel() {
+        mCancelled = true;
+        notifyAll();
+    }
+
+    synchronized boolean isCancelled() {
+        return mCancelled;
+    }
+
+    private synchronized void onTaskDone(Task task) {
+        task.mDone = true;
+        notifyAll();
+    }
+}
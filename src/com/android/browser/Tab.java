@@ -18,7 +18,6 @@ package com.android.browser;
 
 import android.app.Activity;
 import android.app.AlertDialog;
-import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.DialogInterface;
@@ -127,6 +126,13 @@ class Tab implements PictureListener {
         SECURITY_STATE_BAD_CERTIFICATE,
     }
 
+    /**
+     * Notified when the urls, app id or WebViews of a tab change.
+     */
+    interface OnIndexedStateChangedListener {
+        void onIndexedStateChanged(Tab tab);
+    }
+
     Context mContext;
     protected WebViewController mWebViewController;
 
@@ -149,6 +155,10 @@ class Tab implements PictureListener {
     // information needed to restore the WebView if the user goes back to the
     // tab.
     private Bundle mSavedState;
+    // True if the state saved in mSavedState no longer matches the WebView,
+    // for instance after a navigation. Saved Bundles are handed to the
+    // crash recovery thread, so they are replaced rather than modified.
+    private boolean mStateDirty = true;
     // Parent Tab. This is the Tab that created this Tab, or null if the Tab was
     // created by the UI
     private Tab mParent;
@@ -168,6 +178,8 @@ class Tab implements PictureListener {
     // Application identifier used to find tabs that another application wants
     // to reuse.
     private String mAppId;
+    // Tells TabControl to update its lookup indexes for this tab
+    private OnIndexedStateChangedListener mIndexListener;
     // flag to indicate if tab should be closed on back
     private boolean mCloseOnBack;
     // Keep the original url around to avoid killing the old WebView if the url
@@ -345,6 +357,8 @@ class Tab implements PictureListener {
             mPageLoadProgress = INITIAL_PROGRESS;
             mCurrentState = new PageState(mContext,
                     view.isPrivateBrowsingEnabled(), url, favicon);
+            notifyIndexedStateChanged();
+            mStateDirty = true;
             mLoadStartTime = SystemClock.uptimeMillis();
 
             // If we start a touch icon load and then load a new page, we don't
@@ -384,6 +398,7 @@ class Tab implements PictureListener {
                         url, SystemClock.uptimeMillis() - mLoadStartTime);
             }
             syncCurrentState(view, url);
+            mStateDirty = true;
             mWebViewController.onPageFinished(Tab.this);
         }
 
@@ -504,6 +519,7 @@ class Tab implements PictureListener {
         @Override
         public void doUpdateVisitedHistory(WebView view, String url,
                 boolean isReload) {
+            mStateDirty = true;
             mWebViewController.doUpdateVisitedHistory(Tab.this, isReload);
         }
 
@@ -642,6 +658,7 @@ class Tab implements PictureListener {
             mCurrentState.mUrl = "";
         }
         mCurrentState.mOriginalUrl = view.getOriginalUrl();
+        notifyIndexedStateChanged();
         mCurrentState.mTitle = view.getTitle();
         mCurrentState.mFavicon = view.getFavicon();
         if (!URLUtil.isHttpsUrl(mCurrentState.mUrl)) {
@@ -803,6 +820,7 @@ class Tab implements PictureListener {
         @Override
         public void onReceivedTitle(WebView view, final String title) {
             mCurrentState.mTitle = title;
+            mStateDirty = true;
             mWebViewController.onReceivedTitle(Tab.this, title);
         }
 
@@ -815,7 +833,6 @@ class Tab implements PictureListener {
         @Override
         public void onReceivedTouchIconUrl(WebView view, String url,
                 boolean precomposed) {
-            final ContentResolver cr = mContext.getContentResolver();
             // Let precomposed icons take precedence over non-composed
             // icons.
             if (precomposed && mTouchIconLoader != null) {
@@ -824,7 +841,7 @@ class Tab implements PictureListener {
             }
             // Have only one async task at a time.
             if (mTouchIconLoader == null) {
-                mTouchIconLoader = new DownloadTouchIcon(Tab.this, cr, view);
+                mTouchIconLoader = new DownloadTouchIcon(Tab.this, mContext, view);
                 mTouchIconLoader.execute(url);
             }
         }
@@ -1266,6 +1283,8 @@ class Tab implements PictureListener {
         }
         // set the new one
         mMainView = w;
+        mStateDirty = true;
+        notifyIndexedStateChanged();
         // attach the WebViewClient, WebChromeClient and DownloadListener
         if (mMainView != null) {
             mMainView.setWebViewClient(mWebViewClient);
@@ -1363,6 +1382,7 @@ class Tab implements PictureListener {
             mSubView.destroy();
             mSubView = null;
             mSubViewContainer = null;
+            notifyIndexedStateChanged();
         }
     }
 
@@ -1380,6 +1400,9 @@ class Tab implements PictureListener {
         // (most likely due to removing the parent tab) we must update the
         // parent tab id in the saved Bundle.
         if (mSavedState != null) {
+            // The previous Bundle may still be in use by a crash recovery
+            // write, update a copy of it.
+            mSavedState = new Bundle(mSavedState);
             if (parent == null) {
                 mSavedState.remove(PARENTTAB);
             } else {
@@ -1537,6 +1560,7 @@ class Tab implements PictureListener {
 
     void setSubWebView(WebView subView) {
         mSubView = subView;
+        notifyIndexedStateChanged();
     }
 
     View getSubViewContainer() {
@@ -1585,6 +1609,18 @@ class Tab implements PictureListener {
      */
     void setAppId(String id) {
         mAppId = id;
+        mStateDirty = true;
+        notifyIndexedStateChanged();
+    }
+
+    void setOnIndexedStateChangedListener(OnIndexedStateChangedListener l) {
+        mIndexListener = l;
+    }
+
+    private void notifyIndexedStateChanged() {
+        if (mIndexListener != null) {
+            mIndexListener.onIndexedStateChanged(this);
+        }
     }
 
     boolean closeOnBack() {
@@ -1593,6 +1629,7 @@ class Tab implements PictureListener {
 
     void setCloseOnBack(boolean close) {
         mCloseOnBack = close;
+        mStateDirty = true;
     }
 
     String getUrl() {
@@ -1688,6 +1725,18 @@ class Tab implements PictureListener {
     }
 
     /**
+     * @return True if {@link #saveState()} has to capture the WebView's state
+     *         again, false if the last saved state is still current.
+     */
+    boolean hasStateChanged() {
+        return mMainView != null && (mStateDirty || mSavedState == null);
+    }
+
+    /**
+     * Returns the state of the tab. The WebView's state is only captured if
+     * the tab has navigated since the last call, otherwise the previously
+     * saved Bundle is returned. The returned Bundle is never modified
+     * afterwards, so it may be written out on another thread.
      * @return The Bundle with the tab's state if it can be saved, otherwise null
      */
     public Bundle saveState() {
@@ -1701,6 +1750,11 @@ class Tab implements PictureListener {
             return null;
         }
 
+        if (!hasStateChanged()) {
+            return mSavedState;
+        }
+
+        mStateDirty = false;
         mSavedState = new Bundle();
         WebBackForwardList savedList = mMainView.saveState(mSavedState);
         if (savedList == null || savedList.getSize() == 0) {
@@ -1827,6 +1881,7 @@ class Tab implements PictureListener {
             mPageLoadProgress = INITIAL_PROGRESS;
             mInPageLoad = true;
             mCurrentState = new PageState(mContext, false, url, null);
+            notifyIndexedStateChanged();
             mWebViewController.onPageStarted(this, mMainView, null);
             mMainView.loadUrl(url, headers);
         }
@@ -32,6 +32,7 @@ import android.graphics.Paint;
 import android.graphics.Path;
 import android.graphics.Shader;
 import android.graphics.drawable.Drawable;
+import android.text.TextUtils;
 import android.view.Gravity;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -42,6 +43,8 @@ import android.widget.LinearLayout;
 import android.widget.TextView;
 
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 
@@ -72,14 +75,13 @@ public class TabBar extends LinearLayout implements OnClickListener {
     private Drawable mActiveDrawable;
     private Drawable mInactiveDrawable;
 
-    private final Paint mActiveShaderPaint = new Paint();
-    private final Paint mInactiveShaderPaint = new Paint();
     private final Paint mFocusPaint = new Paint();
-    private final Matrix mActiveMatrix = new Matrix();
-    private final Matrix mInactiveMatrix = new Matrix();
 
-    private BitmapShader mActiveShader;
-    private BitmapShader mInactiveShader;
+    // Tab backgrounds at the current texture size, shared by all TabViews
+    private Bitmap mActiveTexture;
+    private Bitmap mInactiveTexture;
+    // Incremented when the textures are replaced
+    private int mTextureGeneration;
 
     private int mTabOverlap;
     private int mAddTabOverlap;
@@ -112,12 +114,6 @@ public class TabBar extends LinearLayout implements OnClickListener {
         mAddTabOverlap = (int) res.getDimension(R.dimen.tab_addoverlap);
         mTabSliceWidth = (int) res.getDimension(R.dimen.tab_slice);
 
-        mActiveShaderPaint.setStyle(Paint.Style.FILL);
-        mActiveShaderPaint.setAntiAlias(true);
-
-        mInactiveShaderPaint.setStyle(Paint.Style.FILL);
-        mInactiveShaderPaint.setAntiAlias(true);
-
         mFocusPaint.setStyle(Paint.Style.STROKE);
         mFocusPaint.setStrokeWidth(res.getDimension(R.dimen.tab_focus_stroke));
         mFocusPaint.setAntiAlias(true);
@@ -143,12 +139,37 @@ public class TabBar extends LinearLayout implements OnClickListener {
         return mTabMap.size();
     }
 
+    /**
+     * Brings the tab strip in line with tabs. Views of tabs that are still
+     * there are kept and only moved if their position changed, their title
+     * and favicon are kept current by onUrlAndTitle and onFavicon. Only
+     * tabs that are new get a view built.
+     */
     void updateTabs(List<Tab> tabs) {
-        mTabs.clearTabs();
-        mTabMap.clear();
-        for (Tab tab : tabs) {
-            TabView tv = buildTabView(tab);
-            mTabs.addTab(tv);
+        HashSet<Tab> current = new HashSet<Tab>(tabs);
+        Iterator<Map.Entry<Tab, TabView>> it = mTabMap.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Tab, TabView> entry = it.next();
+            if (!current.contains(entry.getKey())) {
+                mTabs.removeTab(entry.getValue());
+                it.remove();
+            }
+        }
+        for (int i = 0; i < tabs.size(); i++) {
+            Tab tab = tabs.get(i);
+            TabView tv = mTabMap.get(tab);
+            if (tv == null) {
+                tv = buildTabView(tab);
+                mTabs.addTab(tv, i);
+            } else {
+                int index = mTabs.getChildIndex(tv);
+                if (index < 0) {
+                    // still waiting for animateTabIn
+                    mTabs.addTab(tv, i);
+                } else if (index != i) {
+                    mTabs.moveTab(tv, i);
+                }
+            }
         }
         mTabs.setSelectedTab(mTabControl.getCurrentPosition());
     }
@@ -227,6 +248,23 @@ public class TabBar extends LinearLayout implements OnClickListener {
         return tabview;
     }
 
+    // Renders the tab backgrounds again if the size they are drawn at changed
+    private void updateTextures(int height) {
+        if (mCurrentTextureWidth != mUi.getContentWidth() ||
+                mCurrentTextureHeight != height) {
+            mCurrentTextureWidth = mUi.getContentWidth();
+            mCurrentTextureHeight = height;
+
+            if (mCurrentTextureWidth > 0 && mCurrentTextureHeight > 0) {
+                mActiveTexture = getDrawableAsBitmap(mActiveDrawable,
+                        mCurrentTextureWidth, mCurrentTextureHeight);
+                mInactiveTexture = getDrawableAsBitmap(mInactiveDrawable,
+                        mCurrentTextureWidth, mCurrentTextureHeight);
+                mTextureGeneration++;
+            }
+        }
+    }
+
     private static Bitmap getDrawableAsBitmap(Drawable drawable, int width, int height) {
         Bitmap b = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
         Canvas c = new Canvas(b);
@@ -253,6 +291,19 @@ public class TabBar extends LinearLayout implements OnClickListener {
         Path mPath;
         Path mFocusPath;
         int[] mWindowPos;
+        // The favicon currently shown, to skip rebuilding its drawable
+        Bitmap mFavicon;
+        boolean mHasFavicon;
+        // Shaders over the shared textures, translated to where this tab is
+        final Paint mActiveShaderPaint = new Paint();
+        final Paint mInactiveShaderPaint = new Paint();
+        final Matrix mShaderMatrix = new Matrix();
+        BitmapShader mActiveShader;
+        BitmapShader mInactiveShader;
+        int mShaderGeneration;
+        int mShaderLeft;
+        int mPathWidth;
+        int mPathHeight;
 
         /**
          * @param context
@@ -263,6 +314,10 @@ public class TabBar extends LinearLayout implements OnClickListener {
             mPath = new Path();
             mFocusPath = new Path();
             mWindowPos = new int[2];
+            mActiveShaderPaint.setStyle(Paint.Style.FILL);
+            mActiveShaderPaint.setAntiAlias(true);
+            mInactiveShaderPaint.setStyle(Paint.Style.FILL);
+            mInactiveShaderPaint.setAntiAlias(true);
             mTab = tab;
             setGravity(Gravity.CENTER_VERTICAL);
             setOrientation(LinearLayout.HORIZONTAL);
@@ -295,7 +350,7 @@ public class TabBar extends LinearLayout implements OnClickListener {
             }
             setDisplayTitle(displayTitle);
             if (mTab.getFavicon() != null) {
-                setFavicon(mUi.getFaviconDrawable(mTab.getFavicon()));
+                updateFavicon(mTab.getFavicon());
             }
             updateTabIcons();
         }
@@ -330,13 +385,23 @@ public class TabBar extends LinearLayout implements OnClickListener {
         }
 
         void setDisplayTitle(String title) {
-            mTitle.setText(title);
+            if (!TextUtils.equals(mTitle.getText(), title)) {
+                mTitle.setText(title);
+            }
         }
 
         void setFavicon(Drawable d) {
             mIconView.setImageDrawable(d);
         }
 
+        void updateFavicon(Bitmap favicon) {
+            if (!mHasFavicon || mFavicon != favicon) {
+                mFavicon = favicon;
+                mHasFavicon = true;
+                setFavicon(mUi.getFaviconDrawable(favicon));
+            }
+        }
+
         void setLock(Drawable d) {
             if (null == d) {
                 mLock.setVisibility(View.GONE);
@@ -357,31 +422,27 @@ public class TabBar extends LinearLayout implements OnClickListener {
         @Override
         protected void onLayout(boolean changed, int l, int t, int r, int b) {
             super.onLayout(changed, l, t, r, b);
-            setTabPath(mPath, 0, 0, r - l, b - t);
-            setFocusPath(mFocusPath, 0, 0, r - l, b - t);
+            if (mPathWidth != r - l || mPathHeight != b - t) {
+                mPathWidth = r - l;
+                mPathHeight = b - t;
+                setTabPath(mPath, 0, 0, mPathWidth, mPathHeight);
+                setFocusPath(mFocusPath, 0, 0, mPathWidth, mPathHeight);
+            }
         }
 
         @Override
         protected void dispatchDraw(Canvas canvas) {
-            if (mCurrentTextureWidth != mUi.getContentWidth() ||
-                    mCurrentTextureHeight != getHeight()) {
-                mCurrentTextureWidth = mUi.getContentWidth();
-                mCurrentTextureHeight = getHeight();
-
-                if (mCurrentTextureWidth > 0 && mCurrentTextureHeight > 0) {
-                    Bitmap activeTexture = getDrawableAsBitmap(mActiveDrawable,
-                            mCurrentTextureWidth, mCurrentTextureHeight);
-                    Bitmap inactiveTexture = getDrawableAsBitmap(mInactiveDrawable,
-                            mCurrentTextureWidth, mCurrentTextureHeight);
-
-                    mActiveShader = new BitmapShader(activeTexture,
-                            Shader.TileMode.CLAMP, Shader.TileMode.CLAMP);
-                    mActiveShaderPaint.setShader(mActiveShader);
-
-                    mInactiveShader = new BitmapShader(inactiveTexture,
-                            Shader.TileMode.CLAMP, Shader.TileMode.CLAMP);
-                    mInactiveShaderPaint.setShader(mInactiveShader);
-                }
+            updateTextures(getHeight());
+            if (mActiveTexture != null && mShaderGeneration != mTextureGeneration) {
+                mShaderGeneration = mTextureGeneration;
+                mActiveShader = new BitmapShader(mActiveTexture,
+                        Shader.TileMode.CLAMP, Shader.TileMode.CLAMP);
+                mInactiveShader = new BitmapShader(mInactiveTexture,
+                        Shader.TileMode.CLAMP, Shader.TileMode.CLAMP);
+                mActiveShaderPaint.setShader(mActiveShader);
+                mInactiveShaderPaint.setShader(mInactiveShader);
+                // force the matrix to be set
+                mShaderLeft = Integer.MIN_VALUE;
             }
             // add some monkey protection
             if ((mActiveShader != null) && (mInactiveShader != null)) {
@@ -395,12 +456,13 @@ public class TabBar extends LinearLayout implements OnClickListener {
         }
 
         private void drawClipped(Canvas canvas, Paint paint, Path clipPath, int left) {
-            // TODO: We should change the matrix/shader only when needed
-            final Matrix matrix = mSelected ? mActiveMatrix : mInactiveMatrix;
-            matrix.setTranslate(-left, 0.0f);
-            final Shader shader = mSelected ? mActiveShader : mInactiveShader;
-            shader.setLocalMatrix(matrix);
-            paint.setShader(shader);
+            // Only move the shaders when the tab moved in the window
+            if (mShaderLeft != left) {
+                mShaderLeft = left;
+                mShaderMatrix.setTranslate(-left, 0.0f);
+                mActiveShader.setLocalMatrix(mShaderMatrix);
+                mInactiveShader.setLocalMatrix(mShaderMatrix);
+            }
             canvas.drawPath(clipPath, paint);
             if (isFocused()) {
                 canvas.drawPath(mFocusPath, mFocusPaint);
@@ -478,7 +540,10 @@ public class TabBar extends LinearLayout implements OnClickListener {
 
             @Override
             public void onAnimationStart(Animator animation) {
-                mTabs.addTab(tv);
+                // updateTabs may have added it already
+                if (mTabs.getChildIndex(tv) < 0) {
+                    mTabs.addTab(tv);
+                }
             }
 
         });
@@ -494,7 +559,7 @@ public class TabBar extends LinearLayout implements OnClickListener {
     public void onFavicon(Tab tab, Bitmap favicon) {
         TabView tv = mTabMap.get(tab);
         if (tv != null) {
-            tv.setFavicon(mUi.getFaviconDrawable(favicon));
+            tv.updateFavicon(favicon);
         }
     }
 
@@ -22,6 +22,7 @@ import android.webkit.WebView;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Vector;
 
@@ -43,8 +44,8 @@ class TabControl {
     private int mMaxTabs;
     // Private array of WebViews that are used as tabs.
     private ArrayList<Tab> mTabs;
-    // Queue of most recently viewed tabs.
-    private ArrayList<Tab> mTabQueue;
+    // Queue of most recently viewed tabs, least recently viewed first.
+    private LinkedHashSet<Tab> mTabQueue;
     // Current position in mTabs.
     private int mCurrentTab = -1;
     // the main browser controller
@@ -52,6 +53,112 @@ class TabControl {
 
     private OnThumbnailUpdatedListener mOnThumbnailUpdatedListener;
 
+    // Lookup indexes over mTabs. They are updated when tabs are added or
+    // removed and whenever a tab reports a change to its urls, app id or
+    // WebViews, so lookups don't need to scan every tab.
+    private final HashMap<Tab, Integer> mPositions = new HashMap<Tab, Integer>();
+    private boolean mPositionsValid = true;
+    private final HashMap<Tab, IndexedKeys> mIndexedKeys = new HashMap<Tab, IndexedKeys>();
+    private final TabMultiMap<String> mTabsByUrl = new TabMultiMap<String>();
+    private final TabMultiMap<String> mTabsByAppId = new TabMultiMap<String>();
+    private final HashMap<WebView, Tab> mTabsByView = new HashMap<WebView, Tab>();
+
+    private final Tab.OnIndexedStateChangedListener mIndexListener =
+            new Tab.OnIndexedStateChangedListener() {
+        @Override
+        public void onIndexedStateChanged(Tab tab) {
+            if (mIndexedKeys.containsKey(tab)) {
+                unindexTab(tab);
+                indexTab(tab);
+            }
+        }
+    };
+
+    /**
+     * The keys a tab was last indexed under, so that they can be removed
+     * when they change.
+     */
+    private static class IndexedKeys {
+        String mUrl;
+        String mOriginalUrl;
+        String mAppId;
+        WebView mMainView;
+        WebView mSubView;
+    }
+
+    /**
+     * Maps a key to the tabs that have it, usually just one.
+     */
+    private static class TabMultiMap<K> {
+        private final HashMap<K, Object> mMap = new HashMap<K, Object>();
+
+        void add(K key, Tab tab) {
+            if (key == null) {
+                return;
+            }
+            Object existing = mMap.get(key);
+            if (existing == null) {
+                mMap.put(key, tab);
+            } else if (existing instanceof Tab) {
+                if (existing != tab) {
+                    ArrayList<Tab> tabs = new ArrayList<Tab>(2);
+                    tabs.add((Tab) existing);
+                    tabs.add(tab);
+                    mMap.put(key, tabs);
+                }
+            } else {
+                @SuppressWarnings("unchecked")
+                ArrayList<Tab> tabs = (ArrayList<Tab>) existing;
+                if (!tabs.contains(tab)) {
+                    tabs.add(tab);
+                }
+            }
+        }
+
+        void remove(K key, Tab tab) {
+            if (key == null) {
+                return;
+            }
+            Object existing = mMap.get(key);
+            if (existing == tab) {
+                mMap.remove(key);
+            } else if (existing instanceof ArrayList) {
+                @SuppressWarnings("unchecked")
+                ArrayList<Tab> tabs = (ArrayList<Tab>) existing;
+                tabs.remove(tab);
+                if (tabs.size() == 1) {
+                    mMap.put(key, tabs.get(0));
+                }
+            }
+        }
+
+        /**
+         * Returns the tab with key that comes first in the tab list.
+         */
+        Tab getFirst(K key, TabControl tc) {
+            Object existing = mMap.get(key);
+            if (existing == null || existing instanceof Tab) {
+                return (Tab) existing;
+            }
+            @SuppressWarnings("unchecked")
+            ArrayList<Tab> tabs = (ArrayList<Tab>) existing;
+            Tab first = null;
+            int firstPosition = Integer.MAX_VALUE;
+            for (Tab t : tabs) {
+                int position = tc.getTabPosition(t);
+                if (position >= 0 && position < firstPosition) {
+                    first = t;
+                    firstPosition = position;
+                }
+            }
+            return first;
+        }
+
+        void clear() {
+            mMap.clear();
+        }
+    }
+
     /**
      * Construct a new TabControl object
      */
@@ -59,7 +166,7 @@ class TabControl {
         mController = controller;
         mMaxTabs = mController.getMaxTabs();
         mTabs = new ArrayList<Tab>(mMaxTabs);
-        mTabQueue = new ArrayList<Tab>(mMaxTabs);
+        mTabQueue = new LinkedHashSet<Tab>(mMaxTabs);
     }
 
     synchronized static long getNextId() {
@@ -148,7 +255,62 @@ class TabControl {
         if (tab == null) {
             return -1;
         }
-        return mTabs.indexOf(tab);
+        if (!mPositionsValid) {
+            mPositions.clear();
+            for (int i = 0; i < mTabs.size(); i++) {
+                mPositions.put(mTabs.get(i), i);
+            }
+            mPositionsValid = true;
+        }
+        Integer position = mPositions.get(tab);
+        return position != null ? position : -1;
+    }
+
+    /**
+     * Appends tab to the tab list and indexes it.
+     */
+    private void addTab(Tab tab) {
+        mTabs.add(tab);
+        if (mPositionsValid) {
+            mPositions.put(tab, mTabs.size() - 1);
+        }
+        indexTab(tab);
+        tab.setOnIndexedStateChangedListener(mIndexListener);
+    }
+
+    private void indexTab(Tab tab) {
+        IndexedKeys keys = new IndexedKeys();
+        keys.mUrl = tab.getUrl();
+        keys.mOriginalUrl = tab.getOriginalUrl();
+        keys.mAppId = tab.getAppId();
+        keys.mMainView = tab.getWebView();
+        keys.mSubView = tab.getSubWebView();
+        mIndexedKeys.put(tab, keys);
+        mTabsByUrl.add(keys.mUrl, tab);
+        mTabsByUrl.add(keys.mOriginalUrl, tab);
+        mTabsByAppId.add(keys.mAppId, tab);
+        if (keys.mMainView != null) {
+            mTabsByView.put(keys.mMainView, tab);
+        }
+        if (keys.mSubView != null) {
+            mTabsByView.put(keys.mSubView, tab);
+        }
+    }
+
+    private void unindexTab(Tab tab) {
+        IndexedKeys keys = mIndexedKeys.remove(tab);
+        if (keys == null) {
+            return;
+        }
+        mTabsByUrl.remove(keys.mUrl, tab);
+        mTabsByUrl.remove(keys.mOriginalUrl, tab);
+        mTabsByAppId.remove(keys.mAppId, tab);
+        if (keys.mMainView != null && mTabsByView.get(keys.mMainView) == tab) {
+            mTabsByView.remove(keys.mMainView);
+        }
+        if (keys.mSubView != null && mTabsByView.get(keys.mSubView) == tab) {
+            mTabsByView.remove(keys.mSubView);
+        }
     }
 
     boolean canCreateNewTab() {
@@ -176,7 +338,7 @@ class TabControl {
                         + current.toString());
             }
         }
-        mTabs.add(tab);
+        addTab(tab);
         tab.setController(mController);
         mController.onSetWebView(tab, tab.getWebView());
         tab.putInBackground();
@@ -202,7 +364,7 @@ class TabControl {
 
         // Create a new tab and add it to the tab list
         Tab t = new Tab(mController, w, state);
-        mTabs.add(t);
+        addTab(t);
         // Initially put the tab in the background.
         t.putInBackground();
         return t;
@@ -240,6 +402,7 @@ class TabControl {
 
         // Remove t from our list of tabs.
         mTabs.remove(t);
+        mPositionsValid = false;
 
         // Put the tab in the background only if it is the current one.
         if (current == t) {
@@ -258,6 +421,8 @@ class TabControl {
 
         // Remove it from the queue of viewed tabs.
         mTabQueue.remove(t);
+        t.setOnIndexedStateChangedListener(null);
+        unindexTab(t);
         return true;
     }
 
@@ -266,10 +431,17 @@ class TabControl {
      */
     void destroy() {
         for (Tab t : mTabs) {
+            t.setOnIndexedStateChangedListener(null);
             t.destroy();
         }
         mTabs.clear();
         mTabQueue.clear();
+        mPositions.clear();
+        mPositionsValid = true;
+        mIndexedKeys.clear();
+        mTabsByUrl.clear();
+        mTabsByAppId.clear();
+        mTabsByView.clear();
     }
 
     /**
@@ -285,17 +457,23 @@ class TabControl {
      * current position
      * position sorted array of tab ids
      * for each tab id, save the tab state
+     * Only tabs that have changed since the last save capture their WebView
+     * state again, the others reuse their previous Bundle.
      * @param outState
-     * @param saveImages
+     * @return The number of tabs whose WebView state was captured
      */
-    void saveState(Bundle outState) {
+    int saveState(Bundle outState) {
         final int numTabs = getTabCount();
         if (numTabs == 0) {
-            return;
+            return 0;
         }
         long[] ids = new long[numTabs];
         int i = 0;
+        int captured = 0;
         for (Tab tab : mTabs) {
+            if (tab.hasStateChanged()) {
+                captured++;
+            }
             Bundle tabState = tab.saveState();
             if (tabState != null) {
                 ids[i++] = tab.getId();
@@ -324,6 +502,7 @@ class TabControl {
             }
             outState.putLong(CURRENT, cid);
         }
+        return captured;
     }
 
     /**
@@ -383,6 +562,7 @@ class TabControl {
         long[] ids = inState.getLongArray(POSITIONS);
         long maxId = -Long.MAX_VALUE;
         HashMap<Long, Tab> tabMap = new HashMap<Long, Tab>();
+        ArrayList<Tab> backgroundTabs = new ArrayList<Tab>();
         for (long id : ids) {
             if (id > maxId) {
                 maxId = id;
@@ -413,12 +593,23 @@ class TabControl {
                 // to the tab list
                 Tab t = new Tab(mController, state);
                 tabMap.put(id, t);
-                mTabs.add(t);
-                // added the tab to the front as they are not current
-                mTabQueue.add(0, t);
+                addTab(t);
+                backgroundTabs.add(t);
             }
         }
 
+        if (!backgroundTabs.isEmpty()) {
+            // Put the tabs that weren't restored at the front of the queue,
+            // as they are not current, last restored first.
+            LinkedHashSet<Tab> queue = new LinkedHashSet<Tab>(
+                    mTabQueue.size() + backgroundTabs.size());
+            for (int i = backgroundTabs.size() - 1; i >= 0; i--) {
+                queue.add(backgroundTabs.get(i));
+            }
+            queue.addAll(mTabQueue);
+            mTabQueue = queue;
+        }
+
         // make sure that there is no id overlap between the restored
         // and new tabs
         sNextId = maxId + 1;
@@ -530,12 +721,10 @@ class TabControl {
      * @param view The WebView used to find the tab.
      */
     Tab getTabFromView(WebView view) {
-        for (Tab t : mTabs) {
-            if (t.getSubWebView() == view || t.getWebView() == view) {
-                return t;
-            }
+        if (view == null) {
+            return null;
         }
-        return null;
+        return mTabsByView.get(view);
     }
 
     /**
@@ -546,12 +735,7 @@ class TabControl {
         if (id == null) {
             return null;
         }
-        for (Tab t : mTabs) {
-            if (id.equals(t.getAppId())) {
-                return t;
-            }
-        }
-        return null;
+        return mTabsByAppId.getFirst(id, this);
     }
 
     /**
@@ -589,12 +773,7 @@ class TabControl {
             return currentTab;
         }
         // Now check all the rest.
-        for (Tab tab : mTabs) {
-            if (tabMatchesUrl(tab, url)) {
-                return tab;
-            }
-        }
-        return null;
+        return mTabsByUrl.getFirst(url, this);
     }
 
     /**
@@ -655,14 +834,11 @@ class TabControl {
         }
 
         // Move the newTab to the end of the queue
-        int index = mTabQueue.indexOf(newTab);
-        if (index != -1) {
-            mTabQueue.remove(index);
-        }
+        mTabQueue.remove(newTab);
         mTabQueue.add(newTab);
 
         // Display the new current tab
-        mCurrentTab = mTabs.indexOf(newTab);
+        mCurrentTab = getTabPosition(newTab);
         WebView mainView = newTab.getWebView();
         boolean needRestore = mainView == null;
         if (needRestore) {
@@ -99,6 +99,10 @@ public class TabScrollView extends HorizontalScrollView {
 
     void setSelectedTab(int position) {
         View v = getSelectedTab();
+        if (position == mSelected && (v == null || v.isActivated())) {
+            // nothing changed, don't lay the tabs out again
+            return;
+        }
         if (v != null) {
             v.setActivated(false);
         }
@@ -131,8 +135,26 @@ public class TabScrollView extends HorizontalScrollView {
         tab.setActivated(false);
     }
 
+    void addTab(View tab, int index) {
+        mContentView.addView(tab, index);
+        tab.setActivated(false);
+        if (mSelected >= 0 && index <= mSelected) {
+            mSelected++;
+        }
+    }
+
+    void moveTab(View tab, int index) {
+        View selected = getSelectedTab();
+        mContentView.removeView(tab);
+        mContentView.addView(tab, index);
+        if (selected != null) {
+            mSelected = mContentView.indexOfChild(selected);
+        }
+    }
+
     void removeTab(View tab) {
         int ix = mContentView.indexOfChild(tab);
+        if (ix < 0) return;
         if (ix == mSelected) {
             mSelected = -1;
         } else if (ix < mSelected) {
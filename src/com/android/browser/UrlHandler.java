@@ -31,7 +31,6 @@ import android.webkit.WebView;
 
 import java.net.URISyntaxException;
 import java.util.List;
-import java.util.regex.Matcher;
 
 /**
  *
@@ -180,8 +179,7 @@ public class UrlHandler {
       // Make sure webkit can handle it internally before checking for specialized
       // handlers. If webkit can't handle it internally, we need to call
       // startActivityIfNeeded
-      Matcher m = UrlUtils.ACCEPTED_URI_SCHEMA.matcher(url);
-      if (m.matches() && !isSpecializedHandlerAvailable(intent)) {
+      if (UrlUtils.isAcceptedUri(url) && !isSpecializedHandlerAvailable(intent)) {
           return false;
       }
       try {
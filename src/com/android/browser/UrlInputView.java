@@ -25,7 +25,6 @@ import android.text.Editable;
 import android.text.TextUtils;
 import android.text.TextWatcher;
 import android.util.AttributeSet;
-import android.util.Patterns;
 import android.view.KeyEvent;
 import android.view.MotionEvent;
 import android.view.View;
@@ -250,8 +249,7 @@ public class UrlInputView extends AutoCompleteTextView
         String url = UrlUtils.fixUrl(inUrl).trim();
         if (TextUtils.isEmpty(url)) return false;
 
-        if (Patterns.WEB_URL.matcher(url).matches()
-                || UrlUtils.ACCEPTED_URI_SCHEMA.matcher(url).matches()) {
+        if (UrlUtils.isWebUrl(url) || UrlUtils.isAcceptedUri(url)) {
             return false;
         }
         return true;
@@ -46,6 +46,11 @@ public class UrlUtils {
     private static final Pattern STRIP_URL_PATTERN =
             Pattern.compile("^http://(.*?)/?$");
 
+    // The schemes of the first alternatives of ACCEPTED_URI_SCHEMA
+    private static final String[] ACCEPTED_SCHEMES = new String[] {
+        "http://", "https://", "file://", "data:", "about:", "javascript:",
+    };
+
     private UrlUtils() { /* cannot be instantiated */ }
 
     /**
@@ -106,21 +111,23 @@ public class UrlUtils {
         String inUrl = url.trim();
         boolean hasSpace = inUrl.indexOf(' ') != -1;
 
-        Matcher matcher = ACCEPTED_URI_SCHEMA.matcher(inUrl);
-        if (matcher.matches()) {
+        int schemeLength = getAcceptedSchemeLength(inUrl);
+        if (schemeLength >= 0) {
             // force scheme to lowercase
-            String scheme = matcher.group(1);
-            String lcScheme = scheme.toLowerCase();
-            if (!lcScheme.equals(scheme)) {
-                inUrl = lcScheme + matcher.group(2);
+            if (needsLowerCase(inUrl, schemeLength)) {
+                String scheme = inUrl.substring(0, schemeLength);
+                String lcScheme = scheme.toLowerCase();
+                if (!lcScheme.equals(scheme)) {
+                    inUrl = lcScheme + inUrl.substring(schemeLength);
+                }
             }
-            if (hasSpace && Patterns.WEB_URL.matcher(inUrl).matches()) {
+            if (hasSpace && isWebUrl(inUrl)) {
                 inUrl = inUrl.replace(" ", "%20");
             }
             return inUrl;
         }
         if (!hasSpace) {
-            if (Patterns.WEB_URL.matcher(inUrl).matches()) {
+            if (isWebUrl(inUrl)) {
                 return URLUtil.guessUrl(inUrl);
             }
         }
@@ -131,6 +138,116 @@ public class UrlUtils {
         return null;
     }
 
+    /**
+     * Same as ACCEPTED_URI_SCHEMA.matcher(url).matches(), without running
+     * the regex.
+     */
+    /* package */ static boolean isAcceptedUri(String url) {
+        return getAcceptedSchemeLength(url) >= 0;
+    }
+
+    /**
+     * Same as Patterns.WEB_URL.matcher(url).matches(). Input that can't be
+     * a web url, like search terms, is rejected by a single scan; the regex
+     * only runs on input that looks like a host name, as it owns the list of
+     * top level domains.
+     */
+    /* package */ static boolean isWebUrl(String url) {
+        return mayBeWebUrl(url) && Patterns.WEB_URL.matcher(url).matches();
+    }
+
+    /**
+     * Returns the length of the scheme group of ACCEPTED_URI_SCHEMA, or -1
+     * if url doesn't match it.
+     */
+    private static int getAcceptedSchemeLength(String url) {
+        // '.' doesn't match line terminators, so no alternative matches
+        // if there is one
+        int length = url.length();
+        for (int i = 0; i < length; i++) {
+            char c = url.charAt(i);
+            if (c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028'
+                    || c == '\u2029') {
+                return -1;
+            }
+        }
+        for (String scheme : ACCEPTED_SCHEMES) {
+            if (startsWithIgnoreCase(url, scheme)) {
+                return scheme.length();
+            }
+        }
+        // "(?:.*:.*@)" matches up to the last '@' that follows a ':'
+        int at = url.lastIndexOf('@');
+        if (at > 0) {
+            int colon = url.indexOf(':');
+            if (colon >= 0 && colon < at) {
+                return at + 1;
+            }
+        }
+        return -1;
+    }
+
+    // Folds case like the regex does with (?i) on ICU: an ASCII letter also
+    // matches the non ASCII characters that fold to it, that is U+017F LATIN
+    // SMALL LETTER LONG S for 's' and U+212A KELVIN SIGN for 'k'
+    private static boolean startsWithIgnoreCase(String url, String lowerPrefix) {
+        int length = lowerPrefix.length();
+        if (url.length() < length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            char c = url.charAt(i);
+            char p = lowerPrefix.charAt(i);
+            if (c != p && !(p >= 'a' && p <= 'z' && c == p - 'a' + 'A')
+                    && !(p == 's' && c == '\u017f') && !(p == 'k' && c == '\u212a')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Whether toLowerCase() may change the first length chars of url
+    private static boolean needsLowerCase(String url, int length) {
+        for (int i = 0; i < length; i++) {
+            char c = url.charAt(i);
+            if ((c >= 'A' && c <= 'Z') || c >= 0x80) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns false if url can't match Patterns.WEB_URL: every url it
+     * matches has a '.' in its host and only uses letters, digits, non ASCII
+     * characters and the punctuation allowed in the user info, host, port
+     * and path.
+     */
+    private static boolean mayBeWebUrl(String url) {
+        boolean hasDot = false;
+        int length = url.length();
+        for (int i = 0; i < length; i++) {
+            char c = url.charAt(i);
+            if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z')
+                    || (c >= '0' && c <= '9') || c >= 0xA0) {
+                continue;
+            }
+            switch (c) {
+                case '.':
+                    hasDot = true;
+                    break;
+                case '$': case '-': case '_': case '+': case '!': case '*':
+                case '\'': case '(': case ')': case ',': case ';': case '?':
+                case '&': case '=': case '%': case ':': case '@': case '/':
+                case '#': case '~':
+                    break;
+                default:
+                    return false;
+            }
+        }
+        return hasDot;
+    }
+
     /* package */ static String fixUrl(String inUrl) {
         // FIXME: Converting the url to lower case
         // duplicates functionality in smartUrlFilter().
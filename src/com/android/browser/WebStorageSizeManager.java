@@ -24,6 +24,7 @@ import android.app.PendingIntent;
 import android.content.Context;
 import android.content.Intent;
 import android.os.StatFs;
+import android.os.SystemClock;
 import android.preference.PreferenceActivity;
 import android.util.Log;
 import android.webkit.WebStorage;
@@ -77,7 +78,15 @@ import java.io.File;
  * The default quota for an origin is its estimated size. If we cannot satisfy
  * the estimated size, then WebCore will not create the database.
  * Quota increases are done in steps, where the increase step is
- * min(QUOTA_INCREASE_STEP, unused_quota).
+ * min(max(QUOTA_INCREASE_STEP, current_quota / QUOTA_GROWTH_DIVISOR),
+ * unused_quota). The ApplicationCaches max size grows the same way, but by at
+ * least the space it needs, so that a cache that keeps growing only comes back
+ * for more space a logarithmic number of times.
+ *
+ * Quota is also never granted beyond half of the free space of the partition.
+ * The free space is sampled at most once every FREE_SPACE_SAMPLE_INTERVAL and
+ * the quota granted since the last sample is deducted from it in between, so
+ * the callbacks don't have to stat the file system each time.
  *
  * When all the Web storage space is used, the WebStorageSizeManager creates
  * a system notification that will guide the user to the WebSettings UI. There,
@@ -93,6 +102,8 @@ public class WebStorageSizeManager {
     public final static long ORIGIN_DEFAULT_QUOTA = 3 * 1024 * 1024;  // 3MB
     // The default value for quota increases.
     public final static long QUOTA_INCREASE_STEP = 1 * 1024 * 1024;  // 1MB
+    // Quota increases are at least this fraction of the current quota.
+    public final static long QUOTA_GROWTH_DIVISOR = 8;
     // Extra padding space for appcache maximum size increases. This is needed
     // because WebKit sends us an estimate of the amount of space needed
     // but this estimate may, currently, be slightly less than what is actually
@@ -107,12 +118,19 @@ public class WebStorageSizeManager {
     private final static long NOTIFICATION_INTERVAL = 5 * 60 * 1000;
     // Delay in ms used when resetting the notification time
     private final static long RESET_NOTIFICATION_INTERVAL = 3 * 1000;
+    // Minimum delay in ms between two samples of the free space
+    private final static long FREE_SPACE_SAMPLE_INTERVAL = 30 * 1000;
     // The application context.
     private final Context mContext;
     // The global Web storage limit.
     private final long mGlobalLimit;
     // The maximum size of the application cache file.
     private long mAppCacheMaxSize;
+    // The free space at the last sample, minus the quota granted since.
+    private long mFreeSpaceEstimate;
+    // The uptime of the last free space sample.
+    private long mFreeSpaceSampleTime;
+    private long mFreeSpaceSampleInterval = FREE_SPACE_SAMPLE_INTERVAL;
 
     /**
      * Interface used by the WebStorageSizeManager to obtain information
@@ -205,6 +223,14 @@ public class WebStorageSizeManager {
         return mAppCacheMaxSize;
     }
 
+    /**
+     * Sets the minimum delay between two samples of the free space, for
+     * testing.
+     */
+    /*package*/ void setFreeSpaceSampleInterval(long interval) {
+        mFreeSpaceSampleInterval = interval;
+    }
+
     /**
      * The origin has exceeded its database quota.
      * @param url the URL that exceeded the quota
@@ -233,7 +259,7 @@ public class WebStorageSizeManager {
                   + totalUsedQuota
                   + ")");
         }
-        long totalUnusedQuota = mGlobalLimit - totalUsedQuota - mAppCacheMaxSize;
+        long totalUnusedQuota = getTotalUnusedQuota(totalUsedQuota);
 
         if (totalUnusedQuota <= 0) {
             // There definitely isn't any more space. Fire notifications
@@ -281,7 +307,7 @@ public class WebStorageSizeManager {
             // Increase the quota. If estimatedSize == 0, then this is a quota overflow
             // rather than the creation of a new database.
             long quotaIncrease = estimatedSize == 0 ?
-                    Math.min(QUOTA_INCREASE_STEP, totalUnusedQuota) :
+                    Math.min(getQuotaIncrease(currentQuota), totalUnusedQuota) :
                     estimatedSize;
             newOriginQuota += quotaIncrease;
 
@@ -291,6 +317,7 @@ public class WebStorageSizeManager {
             }
         }
 
+        mFreeSpaceEstimate -= newOriginQuota - currentQuota;
         quotaUpdater.updateQuota(newOriginQuota);
 
         if(LOGV_ENABLED) {
@@ -315,9 +342,10 @@ public class WebStorageSizeManager {
                   + spaceNeeded + " bytes.");
         }
 
-        long totalUnusedQuota = mGlobalLimit - totalUsedQuota - mAppCacheMaxSize;
+        long totalUnusedQuota = getTotalUnusedQuota(totalUsedQuota);
+        long minIncrease = spaceNeeded + APPCACHE_MAXSIZE_PADDING;
 
-        if (totalUnusedQuota < spaceNeeded + APPCACHE_MAXSIZE_PADDING) {
+        if (totalUnusedQuota < minIncrease) {
             // There definitely isn't any more space. Fire notifications
             // if needed and exit.
             if (totalUsedQuota > 0) {
@@ -335,8 +363,13 @@ public class WebStorageSizeManager {
             }
             return;
         }
-        // There is enough space to accommodate spaceNeeded bytes.
-        mAppCacheMaxSize += spaceNeeded + APPCACHE_MAXSIZE_PADDING;
+        // There is enough space to accommodate spaceNeeded bytes. Take a whole
+        // step if it fits, so that a growing cache doesn't come back for every
+        // few bytes.
+        long increase = Math.max(minIncrease,
+                Math.min(getQuotaIncrease(mAppCacheMaxSize), totalUnusedQuota));
+        mAppCacheMaxSize += increase;
+        mFreeSpaceEstimate -= increase;
         quotaUpdater.updateQuota(mAppCacheMaxSize);
 
         if(LOGV_ENABLED) {
@@ -356,9 +389,29 @@ public class WebStorageSizeManager {
     // Computes the global limit as a function of the size of the data
     // partition and the amount of free space on that partition.
     private long getGlobalLimit() {
-        long freeSpace = mDiskInfo.getFreeSpaceSizeBytes();
+        sampleFreeSpace();
         long fileSystemSize = mDiskInfo.getTotalSizeBytes();
-        return calculateGlobalLimit(fileSystemSize, freeSpace);
+        return calculateGlobalLimit(fileSystemSize, mFreeSpaceEstimate);
+    }
+
+    private void sampleFreeSpace() {
+        mFreeSpaceEstimate = mDiskInfo.getFreeSpaceSizeBytes();
+        mFreeSpaceSampleTime = SystemClock.uptimeMillis();
+    }
+
+    // Returns the quota that can still be granted: what is left of the global
+    // limit, but no more than half of the free space on the partition.
+    private long getTotalUnusedQuota(long totalUsedQuota) {
+        if (SystemClock.uptimeMillis() - mFreeSpaceSampleTime >= mFreeSpaceSampleInterval) {
+            sampleFreeSpace();
+        }
+        return Math.min(mGlobalLimit - totalUsedQuota - mAppCacheMaxSize,
+                mFreeSpaceEstimate / 2);
+    }
+
+    // Returns the step by which a quota of the given size grows.
+    private static long getQuotaIncrease(long quota) {
+        return Math.max(QUOTA_INCREASE_STEP, quota / QUOTA_GROWTH_DIVISOR);
     }
 
     /*package*/ static long calculateGlobalLimit(long fileSystemSizeBytes,
@@ -104,8 +104,18 @@ public class RequestHandler extends Thread {
         History.TITLE,
         History.THUMBNAIL
     };
+    private static final byte[] PNG_DATA_URI_PREFIX =
+            "data:image/png;base64,".getBytes();
+    // Thumbnails used to be written as PNG, newer ones are JPEG
+    private static final byte[] JPEG_DATA_URI_PREFIX =
+            "data:image/jpeg;base64,".getBytes();
     private static final String SELECTION = History.URL
             + " NOT LIKE 'content:%' AND " + History.THUMBNAIL + " IS NOT NULL";
+    private static boolean isJpeg(byte[] data) {
+        // JPEG streams start with the SOI marker
+        return data.length >= 2 && (data[0] & 0xff) == 0xff && (data[1] & 0xff) == 0xd8;
+    }
+
     void writeTemplatedIndex() throws IOException {
         Template t = Template.getCachedTemplate(mContext, R.raw.most_visited);
         Cursor historyResults = mContext.getContentResolver().query(
@@ -124,17 +134,21 @@ public class RequestHandler extends Thread {
                     }
                 };
             }
+            final int urlSlot = t.getSlot("url");
+            final int titleSlot = t.getSlot("title");
+            final int thumbnailSlot = t.getSlot("thumbnail");
             t.assignLoop("most_visited", new Template.CursorListEntityWrapper(cursor) {
                 @Override
-                public void writeValue(OutputStream stream, String key) throws IOException {
+                public void writeValue(OutputStream stream, int slot) throws IOException {
                     Cursor cursor = getCursor();
-                    if (key.equals("url")) {
+                    if (slot == urlSlot) {
                         stream.write(htmlEncode(cursor.getString(0)));
-                    } else if (key.equals("title")) {
+                    } else if (slot == titleSlot) {
                         stream.write(htmlEncode(cursor.getString(1)));
-                    } else if (key.equals("thumbnail")) {
-                        stream.write("data:image/png;base64,".getBytes());
+                    } else if (slot == thumbnailSlot) {
                         byte[] thumb = cursor.getBlob(2);
+                        stream.write(isJpeg(thumb)
+                                ? JPEG_DATA_URI_PREFIX : PNG_DATA_URI_PREFIX);
                         stream.write(Base64.encode(thumb, Base64.DEFAULT));
                     }
                 }
@@ -162,33 +176,33 @@ public class RequestHandler extends Thread {
         Template t = Template.getCachedTemplate(mContext, R.raw.folder_view);
         t.assign("path", mUri.getPath());
         t.assign("parent_url", f.getParent() != null ? f.getParent() : f.getPath());
+        final int nameSlot = t.getSlot("name");
+        final int urlSlot = t.getSlot("url");
+        final int typeSlot = t.getSlot("type");
+        final int sizeSlot = t.getSlot("size");
+        final int lastModifiedSlot = t.getSlot("last_modified");
+        final int altSlot = t.getSlot("alt");
+        final DateFormat dateFormat = DateFormat.getDateTimeInstance(
+                DateFormat.SHORT, DateFormat.SHORT);
         t.assignLoop("files", new ListEntityIterator() {
             int index = -1;
 
             @Override
-            public void writeValue(OutputStream stream, String key) throws IOException {
+            public void writeValue(OutputStream stream, int slot) throws IOException {
                 File f = files[index];
-                if ("name".equals(key)) {
+                if (slot == nameSlot) {
                     stream.write(f.getName().getBytes());
-                }
-                if ("url".equals(key)) {
+                } else if (slot == urlSlot) {
                     stream.write(("file://" + f.getAbsolutePath()).getBytes());
-                }
-                if ("type".equals(key)) {
+                } else if (slot == typeSlot) {
                     stream.write((f.isDirectory() ? "dir" : "file").getBytes());
-                }
-                if ("size".equals(key)) {
+                } else if (slot == sizeSlot) {
                     if (f.isFile()) {
                         stream.write(readableFileSize(f.length()).getBytes());
                     }
-                }
-                if ("last_modified".equals(key)) {
-                    String date = DateFormat.getDateTimeInstance(
-                            DateFormat.SHORT, DateFormat.SHORT)
-                            .format(f.lastModified());
-                    stream.write(date.getBytes());
-                }
-                if ("alt".equals(key)) {
+                } else if (slot == lastModifiedSlot) {
+                    stream.write(dateFormat.format(f.lastModified()).getBytes());
+                } else if (slot == altSlot) {
                     if (index % 2 == 0) {
                         stream.write("alt".getBytes());
                     }
@@ -196,7 +210,7 @@ public class RequestHandler extends Thread {
             }
 
             @Override
-            public ListEntityIterator getListIterator(String key) {
+            public ListEntityIterator getListIterator(int slot) {
                 return null;
             }
 
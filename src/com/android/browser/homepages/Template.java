@@ -19,6 +19,7 @@ package com.android.browser.homepages;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -32,20 +33,37 @@ import android.util.TypedValue;
 
 import com.android.browser.R;
 
+/**
+ * A simple templating engine. Templates are compiled once per resource id:
+ * static text is pre-encoded into byte arrays and every <%= name %> or
+ * <%{ name %> slot is resolved to an integer index shared by the template
+ * and all of its nested lists. Callers resolve the slots they care about
+ * with {@link #getSlot(String)} once, and then dispatch on the index while
+ * rendering.
+ */
 public class Template {
 
-    private static HashMap<Integer, Template> sCachedTemplates = new HashMap<Integer, Template>();
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final Pattern ENTITY_PATTERN =
+            Pattern.compile("<%([=\\{\\}])\\s*(\\w+)\\s*%>");
+    private static final Pattern CONST_PATTERN =
+            Pattern.compile("<%@\\s*(\\w+/\\w+)\\s*%>");
+
+    private static HashMap<Integer, CompiledTemplate> sCachedTemplates =
+            new HashMap<Integer, CompiledTemplate>();
 
     public static Template getCachedTemplate(Context context, int id) {
+        CompiledTemplate compiled;
         synchronized (sCachedTemplates) {
-            Template template = sCachedTemplates.get(id);
-            if (template == null) {
-                template = new Template(context, id);
-                sCachedTemplates.put(id, template);
+            compiled = sCachedTemplates.get(id);
+            if (compiled == null) {
+                compiled = compile(context, readRaw(context, id));
+                sCachedTemplates.put(id, compiled);
             }
-            // Return a copy so that we don't share data
-            return template.copy();
         }
+        // Share the compiled form, but not the assigned data
+        return new Template(compiled);
     }
 
     interface Entity {
@@ -53,8 +71,8 @@ public class Template {
     }
 
     interface EntityData {
-        void writeValue(OutputStream stream, String key) throws IOException;
-        ListEntityIterator getListIterator(String key);
+        void writeValue(OutputStream stream, int slot) throws IOException;
+        ListEntityIterator getListIterator(int slot);
     }
 
     interface ListEntityIterator extends EntityData {
@@ -64,10 +82,10 @@ public class Template {
 
     static class StringEntity implements Entity {
 
-        byte[] mValue;
+        final byte[] mValue;
 
         public StringEntity(String value) {
-            mValue = value.getBytes();
+            mValue = value.getBytes(UTF_8);
         }
 
         @Override
@@ -79,35 +97,35 @@ public class Template {
 
     static class SimpleEntity implements Entity {
 
-        String mKey;
+        final int mSlot;
 
-        public SimpleEntity(String key) {
-            mKey = key;
+        public SimpleEntity(int slot) {
+            mSlot = slot;
         }
 
         @Override
         public void write(OutputStream stream, EntityData params) throws IOException {
-            params.writeValue(stream, mKey);
+            params.writeValue(stream, mSlot);
         }
 
     }
 
     static class ListEntity implements Entity {
 
-        String mKey;
-        Template mSubTemplate;
+        final int mSlot;
+        final Entity[] mSubTemplate;
 
-        public ListEntity(Context context, String key, String subTemplate) {
-            mKey = key;
-            mSubTemplate = new Template(context, subTemplate);
+        public ListEntity(int slot, Entity[] subTemplate) {
+            mSlot = slot;
+            mSubTemplate = subTemplate;
         }
 
         @Override
         public void write(OutputStream stream, EntityData params) throws IOException {
-            ListEntityIterator iter = params.getListIterator(mKey);
+            ListEntityIterator iter = params.getListIterator(mSlot);
             iter.reset();
             while (iter.moveToNext()) {
-                mSubTemplate.write(stream, iter);
+                writeEntities(mSubTemplate, stream, iter);
             }
         }
 
@@ -132,7 +150,7 @@ public class Template {
         }
 
         @Override
-        public ListEntityIterator getListIterator(String key) {
+        public ListEntityIterator getListIterator(int slot) {
             return null;
         }
 
@@ -142,102 +160,243 @@ public class Template {
 
     }
 
-    static class HashMapEntityData implements EntityData {
+    static class ArrayEntityData implements EntityData {
 
-        HashMap<String, Object> mData;
+        final Object[] mData;
 
-        public HashMapEntityData(HashMap<String, Object> map) {
-            mData = map;
+        public ArrayEntityData(Object[] data) {
+            mData = data;
         }
 
         @Override
-        public ListEntityIterator getListIterator(String key) {
-            return (ListEntityIterator) mData.get(key);
+        public ListEntityIterator getListIterator(int slot) {
+            return (ListEntityIterator) mData[slot];
         }
 
         @Override
-        public void writeValue(OutputStream stream, String key) throws IOException {
-            stream.write((byte[]) mData.get(key));
+        public void writeValue(OutputStream stream, int slot) throws IOException {
+            byte[] value = (byte[]) mData[slot];
+            if (value != null) {
+                stream.write(value);
+            }
         }
 
     }
 
-    private List<Entity> mTemplate;
-    private HashMap<String, Object> mData = new HashMap<String, Object>();
-    private Template(Context context, int tid) {
-        this(context, readRaw(context, tid));
-    }
+    /**
+     * The immutable, shareable result of parsing a template.
+     */
+    static class CompiledTemplate {
+        final Entity[] mEntities;
+        final HashMap<String, Integer> mSlots;
 
-    private Template(Context context, String template) {
-        mTemplate = new ArrayList<Entity>();
-        template = replaceConsts(context, template);
-        parseTemplate(context, template);
+        CompiledTemplate(Entity[] entities, HashMap<String, Integer> slots) {
+            mEntities = entities;
+            mSlots = slots;
+        }
     }
 
-    private Template(Template copy) {
-        mTemplate = copy.mTemplate;
-    }
+    private final CompiledTemplate mCompiled;
+    private final Object[] mData;
 
-    Template copy() {
-        return new Template(this);
+    private Template(CompiledTemplate compiled) {
+        mCompiled = compiled;
+        mData = new Object[compiled.mSlots.size()];
     }
 
-    void parseTemplate(Context context, String template) {
-        final Pattern pattern = Pattern.compile("<%([=\\{])\\s*(\\w+)\\s*%>");
-        Matcher m = pattern.matcher(template);
+    /**
+     * Parses a template in a single pass over its text. Adjacent static text
+     * is merged into a single pre-encoded segment.
+     */
+    static CompiledTemplate compile(Context context, String template) {
+        template = replaceConsts(context, template);
+        HashMap<String, Integer> slots = new HashMap<String, Integer>();
+        // Stack of the lists currently open, the root template at the bottom
+        ArrayList<List<Entity>> entities = new ArrayList<List<Entity>>();
+        ArrayList<String> listNames = new ArrayList<String>();
+        entities.add(new ArrayList<Entity>());
+        StringBuilder pending = new StringBuilder();
+        Matcher m = ENTITY_PATTERN.matcher(template);
         int start = 0;
         while (m.find()) {
-            String static_part = template.substring(start, m.start());
-            if (static_part.length() > 0) {
-                mTemplate.add(new StringEntity(static_part));
-            }
-            String type = m.group(1);
+            pending.append(template, start, m.start());
+            start = m.end();
+            char type = m.group(1).charAt(0);
             String name = m.group(2);
-            if (type.equals("=")) {
-                mTemplate.add(new SimpleEntity(name));
-            } else if (type.equals("{")) {
-                Pattern p = Pattern.compile("<%\\}\\s*" + Pattern.quote(name) + "\\s*%>");
-                Matcher end_m = p.matcher(template);
-                if (end_m.find(m.end())) {
-                    start = m.end();
-                    m.region(end_m.end(), template.length());
-                    String subTemplate = template.substring(start, end_m.start());
-                    mTemplate.add(new ListEntity(context, name, subTemplate));
-                    start = end_m.end();
+            int depth = listNames.size();
+            if (type == '}') {
+                if (depth == 0 || !listNames.get(depth - 1).equals(name)) {
+                    // Not closing the current list, leave it as text
+                    pending.append(template, m.start(), m.end());
                     continue;
                 }
+                List<Entity> current = entities.get(depth);
+                flushStatic(pending, current);
+                entities.remove(depth);
+                listNames.remove(depth - 1);
+                entities.get(depth - 1).add(new ListEntity(getOrCreateSlot(slots, name),
+                        current.toArray(new Entity[current.size()])));
+                continue;
             }
-            start = m.end();
+            List<Entity> current = entities.get(depth);
+            flushStatic(pending, current);
+            if (type == '=') {
+                current.add(new SimpleEntity(getOrCreateSlot(slots, name)));
+            } else {
+                entities.add(new ArrayList<Entity>());
+                listNames.add(name);
+            }
+        }
+        pending.append(template, start, template.length());
+        // A list that is never closed is rendered inline, as if the opening
+        // tag wasn't there
+        for (int depth = listNames.size(); depth > 0; depth--) {
+            List<Entity> unclosed = entities.remove(depth);
+            List<Entity> parent = entities.get(depth - 1);
+            flushStatic(pending, unclosed);
+            parent.addAll(unclosed);
         }
-        String static_part = template.substring(start, template.length());
-        if (static_part.length() > 0) {
-            mTemplate.add(new StringEntity(static_part));
+        List<Entity> root = entities.get(0);
+        flushStatic(pending, root);
+        return new CompiledTemplate(root.toArray(new Entity[root.size()]), slots);
+    }
+
+    private static void flushStatic(StringBuilder pending, List<Entity> entities) {
+        if (pending.length() > 0) {
+            entities.add(new StringEntity(pending.toString()));
+            pending.setLength(0);
+        }
+    }
+
+    private static int getOrCreateSlot(HashMap<String, Integer> slots, String name) {
+        Integer slot = slots.get(name);
+        if (slot == null) {
+            slot = slots.size();
+            slots.put(name, slot);
         }
+        return slot;
+    }
+
+    /**
+     * Returns the index of the named slot, or -1 if the template doesn't
+     * reference it. Indices are stable for the lifetime of the compiled
+     * template, so callers should resolve them once per render.
+     */
+    public int getSlot(String name) {
+        Integer slot = mCompiled.mSlots.get(name);
+        return slot == null ? -1 : slot;
     }
 
     public void assign(String name, String value) {
-        mData.put(name, value.getBytes());
+        int slot = getSlot(name);
+        if (slot >= 0) {
+            mData[slot] = value.getBytes(UTF_8);
+        }
     }
 
     public void assignLoop(String name, ListEntityIterator iter) {
-        mData.put(name, iter);
+        int slot = getSlot(name);
+        if (slot >= 0) {
+            mData[slot] = iter;
+        }
     }
 
     public void write(OutputStream stream) throws IOException {
-        write(stream, new HashMapEntityData(mData));
+        write(stream, new ArrayEntityData(mData));
     }
 
     public void write(OutputStream stream, EntityData data) throws IOException {
-        for (Entity ent : mTemplate) {
-            ent.write(stream, data);
+        TemplateSink sink = TemplateSink.obtain(stream);
+        try {
+            writeEntities(mCompiled.mEntities, sink, data);
+            sink.flush();
+        } finally {
+            sink.recycle();
+        }
+    }
+
+    static void writeEntities(Entity[] entities, OutputStream stream,
+            EntityData data) throws IOException {
+        for (int i = 0; i < entities.length; i++) {
+            entities[i].write(stream, data);
+        }
+    }
+
+    /**
+     * A buffered stream whose buffer is recycled between renders, so that
+     * writing a template doesn't allocate.
+     */
+    static class TemplateSink extends OutputStream {
+
+        private static final int BUFFER_SIZE = 8 * 1024;
+        private static final Object sPoolLock = new Object();
+        private static TemplateSink sPool;
+
+        private final byte[] mBuffer = new byte[BUFFER_SIZE];
+        private int mCount;
+        private OutputStream mOut;
+
+        static TemplateSink obtain(OutputStream out) {
+            TemplateSink sink;
+            synchronized (sPoolLock) {
+                sink = sPool;
+                sPool = null;
+            }
+            if (sink == null) {
+                sink = new TemplateSink();
+            }
+            sink.mOut = out;
+            return sink;
+        }
+
+        void recycle() {
+            mOut = null;
+            mCount = 0;
+            synchronized (sPoolLock) {
+                sPool = this;
+            }
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (mCount == mBuffer.length) {
+                flushBuffer();
+            }
+            mBuffer[mCount++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len >= mBuffer.length) {
+                flushBuffer();
+                mOut.write(b, off, len);
+                return;
+            }
+            if (len > mBuffer.length - mCount) {
+                flushBuffer();
+            }
+            System.arraycopy(b, off, mBuffer, mCount, len);
+            mCount += len;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            flushBuffer();
+            mOut.flush();
+        }
+
+        private void flushBuffer() throws IOException {
+            if (mCount > 0) {
+                mOut.write(mBuffer, 0, mCount);
+                mCount = 0;
+            }
         }
     }
 
     private static String replaceConsts(Context context, String template) {
-        final Pattern pattern = Pattern.compile("<%@\\s*(\\w+/\\w+)\\s*%>");
         final Resources res = context.getResources();
         final String packageName = R.class.getPackage().getName();
-        Matcher m = pattern.matcher(template);
+        Matcher m = CONST_PATTERN.matcher(template);
         StringBuffer sb = new StringBuffer();
         while (m.find()) {
             String name = m.group(1);
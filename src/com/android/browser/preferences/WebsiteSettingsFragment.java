@@ -29,7 +29,6 @@ import android.os.Bundle;
 import android.os.Parcel;
 import android.os.Parcelable;
 import android.preference.PreferenceActivity;
-import android.provider.BrowserContract.Bookmarks;
 import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -45,9 +44,9 @@ import android.widget.TextView;
 
 import com.android.browser.R;
 import com.android.browser.WebStorageSizeManager;
+import com.android.browser.provider.BrowserProvider2;
 
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.Set;
@@ -301,71 +300,39 @@ public class WebsiteSettingsFragment extends ListFragment implements OnClickList
             }
 
             protected Void doInBackground(Void... unused) {
-                HashMap<String, Set<Site>> hosts = new HashMap<String, Set<Site>>();
-                Set<Map.Entry<String, Site>> elements = mSites.entrySet();
-                Iterator<Map.Entry<String, Site>> originIter = elements.iterator();
-                while (originIter.hasNext()) {
-                    Map.Entry<String, Site> entry = originIter.next();
-                    Site site = entry.getValue();
-                    String host = Uri.parse(entry.getKey()).getHost();
-                    Set<Site> hostSites = null;
-                    if (hosts.containsKey(host)) {
-                        hostSites = (Set<Site>)hosts.get(host);
-                    } else {
-                        hostSites = new HashSet<Site>();
-                        hosts.put(host, hostSites);
-                    }
-                    hostSites.add(site);
+                // The provider finds the bookmarks on the hosts of our
+                // origins with the url index, and returns one title and
+                // favicon per origin.
+                String[] origins = mSites.keySet().toArray(new String[mSites.size()]);
+                Cursor c = mContext.getContentResolver().query(
+                        BrowserProvider2.OriginMetadata.CONTENT_URI, null, null, origins, null);
+                if (c == null) {
+                    return null;
                 }
-
-                // Check the bookmark DB. If we have data for a host used by any of
-                // our origins, use it to set their title and favicon
-                Cursor c = mContext.getContentResolver().query(Bookmarks.CONTENT_URI,
-                        new String[] { Bookmarks.URL, Bookmarks.TITLE, Bookmarks.FAVICON },
-                        Bookmarks.IS_FOLDER + " == 0", null, null);
-
-                if (c != null) {
-                    if (c.moveToFirst()) {
-                        int urlIndex = c.getColumnIndex(Bookmarks.URL);
-                        int titleIndex = c.getColumnIndex(Bookmarks.TITLE);
-                        int faviconIndex = c.getColumnIndex(Bookmarks.FAVICON);
-                        do {
-                            String url = c.getString(urlIndex);
-                            String host = Uri.parse(url).getHost();
-                            if (hosts.containsKey(host)) {
-                                String title = c.getString(titleIndex);
-                                Bitmap bmp = null;
-                                byte[] data = c.getBlob(faviconIndex);
-                                if (data != null) {
-                                    bmp = BitmapFactory.decodeByteArray(data, 0, data.length);
-                                }
-                                Set matchingSites = (Set) hosts.get(host);
-                                Iterator<Site> sitesIter = matchingSites.iterator();
-                                while (sitesIter.hasNext()) {
-                                    Site site = sitesIter.next();
-                                    // We should only set the title if the bookmark is for the root
-                                    // (i.e. www.google.com), as website settings act on the origin
-                                    // as a whole rather than a single page under that origin. If the
-                                    // user has bookmarked a page under the root but *not* the root,
-                                    // then we risk displaying the title of that page which may or
-                                    // may not have any relevance to the origin.
-                                    if (url.equals(site.getOrigin()) ||
-                                            (new String(site.getOrigin()+"/")).equals(url)) {
-                                        mDataSetChanged = true;
-                                        site.setTitle(title);
-                                    }
-
-                                    if (bmp != null) {
-                                        mDataSetChanged = true;
-                                        site.setIcon(bmp);
-                                    }
-                                }
+                try {
+                    while (c.moveToNext()) {
+                        Site site = mSites.get(c.getString(0));
+                        if (site == null) {
+                            continue;
+                        }
+                        String title = c.getString(1);
+                        if (title != null) {
+                            mDataSetChanged = true;
+                            site.setTitle(title);
+                        }
+                        byte[] data = c.getBlob(2);
+                        if (data != null) {
+                            Bitmap bmp = BitmapFactory.decodeByteArray(data, 0, data.length);
+                            if (bmp != null) {
+                                mDataSetChanged = true;
+                                site.setIcon(bmp);
                             }
-                        } while (c.moveToNext());
+                        }
                     }
+                } finally {
                     c.close();
                 }
-            return null;
+                return null;
             }
 
             protected void onPostExecute(Void unused) {
@@ -24,6 +24,7 @@ import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
+import android.content.SharedPreferences;
 import android.content.UriMatcher;
 import android.content.res.Resources;
 import android.content.res.TypedArray;
@@ -35,7 +36,10 @@ import android.database.MatrixCursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
+import android.os.Handler;
+import android.preference.PreferenceManager;
 import android.provider.BaseColumns;
 import android.provider.Browser;
 import android.provider.Browser.BookmarkColumns;
@@ -53,6 +57,7 @@ import android.provider.ContactsContract.RawContacts;
 import android.provider.SyncStateContract;
 import android.text.TextUtils;
 
+import com.android.browser.BackgroundHandler;
 import com.android.browser.R;
 import com.android.browser.UrlUtils;
 import com.android.browser.widget.BookmarkThumbnailWidgetProvider;
@@ -67,6 +72,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 public class BrowserProvider2 extends SQLiteContentProvider {
 
@@ -84,6 +90,20 @@ public class BrowserProvider2 extends SQLiteContentProvider {
         public static final String THUMBNAIL = "thumbnail";
     }
 
+    /**
+     * Title and favicon of the bookmarks of a set of origins. The origins
+     * are passed as the selection arguments, the result has a row for each
+     * origin that has a bookmark on its host.
+     */
+    public static interface OriginMetadata {
+        public static final Uri CONTENT_URI = Uri.withAppendedPath(
+                BrowserContract.AUTHORITY_URI, "origin_metadata");
+        public static final String ORIGIN = "origin";
+        // Only set if the root of the origin is bookmarked
+        public static final String TITLE = "title";
+        public static final String FAVICON = "favicon";
+    }
+
     public static interface OmniboxSuggestions {
         public static final Uri CONTENT_URI = Uri.withAppendedPath(
                 BrowserContract.AUTHORITY_URI, "omnibox_suggestions");
@@ -96,6 +116,9 @@ public class BrowserProvider2 extends SQLiteContentProvider {
     static final String TABLE_BOOKMARKS = "bookmarks";
     static final String TABLE_HISTORY = "history";
     static final String TABLE_IMAGES = "images";
+    // Rows matched by a delete through the legacy authority
+    static final String TABLE_LEGACY_DELETES = "temp.legacy_deletes";
+    static final int LEGACY_DELETE_CHILD = 2;
     static final String TABLE_SEARCHES = "searches";
     static final String TABLE_SYNC_STATE = "syncstate";
     static final String TABLE_SETTINGS = "settings";
@@ -140,14 +163,39 @@ public class BrowserProvider2 extends SQLiteContentProvider {
     private static final String ZERO_QUERY_SUGGEST_SELECTION =
             TABLE_HISTORY + "." + History.DATE_LAST_VISITED + " != 0";
 
-    private static final String IMAGE_PRUNE =
-            "url_key NOT IN (SELECT url FROM bookmarks " +
-            "WHERE url IS NOT NULL AND deleted == 0) AND url_key NOT IN " +
-            "(SELECT url FROM history WHERE url IS NOT NULL)";
+    // Number of history rows and live bookmarks with the url of an image.
+    // Maintained by triggers, an image is deleted when it drops to 0.
+    static final String IMAGES_REF_COUNT = "ref_count";
+
+    // Counts the references to NEW.url_key, for an image inserted after the
+    // rows that use it
+    private static final String IMAGE_REF_COUNT_QUERY =
+            "(SELECT COUNT(*) FROM bookmarks WHERE url = NEW.url_key AND deleted = 0) + " +
+            "(SELECT COUNT(*) FROM history WHERE url = NEW.url_key)";
+
+    private static final String SQL_CREATE_HISTORY_IMAGES_DELETE =
+            "CREATE TRIGGER IF NOT EXISTS history_images_delete AFTER DELETE ON "
+            + "history BEGIN "
+            + "UPDATE images SET ref_count = ref_count - 1"
+            + " WHERE url_key = OLD.url; "
+            + "DELETE FROM images WHERE url_key = OLD.url AND ref_count <= 0; END";
+
+    // Settings key of the last images rowid recounted after history was
+    // cleared, absent when there is nothing left to recount
+    static final String KEY_IMAGES_SWEEP_POSITION = "images_sweep_position";
+    // Number of images recounted per transaction
+    private static final int IMAGES_SWEEP_CHUNK = 50;
+    // Pause between two chunks, so that other clients get the database
+    private static final long IMAGES_SWEEP_DELAY = 100;
+    private static final long IMAGES_SWEEP_START_DELAY = 1000;
+    // Preference set while KEY_IMAGES_SWEEP_POSITION is, so that onCreate
+    // can tell whether to resume the sweep without opening the database
+    static final String PREF_IMAGES_SWEEP_PENDING = "images_sweep_pending";
 
     static final int THUMBNAILS = 10;
     static final int THUMBNAILS_ID = 11;
     static final int OMNIBOX_SUGGESTIONS = 20;
+    static final int ORIGIN_METADATA = 30;
 
     static final int BOOKMARKS = 1000;
     static final int BOOKMARKS_ID = 1001;
@@ -228,6 +276,7 @@ public class BrowserProvider2 extends SQLiteContentProvider {
         matcher.addURI(authority, "thumbnails", THUMBNAILS);
         matcher.addURI(authority, "thumbnails/#", THUMBNAILS_ID);
         matcher.addURI(authority, "omnibox_suggestions", OMNIBOX_SUGGESTIONS);
+        matcher.addURI(authority, "origin_metadata", ORIGIN_METADATA);
 
         // Legacy
         matcher.addURI(LEGACY_AUTHORITY, "searches", SEARCHES);
@@ -390,10 +439,20 @@ public class BrowserProvider2 extends SQLiteContentProvider {
     ContentObserver mWidgetObserver = null;
     boolean mUpdateWidgets = false;
     boolean mSyncToNetwork = true;
+    Handler mSweepHandler;
+
+    private final Runnable mSweepImages = new Runnable() {
+        @Override
+        public void run() {
+            if (sweepImages()) {
+                mSweepHandler.postDelayed(this, IMAGES_SWEEP_DELAY);
+            }
+        }
+    };
 
     final class DatabaseHelper extends SQLiteOpenHelper {
         static final String DATABASE_NAME = "browser2.db";
-        static final int DATABASE_VERSION = 32;
+        static final int DATABASE_VERSION = 34;
         public DatabaseHelper(Context context) {
             super(context, DATABASE_NAME, null, DATABASE_VERSION);
             setWriteAheadLoggingEnabled(true);
@@ -440,7 +499,8 @@ public class BrowserProvider2 extends SQLiteContentProvider {
                     Images.URL + " TEXT UNIQUE NOT NULL," +
                     Images.FAVICON + " BLOB," +
                     Images.THUMBNAIL + " BLOB," +
-                    Images.TOUCH_ICON + " BLOB" +
+                    Images.TOUCH_ICON + " BLOB," +
+                    IMAGES_REF_COUNT + " INTEGER NOT NULL DEFAULT 0" +
                     ");");
             db.execSQL("CREATE INDEX imagesUrlIndex ON " + TABLE_IMAGES +
                     "(" + Images.URL + ")");
@@ -458,6 +518,8 @@ public class BrowserProvider2 extends SQLiteContentProvider {
 
             createAccountsView(db);
             createThumbnails(db);
+            createHistoryIndices(db);
+            createImageReferences(db);
 
             mSyncHelper.createDatabase(db);
 
@@ -473,6 +535,77 @@ public class BrowserProvider2 extends SQLiteContentProvider {
             db.execSQL(SQL_CREATE_VIEW_OMNIBOX_SUGGESTIONS);
         }
 
+        void createHistoryIndices(SQLiteDatabase db) {
+            // The history page buckets by date and shows the most visited
+            // sites, both of which want an ordered index
+            db.execSQL("CREATE INDEX IF NOT EXISTS historyDateIndex ON " + TABLE_HISTORY
+                    + "(" + History.DATE_LAST_VISITED + ")");
+            db.execSQL("CREATE INDEX IF NOT EXISTS historyVisitsIndex ON " + TABLE_HISTORY
+                    + "(" + History.VISITS + ")");
+            db.execSQL("CREATE INDEX IF NOT EXISTS bookmarksUrlIndex ON " + TABLE_BOOKMARKS
+                    + "(" + Bookmarks.URL + ")");
+        }
+
+        /**
+         * Creates the triggers that keep the reference count of the images up
+         * to date, and delete an image once nothing uses its url anymore.
+         * Images are typically inserted just before the row that uses them,
+         * so an image is only deleted when its count goes down, not when it
+         * is inserted with a count of 0.
+         */
+        void createImageReferences(SQLiteDatabase db) {
+            // Counting the references of a new image looks up history by url
+            db.execSQL("CREATE INDEX IF NOT EXISTS historyUrlIndex ON " + TABLE_HISTORY
+                    + "(" + History.URL + ")");
+
+            db.execSQL("CREATE TRIGGER IF NOT EXISTS images_insert AFTER INSERT ON "
+                    + TABLE_IMAGES + " BEGIN "
+                    + "UPDATE images SET ref_count = " + IMAGE_REF_COUNT_QUERY
+                    + " WHERE url_key = NEW.url_key; END");
+
+            db.execSQL("CREATE TRIGGER IF NOT EXISTS history_images_insert AFTER INSERT ON "
+                    + TABLE_HISTORY + " BEGIN "
+                    + "UPDATE images SET ref_count = ref_count + 1"
+                    + " WHERE url_key = NEW.url; END");
+            db.execSQL(SQL_CREATE_HISTORY_IMAGES_DELETE);
+            db.execSQL("CREATE TRIGGER IF NOT EXISTS history_images_update AFTER UPDATE OF "
+                    + History.URL + " ON " + TABLE_HISTORY
+                    + " WHEN OLD.url IS NOT NEW.url BEGIN "
+                    + "UPDATE images SET ref_count = ref_count + 1"
+                    + " WHERE url_key = NEW.url; "
+                    + "UPDATE images SET ref_count = ref_count - 1"
+                    + " WHERE url_key = OLD.url; "
+                    + "DELETE FROM images WHERE url_key = OLD.url AND ref_count <= 0; END");
+
+            // Bookmarks marked as deleted, waiting to be synced, don't count
+            db.execSQL("CREATE TRIGGER IF NOT EXISTS bookmarks_images_insert AFTER INSERT ON "
+                    + TABLE_BOOKMARKS + " WHEN NEW.deleted = 0 BEGIN "
+                    + "UPDATE images SET ref_count = ref_count + 1"
+                    + " WHERE url_key = NEW.url; END");
+            db.execSQL("CREATE TRIGGER IF NOT EXISTS bookmarks_images_delete AFTER DELETE ON "
+                    + TABLE_BOOKMARKS + " WHEN OLD.deleted = 0 BEGIN "
+                    + "UPDATE images SET ref_count = ref_count - 1"
+                    + " WHERE url_key = OLD.url; "
+                    + "DELETE FROM images WHERE url_key = OLD.url AND ref_count <= 0; END");
+            db.execSQL("CREATE TRIGGER IF NOT EXISTS bookmarks_images_update AFTER UPDATE OF "
+                    + Bookmarks.URL + ", " + Bookmarks.IS_DELETED + " ON " + TABLE_BOOKMARKS
+                    + " WHEN OLD.url IS NOT NEW.url OR OLD.deleted != NEW.deleted BEGIN "
+                    + "UPDATE images SET ref_count = ref_count + 1"
+                    + " WHERE NEW.deleted = 0 AND url_key = NEW.url; "
+                    + "UPDATE images SET ref_count = ref_count - 1"
+                    + " WHERE OLD.deleted = 0 AND url_key = OLD.url; "
+                    + "DELETE FROM images WHERE url_key = OLD.url AND ref_count <= 0; END");
+        }
+
+        void upgradeImageReferences(SQLiteDatabase db) {
+            db.execSQL("ALTER TABLE " + TABLE_IMAGES + " ADD COLUMN "
+                    + IMAGES_REF_COUNT + " INTEGER NOT NULL DEFAULT 0");
+            createImageReferences(db);
+            db.execSQL("UPDATE images SET ref_count = "
+                    + IMAGE_REF_COUNT_QUERY.replace("NEW.url_key", "images.url_key"));
+            db.execSQL("DELETE FROM images WHERE ref_count <= 0");
+        }
+
         void createThumbnails(SQLiteDatabase db) {
             db.execSQL("CREATE TABLE IF NOT EXISTS " + TABLE_THUMBNAILS + " (" +
                     Thumbnails._ID + " INTEGER PRIMARY KEY," +
@@ -604,6 +737,13 @@ public class BrowserProvider2 extends SQLiteContentProvider {
 
         @Override
         public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+            if (oldVersion < 34 && oldVersion >= 25) {
+                // Older databases are created again below
+                upgradeImageReferences(db);
+            }
+            if (oldVersion < 33) {
+                createHistoryIndices(db);
+            }
             if (oldVersion < 32) {
                 createOmniboxSuggestions(db);
             }
@@ -788,6 +928,36 @@ public class BrowserProvider2 extends SQLiteContentProvider {
         }
     }
 
+    @Override
+    public boolean onCreate() {
+        boolean created = super.onCreate();
+        mSweepHandler = new Handler(BackgroundHandler.getLooper());
+        // Finish recounting the images if history was cleared in a
+        // previous run that ended before the sweep did
+        if (isImagesSweepPending()) {
+            mSweepHandler.postDelayed(mSweepImages, IMAGES_SWEEP_START_DELAY);
+        }
+        return created;
+    }
+
+    private SharedPreferences getSweepPreferences() {
+        return PreferenceManager.getDefaultSharedPreferences(getContext());
+    }
+
+    private boolean isImagesSweepPending() {
+        return getSweepPreferences().getBoolean(PREF_IMAGES_SWEEP_PENDING, false);
+    }
+
+    private void setImagesSweepPending(boolean pending) {
+        SharedPreferences.Editor editor = getSweepPreferences().edit();
+        if (pending) {
+            editor.putBoolean(PREF_IMAGES_SWEEP_PENDING, true);
+        } else {
+            editor.remove(PREF_IMAGES_SWEEP_PENDING);
+        }
+        editor.apply();
+    }
+
     @Override
     public SQLiteOpenHelper getDatabaseHelper(Context context) {
         synchronized (this) {
@@ -1028,6 +1198,10 @@ public class BrowserProvider2 extends SQLiteContentProvider {
                 return doSuggestQuery(selection, selectionArgs, limit);
             }
 
+            case ORIGIN_METADATA: {
+                return queryOriginMetadata(selectionArgs);
+            }
+
             case HISTORY_ID: {
                 selection = DatabaseUtils.concatenateWhere(selection, TABLE_HISTORY + "._id=?");
                 selectionArgs = DatabaseUtils.appendSelectionArgs(selectionArgs,
@@ -1131,6 +1305,133 @@ public class BrowserProvider2 extends SQLiteContentProvider {
         return cursor;
     }
 
+    // Origins looked up per statement, each takes four bind arguments
+    private static final int ORIGIN_METADATA_BATCH = 100;
+
+    /**
+     * Finds the bookmarks on the hosts of the given origins with ranges of
+     * the url index, rather than parsing the url of every bookmark. For each
+     * host the favicon of a bookmark on its root is preferred, then the most
+     * recently modified one. Only the chosen favicons are read.
+     */
+    private Cursor queryOriginMetadata(String[] origins) {
+        MatrixCursor result = new MatrixCursor(new String[] {
+                OriginMetadata.ORIGIN, OriginMetadata.TITLE, OriginMetadata.FAVICON });
+        if (origins == null || origins.length == 0) {
+            return result;
+        }
+        HashMap<String, List<String>> originsByHost = new HashMap<String, List<String>>();
+        for (String origin : origins) {
+            String host = Uri.parse(origin).getHost();
+            if (TextUtils.isEmpty(host)) {
+                continue;
+            }
+            List<String> hostOrigins = originsByHost.get(host);
+            if (hostOrigins == null) {
+                hostOrigins = new ArrayList<String>();
+                originsByHost.put(host, hostOrigins);
+            }
+            hostOrigins.add(origin);
+        }
+
+        SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+        HashMap<String, String> titles = new HashMap<String, String>();
+        // Url of the bookmark whose favicon is used, by host
+        HashMap<String, String> faviconUrls = new HashMap<String, String>();
+        HashMap<String, Boolean> faviconIsRoot = new HashMap<String, Boolean>();
+        HashMap<String, Long> faviconModified = new HashMap<String, Long>();
+        ArrayList<String> hosts = new ArrayList<String>(originsByHost.keySet());
+        for (int start = 0; start < hosts.size(); start += ORIGIN_METADATA_BATCH) {
+            int end = Math.min(hosts.size(), start + ORIGIN_METADATA_BATCH);
+            StringBuilder where = new StringBuilder();
+            String[] args = new String[(end - start) * 4];
+            int arg = 0;
+            for (int i = start; i < end; i++) {
+                for (String scheme : new String[] { "http://", "https://" }) {
+                    // Every url starting with the prefix sorts in this range,
+                    // the host is checked below.
+                    String prefix = scheme + hosts.get(i);
+                    where.append(where.length() == 0 ? "(" : " OR (");
+                    where.append("bookmarks.url >= ? AND bookmarks.url < ?)");
+                    args[arg++] = prefix;
+                    args[arg++] = prefix + '\u007f';
+                }
+            }
+            Cursor c = db.rawQuery("SELECT bookmarks.url, bookmarks.title, "
+                    + "images.favicon IS NOT NULL, bookmarks." + Bookmarks.DATE_MODIFIED
+                    + " FROM " + TABLE_BOOKMARKS_JOIN_IMAGES
+                    + " WHERE bookmarks.is_folder = 0 AND bookmarks.deleted = 0 AND ("
+                    + where + ")", args);
+            try {
+                while (c.moveToNext()) {
+                    String url = c.getString(0);
+                    Uri parsed = Uri.parse(url);
+                    String host = parsed.getHost();
+                    List<String> hostOrigins = host != null ? originsByHost.get(host) : null;
+                    if (hostOrigins == null) {
+                        continue;
+                    }
+                    // Only use the title of the origin's root, website
+                    // settings apply to the whole origin, not a page of it.
+                    for (String origin : hostOrigins) {
+                        if (url.equals(origin) || url.equals(origin + "/")) {
+                            titles.put(origin, c.getString(1));
+                        }
+                    }
+                    if (c.getInt(2) == 0) {
+                        continue;
+                    }
+                    String path = parsed.getPath();
+                    boolean isRoot = TextUtils.isEmpty(path) || path.equals("/");
+                    long modified = c.getLong(3);
+                    Boolean bestIsRoot = faviconIsRoot.get(host);
+                    if (bestIsRoot == null
+                            || (isRoot && !bestIsRoot)
+                            || (isRoot == bestIsRoot && modified > faviconModified.get(host))) {
+                        faviconUrls.put(host, url);
+                        faviconIsRoot.put(host, isRoot);
+                        faviconModified.put(host, modified);
+                    }
+                }
+            } finally {
+                c.close();
+            }
+        }
+
+        HashMap<String, byte[]> favicons = new HashMap<String, byte[]>();
+        ArrayList<String> urls = new ArrayList<String>(faviconUrls.values());
+        for (int start = 0; start < urls.size(); start += ORIGIN_METADATA_BATCH) {
+            int end = Math.min(urls.size(), start + ORIGIN_METADATA_BATCH);
+            StringBuilder where = new StringBuilder(Images.URL).append(" IN (");
+            for (int i = start; i < end; i++) {
+                where.append(i == start ? "?" : ",?");
+            }
+            where.append(')');
+            String[] args = urls.subList(start, end).toArray(new String[end - start]);
+            Cursor c = db.query(TABLE_IMAGES, new String[] { Images.URL, Images.FAVICON },
+                    where.toString(), args, null, null, null);
+            try {
+                while (c.moveToNext()) {
+                    favicons.put(c.getString(0), c.getBlob(1));
+                }
+            } finally {
+                c.close();
+            }
+        }
+
+        for (Map.Entry<String, List<String>> entry : originsByHost.entrySet()) {
+            String faviconUrl = faviconUrls.get(entry.getKey());
+            byte[] favicon = faviconUrl != null ? favicons.get(faviconUrl) : null;
+            for (String origin : entry.getValue()) {
+                String title = titles.get(origin);
+                if (title != null || favicon != null) {
+                    result.addRow(new Object[] { origin, title, favicon });
+                }
+            }
+        }
+        return result;
+    }
+
     private Cursor doSuggestQuery(String selection, String[] selectionArgs, String limit) {
         if (TextUtils.isEmpty(selectionArgs[0])) {
             selection = ZERO_QUERY_SUGGEST_SELECTION;
@@ -1291,7 +1592,6 @@ public class BrowserProvider2 extends SQLiteContentProvider {
                 selection = (String) withAccount[0];
                 selectionArgs = (String[]) withAccount[1];
                 deleted = deleteBookmarks(selection, selectionArgs, callerIsSyncAdapter);
-                pruneImages();
                 if (deleted > 0) {
                     refreshWidgets();
                 }
@@ -1305,9 +1605,12 @@ public class BrowserProvider2 extends SQLiteContentProvider {
                 // fall through
             }
             case HISTORY: {
+                if (match == HISTORY && selection == null) {
+                    deleted = clearHistory(db);
+                    break;
+                }
                 filterSearchClient(selectionArgs);
                 deleted = db.delete(TABLE_HISTORY, selection, selectionArgs);
-                pruneImages();
                 break;
             }
 
@@ -1341,35 +1644,7 @@ public class BrowserProvider2 extends SQLiteContentProvider {
                 // fall through
             }
             case LEGACY: {
-                String[] projection = new String[] { Combined._ID,
-                        Combined.IS_BOOKMARK, Combined.URL };
-                SQLiteQueryBuilder qb = new SQLiteQueryBuilder();
-                String[] args = createCombinedQuery(uri, projection, qb);
-                if (selectionArgs == null) {
-                    selectionArgs = args;
-                } else {
-                    selectionArgs = DatabaseUtils.appendSelectionArgs(
-                            args, selectionArgs);
-                }
-                Cursor c = qb.query(db, projection, selection, selectionArgs,
-                        null, null, null);
-                while (c.moveToNext()) {
-                    long id = c.getLong(0);
-                    boolean isBookmark = c.getInt(1) != 0;
-                    String url = c.getString(2);
-                    if (isBookmark) {
-                        deleted += deleteBookmarks(Bookmarks._ID + "=?",
-                                new String[] { Long.toString(id) },
-                                callerIsSyncAdapter);
-                        db.delete(TABLE_HISTORY, History.URL + "=?",
-                                new String[] { url });
-                    } else {
-                        deleted += db.delete(TABLE_HISTORY,
-                                Bookmarks._ID + "=?",
-                                new String[] { Long.toString(id) });
-                    }
-                }
-                c.close();
+                deleted = deleteLegacy(uri, selection, selectionArgs, callerIsSyncAdapter);
                 break;
             }
             case THUMBNAILS_ID: {
@@ -1396,6 +1671,163 @@ public class BrowserProvider2 extends SQLiteContentProvider {
         return deleted;
     }
 
+    /**
+     * Deletes all of history. Without its delete trigger, SQLite drops the
+     * pages of the table and its indexes rather than deleting row by row, so
+     * this is quick whatever the size of history. The reference counts of
+     * the images are left too high; they are recounted and the images only
+     * history used are deleted in chunks in the background, see
+     * {@link #sweepImages}.
+     */
+    private int clearHistory(SQLiteDatabase db) {
+        db.execSQL("DROP TRIGGER IF EXISTS history_images_delete");
+        int deleted = db.delete(TABLE_HISTORY, null, null);
+        db.execSQL(SQL_CREATE_HISTORY_IMAGES_DELETE);
+        if (deleted > 0) {
+            ContentValues values = new ContentValues();
+            values.put(Settings.KEY, KEY_IMAGES_SWEEP_POSITION);
+            values.put(Settings.VALUE, 0);
+            db.replace(TABLE_SETTINGS, null, values);
+            setImagesSweepPending(true);
+            mSweepHandler.removeCallbacks(mSweepImages);
+            mSweepHandler.postDelayed(mSweepImages, IMAGES_SWEEP_DELAY);
+        }
+        return deleted;
+    }
+
+    /**
+     * Recounts the references of the next chunk of images after history was
+     * cleared, and deletes those that are no longer used. Each chunk is its
+     * own transaction.
+     * @return Whether there are images left to recount
+     */
+    @VisibleForTesting
+    public boolean sweepImages() {
+        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            String position = DatabaseUtils.stringForQuery(db, "SELECT IFNULL(("
+                    + "SELECT " + Settings.VALUE + " FROM " + TABLE_SETTINGS
+                    + " WHERE " + Settings.KEY + "=?), -1)",
+                    new String[] { KEY_IMAGES_SWEEP_POSITION });
+            long from = Long.parseLong(position);
+            if (from < 0) {
+                setImagesSweepPending(false);
+                return false;
+            }
+            long to = DatabaseUtils.longForQuery(db, "SELECT IFNULL(MAX(rowid), -1) FROM"
+                    + " (SELECT rowid FROM " + TABLE_IMAGES + " WHERE rowid > ?"
+                    + " ORDER BY rowid LIMIT " + IMAGES_SWEEP_CHUNK + ")",
+                    new String[] { Long.toString(from) });
+            boolean more = to >= 0;
+            if (more) {
+                String[] args = new String[] { Long.toString(from), Long.toString(to) };
+                db.execSQL("UPDATE images SET ref_count = "
+                        + IMAGE_REF_COUNT_QUERY.replace("NEW.url_key", "images.url_key")
+                        + " WHERE rowid > ? AND rowid <= ?", args);
+                db.execSQL("DELETE FROM images WHERE rowid > ? AND rowid <= ?"
+                        + " AND ref_count <= 0", args);
+                ContentValues values = new ContentValues();
+                values.put(Settings.VALUE, to);
+                db.update(TABLE_SETTINGS, values, Settings.KEY + "=?",
+                        new String[] { KEY_IMAGES_SWEEP_POSITION });
+            } else {
+                db.delete(TABLE_SETTINGS, Settings.KEY + "=?",
+                        new String[] { KEY_IMAGES_SWEEP_POSITION });
+                setImagesSweepPending(false);
+            }
+            db.setTransactionSuccessful();
+            return more;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Deletes the rows of the combined view matching the selection: the
+     * matching bookmarks, along with the history of their urls, and the
+     * matching history. The matching rows are collected into a temporary
+     * table first, so the deletes are a few statements rather than a few
+     * per row.
+     */
+    private int deleteLegacy(Uri uri, String selection, String[] selectionArgs,
+            boolean callerIsSyncAdapter) {
+        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        String[] projection = new String[] { Combined._ID,
+                Combined.IS_BOOKMARK, Combined.URL };
+        SQLiteQueryBuilder qb = new SQLiteQueryBuilder();
+        String[] args = createCombinedQuery(uri, projection, qb);
+        if (selectionArgs == null) {
+            selectionArgs = args;
+        } else if (args != null) {
+            selectionArgs = DatabaseUtils.appendSelectionArgs(
+                    args, selectionArgs);
+        }
+        String query = qb.buildQuery(projection, selection, null, null, null, null);
+
+        // The bookmark column is 1 for the matching bookmarks, 0 for the
+        // matching history and LEGACY_DELETE_CHILD for the contents of the
+        // matching folders.
+        db.execSQL("DROP TABLE IF EXISTS " + TABLE_LEGACY_DELETES);
+        db.execSQL("CREATE TEMP TABLE " + TABLE_LEGACY_DELETES + " ("
+                + Combined._ID + " INTEGER,"
+                + Combined.IS_BOOKMARK + " INTEGER,"
+                + Combined.URL + " TEXT)");
+        try {
+            db.execSQL("INSERT INTO " + TABLE_LEGACY_DELETES + " " + query,
+                    selectionArgs != null ? selectionArgs : new String[0]);
+            String bookmarkIds = "SELECT " + Combined._ID + " FROM " + TABLE_LEGACY_DELETES
+                    + " WHERE " + Combined.IS_BOOKMARK + "!=0";
+            String historyIds = "SELECT " + Combined._ID + " FROM " + TABLE_LEGACY_DELETES
+                    + " WHERE " + Combined.IS_BOOKMARK + "=0";
+            String bookmarkUrls = "SELECT " + Combined.URL + " FROM " + TABLE_LEGACY_DELETES
+                    + " WHERE " + Combined.IS_BOOKMARK + "=1";
+
+            int deleted;
+            if (callerIsSyncAdapter) {
+                deleted = db.delete(TABLE_BOOKMARKS,
+                        Bookmarks._ID + " IN (" + bookmarkIds + ")", null);
+            } else {
+                // Like deleteBookmarks(), the contents of folders go too, one
+                // statement per level
+                SQLiteStatement addChildren = db.compileStatement(
+                        "INSERT INTO " + TABLE_LEGACY_DELETES
+                        + " SELECT " + Bookmarks._ID + "," + LEGACY_DELETE_CHILD
+                        + "," + Bookmarks.URL + " FROM " + TABLE_BOOKMARKS
+                        + " WHERE " + Bookmarks.PARENT + " IN (SELECT " + Bookmarks._ID
+                        + " FROM " + TABLE_BOOKMARKS + " WHERE " + Bookmarks.IS_FOLDER
+                        + "!=0 AND " + Bookmarks._ID + " IN (" + bookmarkIds + "))"
+                        + " AND " + Bookmarks._ID + " NOT IN (" + bookmarkIds + ")");
+                try {
+                    while (addChildren.executeUpdateDelete() > 0) {
+                        // Next level
+                    }
+                } finally {
+                    addChildren.close();
+                }
+                SQLiteStatement markDeleted = db.compileStatement(
+                        "UPDATE " + TABLE_BOOKMARKS + " SET "
+                        + Bookmarks.IS_DELETED + "=1,"
+                        + Bookmarks.DIRTY + "=1,"
+                        + Bookmarks.DATE_MODIFIED + "=?,"
+                        + Bookmarks.VERSION + "=" + Bookmarks.VERSION + "+1"
+                        + " WHERE " + Bookmarks._ID + " IN (" + bookmarkIds + ")");
+                try {
+                    markDeleted.bindLong(1, System.currentTimeMillis());
+                    deleted = markDeleted.executeUpdateDelete();
+                } finally {
+                    markDeleted.close();
+                }
+            }
+            db.delete(TABLE_HISTORY, History.URL + " IN (" + bookmarkUrls + ")", null);
+            deleted += db.delete(TABLE_HISTORY, History._ID + " IN (" + historyIds + ")",
+                    null);
+            return deleted;
+        } finally {
+            db.execSQL("DROP TABLE IF EXISTS " + TABLE_LEGACY_DELETES);
+        }
+    }
+
     long queryDefaultFolderId(String accountName, String accountType) {
         if (!isNullAccount(accountName) && !isNullAccount(accountType)) {
             final SQLiteDatabase db = mOpenHelper.getReadableDatabase();
@@ -1765,7 +2197,7 @@ public class BrowserProvider2 extends SQLiteContentProvider {
                     postNotifyUri(History.CONTENT_URI);
                     updatedLegacy = values.containsKey(Images.FAVICON);
                 }
-                if (pruneImages() > 0 || updatedLegacy) {
+                if (pruneImage(db, url) > 0 || updatedLegacy) {
                     postNotifyUri(LEGACY_AUTHORITY_URI);
                 }
                 // Even though we may be calling notifyUri on Bookmarks, don't
@@ -1796,7 +2228,6 @@ public class BrowserProvider2 extends SQLiteContentProvider {
                 throw new UnsupportedOperationException("Unknown update URI " + uri);
             }
         }
-        pruneImages();
         if (modified > 0) {
             postNotifyUri(uri);
             if (shouldNotifyLegacy(uri)) {
@@ -2115,9 +2546,14 @@ public class BrowserProvider2 extends SQLiteContentProvider {
         return imageValues;
     }
 
-    int pruneImages() {
-        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
-        return db.delete(TABLE_IMAGES, IMAGE_PRUNE, null);
+    /**
+     * Deletes the image of url if no history or bookmark uses it. Images
+     * stop being used through the triggers, this is only needed for an
+     * image that was written for an unknown url.
+     */
+    int pruneImage(SQLiteDatabase db, String url) {
+        return db.delete(TABLE_IMAGES, Images.URL + "=? AND "
+                + IMAGES_REF_COUNT + " <= 0", new String[] { url });
     }
 
     boolean shouldNotifyLegacy(Uri uri) {
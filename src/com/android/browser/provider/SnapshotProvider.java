@@ -23,14 +23,24 @@ import android.content.UriMatcher;
 import android.database.Cursor;
 import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteQueryBuilder;
 import android.net.Uri;
 import android.os.FileUtils;
+import android.os.ParcelFileDescriptor;
 import android.provider.BrowserContract;
 import android.text.TextUtils;
+import android.util.Log;
 
 import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import com.android.browser.BackgroundHandler;
 
 public class SnapshotProvider extends ContentProvider {
 
@@ -49,14 +59,21 @@ public class SnapshotProvider extends ContentProvider {
         public static final String DATE_CREATED = "date_created";
         public static final String VIEWSTATE_PATH = "viewstate_path";
         public static final String VIEWSTATE_SIZE = "viewstate_size";
+        public static final String THUMBNAIL_PATH = "thumbnail_path";
     }
 
+    private static final String LOGTAG = "SnapshotProvider";
+
     public static final String AUTHORITY = "com.android.browser.snapshots";
     public static final Uri AUTHORITY_URI = Uri.parse("content://" + AUTHORITY);
 
     static final String TABLE_SNAPSHOTS = "snapshots";
     static final int SNAPSHOTS = 10;
     static final int SNAPSHOTS_ID = 11;
+    static final int SNAPSHOTS_ID_VIEWSTATE = 12;
+    static final int SNAPSHOTS_ID_THUMBNAIL = 13;
+    static final String PATH_VIEWSTATE = "viewstate";
+    static final String PATH_THUMBNAIL = "thumbnail";
     static final UriMatcher URI_MATCHER = new UriMatcher(UriMatcher.NO_MATCH);
     // Workaround that we can't remove the "NOT NULL" constraint on VIEWSTATE
     static final byte[] NULL_BLOB_HACK = new byte[0];
@@ -66,12 +83,23 @@ public class SnapshotProvider extends ContentProvider {
     static {
         URI_MATCHER.addURI(AUTHORITY, "snapshots", SNAPSHOTS);
         URI_MATCHER.addURI(AUTHORITY, "snapshots/#", SNAPSHOTS_ID);
+        URI_MATCHER.addURI(AUTHORITY, "snapshots/#/" + PATH_VIEWSTATE,
+                SNAPSHOTS_ID_VIEWSTATE);
+        URI_MATCHER.addURI(AUTHORITY, "snapshots/#/" + PATH_THUMBNAIL,
+                SNAPSHOTS_ID_THUMBNAIL);
     }
 
+    // View state and thumbnail data lives in files under the app's files
+    // dir, written in chunks of this size. View states are gzipped,
+    // thumbnails are already compressed images and are stored as is.
+    static final int FILE_CHUNK_SIZE = 8 * 1024;
+    static final String VIEWSTATE_FILE_PREFIX = "snapshot_viewstate_";
+    static final String THUMBNAIL_FILE_PREFIX = "snapshot_thumbnail_";
+
     final static class SnapshotDatabaseHelper extends SQLiteOpenHelper {
 
         static final String DATABASE_NAME = "snapshots.db";
-        static final int DATABASE_VERSION = 3;
+        static final int DATABASE_VERSION = 4;
 
         public SnapshotDatabaseHelper(Context context) {
             super(context, DATABASE_NAME, null, DATABASE_VERSION);
@@ -89,8 +117,15 @@ public class SnapshotProvider extends ContentProvider {
                     Snapshots.BACKGROUND + " INTEGER," +
                     Snapshots.VIEWSTATE + " BLOB NOT NULL," +
                     Snapshots.VIEWSTATE_PATH + " TEXT," +
-                    Snapshots.VIEWSTATE_SIZE + " INTEGER" +
+                    Snapshots.VIEWSTATE_SIZE + " INTEGER," +
+                    Snapshots.THUMBNAIL_PATH + " TEXT" +
                     ");");
+            createDateIndex(db);
+        }
+
+        private void createDateIndex(SQLiteDatabase db) {
+            db.execSQL("CREATE INDEX IF NOT EXISTS snapshots_date_idx ON "
+                    + TABLE_SNAPSHOTS + "(" + Snapshots.DATE_CREATED + ")");
         }
 
         @Override
@@ -108,6 +143,13 @@ public class SnapshotProvider extends ContentProvider {
                         + Snapshots.VIEWSTATE_SIZE + " = length("
                         + Snapshots.VIEWSTATE + ")");
             }
+            if (oldVersion < 4) {
+                // Existing blobs are moved out to files in the background,
+                // see migrateBlobsToFiles()
+                db.execSQL("ALTER TABLE " + TABLE_SNAPSHOTS + " ADD COLUMN "
+                        + Snapshots.THUMBNAIL_PATH + " TEXT");
+                createDateIndex(db);
+            }
         }
 
     }
@@ -136,9 +178,135 @@ public class SnapshotProvider extends ContentProvider {
     public boolean onCreate() {
         migrateToDataFolder();
         mOpenHelper = new SnapshotDatabaseHelper(getContext());
+        BackgroundHandler.execute(new Runnable() {
+            @Override
+            public void run() {
+                migrateBlobsToFiles();
+            }
+        });
         return true;
     }
 
+    /**
+     * Returns the uri of the gzipped view state file for a snapshot.
+     */
+    public static Uri getViewStateUri(long id) {
+        return ContentUris.withAppendedId(Snapshots.CONTENT_URI, id).buildUpon()
+                .appendPath(PATH_VIEWSTATE).build();
+    }
+
+    /**
+     * Returns the uri of the thumbnail image for a snapshot.
+     */
+    public static Uri getThumbnailUri(long id) {
+        return ContentUris.withAppendedId(Snapshots.CONTENT_URI, id).buildUpon()
+                .appendPath(PATH_THUMBNAIL).build();
+    }
+
+    static final String[] MIGRATE_PROJECTION = new String[] {
+        Snapshots._ID,
+    };
+    static final String MIGRATE_SELECTION = "(" + Snapshots.VIEWSTATE_PATH
+            + " IS NULL AND length(" + Snapshots.VIEWSTATE + ") > 0) OR "
+            + Snapshots.THUMBNAIL + " IS NOT NULL";
+
+    /**
+     * Moves view state and thumbnail blobs still stored in the database out
+     * to files. Rows are migrated one at a time so that only a single blob
+     * is ever held in memory, and each row is committed on its own so
+     * readers are not blocked for the duration of the migration.
+     */
+    void migrateBlobsToFiles() {
+        SQLiteDatabase db = getWritableDatabase();
+        if (db == null) {
+            return;
+        }
+        Cursor c = db.query(TABLE_SNAPSHOTS, MIGRATE_PROJECTION,
+                MIGRATE_SELECTION, null, null, null, null);
+        int migrated = 0;
+        try {
+            while (c.moveToNext()) {
+                if (migrateRow(db, c.getLong(0))) {
+                    migrated++;
+                }
+            }
+        } finally {
+            c.close();
+        }
+        if (migrated > 0) {
+            getContext().getContentResolver().notifyChange(AUTHORITY_URI, null, false);
+        }
+    }
+
+    static final String[] MIGRATE_ROW_PROJECTION = new String[] {
+        Snapshots.VIEWSTATE,
+        Snapshots.VIEWSTATE_PATH,
+        Snapshots.THUMBNAIL,
+    };
+
+    private boolean migrateRow(SQLiteDatabase db, long id) {
+        String[] args = new String[] { Long.toString(id) };
+        Cursor c = db.query(TABLE_SNAPSHOTS, MIGRATE_ROW_PROJECTION, "_id=?",
+                args, null, null, null);
+        ContentValues values = new ContentValues();
+        try {
+            if (!c.moveToFirst()) {
+                return false;
+            }
+            extractBlobs(id, c.isNull(1) ? c.getBlob(0) : null, c.getBlob(2),
+                    values);
+        } catch (IOException e) {
+            Log.w(LOGTAG, "Failed to migrate snapshot " + id, e);
+            return false;
+        } finally {
+            c.close();
+        }
+        if (values.size() == 0) {
+            return false;
+        }
+        return db.update(TABLE_SNAPSHOTS, values, "_id=?", args) > 0;
+    }
+
+    /**
+     * Writes the given blobs out to files and fills values with the
+     * columns that reference them, clearing the blob columns.
+     */
+    private void extractBlobs(long id, byte[] viewstate, byte[] thumbnail,
+            ContentValues values) throws IOException {
+        if (viewstate != null && viewstate.length > 0) {
+            String name = VIEWSTATE_FILE_PREFIX + id;
+            writeFile(name, viewstate, true);
+            values.put(Snapshots.VIEWSTATE_PATH, name);
+            values.put(Snapshots.VIEWSTATE_SIZE, viewstate.length);
+            values.put(Snapshots.VIEWSTATE, NULL_BLOB_HACK);
+        }
+        if (thumbnail != null) {
+            String name = THUMBNAIL_FILE_PREFIX + id;
+            writeFile(name, thumbnail, false);
+            values.put(Snapshots.THUMBNAIL_PATH, name);
+            values.putNull(Snapshots.THUMBNAIL);
+        }
+    }
+
+    private void writeFile(String name, byte[] data, boolean compress)
+            throws IOException {
+        File file = getContext().getFileStreamPath(name);
+        OutputStream out = new FileOutputStream(file);
+        try {
+            if (compress) {
+                out = new GZIPOutputStream(out, FILE_CHUNK_SIZE);
+            }
+            for (int offset = 0; offset < data.length; offset += FILE_CHUNK_SIZE) {
+                out.write(data, offset, Math.min(FILE_CHUNK_SIZE, data.length - offset));
+            }
+        } catch (IOException e) {
+            out.close();
+            file.delete();
+            throw e;
+        }
+        out.close();
+    }
+
     SQLiteDatabase getWritableDatabase() {
         return mOpenHelper.getWritableDatabase();
     }
@@ -192,10 +360,24 @@ public class SnapshotProvider extends ContentProvider {
         long id = -1;
         switch (match) {
         case SNAPSHOTS:
-            if (!values.containsKey(Snapshots.VIEWSTATE)) {
-                values.put(Snapshots.VIEWSTATE, NULL_BLOB_HACK);
-            }
+            byte[] viewstate = values.getAsByteArray(Snapshots.VIEWSTATE);
+            byte[] thumbnail = values.getAsByteArray(Snapshots.THUMBNAIL);
+            values.put(Snapshots.VIEWSTATE, NULL_BLOB_HACK);
+            values.remove(Snapshots.THUMBNAIL);
             id = db.insert(TABLE_SNAPSHOTS, Snapshots.TITLE, values);
+            if (id >= 0 && (viewstate != null || thumbnail != null)) {
+                ContentValues files = new ContentValues();
+                try {
+                    extractBlobs(id, viewstate, thumbnail, files);
+                } catch (IOException e) {
+                    Log.w(LOGTAG, "Failed to write snapshot data", e);
+                    db.delete(TABLE_SNAPSHOTS, "_id=?",
+                            new String[] { Long.toString(id) });
+                    return null;
+                }
+                db.update(TABLE_SNAPSHOTS, files, "_id=?",
+                        new String[] { Long.toString(id) });
+            }
             break;
         default:
             throw new UnsupportedOperationException("Unknown insert URI " + uri);
@@ -210,6 +392,7 @@ public class SnapshotProvider extends ContentProvider {
 
     static final String[] DELETE_PROJECTION = new String[] {
         Snapshots.VIEWSTATE_PATH,
+        Snapshots.THUMBNAIL_PATH,
     };
     private void deleteDataFiles(SQLiteDatabase db, String selection,
             String[] selectionArgs) {
@@ -217,14 +400,16 @@ public class SnapshotProvider extends ContentProvider {
                 selectionArgs, null, null, null);
         final Context context = getContext();
         while (c.moveToNext()) {
-            String filename = c.getString(0);
-            if (TextUtils.isEmpty(filename)) {
-                continue;
-            }
-            File f = context.getFileStreamPath(filename);
-            if (f.exists()) {
-                if (!f.delete()) {
-                    f.deleteOnExit();
+            for (int i = 0; i < DELETE_PROJECTION.length; i++) {
+                String filename = c.getString(i);
+                if (TextUtils.isEmpty(filename)) {
+                    continue;
+                }
+                File f = context.getFileStreamPath(filename);
+                if (f.exists()) {
+                    if (!f.delete()) {
+                        f.deleteOnExit();
+                    }
                 }
             }
         }
@@ -265,4 +450,41 @@ public class SnapshotProvider extends ContentProvider {
         throw new UnsupportedOperationException("not implemented");
     }
 
+    @Override
+    public ParcelFileDescriptor openFile(Uri uri, String mode)
+            throws FileNotFoundException {
+        if (!"r".equals(mode)) {
+            throw new FileNotFoundException("Snapshot files are read only");
+        }
+        String column;
+        switch (URI_MATCHER.match(uri)) {
+        case SNAPSHOTS_ID_VIEWSTATE:
+            column = Snapshots.VIEWSTATE_PATH;
+            break;
+        case SNAPSHOTS_ID_THUMBNAIL:
+            column = Snapshots.THUMBNAIL_PATH;
+            break;
+        default:
+            throw new FileNotFoundException("Unknown file URI " + uri);
+        }
+        SQLiteDatabase db = getReadableDatabase();
+        if (db == null) {
+            throw new FileNotFoundException("No database");
+        }
+        String id = uri.getPathSegments().get(1);
+        String filename;
+        try {
+            filename = DatabaseUtils.stringForQuery(db, "SELECT ifnull("
+                    + column + ",'') FROM " + TABLE_SNAPSHOTS + " WHERE _id=?",
+                    new String[] { id });
+        } catch (SQLiteDoneException e) {
+            throw new FileNotFoundException("No snapshot for " + uri);
+        }
+        if (TextUtils.isEmpty(filename)) {
+            throw new FileNotFoundException("No file for " + uri);
+        }
+        return ParcelFileDescriptor.open(getContext().getFileStreamPath(filename),
+                ParcelFileDescriptor.MODE_READ_ONLY);
+    }
+
 }
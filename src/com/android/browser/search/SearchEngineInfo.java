@@ -24,6 +24,7 @@ import android.util.Log;
 import com.android.browser.R;
 
 import java.net.URLEncoder;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Locale;
 
@@ -56,6 +57,11 @@ public class SearchEngineInfo {
     // the above enumeration definition.
     private final String[] mSearchEngineData;
 
+    // The search and suggest URI templates split around {searchTerms}, or
+    // null if the engine has no such URI.
+    private final String[] mSearchUriSegments;
+    private final String[] mSuggestUriSegments;
+
     /**
      * @throws IllegalArgumentException If the name does not refer to a valid search engine
      */
@@ -107,6 +113,28 @@ public class SearchEngineInfo {
                 mSearchEngineData[FIELD_SEARCH_URI].replace(PARAMETER_INPUT_ENCODING, enc);
         mSearchEngineData[FIELD_SUGGEST_URI] =
                 mSearchEngineData[FIELD_SUGGEST_URI].replace(PARAMETER_INPUT_ENCODING, enc);
+
+        mSearchUriSegments = compileTemplate(mSearchEngineData[FIELD_SEARCH_URI]);
+        mSuggestUriSegments = compileTemplate(mSearchEngineData[FIELD_SUGGEST_URI]);
+    }
+
+    /**
+     * Splits a template uri into the literal segments between occurrences of
+     * the search terms parameter.
+     */
+    private static String[] compileTemplate(String templateUri) {
+        if (TextUtils.isEmpty(templateUri)) {
+            return null;
+        }
+        ArrayList<String> segments = new ArrayList<String>(2);
+        int start = 0;
+        int index;
+        while ((index = templateUri.indexOf(PARAMETER_SEARCH_TERMS, start)) >= 0) {
+            segments.add(templateUri.substring(start, index));
+            start = index + PARAMETER_SEARCH_TERMS.length();
+        }
+        segments.add(templateUri.substring(start));
+        return segments.toArray(new String[segments.size()]);
     }
 
     public String getName() {
@@ -122,7 +150,7 @@ public class SearchEngineInfo {
      * data available for this search engine).
      */
     public String getSearchUriForQuery(String query) {
-        return getFormattedUri(searchUri(), query);
+        return getFormattedUri(mSearchUriSegments, query);
     }
 
     /**
@@ -130,42 +158,48 @@ public class SearchEngineInfo {
      * was no data available for this search engine).
      */
     public String getSuggestUriForQuery(String query) {
-        return getFormattedUri(suggestUri(), query);
+        return getFormattedUri(mSuggestUriSegments, query);
     }
 
     public boolean supportsSuggestions() {
-        return !TextUtils.isEmpty(suggestUri());
+        return mSuggestUriSegments != null;
     }
 
     public String faviconUri() {
         return mSearchEngineData[FIELD_FAVICON_URI];
     }
 
-    private String suggestUri() {
-        return mSearchEngineData[FIELD_SUGGEST_URI];
-    }
-
-    private String searchUri() {
-        return mSearchEngineData[FIELD_SEARCH_URI];
-    }
-
     /**
-     * Formats a launchable uri out of the template uri by replacing the template parameters with
-     * actual values.
+     * Formats a launchable uri out of the compiled template uri by splicing the encoded query
+     * between its segments.
      */
-    private String getFormattedUri(String templateUri, String query) {
-        if (TextUtils.isEmpty(templateUri)) {
+    private String getFormattedUri(String[] segments, String query) {
+        if (segments == null) {
             return null;
         }
+        if (segments.length == 1) {
+            return segments[0];
+        }
 
         // Encode the query terms in the requested encoding (and fallback to UTF-8 if not).
         String enc = mSearchEngineData[FIELD_ENCODING];
+        String encoded;
         try {
-            return templateUri.replace(PARAMETER_SEARCH_TERMS, URLEncoder.encode(query, enc));
+            encoded = URLEncoder.encode(query, enc);
         } catch (java.io.UnsupportedEncodingException e) {
             Log.e(TAG, "Exception occured when encoding query " + query + " to " + enc);
             return null;
         }
+        int length = encoded.length() * (segments.length - 1);
+        for (String segment : segments) {
+            length += segment.length();
+        }
+        StringBuilder uri = new StringBuilder(length);
+        uri.append(segments[0]);
+        for (int i = 1; i < segments.length; i++) {
+            uri.append(encoded).append(segments[i]);
+        }
+        return uri.toString();
     }
 
     @Override
@@ -18,52 +18,120 @@ package com.android.browser.search;
 import com.android.browser.R;
 
 import android.content.Context;
+import android.content.res.Configuration;
 import android.content.res.Resources;
 import android.text.TextUtils;
 import android.util.Log;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
 
 public class SearchEngines {
 
     private static final String TAG = "SearchEngines";
 
+    // The search engines parsed for the current configuration. The engine
+    // data is localized and can vary by carrier, so the registry is rebuilt
+    // whenever the locale or mcc/mnc change.
+    private static final Object sLock = new Object();
+    private static Locale sLocale;
+    private static int sMcc;
+    private static int sMnc;
+    private static String[] sNames;
+    // Contains null for names that failed to load
+    private static final HashMap<String, SearchEngineInfo> sInfos =
+            new HashMap<String, SearchEngineInfo>();
+    private static final HashMap<String, OpenSearchSearchEngine> sEngines =
+            new HashMap<String, OpenSearchSearchEngine>();
+
     public static SearchEngine getDefaultSearchEngine(Context context) {
         return DefaultSearchEngine.create(context);
     }
 
     public static List<SearchEngineInfo> getSearchEngineInfos(Context context) {
-        ArrayList<SearchEngineInfo> searchEngineInfos = new ArrayList<SearchEngineInfo>();
-        Resources res = context.getResources();
-        String[] searchEngines = res.getStringArray(R.array.search_engines);
-        for (int i = 0; i < searchEngines.length; i++) {
-            String name = searchEngines[i];
-            SearchEngineInfo info = new SearchEngineInfo(context, name);
-            searchEngineInfos.add(info);
+        synchronized (sLock) {
+            ensureCurrentLocked(context);
+            ArrayList<SearchEngineInfo> searchEngineInfos =
+                    new ArrayList<SearchEngineInfo>(sNames.length);
+            for (String name : sNames) {
+                SearchEngineInfo info = sInfos.get(name);
+                if (info == null) {
+                    info = new SearchEngineInfo(context, name);
+                    sInfos.put(name, info);
+                }
+                searchEngineInfos.add(info);
+            }
+            return searchEngineInfos;
         }
-        return searchEngineInfos;
     }
 
     public static SearchEngine get(Context context, String name) {
-        // TODO: cache
         SearchEngine defaultSearchEngine = getDefaultSearchEngine(context);
         if (TextUtils.isEmpty(name)
                 || (defaultSearchEngine != null && name.equals(defaultSearchEngine.getName()))) {
             return defaultSearchEngine;
         }
-        SearchEngineInfo searchEngineInfo = getSearchEngineInfo(context, name);
-        if (searchEngineInfo == null) return defaultSearchEngine;
-        return new OpenSearchSearchEngine(context, searchEngineInfo);
+        synchronized (sLock) {
+            ensureCurrentLocked(context);
+            OpenSearchSearchEngine engine = sEngines.get(name);
+            if (engine == null) {
+                SearchEngineInfo searchEngineInfo = getSearchEngineInfoLocked(context, name);
+                if (searchEngineInfo == null) return defaultSearchEngine;
+                engine = new OpenSearchSearchEngine(context, searchEngineInfo);
+                sEngines.put(name, engine);
+            }
+            return engine;
+        }
     }
 
     public static SearchEngineInfo getSearchEngineInfo(Context context, String name) {
+        synchronized (sLock) {
+            ensureCurrentLocked(context);
+            return getSearchEngineInfoLocked(context, name);
+        }
+    }
+
+    private static SearchEngineInfo getSearchEngineInfoLocked(Context context, String name) {
+        if (sInfos.containsKey(name)) {
+            return sInfos.get(name);
+        }
+        SearchEngineInfo info = null;
         try {
-            return new SearchEngineInfo(context, name);
+            info = new SearchEngineInfo(context, name);
         } catch (IllegalArgumentException exception) {
             Log.e(TAG, "Cannot load search engine " + name, exception);
-            return null;
         }
+        sInfos.put(name, info);
+        return info;
+    }
+
+    /**
+     * Drops the parsed search engines, they are reloaded on next use. Called
+     * when the configuration changes.
+     */
+    public static void invalidate() {
+        synchronized (sLock) {
+            sNames = null;
+            sInfos.clear();
+            sEngines.clear();
+        }
+    }
+
+    private static void ensureCurrentLocked(Context context) {
+        Resources res = context.getResources();
+        Configuration config = res.getConfiguration();
+        if (sNames != null && config.locale != null && config.locale.equals(sLocale)
+                && config.mcc == sMcc && config.mnc == sMnc) {
+            return;
+        }
+        sInfos.clear();
+        sEngines.clear();
+        sLocale = config.locale;
+        sMcc = config.mcc;
+        sMnc = config.mnc;
+        sNames = res.getStringArray(R.array.search_engines);
     }
 
 }
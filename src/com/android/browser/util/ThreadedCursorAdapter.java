@@ -17,12 +17,12 @@ package com.android.browser.util;
 
 import android.content.Context;
 import android.database.Cursor;
+import android.database.MatrixCursor;
 import android.os.Handler;
-import android.os.HandlerThread;
 import android.os.Message;
 import android.os.Process;
-import android.os.SystemProperties;
 import android.util.Log;
+import android.util.SparseArray;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.Adapter;
@@ -32,21 +32,54 @@ import android.widget.CursorAdapter;
 import com.android.browser.R;
 
 import java.lang.ref.WeakReference;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * An adapter that builds its row objects off the UI thread.
+ *
+ * All instances share a small, bounded pool of loader threads that only
+ * exists while at least one adapter has a cursor. A load is cancelled when
+ * its view is rebound to another position before it ran, and rows just
+ * ahead of the scroll direction are prefetched. Rows are copied out of the
+ * cursor under the cursor lock, and decoded by {@link #getRowObject} after
+ * the lock has been released.
+ */
 public abstract class ThreadedCursorAdapter<T> extends BaseAdapter {
 
     private static final String LOGTAG = "BookmarksThreadedAdapter";
     private static final boolean DEBUG = false;
 
+    private static final int LOADER_THREADS = 2;
+    private static final int LOADER_KEEP_ALIVE_SECONDS = 5;
+    // Number of rows ahead of the scroll direction to prefetch
+    private static final int PREFETCH_COUNT = 4;
+
+    private static final Object sPoolLock = new Object();
+    private static ThreadPoolExecutor sLoaderPool;
+    private static int sPoolUsers;
+
     private Context mContext;
     private Object mCursorLock = new Object();
     private CursorAdapter mCursorAdapter;
     private T mLoadingObject;
-    private Handler mLoadHandler;
     private Handler mHandler;
     private int mSize;
     private boolean mHasCursor;
+    private boolean mUsingPool;
     private long mGeneration;
+    private int mLastPosition = -1;
+    // Row objects that were prefetched, by position, for mGeneration
+    private final SparseArray<T> mPrefetched = new SparseArray<T>();
+    private final SparseArray<Future<?>> mPrefetching = new SparseArray<Future<?>>();
+
+    private final AtomicInteger mLoadsIssued = new AtomicInteger();
+    private final AtomicInteger mLoadsCancelled = new AtomicInteger();
+    private final AtomicInteger mLoadsWasted = new AtomicInteger();
 
     private class LoadContainer {
         WeakReference<View> view;
@@ -55,11 +88,14 @@ public abstract class ThreadedCursorAdapter<T> extends BaseAdapter {
         Adapter owner;
         boolean loaded;
         long generation;
+        Future<?> pending;
     }
 
+    private static final int MSG_BIND = 1;
+    private static final int MSG_PREFETCHED = 2;
+
     public ThreadedCursorAdapter(Context context, Cursor c) {
         mContext = context;
-        mHasCursor = (c != null);
         mCursorAdapter = new CursorAdapter(context, c, 0) {
 
             @Override
@@ -76,7 +112,7 @@ public abstract class ThreadedCursorAdapter<T> extends BaseAdapter {
             public void notifyDataSetChanged() {
                 super.notifyDataSetChanged();
                 mSize = getCount();
-                mGeneration++;
+                onGenerationChanged();
                 ThreadedCursorAdapter.this.notifyDataSetChanged();
             }
 
@@ -84,28 +120,19 @@ public abstract class ThreadedCursorAdapter<T> extends BaseAdapter {
             public void notifyDataSetInvalidated() {
                 super.notifyDataSetInvalidated();
                 mSize = getCount();
-                mGeneration++;
+                onGenerationChanged();
                 ThreadedCursorAdapter.this.notifyDataSetInvalidated();
             }
 
         };
         mSize = mCursorAdapter.getCount();
-        HandlerThread thread = new HandlerThread("threaded_adapter_" + this,
-                Process.THREAD_PRIORITY_BACKGROUND);
-        thread.start();
-        mLoadHandler = new Handler(thread.getLooper()) {
-            @SuppressWarnings("unchecked")
-            @Override
-            public void handleMessage(Message msg) {
-                if (DEBUG) {
-                    Log.d(LOGTAG, "loading: " + msg.what);
-                }
-                loadRowObject(msg.what, (LoadContainer) msg.obj);
-            }
-        };
         mHandler = new Handler() {
             @Override
             public void handleMessage(Message msg) {
+                if (msg.what == MSG_PREFETCHED) {
+                    onPrefetched(msg.arg1, msg.arg2, msg.obj);
+                    return;
+                }
                 @SuppressWarnings("unchecked")
                 LoadContainer container = (LoadContainer) msg.obj;
                 if (container == null) {
@@ -114,15 +141,89 @@ public abstract class ThreadedCursorAdapter<T> extends BaseAdapter {
                 View view = container.view.get();
                 if (view == null
                         || container.owner != ThreadedCursorAdapter.this
-                        || container.position != msg.what
+                        || container.position != msg.arg1
                         || view.getWindowToken() == null
                         || container.generation != mGeneration) {
+                    mLoadsWasted.incrementAndGet();
                     return;
                 }
+                container.pending = null;
                 container.loaded = true;
                 bindView(view, container.bind_object);
             }
         };
+        setHasCursor(c != null);
+    }
+
+    private static ThreadPoolExecutor acquireLoaderPool() {
+        synchronized (sPoolLock) {
+            if (sLoaderPool == null) {
+                ThreadPoolExecutor pool = new ThreadPoolExecutor(LOADER_THREADS,
+                        LOADER_THREADS, LOADER_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                        new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                            private final AtomicInteger mCount = new AtomicInteger();
+
+                            @Override
+                            public Thread newThread(final Runnable r) {
+                                return new Thread("threaded_adapter_"
+                                        + mCount.getAndIncrement()) {
+                                    @Override
+                                    public void run() {
+                                        Process.setThreadPriority(
+                                                Process.THREAD_PRIORITY_BACKGROUND);
+                                        r.run();
+                                    }
+                                };
+                            }
+                        });
+                pool.allowCoreThreadTimeOut(true);
+                sLoaderPool = pool;
+            }
+            sPoolUsers++;
+            return sLoaderPool;
+        }
+    }
+
+    private static void releaseLoaderPool() {
+        synchronized (sPoolLock) {
+            if (--sPoolUsers == 0 && sLoaderPool != null) {
+                sLoaderPool.shutdown();
+                sLoaderPool = null;
+            }
+        }
+    }
+
+    private void setHasCursor(boolean hasCursor) {
+        mHasCursor = hasCursor;
+        if (hasCursor && !mUsingPool) {
+            acquireLoaderPool();
+            mUsingPool = true;
+        } else if (!hasCursor && mUsingPool) {
+            releaseLoaderPool();
+            mUsingPool = false;
+        }
+    }
+
+    private Future<?> submit(Runnable load) {
+        mLoadsIssued.incrementAndGet();
+        synchronized (sPoolLock) {
+            return sLoaderPool.submit(load);
+        }
+    }
+
+    private void onGenerationChanged() {
+        mGeneration++;
+        for (int i = 0; i < mPrefetching.size(); i++) {
+            cancel(mPrefetching.valueAt(i));
+        }
+        mPrefetching.clear();
+        mPrefetched.clear();
+    }
+
+    private void cancel(Future<?> load) {
+        if (load != null && load.cancel(false)) {
+            mLoadsCancelled.incrementAndGet();
+        }
     }
 
     @Override
@@ -142,21 +243,118 @@ public abstract class ThreadedCursorAdapter<T> extends BaseAdapter {
         }
     }
 
+    /**
+     * Copies a row out of the shared cursor so that it can be decoded
+     * without holding the cursor lock.
+     * @return A single row cursor positioned on the copy, or null if the
+     *         row is no longer available.
+     */
+    private Cursor copyRow(int position) {
+        synchronized (mCursorLock) {
+            Cursor c = (Cursor) mCursorAdapter.getItem(position);
+            if (c == null || c.isClosed()) {
+                return null;
+            }
+            int columns = c.getColumnCount();
+            MatrixCursor copy = new MatrixCursor(c.getColumnNames(), 1);
+            Object[] row = new Object[columns];
+            for (int i = 0; i < columns; i++) {
+                switch (c.getType(i)) {
+                    case Cursor.FIELD_TYPE_BLOB:
+                        row[i] = c.getBlob(i);
+                        break;
+                    case Cursor.FIELD_TYPE_INTEGER:
+                        row[i] = c.getLong(i);
+                        break;
+                    case Cursor.FIELD_TYPE_FLOAT:
+                        row[i] = c.getDouble(i);
+                        break;
+                    case Cursor.FIELD_TYPE_STRING:
+                        row[i] = c.getString(i);
+                        break;
+                    default:
+                        row[i] = null;
+                        break;
+                }
+            }
+            copy.addRow(row);
+            copy.moveToFirst();
+            return copy;
+        }
+    }
+
+    private T loadRow(int position, T recycleObject) {
+        Cursor row = copyRow(position);
+        if (row == null) {
+            return null;
+        }
+        try {
+            return getRowObject(row, recycleObject);
+        } finally {
+            row.close();
+        }
+    }
+
     private void loadRowObject(int position, LoadContainer container) {
         if (container == null
                 || container.position != position
                 || container.owner != ThreadedCursorAdapter.this
                 || container.view.get() == null) {
+            mLoadsWasted.incrementAndGet();
             return;
         }
-        synchronized (mCursorLock) {
-            Cursor c = (Cursor) mCursorAdapter.getItem(position);
-            if (c == null || c.isClosed()) {
-                return;
+        T object = loadRow(position, container.bind_object);
+        if (object == null) {
+            return;
+        }
+        container.bind_object = object;
+        mHandler.obtainMessage(MSG_BIND, position, 0, container).sendToTarget();
+    }
+
+    private void prefetch(final int position) {
+        if (position < 0 || position >= mSize
+                || mPrefetched.get(position) != null
+                || mPrefetching.get(position) != null) {
+            return;
+        }
+        final long generation = mGeneration;
+        mPrefetching.put(position, submit(new Runnable() {
+            @Override
+            public void run() {
+                T object = loadRow(position, null);
+                if (object != null) {
+                    mHandler.obtainMessage(MSG_PREFETCHED, position,
+                            (int) generation, object).sendToTarget();
+                }
+            }
+        }));
+    }
+
+    @SuppressWarnings("unchecked")
+    private void onPrefetched(int position, int generation, Object object) {
+        if (generation != (int) mGeneration) {
+            mLoadsWasted.incrementAndGet();
+            return;
+        }
+        mPrefetching.remove(position);
+        mPrefetched.put(position, (T) object);
+    }
+
+    private void prefetchAhead(int position) {
+        if (mLastPosition >= 0 && position != mLastPosition) {
+            int direction = position > mLastPosition ? 1 : -1;
+            // Drop prefetched rows that are now behind us
+            for (int i = mPrefetched.size() - 1; i >= 0; i--) {
+                int key = mPrefetched.keyAt(i);
+                if ((key - position) * direction < 0) {
+                    mPrefetched.removeAt(i);
+                }
+            }
+            for (int i = 1; i <= PREFETCH_COUNT; i++) {
+                prefetch(position + i * direction);
             }
-            container.bind_object = getRowObject(c, container.bind_object);
         }
-        mHandler.obtainMessage(position, container).sendToTarget();
+        mLastPosition = position;
     }
 
     @Override
@@ -176,15 +374,44 @@ public abstract class ThreadedCursorAdapter<T> extends BaseAdapter {
                 && container.loaded
                 && container.generation == mGeneration) {
             bindView(convertView, container.bind_object);
-        } else {
+        } else if (container.position == position
+                && container.owner == this
+                && container.generation == mGeneration
+                && container.pending != null
+                && !container.pending.isDone()) {
+            // Already loading this row, leave the load running
             bindView(convertView, cachedLoadObject());
-            if (mHasCursor) {
-                container.position = position;
+        } else if (mHasCursor) {
+            // The view is being rebound, whatever it was loading is stale
+            cancel(container.pending);
+            container.pending = null;
+            container.position = position;
+            container.owner = this;
+            container.generation = mGeneration;
+            T prefetched = mPrefetched.get(position);
+            if (prefetched != null) {
+                mPrefetched.remove(position);
+                container.bind_object = prefetched;
+                container.loaded = true;
+                bindView(convertView, prefetched);
+            } else {
                 container.loaded = false;
-                container.owner = this;
-                container.generation = mGeneration;
-                mLoadHandler.obtainMessage(position, container).sendToTarget();
+                bindView(convertView, cachedLoadObject());
+                final int loadPosition = position;
+                final LoadContainer loadContainer = container;
+                container.pending = submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (DEBUG) {
+                            Log.d(LOGTAG, "loading: " + loadPosition);
+                        }
+                        loadRowObject(loadPosition, loadContainer);
+                    }
+                });
             }
+            prefetchAhead(position);
+        } else {
+            bindView(convertView, cachedLoadObject());
         }
         return convertView;
     }
@@ -196,13 +423,46 @@ public abstract class ThreadedCursorAdapter<T> extends BaseAdapter {
         return mLoadingObject;
     }
 
+    /**
+     * Swap in a new cursor. Passing null cancels all pending loads and
+     * releases this adapter's hold on the shared loader threads.
+     */
     public void changeCursor(Cursor cursor) {
-        mLoadHandler.removeCallbacksAndMessages(null);
+        onGenerationChanged();
         mHandler.removeCallbacksAndMessages(null);
+        mLastPosition = -1;
         synchronized (mCursorLock) {
-            mHasCursor = (cursor != null);
+            setHasCursor(cursor != null);
             mCursorAdapter.changeCursor(cursor);
         }
+        if (DEBUG) {
+            Log.d(LOGTAG, "loads issued: " + getLoadsIssued()
+                    + " cancelled: " + getLoadsCancelled()
+                    + " wasted: " + getLoadsWasted());
+        }
+    }
+
+    /**
+     * Number of row loads submitted to the loader threads, including
+     * prefetches.
+     */
+    public int getLoadsIssued() {
+        return mLoadsIssued.get();
+    }
+
+    /**
+     * Number of row loads cancelled before they ran.
+     */
+    public int getLoadsCancelled() {
+        return mLoadsCancelled.get();
+    }
+
+    /**
+     * Number of row loads that ran, but whose result was thrown away
+     * because the view or the data had changed in the meantime.
+     */
+    public int getLoadsWasted() {
+        return mLoadsWasted.get();
     }
 
     public abstract View newView(Context context, ViewGroup parent);
@@ -210,4 +470,4 @@ public abstract class ThreadedCursorAdapter<T> extends BaseAdapter {
     public abstract T getRowObject(Cursor c, T recycleObject);
     public abstract T getLoadingObject();
     protected abstract long getItemId(Cursor c);
-}
\ No newline at end of file
+}
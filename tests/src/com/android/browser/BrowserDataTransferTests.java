@@ -0,0 +1,239 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.browser;
+
+import com.android.browser.provider.BrowserProvider2;
+import com.android.browser.tests.utils.ProviderTestCase3;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.provider.BrowserContract;
+import android.provider.BrowserContract.Bookmarks;
+import android.provider.BrowserContract.History;
+import android.provider.BrowserContract.Searches;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.test.suitebuilder.annotation.MediumTest;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Tests for {@link BrowserDataTransfer}.
+ */
+@MediumTest
+public class BrowserDataTransferTests extends ProviderTestCase3<BrowserProvider2> {
+
+    private static final String TAG = "BrowserDataTransferTests";
+    private static final int BENCHMARK_ROWS = 100000;
+
+    public BrowserDataTransferTests() {
+        super(BrowserProvider2.class,
+                BrowserContract.AUTHORITY, BrowserProvider2.LEGACY_AUTHORITY);
+    }
+
+    public void testRoundTrip() throws IOException {
+        ContentResolver cr = getMockContentResolver();
+        long outer = insertFolder(BrowserProvider2.FIXED_ID_ROOT, "outer");
+        long inner = insertFolder(outer, "inner");
+        insertBookmark(inner, "http://www.example.com/nested", "nested");
+        insertHistory("http://www.example.com/visited", "visited \u00e9\u4e2d");
+        ContentValues search = new ContentValues();
+        search.put(Searches.SEARCH, "needle");
+        search.put(Searches.DATE, 1234L);
+        cr.insert(Searches.CONTENT_URI, search);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new BrowserDataTransfer(cr).exportTo(out);
+
+        cr.delete(History.CONTENT_URI, null, null);
+        cr.delete(Searches.CONTENT_URI, null, null);
+        cr.delete(Bookmarks.CONTENT_URI, Bookmarks._ID + "!=?",
+                new String[] { Long.toString(BrowserProvider2.FIXED_ID_ROOT) });
+        assertEquals(-1, findBookmark("nested", Bookmarks.PARENT));
+
+        final long[] progress = new long[BrowserDataTransfer.SECTION_IMAGES + 1];
+        BrowserDataTransfer importer = new BrowserDataTransfer(cr);
+        importer.setProgressListener(new BrowserDataTransfer.ProgressListener() {
+            @Override
+            public void onProgress(int section, long rows) {
+                progress[section] = rows;
+            }
+        });
+        importer.importFrom(new ByteArrayInputStream(out.toByteArray()));
+
+        long newOuter = findBookmark("outer", Bookmarks._ID);
+        long newInner = findBookmark("inner", Bookmarks._ID);
+        assertEquals(BrowserProvider2.FIXED_ID_ROOT, findBookmark("outer", Bookmarks.PARENT));
+        assertEquals(newOuter, findBookmark("inner", Bookmarks.PARENT));
+        assertEquals(newInner, findBookmark("nested", Bookmarks.PARENT));
+        assertEquals(1, count(History.CONTENT_URI, History.TITLE + "=?",
+                new String[] { "visited \u00e9\u4e2d" }));
+        assertEquals(1, count(Searches.CONTENT_URI, Searches.SEARCH + "=?",
+                new String[] { "needle" }));
+        assertTrue(progress[BrowserDataTransfer.SECTION_FOLDERS] >= 2);
+        assertEquals(1, progress[BrowserDataTransfer.SECTION_HISTORY]);
+    }
+
+    public void testSkipsAccountBookmarks() throws IOException {
+        ContentResolver cr = getMockContentResolver();
+        insertBookmark(BrowserProvider2.FIXED_ID_ROOT, "http://www.example.com/local", "local");
+        ContentValues values = new ContentValues();
+        values.put(Bookmarks.TITLE, "synced");
+        values.put(Bookmarks.URL, "http://www.example.com/synced");
+        values.put(Bookmarks.IS_FOLDER, 0);
+        values.put(Bookmarks.ACCOUNT_TYPE, "com.example");
+        values.put(Bookmarks.ACCOUNT_NAME, "user@example.com");
+        cr.insert(Bookmarks.CONTENT_URI, values);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new BrowserDataTransfer(cr).exportTo(out);
+        new BrowserDataTransfer(cr).importFrom(new ByteArrayInputStream(out.toByteArray()));
+
+        // Imported rows are added, so only exported bookmarks are doubled
+        assertEquals(2, count(Bookmarks.CONTENT_URI, Bookmarks.TITLE + "=?",
+                new String[] { "local" }));
+        assertEquals(1, count(Bookmarks.CONTENT_URI, Bookmarks.TITLE + "=?",
+                new String[] { "synced" }));
+    }
+
+    public void testRejectsUnknownStream() {
+        try {
+            new BrowserDataTransfer(getMockContentResolver()).importFrom(
+                    new ByteArrayInputStream(new byte[] { 1, 2, 3, 4, 5, 6, 7, 8 }));
+            fail("Expected an IOException");
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+
+    @LargeTest
+    public void testThroughput() throws IOException {
+        ContentResolver cr = getMockContentResolver();
+        ContentValues[] chunk = new ContentValues[BrowserDataTransfer.CHUNK_ROWS];
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < BENCHMARK_ROWS; i += chunk.length) {
+            for (int j = 0; j < chunk.length; j++) {
+                ContentValues values = new ContentValues();
+                values.put(History.URL, "http://www.example.com/page/" + (i + j));
+                values.put(History.TITLE, "Example page " + (i + j));
+                values.put(History.DATE_LAST_VISITED, now - (i + j) * 1000L);
+                values.put(History.VISITS, 1 + j % 10);
+                chunk[j] = values;
+            }
+            cr.bulkInsert(History.CONTENT_URI, chunk);
+        }
+
+        File file = new File(getContext().getCacheDir(), "transfer_benchmark");
+        try {
+            OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+            long start = SystemClock.uptimeMillis();
+            long exported;
+            try {
+                exported = new BrowserDataTransfer(cr).exportTo(out);
+            } finally {
+                out.close();
+            }
+            long exportMs = SystemClock.uptimeMillis() - start;
+            assertTrue(exported >= BENCHMARK_ROWS);
+
+            cr.delete(History.CONTENT_URI, null, null);
+
+            InputStream in = new BufferedInputStream(new FileInputStream(file));
+            start = SystemClock.uptimeMillis();
+            long imported;
+            try {
+                imported = new BrowserDataTransfer(cr).importFrom(in);
+            } finally {
+                in.close();
+            }
+            long importMs = SystemClock.uptimeMillis() - start;
+            assertEquals(exported, imported);
+            assertEquals(BENCHMARK_ROWS, count(History.CONTENT_URI, null, null));
+
+            Log.i(TAG, "Exported " + exported + " rows (" + file.length() + " bytes) in "
+                    + exportMs + "ms, " + rate(exported, exportMs) + " rows/s");
+            Log.i(TAG, "Imported " + imported + " rows in " + importMs + "ms, "
+                    + rate(imported, importMs) + " rows/s");
+        } finally {
+            file.delete();
+        }
+    }
+
+    private static long rate(long rows, long ms) {
+        return ms > 0 ? rows * 1000 / ms : rows;
+    }
+
+    private long insertFolder(long parent, String title) {
+        ContentValues values = new ContentValues();
+        values.put(Bookmarks.TITLE, title);
+        values.put(Bookmarks.IS_FOLDER, 1);
+        values.put(Bookmarks.PARENT, parent);
+        return ContentUris.parseId(getMockContentResolver().insert(
+                Bookmarks.CONTENT_URI, values));
+    }
+
+    private void insertBookmark(long parent, String url, String title) {
+        ContentValues values = new ContentValues();
+        values.put(Bookmarks.TITLE, title);
+        values.put(Bookmarks.URL, url);
+        values.put(Bookmarks.IS_FOLDER, 0);
+        values.put(Bookmarks.PARENT, parent);
+        getMockContentResolver().insert(Bookmarks.CONTENT_URI, values);
+    }
+
+    private void insertHistory(String url, String title) {
+        ContentValues values = new ContentValues();
+        values.put(History.URL, url);
+        values.put(History.TITLE, title);
+        values.put(History.DATE_LAST_VISITED, System.currentTimeMillis());
+        getMockContentResolver().insert(History.CONTENT_URI, values);
+    }
+
+    private long findBookmark(String title, String column) {
+        Cursor c = getMockContentResolver().query(Bookmarks.CONTENT_URI,
+                new String[] { column }, Bookmarks.TITLE + "=?",
+                new String[] { title }, null);
+        try {
+            return c.moveToFirst() ? c.getLong(0) : -1;
+        } finally {
+            c.close();
+        }
+    }
+
+    private int count(Uri uri, String selection, String[] args) {
+        Cursor c = getMockContentResolver().query(uri, new String[] { "_id" },
+                selection, args, null);
+        try {
+            return c.getCount();
+        } finally {
+            c.close();
+        }
+    }
+}
@@ -15,12 +15,15 @@ public class BrowserLaunchPerformance extends LaunchPerformanceBase {
     }
 
     /**
-     * Calls LaunchApp and finish.
+     * Calls LaunchApp and finish, reporting the time taken by each startup
+     * phase alongside the overall launch time.
      */
     @Override
     public void onStart() {
         super.onStart();
         LaunchApp();
+        waitForIdleSync();
+        mResults.putAll(Performance.getStartupPhases());
         finish(Activity.RESULT_OK, mResults);
     }
 }
@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.browser;
+
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+import android.webkit.ConsoleMessage.MessageLevel;
+
+/**
+ * Tests the eviction, counters and rate limiting of {@link ConsoleMessageBuffer}.
+ */
+@SmallTest
+public class ConsoleMessageBufferTests extends AndroidTestCase {
+
+    public void testEvictsOldest() {
+        ConsoleMessageBuffer buffer = new ConsoleMessageBuffer(3);
+        for (int i = 0; i < 5; i++) {
+            // A different line each time, so nothing is rate limited
+            assertTrue(buffer.add(MessageLevel.LOG, "message " + i, "source", i, 0));
+        }
+        assertEquals(3, buffer.size());
+        assertEquals("message 2", buffer.get(0).getMessage());
+        assertEquals("message 4", buffer.get(2).getMessage());
+        try {
+            buffer.get(3);
+            fail("Expected an IndexOutOfBoundsException");
+        } catch (IndexOutOfBoundsException e) {
+            // Expected
+        }
+    }
+
+    public void testLevelCountsFollowEviction() {
+        ConsoleMessageBuffer buffer = new ConsoleMessageBuffer(2);
+        buffer.add(MessageLevel.ERROR, "error", "source", 1, 0);
+        buffer.add(MessageLevel.WARNING, "warning", "source", 2, 0);
+        assertEquals(1, buffer.getCount(MessageLevel.ERROR));
+        assertEquals(1, buffer.getCount(MessageLevel.WARNING));
+
+        // Evicts the error
+        buffer.add(MessageLevel.WARNING, "warning", "source", 3, 0);
+        assertEquals(0, buffer.getCount(MessageLevel.ERROR));
+        assertEquals(2, buffer.getCount(MessageLevel.WARNING));
+
+        buffer.clear();
+        assertEquals(0, buffer.size());
+        assertEquals(0, buffer.getCount(MessageLevel.WARNING));
+    }
+
+    public void testRateLimitCountsDropped() {
+        ConsoleMessageBuffer buffer = new ConsoleMessageBuffer();
+        int extra = 5;
+        for (int i = 0; i < ConsoleMessageBuffer.RATE_LIMIT_MAX + extra; i++) {
+            buffer.add(MessageLevel.LOG, "spam", "source", 1, 0);
+        }
+        assertEquals(ConsoleMessageBuffer.RATE_LIMIT_MAX, buffer.size());
+        assertEquals(extra, buffer.getDroppedCount());
+
+        // Other lines are not limited, and the window starts over later
+        assertTrue(buffer.add(MessageLevel.LOG, "other", "source", 2, 0));
+        assertTrue(buffer.add(MessageLevel.LOG, "spam", "source", 1,
+                ConsoleMessageBuffer.RATE_LIMIT_WINDOW_MS));
+        assertEquals(extra, buffer.getDroppedCount());
+
+        buffer.clear();
+        assertEquals(0, buffer.getDroppedCount());
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.browser;
+
+import android.graphics.Bitmap;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.MediumTest;
+
+import com.android.browser.DownloadTouchIcon.FetchResult;
+import com.android.browser.tests.utils.StubHttpServer;
+import com.android.browser.tests.utils.StubHttpServer.Request;
+import com.android.browser.tests.utils.StubHttpServer.Response;
+
+import java.io.ByteArrayOutputStream;
+import java.net.HttpURLConnection;
+import java.util.Arrays;
+
+/**
+ * Tests the touch icon requests against a local HTTP stub.
+ */
+@MediumTest
+public class DownloadTouchIconTests extends AndroidTestCase {
+
+    private static final String ETAG = "\"abc123\"";
+    private static final String LAST_MODIFIED = "Tue, 15 Nov 2011 12:45:26 GMT";
+
+    private StubHttpServer mServer;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mServer = new StubHttpServer();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.shutdown();
+        super.tearDown();
+    }
+
+    public void testFetchReturnsBodyAndValidators() {
+        byte[] icon = encodeIcon(64);
+        mServer.setResponse("/icon.png", new Response(200, icon)
+                .header("ETag", ETAG)
+                .header("Last-Modified", LAST_MODIFIED));
+
+        FetchResult result = DownloadTouchIcon.fetch(mServer.getUrl("/icon.png"),
+                "TestAgent", null, null);
+
+        assertNotNull(result);
+        assertEquals(HttpURLConnection.HTTP_OK, result.mResponseCode);
+        assertTrue(Arrays.equals(icon, result.mData));
+        assertEquals(ETAG, result.mEtag);
+        assertEquals(LAST_MODIFIED, result.mLastModified);
+        Request request = mServer.getRequests().get(0);
+        assertEquals("TestAgent", request.headers.get("user-agent"));
+        assertNull(request.headers.get("if-none-match"));
+        assertNull(request.headers.get("if-modified-since"));
+    }
+
+    public void testConditionalFetch() {
+        mServer.setResponse("/icon.png", new Response(304, null).header("ETag", ETAG));
+
+        FetchResult result = DownloadTouchIcon.fetch(mServer.getUrl("/icon.png"),
+                null, ETAG, LAST_MODIFIED);
+
+        assertNotNull(result);
+        assertEquals(HttpURLConnection.HTTP_NOT_MODIFIED, result.mResponseCode);
+        assertNull(result.mData);
+        Request request = mServer.getRequests().get(0);
+        assertEquals(ETAG, request.headers.get("if-none-match"));
+        assertEquals(LAST_MODIFIED, request.headers.get("if-modified-since"));
+    }
+
+    public void testOversizedIconIsDropped() {
+        mServer.setResponse("/huge.png",
+                new Response(200, new byte[DownloadTouchIcon.MAX_ICON_BYTES + 1]));
+
+        assertNull(DownloadTouchIcon.fetch(mServer.getUrl("/huge.png"), null, null, null));
+    }
+
+    public void testDecodeIsDownsampled() {
+        byte[] icon = encodeIcon(512);
+
+        Bitmap small = DownloadTouchIcon.decodeIcon(icon, 96);
+        assertEquals(128, small.getWidth());
+        assertEquals(128, small.getHeight());
+
+        // Never below the requested size
+        Bitmap large = DownloadTouchIcon.decodeIcon(icon, 400);
+        assertEquals(512, large.getWidth());
+
+        assertNull(DownloadTouchIcon.decodeIcon(new byte[] { 1, 2, 3 }, 96));
+    }
+
+    public void testIconBytesReencodedOnlyWhenSubsampled() {
+        byte[] icon = encodeIcon(512);
+
+        // Not subsampled, the downloaded bytes are stored as they are
+        Bitmap large = DownloadTouchIcon.decodeIcon(icon, 400);
+        assertSame(icon, DownloadTouchIcon.getIconBytes(icon, large));
+
+        Bitmap small = DownloadTouchIcon.decodeIcon(icon, 96);
+        byte[] stored = DownloadTouchIcon.getIconBytes(icon, small);
+        assertEquals(128, DownloadTouchIcon.decodeIcon(stored, 0).getWidth());
+
+        assertNull(DownloadTouchIcon.getIconBytes(icon, null));
+    }
+
+    private static byte[] encodeIcon(int size) {
+        Bitmap bitmap = Bitmap.createBitmap(size, size, Bitmap.Config.ARGB_8888);
+        bitmap.eraseColor(0xff336699);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        bitmap.compress(Bitmap.CompressFormat.PNG, 100, out);
+        return out.toByteArray();
+    }
+}
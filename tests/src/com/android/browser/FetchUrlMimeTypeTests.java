@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.browser;
+
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.MediumTest;
+
+import com.android.browser.FetchUrlMimeType.HeadResult;
+import com.android.browser.tests.utils.StubHttpServer;
+import com.android.browser.tests.utils.StubHttpServer.Request;
+import com.android.browser.tests.utils.StubHttpServer.Response;
+
+/**
+ * Tests the download pre-flight HEAD requests against a local HTTP stub.
+ */
+@MediumTest
+public class FetchUrlMimeTypeTests extends AndroidTestCase {
+
+    private static final int TIMEOUT_MS = 500;
+
+    private StubHttpServer mServer;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mServer = new StubHttpServer();
+        FetchUrlMimeType.resetForTesting(TIMEOUT_MS);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mServer.shutdown();
+        FetchUrlMimeType.resetForTesting(0);
+        super.tearDown();
+    }
+
+    public void testProbeParsesHeaders() {
+        mServer.setResponse("/file", new Response(200, null)
+                .header("Content-Type", "application/pdf; charset=binary")
+                .header("Content-Disposition", "attachment; filename=\"report.pdf\""));
+
+        HeadResult result = FetchUrlMimeType.probe(mServer.getUrl("/file"),
+                "a=b", "TestAgent");
+
+        assertNotNull(result);
+        assertEquals("application/pdf", result.mMimeType);
+        assertEquals("attachment; filename=\"report.pdf\"", result.mContentDisposition);
+        Request request = mServer.getRequests().get(0);
+        assertEquals("HEAD", request.method);
+        assertEquals("a=b", request.headers.get("cookie"));
+        assertEquals("TestAgent", request.headers.get("user-agent"));
+    }
+
+    public void testNonOkResponseHasNoMimeType() {
+        mServer.setResponse("/missing", new Response(404, null)
+                .header("Content-Type", "text/html"));
+
+        HeadResult result = FetchUrlMimeType.probe(mServer.getUrl("/missing"), null, null);
+
+        assertNotNull(result);
+        assertNull(result.mMimeType);
+        assertNull(result.mContentDisposition);
+    }
+
+    public void testProbeIsCachedPerUrl() {
+        mServer.setResponse("/a", new Response(200, null).header("Content-Type", "image/png"));
+        mServer.setResponse("/b", new Response(200, null).header("Content-Type", "image/gif"));
+
+        assertEquals("image/png", FetchUrlMimeType.probe(mServer.getUrl("/a"), null, null)
+                .mMimeType);
+        assertEquals("image/png", FetchUrlMimeType.probe(mServer.getUrl("/a"), null, null)
+                .mMimeType);
+        assertEquals("image/gif", FetchUrlMimeType.probe(mServer.getUrl("/b"), null, null)
+                .mMimeType);
+
+        assertEquals(2, mServer.getRequestCount());
+        assertEquals(2, FetchUrlMimeType.getProbeCount());
+        assertEquals(1, FetchUrlMimeType.getCacheHits());
+    }
+
+    public void testProbeIsCachedPerUserAgentWithoutCookies() {
+        mServer.setResponse("/a", new Response(200, null).header("Content-Type", "image/png"));
+        String url = mServer.getUrl("/a");
+
+        FetchUrlMimeType.probe(url, null, "agent 1");
+        FetchUrlMimeType.probe(url, null, "agent 2");
+        FetchUrlMimeType.probe(url, null, "agent 1");
+        assertEquals(2, mServer.getRequestCount());
+
+        // The response may depend on the cookies, so it is never cached
+        FetchUrlMimeType.probe(url, "session=1", "agent 1");
+        FetchUrlMimeType.probe(url, "session=1", "agent 1");
+        assertEquals(4, mServer.getRequestCount());
+        assertEquals(1, FetchUrlMimeType.getCacheHits());
+    }
+
+    public void testConnectionIsReused() {
+        mServer.setResponse("/a", new Response(200, null).header("Content-Type", "image/png"));
+        mServer.setResponse("/b", new Response(200, null).header("Content-Type", "image/gif"));
+
+        FetchUrlMimeType.probe(mServer.getUrl("/a"), null, null);
+        FetchUrlMimeType.probe(mServer.getUrl("/b"), null, null);
+
+        assertEquals(2, mServer.getRequestCount());
+        assertEquals(1, mServer.getConnectionCount());
+    }
+
+    public void testSlowServerTimesOut() {
+        mServer.setResponse("/slow", new Response(200, null).header("Content-Type", "image/png"));
+        mServer.setResponseDelay(TIMEOUT_MS * 4);
+
+        long start = SystemClock.uptimeMillis();
+        HeadResult result = FetchUrlMimeType.probe(mServer.getUrl("/slow"), null, null);
+        long elapsed = SystemClock.uptimeMillis() - start;
+
+        assertNull(result);
+        assertTrue("took " + elapsed + "ms", elapsed < TIMEOUT_MS * 3);
+        assertEquals(1, FetchUrlMimeType.getProbeFailures());
+        assertTrue(FetchUrlMimeType.getMaxLatencyMs() >= TIMEOUT_MS);
+    }
+
+    public void testFailedProbeIsNotCached() {
+        mServer.setResponseDelay(TIMEOUT_MS * 4);
+        assertNull(FetchUrlMimeType.probe(mServer.getUrl("/flaky"), null, null));
+
+        mServer.setResponseDelay(0);
+        mServer.setResponse("/flaky", new Response(200, null).header("Content-Type", "text/csv"));
+        assertEquals("text/csv", FetchUrlMimeType.probe(mServer.getUrl("/flaky"), null, null)
+                .mMimeType);
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.browser;
+
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.test.ActivityInstrumentationTestCase2;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+/**
+ * Measures tab switching and intent routing lookups with a large number of
+ * tabs. The tabs are restored without WebViews, except for the few that are
+ * switched between, so that the numbers reflect TabControl's own
+ * bookkeeping rather than WebView creation.
+ */
+@LargeTest
+public class TabControlBenchmark extends ActivityInstrumentationTestCase2<BrowserActivity> {
+
+    private static final String TAG = "TabControlBenchmark";
+    private static final int TAB_COUNT = 200;
+    private static final int SWITCH_TABS = 8;
+    private static final int ITERATIONS = 2000;
+
+    private TabControl mTabControl;
+
+    public TabControlBenchmark() {
+        super(BrowserActivity.class);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        final Controller controller = getActivity().getController();
+        runTestOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                mTabControl = new TabControl(controller);
+                mTabControl.restoreState(createState(), 1, false, false);
+            }
+        });
+        assertEquals(TAB_COUNT, mTabControl.getTabCount());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        runTestOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                mTabControl.destroy();
+            }
+        });
+        super.tearDown();
+    }
+
+    private static Bundle createState() {
+        Bundle state = new Bundle();
+        long[] ids = new long[TAB_COUNT];
+        for (int i = 0; i < TAB_COUNT; i++) {
+            long id = i + 1;
+            ids[i] = id;
+            Bundle tab = new Bundle();
+            tab.putLong(Tab.ID, id);
+            tab.putString(Tab.CURRURL, getUrl(i));
+            tab.putString(Tab.CURRTITLE, "Tab " + i);
+            tab.putString(Tab.APPID, getAppId(i));
+            state.putBundle(Long.toString(id), tab);
+        }
+        state.putLongArray("positions", ids);
+        state.putLong("current", 1);
+        return state;
+    }
+
+    private static String getUrl(int i) {
+        return "http://www.example.com/page" + i;
+    }
+
+    private static String getAppId(int i) {
+        return "com.example.app" + i;
+    }
+
+    public void testIntentRouting() throws Throwable {
+        runTestOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                // The lookups must agree with a scan of the tab list
+                for (int i = 0; i < TAB_COUNT; i++) {
+                    Tab expected = mTabControl.getTab(i);
+                    assertSame(expected, mTabControl.findTabWithUrl(getUrl(i)));
+                    assertSame(expected, mTabControl.getTabFromAppId(getAppId(i)));
+                    assertEquals(i, mTabControl.getTabPosition(expected));
+                }
+                assertNull(mTabControl.findTabWithUrl("http://www.example.com/none"));
+
+                long start = SystemClock.elapsedRealtime();
+                for (int n = 0; n < ITERATIONS; n++) {
+                    int i = (n * 37) % TAB_COUNT;
+                    mTabControl.findTabWithUrl(getUrl(i));
+                    mTabControl.getTabFromAppId(getAppId(i));
+                }
+                long elapsed = SystemClock.elapsedRealtime() - start;
+                Log.i(TAG, "intent routing: " + elapsed + "ms for " + ITERATIONS
+                        + " url + app id lookups over " + TAB_COUNT + " tabs");
+            }
+        });
+    }
+
+    public void testTabSwitching() throws Throwable {
+        runTestOnUiThread(new Runnable() {
+            @Override
+            public void run() {
+                // Create the WebViews of the tabs being switched between
+                // up front, so they are not part of the measurement.
+                for (int i = 0; i < SWITCH_TABS; i++) {
+                    mTabControl.setCurrentTab(mTabControl.getTab(i * 25));
+                }
+
+                long start = SystemClock.elapsedRealtime();
+                for (int n = 0; n < ITERATIONS; n++) {
+                    Tab tab = mTabControl.getTab((n % SWITCH_TABS) * 25);
+                    mTabControl.setCurrentTab(tab);
+                    mTabControl.getTabFromView(tab.getWebView());
+                }
+                long elapsed = SystemClock.elapsedRealtime() - start;
+                Log.i(TAG, "tab switching: " + elapsed + "ms for " + ITERATIONS
+                        + " switches with " + TAB_COUNT + " tabs");
+
+                Tab last = mTabControl.getTab(((ITERATIONS - 1) % SWITCH_TABS) * 25);
+                assertSame(last, mTabControl.getCurrentTab());
+                assertSame(last, mTabControl.getTabFromView(last.getWebView()));
+            }
+        });
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.browser;
+
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+import android.util.Patterns;
+import android.webkit.URLUtil;
+
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.regex.Matcher;
+
+/**
+ * Compares UrlUtils.smartUrlFilter against the previous regex based
+ * implementation, on a corpus of typed urls, search terms and random
+ * messy input.
+ */
+@LargeTest
+public class UrlUtilsBenchmark extends AndroidTestCase {
+
+    private static final String TAG = "UrlUtilsBenchmark";
+    private static final int RANDOM_INPUTS = 2000;
+    private static final int ITERATIONS = 20;
+
+    private static final String[] CORPUS = new String[] {
+        "", " ", "google", "google.com", "www.google.com", " www.google.com ",
+        "WWW.GOOGLE.COM", "www.google.com/search?q=android&hl=en",
+        "http://www.google.com", "HTTP://www.google.com", "Http://WWW.google.com/",
+        "https://mail.google.com/mail/#inbox", "hTTps://example.org:8080/a b",
+        "file:///sdcard/index.html", "FILE:///sdcard/a b.html", "data:text/html,hi",
+        "DATA:text/html,<b>hi</b>", "about:blank", "About:Blank", "javascript:alert(1)",
+        "JavaScript:void(0)", "rtsp://media.example.com/stream",
+        "ftp://ftp.example.com/pub", "mailto:someone@example.com",
+        "MailTo:Someone@Example.com", "user:pass@example.com", "User:Pass@Example.com",
+        "a:b@c", "@:", ":@", "a@b:c", "a:b\n@c", "http://a\nb", "http://a b",
+        "192.168.0.1", "192.168.0.1:8080/admin", "256.1.1.1", "10.0.0", "localhost",
+        "localhost:8080", "example.c", "example.co.uk", "xn--bcher-kva.ch",
+        "bücher.ch", "例子.测试", "café", "foo bar",
+        "how to tie a tie", "what is 2+2?", "c++ templates", "1 + 1 = 2",
+        "foo.bar baz", "www.google.com search", "\"quoted.string\"", "<b>.com",
+        "a.b.c.d.e.f.g.h", "...", ".com", "com.", "example.com.", "-example.com",
+        "example-.com", "ex_ample.com", "example.com/%41%42", "example.com/%zz",
+        "example.com/~user/page#frag", "example.com?q=a|b", "example.com\\path",
+        "example.com/path with space", "\texample.com\t", "example.com\u0085",
+        " example.com", "example.com/\u0080", "AbOuT:plugins",
+        "content://settings/system", "browser:incognito", "intent:#Intent;end",
+        // Non ASCII characters that (?i) folds to, or not to, ASCII letters
+        "http\u017f://example.com", "HTTP\u017f://example.com", "java\u017fcript:void(0)",
+        "f\u0130le:///sdcard/index.html", "f\u0131le:///sdcard/index.html",
+        "\u212aelvin.com", "\u017f.example.com",
+    };
+
+    private ArrayList<String> mCorpus;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mCorpus = new ArrayList<String>();
+        for (String url : CORPUS) {
+            mCorpus.add(url);
+        }
+        // Long, messy input built from url punctuation and search terms
+        String alphabet = "abcXYZ019 .:/@?#&=%-_+~!*'(),;$\"<>|\\^`{}[]\té例";
+        Random random = new Random(42);
+        for (int i = 0; i < RANDOM_INPUTS; i++) {
+            StringBuilder sb = new StringBuilder();
+            int length = 1 + random.nextInt(i % 10 == 0 ? 400 : 40);
+            for (int j = 0; j < length; j++) {
+                sb.append(alphabet.charAt(random.nextInt(alphabet.length())));
+            }
+            mCorpus.add(sb.toString());
+            mCorpus.add("www." + sb.toString().replace(' ', '-') + ".com");
+        }
+    }
+
+    public void testCorpusMatchesLegacy() {
+        for (String url : mCorpus) {
+            assertEquals(url, UrlUtils.ACCEPTED_URI_SCHEMA.matcher(url).matches(),
+                    UrlUtils.isAcceptedUri(url));
+            assertEquals(url, Patterns.WEB_URL.matcher(url).matches(),
+                    UrlUtils.isWebUrl(url));
+            assertEquals(url, legacySmartUrlFilter(url, true),
+                    UrlUtils.smartUrlFilter(url, true));
+            assertEquals(url, legacySmartUrlFilter(url, false),
+                    UrlUtils.smartUrlFilter(url, false));
+        }
+    }
+
+    public void testFilterSpeed() {
+        // Warm up both implementations
+        for (String url : mCorpus) {
+            legacySmartUrlFilter(url, false);
+            UrlUtils.smartUrlFilter(url, false);
+        }
+
+        long start = SystemClock.elapsedRealtime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            for (String url : mCorpus) {
+                legacySmartUrlFilter(url, false);
+            }
+        }
+        long legacy = SystemClock.elapsedRealtime() - start;
+
+        start = SystemClock.elapsedRealtime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            for (String url : mCorpus) {
+                UrlUtils.smartUrlFilter(url, false);
+            }
+        }
+        long scanner = SystemClock.elapsedRealtime() - start;
+
+        Log.i(TAG, "legacy: " + legacy + "ms, scanner: " + scanner
+                + "ms for " + ITERATIONS + " passes over " + mCorpus.size() + " inputs");
+    }
+
+    // The regex based implementation UrlUtils.smartUrlFilter replaced
+    private static String legacySmartUrlFilter(String url, boolean canBeSearch) {
+        String inUrl = url.trim();
+        boolean hasSpace = inUrl.indexOf(' ') != -1;
+
+        Matcher matcher = UrlUtils.ACCEPTED_URI_SCHEMA.matcher(inUrl);
+        if (matcher.matches()) {
+            String scheme = matcher.group(1);
+            String lcScheme = scheme.toLowerCase();
+            if (!lcScheme.equals(scheme)) {
+                inUrl = lcScheme + matcher.group(2);
+            }
+            if (hasSpace && Patterns.WEB_URL.matcher(inUrl).matches()) {
+                inUrl = inUrl.replace(" ", "%20");
+            }
+            return inUrl;
+        }
+        if (!hasSpace) {
+            if (Patterns.WEB_URL.matcher(inUrl).matches()) {
+                return URLUtil.guessUrl(inUrl);
+            }
+        }
+        if (canBeSearch) {
+            return URLUtil.composeSearchUrl(inUrl,
+                    "http://www.google.com/m?q=%s", "%s");
+        }
+        return null;
+    }
+}
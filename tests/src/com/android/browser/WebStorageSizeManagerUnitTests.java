@@ -39,8 +39,10 @@ public class WebStorageSizeManagerUnitTests extends AndroidTestCase {
     private class MockDiskInfo implements WebStorageSizeManager.DiskInfo {
         private long mFreeSize;
         private long mTotalSize;
+        private int mFreeSizeQueries;
 
         public long getFreeSpaceSizeBytes() {
+            mFreeSizeQueries++;
             return mFreeSize;
         }
 
@@ -55,6 +57,10 @@ public class WebStorageSizeManagerUnitTests extends AndroidTestCase {
         public void setTotalSizeBytes(long totalSize) {
             mTotalSize = totalSize;
         }
+
+        public int getFreeSpaceSizeQueries() {
+            return mFreeSizeQueries;
+        }
     }
 
     // Mock the AppCacheInfo
@@ -299,4 +305,74 @@ public class WebStorageSizeManagerUnitTests extends AndroidTestCase {
         assertEquals(database1EstimatedSize + database2EstimatedSize + database4EstimatedSize +
                 bytes(1) + database5EstimatedSize, mNewQuota);
     }
+
+    public void testFreeSpaceIsSampledOnce() {
+        mDiskInfo.setTotalSizeBytes(bytes(100));
+        mDiskInfo.setFreeSpaceSizeBytes(bytes(100));
+        mAppCacheInfo.setAppCacheSizeBytes(0);
+        WebStorageSizeManager manager = new WebStorageSizeManager(getContext(), mDiskInfo,
+                mAppCacheInfo);
+        assertEquals(1, mDiskInfo.getFreeSpaceSizeQueries());
+
+        // An origin growing in small steps doesn't stat the disk again.
+        long quota = 0;
+        manager.onExceededDatabaseQuota("1", "1", quota, bytes(0.5), quota, mQuotaUpdater);
+        quota = mNewQuota;
+        for (int i = 0; i < 5; i++) {
+            manager.onExceededDatabaseQuota("1", "1", quota, 0, quota, mQuotaUpdater);
+            assertTrue(mNewQuota > quota);
+            quota = mNewQuota;
+        }
+        manager.onReachedMaxAppCacheSize(bytes(0.1), quota, mQuotaUpdater);
+        assertEquals(1, mDiskInfo.getFreeSpaceSizeQueries());
+    }
+
+    public void testQuotaLimitedByFreeSpace() {
+        // The global limit is 13MB.
+        mDiskInfo.setTotalSizeBytes(bytes(100));
+        mDiskInfo.setFreeSpaceSizeBytes(bytes(100));
+        mAppCacheInfo.setAppCacheSizeBytes(0);
+        WebStorageSizeManager manager = new WebStorageSizeManager(getContext(), mDiskInfo,
+                mAppCacheInfo);
+        manager.setFreeSpaceSampleInterval(0);
+
+        // The disk fills up, only half of the free space may be granted.
+        mDiskInfo.setFreeSpaceSizeBytes(bytes(4));
+        manager.onExceededDatabaseQuota("1", "1", 0, bytes(3), 0, mQuotaUpdater);
+        assertEquals(0, mNewQuota);
+        manager.onExceededDatabaseQuota("1", "1", 0, bytes(2), 0, mQuotaUpdater);
+        assertEquals(bytes(2), mNewQuota);
+
+        // Space is freed again.
+        mDiskInfo.setFreeSpaceSizeBytes(bytes(100));
+        manager.onExceededDatabaseQuota("2", "2", 0, bytes(3), bytes(2), mQuotaUpdater);
+        assertEquals(bytes(3), mNewQuota);
+    }
+
+    public void testQuotaGrowsInChunks() {
+        // The global limit is 512MB, 128MB for the appcache.
+        mDiskInfo.setTotalSizeBytes(8589934592L);
+        mDiskInfo.setFreeSpaceSizeBytes(4294967296L);
+        mAppCacheInfo.setAppCacheSizeBytes(0);
+        WebStorageSizeManager manager = new WebStorageSizeManager(getContext(), mDiskInfo,
+                mAppCacheInfo);
+        long appCacheMaxSize = manager.getAppCacheMaxSize();
+        assertEquals(bytes(128), appCacheMaxSize);
+
+        // A small overflow of the appcache still grows it by a whole step.
+        manager.onReachedMaxAppCacheSize(1024, 0, mQuotaUpdater);
+        assertEquals(appCacheMaxSize + appCacheMaxSize / WebStorageSizeManager.QUOTA_GROWTH_DIVISOR,
+                mNewQuota);
+        assertEquals(mNewQuota, manager.getAppCacheMaxSize());
+
+        // A large origin grows by a fraction of its quota.
+        long quota = bytes(64);
+        manager.onExceededDatabaseQuota("1", "1", quota, 0, quota, mQuotaUpdater);
+        assertEquals(quota + quota / WebStorageSizeManager.QUOTA_GROWTH_DIVISOR, mNewQuota);
+
+        // A small one by the default step.
+        quota = bytes(2);
+        manager.onExceededDatabaseQuota("2", "2", quota, 0, quota, mQuotaUpdater);
+        assertEquals(quota + WebStorageSizeManager.QUOTA_INCREASE_STEP, mNewQuota);
+    }
 }
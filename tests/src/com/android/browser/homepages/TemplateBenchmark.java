@@ -0,0 +1,232 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.browser.homepages;
+
+import android.os.SystemClock;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+import android.util.Log;
+
+import com.android.browser.R;
+import com.android.browser.homepages.Template.ListEntityIterator;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Compares the compiled Template engine against the previous regex and
+ * string keyed implementation, using the folder listing template.
+ */
+@LargeTest
+public class TemplateBenchmark extends AndroidTestCase {
+
+    private static final String TAG = "TemplateBenchmark";
+    private static final int ROWS = 200;
+    private static final int ITERATIONS = 200;
+
+    private String mRaw;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        InputStream in = getContext().getResources().openRawResource(R.raw.folder_view);
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buf = new byte[4096];
+            int read;
+            while ((read = in.read(buf)) > 0) {
+                out.write(buf, 0, read);
+            }
+            mRaw = new String(out.toByteArray(), "utf-8");
+        } finally {
+            in.close();
+        }
+    }
+
+    public void testOutputMatchesLegacy() throws IOException {
+        assertEquals(new String(renderLegacy(), "utf-8"),
+                new String(renderCompiled(), "utf-8"));
+    }
+
+    public void testRenderSpeed() throws IOException {
+        // Warm up both engines
+        renderLegacy();
+        renderCompiled();
+
+        long start = SystemClock.elapsedRealtime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            renderLegacy();
+        }
+        long legacy = SystemClock.elapsedRealtime() - start;
+
+        start = SystemClock.elapsedRealtime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            renderCompiled();
+        }
+        long compiled = SystemClock.elapsedRealtime() - start;
+
+        Log.i(TAG, "legacy: " + legacy + "ms, compiled: " + compiled
+                + "ms for " + ITERATIONS + " renders of " + ROWS + " rows");
+    }
+
+    private byte[] renderCompiled() throws IOException {
+        Template t = Template.getCachedTemplate(getContext(), R.raw.folder_view);
+        t.assign("path", "/sdcard");
+        t.assign("parent_url", "/");
+        final int nameSlot = t.getSlot("name");
+        final int urlSlot = t.getSlot("url");
+        final int altSlot = t.getSlot("alt");
+        t.assignLoop("files", new RowIterator() {
+            @Override
+            public void writeValue(OutputStream stream, int slot) throws IOException {
+                if (slot == nameSlot) {
+                    stream.write(NAMES[mIndex]);
+                } else if (slot == urlSlot) {
+                    stream.write(URLS[mIndex]);
+                } else if (slot == altSlot && mIndex % 2 == 0) {
+                    stream.write(ALT);
+                }
+            }
+        });
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        t.write(out);
+        return out.toByteArray();
+    }
+
+    private byte[] renderLegacy() throws IOException {
+        LegacyTemplate t = new LegacyTemplate(mRaw);
+        t.mData.put("path", "/sdcard".getBytes());
+        t.mData.put("parent_url", "/".getBytes());
+        t.mData.put("files", new LegacyRows());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        t.write(out, t.mData);
+        return out.toByteArray();
+    }
+
+    private static final byte[][] NAMES = new byte[ROWS][];
+    private static final byte[][] URLS = new byte[ROWS][];
+    private static final byte[] ALT = "alt".getBytes();
+    static {
+        for (int i = 0; i < ROWS; i++) {
+            NAMES[i] = ("file" + i + ".txt").getBytes();
+            URLS[i] = ("file:///sdcard/file" + i + ".txt").getBytes();
+        }
+    }
+
+    private abstract static class RowIterator implements ListEntityIterator {
+        int mIndex = -1;
+
+        @Override
+        public ListEntityIterator getListIterator(int slot) {
+            return null;
+        }
+
+        @Override
+        public void reset() {
+            mIndex = -1;
+        }
+
+        @Override
+        public boolean moveToNext() {
+            return ++mIndex < ROWS;
+        }
+    }
+
+    private static class LegacyRows {
+        int mIndex = -1;
+
+        void writeValue(OutputStream stream, String key) throws IOException {
+            if ("name".equals(key)) {
+                stream.write(NAMES[mIndex]);
+            }
+            if ("url".equals(key)) {
+                stream.write(URLS[mIndex]);
+            }
+            if ("alt".equals(key) && mIndex % 2 == 0) {
+                stream.write(ALT);
+            }
+        }
+    }
+
+    /**
+     * The previous engine: regexes compiled per construction, string keyed
+     * lookups and an unbuffered stream.
+     */
+    private static class LegacyTemplate {
+        final List<Object[]> mTemplate = new ArrayList<Object[]>();
+        final HashMap<String, Object> mData = new HashMap<String, Object>();
+
+        LegacyTemplate(String template) {
+            Pattern pattern = Pattern.compile("<%([=\\{])\\s*(\\w+)\\s*%>");
+            Matcher m = pattern.matcher(template);
+            int start = 0;
+            while (m.find()) {
+                String staticPart = template.substring(start, m.start());
+                if (staticPart.length() > 0) {
+                    mTemplate.add(new Object[] { staticPart.getBytes() });
+                }
+                String name = m.group(2);
+                if (m.group(1).equals("=")) {
+                    mTemplate.add(new Object[] { name });
+                } else {
+                    Pattern p = Pattern.compile("<%\\}\\s*" + Pattern.quote(name) + "\\s*%>");
+                    Matcher endM = p.matcher(template);
+                    if (endM.find(m.end())) {
+                        start = m.end();
+                        m.region(endM.end(), template.length());
+                        mTemplate.add(new Object[] { name,
+                                new LegacyTemplate(template.substring(start, endM.start())) });
+                        start = endM.end();
+                        continue;
+                    }
+                }
+                start = m.end();
+            }
+            String staticPart = template.substring(start);
+            if (staticPart.length() > 0) {
+                mTemplate.add(new Object[] { staticPart.getBytes() });
+            }
+        }
+
+        void write(OutputStream stream, Object data) throws IOException {
+            for (Object[] ent : mTemplate) {
+                if (ent[0] instanceof byte[]) {
+                    stream.write((byte[]) ent[0]);
+                } else if (ent.length == 1) {
+                    String key = (String) ent[0];
+                    if (data instanceof LegacyRows) {
+                        ((LegacyRows) data).writeValue(stream, key);
+                    } else {
+                        stream.write((byte[]) mData.get(key));
+                    }
+                } else {
+                    LegacyRows rows = (LegacyRows) mData.get(ent[0]);
+                    rows.mIndex = -1;
+                    while (++rows.mIndex < ROWS) {
+                        ((LegacyTemplate) ent[1]).write(stream, rows);
+                    }
+                }
+            }
+        }
+    }
+}
@@ -16,14 +16,17 @@
 
 package com.android.browser.tests;
 
+import com.android.browser.provider.BrowserProvider2;
 import com.android.browser.tests.utils.BP2TestCaseHelper;
 
+import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.database.Cursor;
 import android.graphics.Bitmap;
 import android.graphics.Bitmap.Config;
 import android.net.Uri;
+import android.provider.Browser;
 import android.provider.BrowserContract;
 import android.provider.BrowserContract.Images;
 import android.test.suitebuilder.annotation.SmallTest;
@@ -56,6 +59,162 @@ public class BP2ProviderTests extends BP2TestCaseHelper {
         assertTrue(updateBookmark(Images.CONTENT_URI, values));
     }
 
+    public void testImageKeptWhileReferenced() {
+        String url = "http://stub2.com";
+        ContentResolver cr = getMockContentResolver();
+        ContentValues values = new ContentValues();
+        values.put(BrowserContract.Bookmarks.TITLE, "stub 2");
+        values.put(BrowserContract.Bookmarks.URL, url);
+        values.put(BrowserContract.Bookmarks.IS_FOLDER, 0);
+        Uri bookmark = cr.insert(BrowserContract.Bookmarks.CONTENT_URI, values);
+        values = new ContentValues();
+        values.put(BrowserContract.History.TITLE, "stub 2");
+        values.put(BrowserContract.History.URL, url);
+        Uri history = cr.insert(BrowserContract.History.CONTENT_URI, values);
+        values = new ContentValues();
+        values.put(Images.URL, url);
+        values.put(Images.FAVICON, new byte[] { 1, 2, 3 });
+        cr.update(Images.CONTENT_URI, values, null, null);
+        assertTrue(hasImage(url));
+
+        cr.delete(history, null, null);
+        assertTrue(hasImage(url));
+        cr.delete(bookmark, null, null);
+        assertFalse(hasImage(url));
+    }
+
+    public void testImageOfUnknownUrlIsDropped() {
+        String url = "http://stub3.com";
+        ContentValues values = new ContentValues();
+        values.put(Images.URL, url);
+        values.put(Images.FAVICON, new byte[] { 1, 2, 3 });
+        getMockContentResolver().update(Images.CONTENT_URI, values, null, null);
+        assertFalse(hasImage(url));
+    }
+
+    public void testClearHistory() {
+        ContentResolver cr = getMockContentResolver();
+        insertBookmark("http://clear1.com/", "clear 1");
+        insertHistory("http://clear1.com/", "clear 1");
+        insertHistory("http://clear2.com/", "clear 2");
+        for (String url : new String[] { "http://clear1.com/", "http://clear2.com/" }) {
+            ContentValues values = new ContentValues();
+            values.put(Images.URL, url);
+            values.put(Images.FAVICON, new byte[] { 1, 2, 3 });
+            cr.update(Images.CONTENT_URI, values, null, null);
+        }
+
+        assertEquals(2, cr.delete(BrowserContract.History.CONTENT_URI, null, null));
+        assertEquals(0, count(BrowserContract.History.CONTENT_URI));
+
+        // The images only history used go once they have been recounted
+        while (getProvider().sweepImages()) {
+        }
+        assertTrue(hasImage("http://clear1.com/"));
+        assertFalse(hasImage("http://clear2.com/"));
+
+        // New history counts again
+        insertHistory("http://clear3.com/", "clear 3");
+        ContentValues values = new ContentValues();
+        values.put(Images.URL, "http://clear3.com/");
+        values.put(Images.FAVICON, new byte[] { 4 });
+        cr.update(Images.CONTENT_URI, values, null, null);
+        assertTrue(hasImage("http://clear3.com/"));
+        cr.delete(BrowserContract.History.CONTENT_URI,
+                BrowserContract.History.URL + "=?", new String[] { "http://clear3.com/" });
+        assertFalse(hasImage("http://clear3.com/"));
+    }
+
+    public void testOriginMetadata() {
+        insertBookmarkWithFavicon("http://www.example.com/", "Example", new byte[] { 1 });
+        insertBookmarkWithFavicon("http://www.example.com/page", "Page", new byte[] { 2 });
+        insertBookmarkWithFavicon("http://www.example.com.other.org/", "Other",
+                new byte[] { 3 });
+        insertBookmarkWithFavicon("https://secure.example.com/page", "Secure",
+                new byte[] { 4 });
+
+        Cursor c = getMockContentResolver().query(
+                BrowserProvider2.OriginMetadata.CONTENT_URI, null, null,
+                new String[] { "http://www.example.com", "https://secure.example.com",
+                        "http://unknown.example.com" }, null);
+        try {
+            assertEquals(2, c.getCount());
+            while (c.moveToNext()) {
+                String origin = c.getString(0);
+                if (origin.equals("http://www.example.com")) {
+                    // The root is preferred over the more recent page
+                    assertEquals("Example", c.getString(1));
+                    assertEquals(1, c.getBlob(2)[0]);
+                } else {
+                    assertEquals("https://secure.example.com", origin);
+                    // Only the root of an origin gives it a title
+                    assertNull(c.getString(1));
+                    assertEquals(4, c.getBlob(2)[0]);
+                }
+            }
+        } finally {
+            c.close();
+        }
+    }
+
+    public void testLegacyDelete() {
+        ContentResolver cr = getMockContentResolver();
+        Uri bookmark = insertBookmark("http://legacy1.com/", "legacy 1");
+        Uri bookmarkedHistory = insertHistory("http://legacy1.com/", "legacy 1");
+        Uri history = insertHistory("http://legacy2.com/", "legacy 2");
+        Uri kept = insertHistory("http://legacy3.com/", "legacy 3");
+
+        int deleted = cr.delete(Browser.BOOKMARKS_URI,
+                Browser.BookmarkColumns.URL + " IN (?,?)",
+                new String[] { "http://legacy1.com/", "http://legacy2.com/" });
+        assertEquals(2, deleted);
+
+        // The bookmark is only marked deleted, so that it can be synced
+        Cursor c = cr.query(bookmark.buildUpon().appendQueryParameter(
+                BrowserContract.Bookmarks.QUERY_PARAMETER_SHOW_DELETED, "true").build(),
+                new String[] { BrowserContract.Bookmarks.IS_DELETED,
+                BrowserContract.Bookmarks.DIRTY }, null, null, null);
+        try {
+            assertTrue(c.moveToFirst());
+            assertEquals(1, c.getInt(0));
+            assertEquals(1, c.getInt(1));
+        } finally {
+            c.close();
+        }
+        assertEquals(0, count(bookmarkedHistory));
+        assertEquals(0, count(history));
+        assertEquals(1, count(kept));
+    }
+
+    private int count(Uri uri) {
+        Cursor c = getMockContentResolver().query(uri, null, null, null, null);
+        try {
+            return c.getCount();
+        } finally {
+            c.close();
+        }
+    }
+
+    private void insertBookmarkWithFavicon(String url, String title, byte[] favicon) {
+        ContentValues values = new ContentValues();
+        values.put(BrowserContract.Bookmarks.TITLE, title);
+        values.put(BrowserContract.Bookmarks.URL, url);
+        values.put(BrowserContract.Bookmarks.IS_FOLDER, 0);
+        values.put(BrowserContract.Bookmarks.FAVICON, favicon);
+        getMockContentResolver().insert(BrowserContract.Bookmarks.CONTENT_URI, values);
+    }
+
+    private boolean hasImage(String url) {
+        Cursor c = getMockContentResolver().query(Images.CONTENT_URI,
+                new String[] { Images.URL }, Images.URL + "=?",
+                new String[] { url }, null);
+        try {
+            return c.getCount() > 0;
+        } finally {
+            c.close();
+        }
+    }
+
     public void testIsValidParentNullAccount() {
         doTestIsValidParent(null, null);
     }
@@ -0,0 +1,235 @@
+/*
+ * Copyright (C) 2012 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.browser.tests.utils;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A minimal HTTP/1.1 server on the loopback interface for tests. Responses
+ * are registered per path, keep-alive is supported, and every request is
+ * recorded so tests can check what the client sent.
+ */
+public class StubHttpServer {
+
+    public static class Response {
+        final int mCode;
+        final Map<String, String> mHeaders = new HashMap<String, String>();
+        final byte[] mBody;
+
+        public Response(int code, byte[] body) {
+            mCode = code;
+            mBody = body != null ? body : new byte[0];
+        }
+
+        public Response header(String name, String value) {
+            mHeaders.put(name, value);
+            return this;
+        }
+    }
+
+    public static class Request {
+        public final String method;
+        public final String path;
+        public final Map<String, String> headers;
+
+        Request(String method, String path, Map<String, String> headers) {
+            this.method = method;
+            this.path = path;
+            this.headers = headers;
+        }
+    }
+
+    private final ServerSocket mServerSocket;
+    private final Thread mAcceptThread;
+    private final Map<String, Response> mResponses = new HashMap<String, Response>();
+    private final List<Request> mRequests = new ArrayList<Request>();
+    private final List<Socket> mSockets = new ArrayList<Socket>();
+    private int mConnectionCount;
+    private volatile long mResponseDelayMs;
+
+    public StubHttpServer() throws IOException {
+        mServerSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        mAcceptThread = new Thread("StubHttpServer") {
+            @Override
+            public void run() {
+                acceptLoop();
+            }
+        };
+        mAcceptThread.start();
+    }
+
+    public String getUrl(String path) {
+        return "http://127.0.0.1:" + mServerSocket.getLocalPort() + path;
+    }
+
+    public synchronized void setResponse(String path, Response response) {
+        mResponses.put(path, response);
+    }
+
+    /**
+     * Delays every response, used to exercise client timeouts.
+     */
+    public void setResponseDelay(long delayMs) {
+        mResponseDelayMs = delayMs;
+    }
+
+    public synchronized List<Request> getRequests() {
+        return new ArrayList<Request>(mRequests);
+    }
+
+    public synchronized int getRequestCount() {
+        return mRequests.size();
+    }
+
+    public synchronized int getConnectionCount() {
+        return mConnectionCount;
+    }
+
+    public void shutdown() {
+        try {
+            mServerSocket.close();
+        } catch (IOException e) {
+        }
+        synchronized (this) {
+            for (Socket s : mSockets) {
+                try {
+                    s.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+        try {
+            mAcceptThread.join(1000);
+        } catch (InterruptedException e) {
+        }
+    }
+
+    private void acceptLoop() {
+        while (true) {
+            final Socket socket;
+            try {
+                socket = mServerSocket.accept();
+            } catch (IOException e) {
+                return;
+            }
+            synchronized (this) {
+                mConnectionCount++;
+                mSockets.add(socket);
+            }
+            new Thread("StubHttpServer connection") {
+                @Override
+                public void run() {
+                    serve(socket);
+                }
+            }.start();
+        }
+    }
+
+    private void serve(Socket socket) {
+        try {
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            OutputStream out = socket.getOutputStream();
+            while (true) {
+                String requestLine = readLine(in);
+                if (requestLine == null || requestLine.length() == 0) {
+                    return;
+                }
+                String[] parts = requestLine.split(" ");
+                Map<String, String> headers = new HashMap<String, String>();
+                String line;
+                while ((line = readLine(in)) != null && line.length() > 0) {
+                    int colon = line.indexOf(':');
+                    if (colon > 0) {
+                        headers.put(line.substring(0, colon).trim().toLowerCase(),
+                                line.substring(colon + 1).trim());
+                    }
+                }
+                Request request = new Request(parts[0], parts.length > 1 ? parts[1] : "/",
+                        headers);
+                Response response;
+                synchronized (this) {
+                    mRequests.add(request);
+                    response = mResponses.get(request.path);
+                }
+                if (mResponseDelayMs > 0) {
+                    try {
+                        Thread.sleep(mResponseDelayMs);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                writeResponse(out, request, response);
+                if ("close".equalsIgnoreCase(headers.get("connection"))) {
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            // Client went away
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+
+    private static void writeResponse(OutputStream out, Request request, Response response)
+            throws IOException {
+        if (response == null) {
+            response = new Response(404, null);
+        }
+        StringBuilder head = new StringBuilder();
+        head.append("HTTP/1.1 ").append(response.mCode).append(" Stub\r\n");
+        for (Map.Entry<String, String> e : response.mHeaders.entrySet()) {
+            head.append(e.getKey()).append(": ").append(e.getValue()).append("\r\n");
+        }
+        head.append("Content-Length: ").append(response.mBody.length).append("\r\n\r\n");
+        out.write(head.toString().getBytes("ISO-8859-1"));
+        if (!"HEAD".equals(request.method)) {
+            out.write(response.mBody);
+        }
+        out.flush();
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int c;
+        while ((c = in.read()) != -1) {
+            if (c == '\n') {
+                break;
+            }
+            if (c != '\r') {
+                line.write(c);
+            }
+        }
+        if (c == -1 && line.size() == 0) {
+            return null;
+        }
+        return line.toString("ISO-8859-1");
+    }
+}